@@ -0,0 +1,54 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sonar.db.component.BranchType;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates keys of every component of a project tree, as done when the report of a branch is processed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BranchKeyBenchmark {
+
+    private static final String PROJECT_KEY = "com.github.empyrosx:sonar-branch-plugin";
+    private static final int FILES_PER_DIRECTORY = 20;
+
+    @Param({"1000", "100000"})
+    public int components;
+
+    @Param({"BRANCH", "PULL_REQUEST"})
+    public BranchType branchType;
+
+    private BranchImpl branch;
+    private String[] paths;
+
+    @Setup
+    public void setUp() {
+        branch = new BranchImpl(branchType, false, "feature/benchmark", "merge-branch-uuid", "master", "42");
+        paths = new String[components];
+        for (int i = 0; i < components; i++) {
+            paths[i] = i % FILES_PER_DIRECTORY == 0
+                    ? "src/main/java/module" + (i / FILES_PER_DIRECTORY)
+                    : "src/main/java/module" + (i / FILES_PER_DIRECTORY) + "/File" + i + ".java";
+        }
+    }
+
+    @Benchmark
+    public void generateKeys(Blackhole blackhole) {
+        blackhole.consume(branch.generateKey(PROJECT_KEY, null));
+        for (String path : paths) {
+            blackhole.consume(branch.generateKey(PROJECT_KEY, path));
+        }
+    }
+}
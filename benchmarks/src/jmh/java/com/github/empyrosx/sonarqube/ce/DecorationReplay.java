@@ -0,0 +1,29 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import java.nio.file.Paths;
+
+/**
+ * Repeats a decoration recorded by {@link GitlabRecorder} against a {@link GitlabReplayer}, and prints how long
+ * it took with the decoration metrics.
+ */
+public class DecorationReplay {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: DecorationReplay <archive> [latencyScale]");
+            System.exit(1);
+        }
+        double latencyScale = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+
+        try (GitlabReplayer replayer = new GitlabReplayer(Paths.get(args[0]), latencyScale)) {
+            DecorationMetrics metrics = new DecorationMetrics(null, null);
+            MergeRequestDecoration decoration = new MergeRequestDecoration(new MergeRequestContextCache(metrics), metrics);
+
+            long start = System.currentTimeMillis();
+            boolean complete = decoration.decorate(replayer.getSettings(), replayer.getSnapshot());
+            System.out.printf("Decoration %s in %d ms%n", complete ? "completed" : "partially completed", System.currentTimeMillis() - start);
+            System.out.printf("API calls: %s%nErrors: %s%nStage p95 ms: %s%nStage max ms: %s%n", metrics.getApiCalls(),
+                    metrics.getErrors(), metrics.getStageP95Millis(), metrics.getStageMaxMillis());
+        }
+    }
+}
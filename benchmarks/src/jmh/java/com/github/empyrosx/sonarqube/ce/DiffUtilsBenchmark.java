@@ -0,0 +1,83 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps a line of a file through a diff of the given number of lines, and parses the diff alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DiffUtilsBenchmark {
+
+    private static final int CONTEXT_LINES = 8;
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int diffLines;
+
+    private List<String> diffs;
+    private int line;
+
+    @Setup
+    public void setUp() {
+        StringBuilder diff = new StringBuilder();
+        int oldLine = 1;
+        int newLine = 1;
+        int written = 0;
+        while (written < diffLines) {
+            // each hunk replaces one line with two, surrounded by context
+            int oldCount = 2 * CONTEXT_LINES + 1;
+            int newCount = 2 * CONTEXT_LINES + 2;
+            diff.append("@@ -").append(oldLine).append(',').append(oldCount)
+                    .append(" +").append(newLine).append(',').append(newCount).append(" @@ \n");
+            appendContext(diff);
+            diff.append("-    removed();\n");
+            diff.append("+    added();\n");
+            diff.append("+    addedToo();\n");
+            appendContext(diff);
+            written += newCount + 2;
+            oldLine += oldCount + 10;
+            newLine += newCount + 10;
+        }
+        diffs = Collections.singletonList(diff.toString());
+        line = newLine / 2;
+    }
+
+    private static void appendContext(StringBuilder diff) {
+        for (int i = 0; i < CONTEXT_LINES; i++) {
+            diff.append("     context();\n");
+        }
+    }
+
+    @Benchmark
+    public Integer baseSourceLine() {
+        return DiffUtils.getBaseSourceLine(diffs, line);
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) {
+        UnifiedDiffParser.parse(diffs.get(0), new UnifiedDiffParser.Handler() {
+            @Override
+            public void hunk(int oldStart, int oldCount, int newStart, int newCount) {
+                blackhole.consume(newStart);
+            }
+
+            @Override
+            public void line(UnifiedDiffParser.LineType type, CharSequence diff, int start, int end) {
+                blackhole.consume(end - start);
+            }
+        });
+    }
+}
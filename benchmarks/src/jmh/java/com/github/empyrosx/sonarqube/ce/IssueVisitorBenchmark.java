@@ -0,0 +1,83 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sonar.ce.task.projectanalysis.component.Component;
+import org.sonar.ce.task.projectanalysis.component.ReportAttributes;
+import org.sonar.core.issue.DefaultIssue;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Captures issues of a pull request analysis spread over files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class IssueVisitorBenchmark {
+
+    private static final int ISSUES_PER_FILE = 100;
+
+    @Param({"1000", "100000"})
+    public int issues;
+
+    private Component[] components;
+    private DefaultIssue[] defaultIssues;
+
+    @Setup
+    public void setUp() {
+        components = new Component[issues];
+        defaultIssues = new DefaultIssue[issues];
+        Component file = null;
+        for (int i = 0; i < issues; i++) {
+            if (i % ISSUES_PER_FILE == 0) {
+                file = newFile(i / ISSUES_PER_FILE, "src/main/java/File" + i + ".java");
+            }
+            components[i] = file;
+            defaultIssues[i] = new DefaultIssue()
+                    .setKey("AX" + i)
+                    .setLine(i % 500 + 1)
+                    .setMessage("Issue " + i);
+        }
+    }
+
+    /**
+     * Only the type and the report attributes of the component are used by the visitor.
+     */
+    private static Component newFile(int ref, String scmPath) {
+        ReportAttributes attributes = ReportAttributes.newBuilder(ref).setScmPath(scmPath).build();
+        return (Component) Proxy.newProxyInstance(Component.class.getClassLoader(), new Class<?>[] {Component.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getType":
+                            return Component.Type.FILE;
+                        case "getReportAttributes":
+                            return attributes;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return scmPath;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    @Benchmark
+    public PullRequestIssueVisitor captureIssues() {
+        PullRequestIssueVisitor visitor = new PullRequestIssueVisitor();
+        for (int i = 0; i < issues; i++) {
+            visitor.onIssue(components[i], defaultIssues[i]);
+        }
+        return visitor;
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.empyrosx.sonarqube.scanner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sonar.scanner.protocol.GsonHelper;
+import org.sonar.scanner.scan.branch.BranchInfo;
+import org.sonar.scanner.scan.branch.BranchType;
+import org.sonar.scanner.scan.branch.PullRequestInfo;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Parses branch and pull request lists of projects with many branches.
+ * <p>
+ * The baseline benchmarks bind the whole response with a new Gson as the loaders did before streaming parsing,
+ * compare them with the streaming ones on the same fixture.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ResponseParsingBenchmark {
+
+    @Param({"1000", "50000"})
+    public int size;
+
+    private String branches;
+    private String pullRequests;
+
+    @Setup
+    public void setUp() {
+        StringBuilder json = new StringBuilder("{\"branches\":[");
+        json.append("{\"name\":\"master\",\"isMain\":true,\"type\":\"BRANCH\",\"status\":{\"qualityGateStatus\":\"OK\"}}");
+        for (int i = 1; i < size; i++) {
+            json.append(",{\"name\":\"feature/").append(i).append("\",\"isMain\":false,\"type\":\"BRANCH\",")
+                    .append("\"mergeBranch\":\"master\",\"status\":{\"qualityGateStatus\":\"OK\"},")
+                    .append("\"analysisDate\":\"2019-12-02T22:59:37+0300\"}");
+        }
+        branches = json.append("]}").toString();
+
+        json = new StringBuilder("{\"pullRequests\":[");
+        for (int i = 0; i < size; i++) {
+            json.append(i == 0 ? "" : ",")
+                    .append("{\"key\":\"").append(i).append("\",\"title\":\"Pull request ").append(i).append("\",")
+                    .append("\"branch\":\"feature/").append(i).append("\",\"base\":\"master\",")
+                    .append("\"status\":{\"qualityGateStatus\":\"OK\",\"bugs\":0,\"vulnerabilities\":0,\"codeSmells\":1},")
+                    .append("\"analysisDate\":\"2019-12-02T22:59:37+0300\",\"url\":\"https://gitlab.com/mr/").append(i).append("\"}");
+        }
+        pullRequests = json.append("]}").toString();
+    }
+
+    @Benchmark
+    public List<BranchInfo> parseBranches() throws IOException {
+        return ProjectBranchesLoaderImpl.parseResponse(new StringReader(branches));
+    }
+
+    @Benchmark
+    public List<PullRequestInfo> parsePullRequests() throws IOException {
+        return ProjectPullRequestsLoaderImpl.parseResponse(new StringReader(pullRequests));
+    }
+
+    @Benchmark
+    public List<BranchInfo> parseBranchesBaseline() {
+        WsProjectBranchesResponse response = GsonHelper.create().fromJson(new StringReader(branches), WsProjectBranchesResponse.class);
+        return response.branches.stream()
+                .map(data -> new BranchInfo(data.name, BranchType.valueOf(data.type), data.isMain, data.mergeBranch))
+                .collect(Collectors.toList());
+    }
+
+    @Benchmark
+    public List<PullRequestInfo> parsePullRequestsBaseline() {
+        WsProjectPullRequestsResponse response = GsonHelper.create().fromJson(new StringReader(pullRequests), WsProjectPullRequestsResponse.class);
+        return response.pullRequests.stream()
+                .map(data -> new PullRequestInfo(data.key, data.branch, data.base, data.analysisDate.getTime()))
+                .collect(Collectors.toList());
+    }
+
+    private static class WsProjectBranchesResponse {
+        private List<WsProjectBranch> branches = new ArrayList<>();
+    }
+
+    private static class WsProjectBranch {
+        private String name;
+        private String type;
+        private boolean isMain;
+        private String mergeBranch;
+    }
+
+    private static class WsProjectPullRequestsResponse {
+        private List<WsProjectPullRequest> pullRequests = new ArrayList<>();
+    }
+
+    private static class WsProjectPullRequest {
+        private String key;
+        private String branch;
+        private String base;
+        private Date analysisDate;
+    }
+}
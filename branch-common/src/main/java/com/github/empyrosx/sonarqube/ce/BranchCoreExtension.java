@@ -16,6 +16,8 @@ public class BranchCoreExtension implements CoreExtension {
     private static final String PULL_REQUEST_CATEGORY_LABEL = "Pull Request";
     private static final String GENERAL = "General";
     private static final String GITLAB_INTEGRATION_SUBCATEGORY_LABEL = "Integration With Gitlab";
+    private static final String PURGE_SUBCATEGORY_LABEL = "Purge";
+    private static final String DECORATION_SUBCATEGORY_LABEL = "Decoration";
 
     @Override
     public String getName() {
@@ -25,7 +27,9 @@ public class BranchCoreExtension implements CoreExtension {
     @Override
     public void load(Context context) {
         if (SonarQubeSide.COMPUTE_ENGINE == context.getRuntime().getSonarQubeSide()) {
-            context.addExtensions(BranchReportAnalysisComponentProvider.class, BranchEditionProvider.class);
+            context.addExtensions(BranchReportAnalysisComponentProvider.class, BranchEditionProvider.class,
+                    BranchMetadataCache.class, MergeRequestContextCache.class, MergeRequestDecoration.class,
+                    DecorationStore.class, DecorationMetrics.class, GitlabWarmUp.class, MergeRequestPrefetcher.class);
         }
 
         context.addExtensions(
@@ -70,6 +74,137 @@ public class BranchCoreExtension implements CoreExtension {
                         .description("Name of pipeline")
                         .type(PropertyType.STRING)
                         .defaultValue("SonarQube")
+                        .build(),
+                PropertyDefinition.builder(GitlabSettings.GRAPHQL)
+                        .onQualifiers(Qualifiers.PROJECT)
+                        .subCategory(PULL_REQUEST_CATEGORY_LABEL)
+                        .subCategory(GITLAB_INTEGRATION_SUBCATEGORY_LABEL)
+                        .name("Use GraphQL API")
+                        .description("Fetch merge request, user and discussions with batched GraphQL queries, " +
+                                "which needs fewer requests than the REST API. Requires Gitlab 13.0 or later")
+                        .type(PropertyType.BOOLEAN)
+                        .defaultValue("false")
+                        .build(),
+                PropertyDefinition.builder(GitlabSettings.CONNECT_TIMEOUT)
+                        .onQualifiers(Qualifiers.PROJECT)
+                        .subCategory(PULL_REQUEST_CATEGORY_LABEL)
+                        .subCategory(GITLAB_INTEGRATION_SUBCATEGORY_LABEL)
+                        .name("Connect timeout")
+                        .description("Milliseconds to wait for a connection to Gitlab")
+                        .type(PropertyType.INTEGER)
+                        .defaultValue(String.valueOf(GitlabSettings.DEFAULT_CONNECT_TIMEOUT_MS))
+                        .build(),
+                PropertyDefinition.builder(GitlabSettings.READ_TIMEOUT)
+                        .onQualifiers(Qualifiers.PROJECT)
+                        .subCategory(PULL_REQUEST_CATEGORY_LABEL)
+                        .subCategory(GITLAB_INTEGRATION_SUBCATEGORY_LABEL)
+                        .name("Read timeout")
+                        .description("Milliseconds to wait for a Gitlab response, a stalled request fails after that")
+                        .type(PropertyType.INTEGER)
+                        .defaultValue(String.valueOf(GitlabSettings.DEFAULT_READ_TIMEOUT_MS))
+                        .build(),
+                PropertyDefinition.builder(GitlabSettings.RECORD_DIRECTORY)
+                        .subCategory(PULL_REQUEST_CATEGORY_LABEL)
+                        .subCategory(GITLAB_INTEGRATION_SUBCATEGORY_LABEL)
+                        .name("Record Gitlab requests")
+                        .description("Directory on the compute engine to record Gitlab requests of decorations to, " +
+                                "so they can be replayed with GitlabReplayer. Tokens are redacted. Empty to disable recording. " +
+                                "Server setting only, it cannot be set by project")
+                        .type(PropertyType.STRING)
+                        .build(),
+                PropertyDefinition.builder(GitlabSettings.WEBHOOK_SECRET)
+                        .onQualifiers(Qualifiers.PROJECT)
+                        .subCategory(PULL_REQUEST_CATEGORY_LABEL)
+                        .subCategory(GITLAB_INTEGRATION_SUBCATEGORY_LABEL)
+                        .name("Webhook secret token")
+                        .description("Secret token of the Gitlab webhook sending merge request and push events to " +
+                                GitlabSettings.WEBHOOK_PATH + ", so merge requests are fetched while they are analyzed. " +
+                                "Empty to ignore webhook events")
+                        .type(PropertyType.PASSWORD)
+                        .build(),
+                PropertyDefinition.builder(GitlabWarmUp.WARM_UP_ENABLED)
+                        .subCategory(PULL_REQUEST_CATEGORY_LABEL)
+                        .subCategory(GITLAB_INTEGRATION_SUBCATEGORY_LABEL)
+                        .name("Warm up Gitlab connections")
+                        .description("When the compute engine starts, connect to Gitlab and fetch the projects and users " +
+                                "of the " + DecorationStore.MAX_RECENT_PROJECTS + " most recently decorated projects in the background")
+                        .type(PropertyType.BOOLEAN)
+                        .defaultValue("true")
+                        .build(),
+                PropertyDefinition.builder(GitlabPullRequestDecorator.SUMMARY_ONLY_QUEUE_SIZE)
+                        .subCategory(PULL_REQUEST_CATEGORY_LABEL)
+                        .subCategory(DECORATION_SUBCATEGORY_LABEL)
+                        .name("Pending tasks for summary only decoration")
+                        .description("When at least this number of tasks wait in the compute engine queue, merge requests get " +
+                                "a single summary comment instead of a comment per issue. 0 to always comment issues")
+                        .type(PropertyType.INTEGER)
+                        .defaultValue("0")
+                        .build(),
+                PropertyDefinition.builder(GitlabPullRequestDecorator.STATUS_ONLY_QUEUE_SIZE)
+                        .subCategory(PULL_REQUEST_CATEGORY_LABEL)
+                        .subCategory(DECORATION_SUBCATEGORY_LABEL)
+                        .name("Pending tasks for status only decoration")
+                        .description("When at least this number of tasks wait in the compute engine queue, only the commit status " +
+                                "of merge requests is updated. Skipped comments are posted by the next redecoration of the project. 0 to disable")
+                        .type(PropertyType.INTEGER)
+                        .defaultValue("0")
+                        .build(),
+                PropertyDefinition.builder(GitlabSettings.PURGE_ENABLED)
+                        .onQualifiers(Qualifiers.PROJECT)
+                        .subCategory(PULL_REQUEST_CATEGORY_LABEL)
+                        .subCategory(PURGE_SUBCATEGORY_LABEL)
+                        .name("Purge stale pull requests")
+                        .description("Periodically delete pull requests which are not analyzed anymore or whose merge request is closed")
+                        .type(PropertyType.BOOLEAN)
+                        .defaultValue("false")
+                        .build(),
+                PropertyDefinition.builder(GitlabSettings.PURGE_DAYS)
+                        .onQualifiers(Qualifiers.PROJECT)
+                        .subCategory(PULL_REQUEST_CATEGORY_LABEL)
+                        .subCategory(PURGE_SUBCATEGORY_LABEL)
+                        .name("Days before deleting pull requests")
+                        .description("Pull requests whose last analysis is older than this number of days are deleted")
+                        .type(PropertyType.INTEGER)
+                        .defaultValue("30")
+                        .build(),
+                PropertyDefinition.builder(GitlabSettings.PURGE_CLOSED)
+                        .onQualifiers(Qualifiers.PROJECT)
+                        .subCategory(PULL_REQUEST_CATEGORY_LABEL)
+                        .subCategory(PURGE_SUBCATEGORY_LABEL)
+                        .name("Delete pull requests of closed merge requests")
+                        .description("Pull requests whose merge request is merged or closed on Gitlab are deleted")
+                        .type(PropertyType.BOOLEAN)
+                        .defaultValue("false")
+                        .build(),
+                PropertyDefinition.builder(GitlabSettings.PURGE_BATCH_SIZE)
+                        .subCategory(PULL_REQUEST_CATEGORY_LABEL)
+                        .subCategory(PURGE_SUBCATEGORY_LABEL)
+                        .name("Pull requests deleted per run")
+                        .type(PropertyType.INTEGER)
+                        .defaultValue("50")
+                        .build(),
+                PropertyDefinition.builder(GitlabSettings.PURGE_PAUSE)
+                        .subCategory(PULL_REQUEST_CATEGORY_LABEL)
+                        .subCategory(PURGE_SUBCATEGORY_LABEL)
+                        .name("Pause between deletions")
+                        .description("Milliseconds to wait after each deleted pull request")
+                        .type(PropertyType.INTEGER)
+                        .defaultValue("1000")
+                        .build(),
+                PropertyDefinition.builder(GitlabSettings.PURGE_INTERVAL)
+                        .subCategory(PULL_REQUEST_CATEGORY_LABEL)
+                        .subCategory(PURGE_SUBCATEGORY_LABEL)
+                        .name("Purge interval")
+                        .description("Minutes between purge runs, changes take effect after restart of the server")
+                        .type(PropertyType.INTEGER)
+                        .defaultValue("60")
+                        .build(),
+                PropertyDefinition.builder(GitlabSettings.PURGE_HOURS)
+                        .subCategory(PULL_REQUEST_CATEGORY_LABEL)
+                        .subCategory(PURGE_SUBCATEGORY_LABEL)
+                        .name("Purge hours")
+                        .description("Hours of the day when purge may run, for example 1-6. Empty to allow any time")
+                        .type(PropertyType.STRING)
                         .build()
         );
     }
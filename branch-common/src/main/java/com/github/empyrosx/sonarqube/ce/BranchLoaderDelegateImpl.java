@@ -1,28 +1,25 @@
 package com.github.empyrosx.sonarqube.ce;
 
+import com.github.empyrosx.sonarqube.ce.BranchMetadataCache.CachedBranch;
 import org.apache.commons.lang.StringUtils;
 import org.sonar.api.utils.MessageException;
 import org.sonar.ce.task.projectanalysis.analysis.MutableAnalysisMetadataHolder;
 import org.sonar.ce.task.projectanalysis.component.BranchLoaderDelegate;
-import org.sonar.db.DbClient;
-import org.sonar.db.DbSession;
-import org.sonar.db.component.BranchDto;
 import org.sonar.db.component.BranchType;
 import org.sonar.scanner.protocol.output.ScannerReport;
 import org.sonar.server.project.Project;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.util.Optional;
 
 import static java.lang.String.format;
 
 public class BranchLoaderDelegateImpl implements BranchLoaderDelegate {
-    private final DbClient dbClient;
+    private final BranchMetadataCache branchCache;
     private final MutableAnalysisMetadataHolder metadataHolder;
 
-    public BranchLoaderDelegateImpl(DbClient dbClient, MutableAnalysisMetadataHolder metadataHolder) {
-        this.dbClient = dbClient;
+    public BranchLoaderDelegateImpl(BranchMetadataCache branchCache, MutableAnalysisMetadataHolder metadataHolder) {
+        this.branchCache = branchCache;
         this.metadataHolder = metadataHolder;
     }
 
@@ -36,11 +33,10 @@ public class BranchLoaderDelegateImpl implements BranchLoaderDelegate {
         BranchImpl result;
         String branchName = StringUtils.trimToNull(metadata.getBranchName());
         if (branchName == null) {
-            Optional<BranchDto> mainBranchDto = this.findBranchByUuid(this.metadataHolder.getProject().getUuid());
-            BranchDto branchDto = mainBranchDto.get();
-            result = mainBranchDto
-                    .map((value) -> new BranchImpl(branchDto.getBranchType(), branchDto.isMain(), branchDto.getKey()))
-                    .orElseGet(() -> new BranchImpl(branchDto.getBranchType(), branchDto.isMain(), "master"));
+            Project project = this.metadataHolder.getProject();
+            result = branchCache.findByUuid(project.getUuid(), project.getUuid())
+                    .map((value) -> new BranchImpl(value.getBranchType(), value.isMain(), value.getKey()))
+                    .orElseThrow(() -> new IllegalStateException(format("Main branch of project '%s' does not exist", project.getKey())));
         } else {
             String targetBranch = StringUtils.trimToNull(metadata.getReferenceBranchName());
             String targetBranchName = StringUtils.trimToNull(metadata.getTargetBranchName());
@@ -68,8 +64,8 @@ public class BranchLoaderDelegateImpl implements BranchLoaderDelegate {
     }
 
     private BranchImpl createBranch(String branchName, String targetBranch, String targetBranchName, BranchType branchType, Project project) {
-        boolean isMainBranch = this.findBranchByKey(project.getUuid(), branchName)
-                .map(BranchDto::isMain)
+        boolean isMainBranch = branchCache.findByKey(project.getUuid(), branchName)
+                .map(CachedBranch::isMain)
                 .orElse(false);
 
         String targetUuid = getTargetBranchUuid(targetBranch, project);
@@ -87,7 +83,7 @@ public class BranchLoaderDelegateImpl implements BranchLoaderDelegate {
         if (targetBranch == null) {
             targetUuid = project.getUuid();
         } else {
-            BranchDto dto = this.findBranchByKey(project.getUuid(), targetBranch)
+            CachedBranch dto = branchCache.findTargetByKey(project.getUuid(), targetBranch)
                     .orElseThrow(() -> new IllegalStateException(format("Merge branch '%s' does not exist", targetBranch)));
             if (dto.getBranchType() == BranchType.PULL_REQUEST) {
                 throw MessageException.of(format("Invalid merge branch '%s': it must be a long branch but it is '%s'", targetBranch, dto.getBranchType()));
@@ -96,16 +92,4 @@ public class BranchLoaderDelegateImpl implements BranchLoaderDelegate {
         }
         return targetUuid;
     }
-
-    private Optional<BranchDto> findBranchByKey(String projectUuid, String key) {
-        try (DbSession dbSession = dbClient.openSession(false)) {
-            return dbClient.branchDao().selectByBranchKey(dbSession, projectUuid, key);
-        }
-    }
-
-    private Optional<BranchDto> findBranchByUuid(String projectUuid) {
-        try (DbSession dbSession = dbClient.openSession(false)) {
-            return dbClient.branchDao().selectByUuid(dbSession, projectUuid);
-        }
-    }
 }
@@ -0,0 +1,157 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import org.sonar.api.ce.ComputeEngineSide;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.System2;
+import org.sonar.db.DbClient;
+import org.sonar.db.DbSession;
+import org.sonar.db.component.BranchDto;
+import org.sonar.db.component.BranchType;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.concurrent.Immutable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Caches branches of projects between CE tasks.
+ * <p>
+ * A hit doesn't query the database. Entries expire after a TTL and the least recently used projects are evicted
+ * when the cache is full. A lookup which misses reloads the project once, so branches created after the entry
+ * was loaded are always found. A branch deleted, re-created under the same key or renamed is seen after the TTL.
+ * Pull requests are only kept by key, so that a pull request given as a target branch is reported as such.
+ */
+@ComputeEngineSide
+public class BranchMetadataCache {
+
+    static final String TTL_PROPERTY = "sonar.branch.cache.ttlSeconds";
+    static final String MAX_PROJECTS_PROPERTY = "sonar.branch.cache.maxProjects";
+    private static final long DEFAULT_TTL_SECONDS = 300;
+    private static final int DEFAULT_MAX_PROJECTS = 1000;
+
+    private final DbClient dbClient;
+    private final System2 system2;
+    private final long ttlMillis;
+    private final Map<String, Entry> entries;
+
+    public BranchMetadataCache(DbClient dbClient, System2 system2, Configuration configuration) {
+        this.dbClient = dbClient;
+        this.system2 = system2;
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(configuration.getLong(TTL_PROPERTY).orElse(DEFAULT_TTL_SECONDS));
+        int maxProjects = configuration.getInt(MAX_PROJECTS_PROPERTY).orElse(DEFAULT_MAX_PROJECTS);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxProjects;
+            }
+        };
+    }
+
+    /**
+     * Finds branch by uuid. The main branch has the same uuid as the project.
+     */
+    public Optional<CachedBranch> findByUuid(String projectUuid, String branchUuid) {
+        return find(projectUuid, entry -> entry.byUuid.get(branchUuid));
+    }
+
+    /**
+     * Finds branch by key, pull requests are not found.
+     */
+    public Optional<CachedBranch> findByKey(String projectUuid, String key) {
+        return find(projectUuid, entry -> entry.byKey.get(key));
+    }
+
+    /**
+     * Finds target branch by key. A pull request is found when no branch has the key,
+     * so that callers can tell it from a missing branch.
+     */
+    public Optional<CachedBranch> findTargetByKey(String projectUuid, String key) {
+        return find(projectUuid, entry -> entry.byKey.getOrDefault(key, entry.pullRequestsByKey.get(key)));
+    }
+
+    private Optional<CachedBranch> find(String projectUuid, Function<Entry, CachedBranch> lookup) {
+        Entry entry = getValidEntry(projectUuid);
+        CachedBranch result = entry == null ? null : lookup.apply(entry);
+        if (result == null) {
+            result = lookup.apply(load(projectUuid));
+        }
+        return Optional.ofNullable(result);
+    }
+
+    @CheckForNull
+    private synchronized Entry getValidEntry(String projectUuid) {
+        Entry entry = entries.get(projectUuid);
+        if (entry != null && system2.now() - entry.loadedAt >= ttlMillis) {
+            entries.remove(projectUuid);
+            return null;
+        }
+        return entry;
+    }
+
+    private Entry load(String projectUuid) {
+        Entry entry;
+        try (DbSession dbSession = dbClient.openSession(false)) {
+            entry = new Entry(system2.now(), dbClient.branchDao().selectByProjectUuid(dbSession, projectUuid));
+        }
+        synchronized (this) {
+            entries.put(projectUuid, entry);
+        }
+        return entry;
+    }
+
+    private static class Entry {
+        private final long loadedAt;
+        private final Map<String, CachedBranch> byUuid = new HashMap<>();
+        private final Map<String, CachedBranch> byKey = new HashMap<>();
+        private final Map<String, CachedBranch> pullRequestsByKey = new HashMap<>();
+
+        private Entry(long loadedAt, Collection<BranchDto> branches) {
+            this.loadedAt = loadedAt;
+            for (BranchDto dto : branches) {
+                CachedBranch branch = new CachedBranch(dto.getUuid(), dto.getKey(), dto.getBranchType(), dto.isMain());
+                if (branch.getBranchType() == BranchType.PULL_REQUEST) {
+                    pullRequestsByKey.put(branch.getKey(), branch);
+                } else {
+                    byUuid.put(branch.getUuid(), branch);
+                    byKey.put(branch.getKey(), branch);
+                }
+            }
+        }
+    }
+
+    @Immutable
+    public static class CachedBranch {
+        private final String uuid;
+        private final String key;
+        private final BranchType branchType;
+        private final boolean isMain;
+
+        CachedBranch(String uuid, String key, BranchType branchType, boolean isMain) {
+            this.uuid = uuid;
+            this.key = key;
+            this.branchType = branchType;
+            this.isMain = isMain;
+        }
+
+        public String getUuid() {
+            return uuid;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public BranchType getBranchType() {
+            return branchType;
+        }
+
+        public boolean isMain() {
+            return isMain;
+        }
+    }
+}
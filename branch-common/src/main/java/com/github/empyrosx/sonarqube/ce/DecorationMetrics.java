@@ -0,0 +1,320 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import com.google.gson.Gson;
+import org.sonar.api.SonarQubeSide;
+import org.sonar.api.SonarRuntime;
+import org.sonar.api.Startable;
+import org.sonar.api.ce.ComputeEngineSide;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.api.utils.text.JsonWriter;
+import org.sonar.db.DbClient;
+import org.sonar.db.DbSession;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what decoration of merge requests does and how long it takes, in this process.
+ * <p>
+ * Metrics are exposed through JMX. The compute engine also saves them to the database every minute,
+ * so the web server can return them together with its own ones.
+ */
+@ComputeEngineSide
+@ServerSide
+public class DecorationMetrics implements DecorationMetricsMXBean, Startable {
+
+    /**
+     * Key of the internal property with the compute engine metrics.
+     */
+    public static final String COMPUTE_ENGINE_METRICS = "branch.ce.metrics";
+
+    private static final Logger LOG = Loggers.get(DecorationMetrics.class);
+    private static final Gson GSON = new Gson();
+    private static final long[] BUCKETS_MS = {10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, Long.MAX_VALUE};
+    private static final long FLUSH_INTERVAL_SECONDS = 60;
+
+    /**
+     * Stage of a decoration. {@code CONNECT} covers the first requests of a REST decoration, resolving the project
+     * and the token user, which open the connection to Gitlab when they are not known yet. A GraphQL decoration
+     * opens the connection with its merge request query.
+     */
+    public enum Stage {
+        CONNECT, MERGE_REQUEST, DIFFS, STATUS, CLEANUP, LINE_MAPPING, POSTING
+    }
+
+    private final DbClient dbClient;
+    private final SonarRuntime runtime;
+    private final Map<Stage, Histogram> stages = new EnumMap<>(Stage.class);
+    private final Map<String, LongAdder> apiCalls = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final LongAdder decorations = new LongAdder();
+    private final LongAdder issuesPosted = new LongAdder();
+    private ObjectName objectName;
+    private ScheduledExecutorService executor;
+
+    public DecorationMetrics(DbClient dbClient, SonarRuntime runtime) {
+        this.dbClient = dbClient;
+        this.runtime = runtime;
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new Histogram());
+        }
+    }
+
+    @Override
+    public void start() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("com.github.empyrosx.sonarqube:type=DecorationMetrics");
+            server.registerMBean(this, objectName);
+        } catch (InstanceAlreadyExistsException e) {
+            objectName = null;
+            LOG.debug("Decoration metrics are already registered in JMX");
+        } catch (JMException e) {
+            objectName = null;
+            LOG.warn("Could not register decoration metrics in JMX", e);
+        }
+
+        if (SonarQubeSide.COMPUTE_ENGINE == runtime.getSonarQubeSide()) {
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "decoration-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(this::flushSafely, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            flushSafely();
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOG.debug("Could not unregister decoration metrics from JMX", e);
+            }
+        }
+    }
+
+    /**
+     * Starts measuring stage, the measure is recorded when the returned timer is closed.
+     */
+    public Timer time(Stage stage) {
+        return new Timer(stages.get(stage), System.nanoTime());
+    }
+
+    public void apiCall(String endpoint) {
+        apiCalls.computeIfAbsent(endpoint, k -> new LongAdder()).increment();
+    }
+
+    public void error(String endpoint) {
+        errors.computeIfAbsent(endpoint, k -> new LongAdder()).increment();
+    }
+
+    public void decorated() {
+        decorations.increment();
+    }
+
+    public void issuePosted() {
+        issuesPosted.increment();
+    }
+
+    @Override
+    public long getDecorations() {
+        return decorations.sum();
+    }
+
+    @Override
+    public long getIssuesPosted() {
+        return issuesPosted.sum();
+    }
+
+    @Override
+    public Map<String, Long> getApiCalls() {
+        return sum(apiCalls);
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        return sum(errors);
+    }
+
+    @Override
+    public Map<String, Long> getStageCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        stages.forEach((stage, histogram) -> result.put(stage.name(), histogram.count.sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getStageP95Millis() {
+        Map<String, Long> result = new TreeMap<>();
+        stages.forEach((stage, histogram) -> result.put(stage.name(), histogram.snapshot().p95));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getStageMaxMillis() {
+        Map<String, Long> result = new TreeMap<>();
+        stages.forEach((stage, histogram) -> result.put(stage.name(), histogram.max.get()));
+        return result;
+    }
+
+    public Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        snapshot.decorations = getDecorations();
+        snapshot.issuesPosted = getIssuesPosted();
+        snapshot.apiCalls = getApiCalls();
+        snapshot.errors = getErrors();
+        snapshot.stages = new TreeMap<>();
+        stages.forEach((stage, histogram) -> snapshot.stages.put(stage.name(), histogram.snapshot()));
+        return snapshot;
+    }
+
+    /**
+     * Returns metrics the compute engine saved last time.
+     */
+    public Optional<Snapshot> loadComputeEngineSnapshot() {
+        try (DbSession dbSession = dbClient.openSession(false)) {
+            return dbClient.internalPropertiesDao().selectByKey(dbSession, COMPUTE_ENGINE_METRICS)
+                    .map(json -> GSON.fromJson(json, Snapshot.class));
+        }
+    }
+
+    private void flushSafely() {
+        try (DbSession dbSession = dbClient.openSession(false)) {
+            dbClient.internalPropertiesDao().save(dbSession, COMPUTE_ENGINE_METRICS, GSON.toJson(snapshot()));
+            dbSession.commit();
+        } catch (RuntimeException e) {
+            LOG.debug("Could not save decoration metrics", e);
+        }
+    }
+
+    private static Map<String, Long> sum(Map<String, LongAdder> counters) {
+        Map<String, Long> result = new TreeMap<>();
+        counters.forEach((key, value) -> result.put(key, value.sum()));
+        return result;
+    }
+
+    public static class Timer implements AutoCloseable {
+        private final Histogram histogram;
+        private final long start;
+
+        private Timer(Histogram histogram, long start) {
+            this.histogram = histogram;
+            this.start = start;
+        }
+
+        @Override
+        public void close() {
+            histogram.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    private static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS_MS.length];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void record(long millis) {
+            int bucket = 0;
+            while (millis > BUCKETS_MS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            count.increment();
+            total.add(millis);
+            max.accumulate(millis);
+        }
+
+        private StageSnapshot snapshot() {
+            StageSnapshot snapshot = new StageSnapshot();
+            snapshot.count = count.sum();
+            snapshot.totalMillis = total.sum();
+            snapshot.maxMillis = max.get();
+            snapshot.p50 = percentile(snapshot.count, 0.5);
+            snapshot.p95 = percentile(snapshot.count, 0.95);
+            return snapshot;
+        }
+
+        /**
+         * Returns upper bound of the bucket of the percentile, bounded by the maximum.
+         */
+        private long percentile(long count, double percentile) {
+            long threshold = (long) Math.ceil(count * percentile);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= threshold && seen > 0) {
+                    return Math.min(BUCKETS_MS[i], max.get());
+                }
+            }
+            return 0;
+        }
+    }
+
+    public static class Snapshot {
+        private long decorations;
+        private long issuesPosted;
+        private Map<String, Long> apiCalls;
+        private Map<String, Long> errors;
+        private Map<String, StageSnapshot> stages;
+
+        public void writeTo(JsonWriter json) {
+            json.beginObject()
+                    .prop("decorations", decorations)
+                    .prop("issuesPosted", issuesPosted);
+            writeCounters(json, "apiCalls", apiCalls);
+            writeCounters(json, "errors", errors);
+            json.name("stages").beginObject();
+            stages.forEach((name, stage) -> json.name(name).beginObject()
+                    .prop("count", stage.count)
+                    .prop("totalMillis", stage.totalMillis)
+                    .prop("p50Millis", stage.p50)
+                    .prop("p95Millis", stage.p95)
+                    .prop("maxMillis", stage.maxMillis)
+                    .endObject());
+            json.endObject();
+            json.endObject();
+        }
+
+        private static void writeCounters(JsonWriter json, String name, Map<String, Long> counters) {
+            json.name(name).beginObject();
+            counters.forEach(json::prop);
+            json.endObject();
+        }
+    }
+
+    private static class StageSnapshot {
+        private long count;
+        private long totalMillis;
+        private long maxMillis;
+        private long p50;
+        private long p95;
+    }
+}
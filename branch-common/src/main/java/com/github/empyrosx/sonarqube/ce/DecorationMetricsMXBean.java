@@ -0,0 +1,29 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link DecorationMetrics}.
+ */
+public interface DecorationMetricsMXBean {
+
+    long getDecorations();
+
+    long getIssuesPosted();
+
+    /**
+     * Returns number of Gitlab API calls by endpoint.
+     */
+    Map<String, Long> getApiCalls();
+
+    /**
+     * Returns number of failed Gitlab API calls by endpoint.
+     */
+    Map<String, Long> getErrors();
+
+    Map<String, Long> getStageCounts();
+
+    Map<String, Long> getStageP95Millis();
+
+    Map<String, Long> getStageMaxMillis();
+}
@@ -0,0 +1,116 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import com.google.gson.Gson;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything decoration of a pull request posts to its merge request: quality gate status, link to the analysis
+ * and open issues. The snapshot is enough to decorate the merge request again without analysis.
+ */
+@Immutable
+public class DecorationSnapshot {
+
+    private static final Gson GSON = new Gson();
+
+    private final String projectKey;
+    private final String pullRequestKey;
+    private final String revision;
+    private final boolean qualityGatePassed;
+    private final String targetUrl;
+    private final List<Issue> issues;
+
+    public DecorationSnapshot(String projectKey, String pullRequestKey, String revision, boolean qualityGatePassed,
+                              String targetUrl, List<Issue> issues) {
+        this.projectKey = projectKey;
+        this.pullRequestKey = pullRequestKey;
+        this.revision = revision;
+        this.qualityGatePassed = qualityGatePassed;
+        this.targetUrl = targetUrl;
+        this.issues = new ArrayList<>(issues);
+    }
+
+    public String getProjectKey() {
+        return projectKey;
+    }
+
+    public String getPullRequestKey() {
+        return pullRequestKey;
+    }
+
+    public String getRevision() {
+        return revision;
+    }
+
+    public boolean isQualityGatePassed() {
+        return qualityGatePassed;
+    }
+
+    public String getTargetUrl() {
+        return targetUrl;
+    }
+
+    public List<Issue> getIssues() {
+        return Collections.unmodifiableList(issues);
+    }
+
+    public String toJson() {
+        return GSON.toJson(this);
+    }
+
+    public static DecorationSnapshot fromJson(String json) {
+        return GSON.fromJson(json, DecorationSnapshot.class);
+    }
+
+    @Immutable
+    public static class Issue {
+        private final String key;
+        private final String fileName;
+        private final Integer line;
+        private final String severity;
+        private final String type;
+        private final String message;
+
+        public Issue(String key, @Nullable String fileName, @Nullable Integer line, String severity, String type,
+                     @Nullable String message) {
+            this.key = key;
+            this.fileName = fileName;
+            this.line = line;
+            this.severity = severity;
+            this.type = type;
+            this.message = message;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        @CheckForNull
+        public String getFileName() {
+            return fileName;
+        }
+
+        @CheckForNull
+        public Integer getLine() {
+            return line;
+        }
+
+        public String getSeverity() {
+            return severity;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        @CheckForNull
+        public String getMessage() {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import org.sonar.api.CoreProperties;
+import org.sonar.api.ce.ComputeEngineSide;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.config.internal.Encryption;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.db.DbClient;
+import org.sonar.db.DbSession;
+import org.sonar.db.property.PropertyDto;
+import org.sonar.db.property.PropertyQuery;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Keeps the decoration snapshot of each pull request, and the digest of its last successful decoration.
+ * <p>
+ * Both are kept in one internal property keyed by the uuid of the pull request, so they can't be read through
+ * the settings web services and a decoration is saved with a single write. Uuids are as long as the longest keys
+ * of internal properties and, unlike the keys used by SonarQube, have no dots. The property is deleted when
+ * the pull request is purged. The keys of recently decorated projects are kept in an internal property, to warm up their Gitlab connections
+ * when the compute engine starts. Merge requests to prefetch, received by the web server from Gitlab webhooks,
+ * are passed to the compute engine through internal properties, one per request in a fixed set of slots.
+ */
+@ComputeEngineSide
+@ServerSide
+public class DecorationStore {
+
+    private static final Logger LOG = Loggers.get(DecorationStore.class);
+
+    static final String RECENT_PROJECTS = "branch.ce.recent";
+    static final int MAX_RECENT_PROJECTS = 20;
+    /**
+     * Key prefix of queued prefetch requests, followed by the number of the slot holding the request.
+     */
+    static final String PREFETCH_REQUESTS = "branch.ce.pf.";
+    static final int MAX_PREFETCH_REQUESTS = 1000;
+    private static final Set<String> PREFETCH_SLOTS = Collections.unmodifiableSet(IntStream.range(0, MAX_PREFETCH_REQUESTS)
+            .mapToObj(slot -> PREFETCH_REQUESTS + slot)
+            .collect(Collectors.toCollection(LinkedHashSet::new)));
+    /**
+     * Lock taken by the compute engine emptying the queue, released when done or after its maximal age
+     * if the compute engine stops meanwhile. The lock is kept by SonarQube under the "lock." prefix.
+     */
+    private static final String PREFETCH_LOCK = "branch.ce.pf";
+    private static final int PREFETCH_LOCK_SECONDS = 60;
+    // requests are added and taken by one thread of the process at a time
+    private static final Object PREFETCH_QUEUE_LOCK = new Object();
+
+    private final DbClient dbClient;
+    private volatile String recentProject;
+
+    public DecorationStore(DbClient dbClient) {
+        this.dbClient = dbClient;
+    }
+
+    /**
+     * Computes digest of the decoration of the snapshot with the settings.
+     */
+    public static String digest(DecorationSnapshot snapshot, GitlabSettings settings) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(snapshot.toJson().getBytes(StandardCharsets.UTF_8));
+            for (String setting : settings.getDecorationSettings()) {
+                digest.update((byte) '\n');
+                digest.update(setting.getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder result = new StringBuilder();
+            for (byte b : digest.digest()) {
+                result.append(String.format("%02x", b));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    /**
+     * Tells whether the last successful decoration of the pull request was made for the same digest.
+     */
+    public boolean isDecorated(String pullRequestUuid, String digest) {
+        return loadDecoration(pullRequestUuid).filter(value -> value.startsWith(digest + "\n")).isPresent();
+    }
+
+    public Optional<DecorationSnapshot> loadSnapshot(String pullRequestUuid) {
+        return loadDecoration(pullRequestUuid)
+                .filter(value -> value.indexOf('\n') >= 0)
+                .map(value -> DecorationSnapshot.fromJson(value.substring(value.indexOf('\n') + 1)));
+    }
+
+    /**
+     * Saves snapshot of the last decoration of the pull request, with its digest when the decoration succeeded.
+     */
+    public void saveDecoration(String pullRequestUuid, DecorationSnapshot snapshot, @Nullable String digest) {
+        try (DbSession dbSession = dbClient.openSession(false)) {
+            dbClient.internalPropertiesDao().save(dbSession, pullRequestUuid, (digest == null ? "" : digest) + "\n" + snapshot.toJson());
+            dbSession.commit();
+        }
+    }
+
+    public void deleteDecoration(String pullRequestUuid) {
+        try (DbSession dbSession = dbClient.openSession(false)) {
+            dbClient.internalPropertiesDao().delete(dbSession, pullRequestUuid);
+            dbSession.commit();
+        }
+    }
+
+    private Optional<String> loadDecoration(String pullRequestUuid) {
+        try (DbSession dbSession = dbClient.openSession(false)) {
+            return dbClient.internalPropertiesDao().selectByKey(dbSession, pullRequestUuid);
+        }
+    }
+
+    /**
+     * Returns keys of recently decorated projects, the most recent first.
+     */
+    public List<String> loadRecentProjects() {
+        try (DbSession dbSession = dbClient.openSession(false)) {
+            return dbClient.internalPropertiesDao().selectByKey(dbSession, RECENT_PROJECTS)
+                    .map(value -> Arrays.stream(value.split("\n")).filter(key -> !key.isEmpty()).collect(Collectors.toList()))
+                    .orElse(Collections.emptyList());
+        }
+    }
+
+    /**
+     * Moves the project to the top of recently decorated projects. The list is neither read nor written
+     * when the project was the last one moved to the top by this process.
+     */
+    public void saveRecentProject(String projectKey) {
+        if (projectKey.equals(recentProject)) {
+            return;
+        }
+        List<String> projects = new ArrayList<>(loadRecentProjects());
+        if (projects.isEmpty() || !projects.get(0).equals(projectKey)) {
+            projects.remove(projectKey);
+            projects.add(0, projectKey);
+            try (DbSession dbSession = dbClient.openSession(false)) {
+                dbClient.internalPropertiesDao().save(dbSession, RECENT_PROJECTS,
+                        String.join("\n", projects.subList(0, Math.min(projects.size(), MAX_RECENT_PROJECTS))));
+                dbSession.commit();
+            }
+        }
+        recentProject = projectKey;
+    }
+
+    /**
+     * Reads Gitlab settings of the project, see {@link #loadProjectSettings}.
+     */
+    public GitlabSettings loadSettings(String projectKey, Configuration configuration) {
+        return GitlabSettings.of(loadProjectSettings(projectKey, configuration));
+    }
+
+    /**
+     * Reads settings of the project as the platform resolves them: project properties override the configuration,
+     * which overrides global properties, and encrypted values are decrypted. Global properties are read from the
+     * database, as the configuration doesn't have them outside of web requests and compute engine tasks.
+     */
+    public Function<String, Optional<String>> loadProjectSettings(String projectKey, Configuration configuration) {
+        Map<String, String> projectProperties;
+        Map<String, String> globalProperties;
+        try (DbSession dbSession = dbClient.openSession(false)) {
+            projectProperties = toMap(dbClient.propertiesDao().selectProjectProperties(dbSession, projectKey));
+            globalProperties = toMap(dbClient.propertiesDao().selectGlobalProperties(dbSession));
+        }
+        Encryption encryption = new Encryption(configuration.get(CoreProperties.ENCRYPTION_SECRET_KEY_PATH).orElse(null));
+        return key -> {
+            Optional<String> value = Optional.ofNullable(projectProperties.get(key));
+            if (!value.isPresent()) {
+                value = configuration.get(key);
+                if (value.isPresent()) {
+                    return value;
+                }
+                value = Optional.ofNullable(globalProperties.get(key));
+            }
+            return value.map(v -> encryption.isEncrypted(v) ? encryption.decrypt(v) : v);
+        };
+    }
+
+    private static Map<String, String> toMap(List<PropertyDto> properties) {
+        return properties.stream()
+                .filter(p -> p.getValue() != null)
+                .collect(Collectors.toMap(PropertyDto::getKey, PropertyDto::getValue, (a, b) -> a));
+    }
+
+    /**
+     * Queues merge requests to prefetch, each request is kept in its own internal property in a free slot
+     * chosen at random. When {@link #MAX_PREFETCH_REQUESTS} requests are queued, further requests are dropped
+     * until the compute engine takes them.
+     */
+    public void addPrefetchRequests(List<PrefetchRequest> requests) {
+        synchronized (PREFETCH_QUEUE_LOCK) {
+            try (DbSession dbSession = dbClient.openSession(false)) {
+                Map<String, String> queued = dbClient.internalPropertiesDao().selectByKeys(dbSession, PREFETCH_SLOTS);
+                List<String> free = PREFETCH_SLOTS.stream().filter(slot -> !queued.containsKey(slot)).collect(Collectors.toList());
+                Collections.shuffle(free);
+                int accepted = Math.min(requests.size(), free.size());
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < accepted; i++) {
+                    dbClient.internalPropertiesDao().save(dbSession, free.get(i),
+                            now + "\t" + (queued.size() + i) + "\t" + requests.get(i).toLine());
+                }
+                dbSession.commit();
+                if (accepted < requests.size()) {
+                    LOG.warn("Prefetch queue is full, {} merge requests are not prefetched", requests.size() - accepted);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns queued merge requests to prefetch, the oldest first, and removes them from the queue.
+     * <p>
+     * The queue is emptied under a lock, so a request is taken once even when several compute engines poll the queue.
+     * A compute engine which doesn't get the lock takes nothing, requests are left for its next call.
+     */
+    public List<PrefetchRequest> takePrefetchRequests() {
+        synchronized (PREFETCH_QUEUE_LOCK) {
+            try (DbSession dbSession = dbClient.openSession(false)) {
+                if (dbClient.internalPropertiesDao().selectByKeys(dbSession, PREFETCH_SLOTS).isEmpty()
+                        || !dbClient.internalPropertiesDao().tryLock(dbSession, PREFETCH_LOCK, PREFETCH_LOCK_SECONDS)) {
+                    return new ArrayList<>();
+                }
+                dbSession.commit();
+                try {
+                    return takeQueuedRequests(dbSession);
+                } finally {
+                    dbClient.internalPropertiesDao().delete(dbSession, "lock." + PREFETCH_LOCK);
+                    dbSession.commit();
+                }
+            }
+        }
+    }
+
+    private List<PrefetchRequest> takeQueuedRequests(DbSession dbSession) {
+        List<Map.Entry<String, String[]>> queued = new ArrayList<>();
+        for (Map.Entry<String, String> entry : dbClient.internalPropertiesDao().selectByKeys(dbSession, PREFETCH_SLOTS).entrySet()) {
+            String[] fields = entry.getValue() == null ? new String[0] : entry.getValue().split("\t", 3);
+            queued.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), fields));
+        }
+        queued.sort(Comparator.comparingLong((Map.Entry<String, String[]> entry) -> parseLong(entry.getValue(), 0))
+                .thenComparingLong(entry -> parseLong(entry.getValue(), 1)));
+
+        Set<PrefetchRequest> requests = new LinkedHashSet<>();
+        for (Map.Entry<String, String[]> entry : queued) {
+            dbClient.internalPropertiesDao().delete(dbSession, entry.getKey());
+            PrefetchRequest request = entry.getValue().length == 3 ? PrefetchRequest.fromLine(entry.getValue()[2]) : null;
+            if (request != null) {
+                requests.add(request);
+            }
+        }
+        dbSession.commit();
+        return new ArrayList<>(requests);
+    }
+
+    private static long parseLong(String[] fields, int index) {
+        try {
+            return fields.length > index ? Long.parseLong(fields[index]) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Tells whether the property is set globally or on any project.
+     */
+    public boolean isPropertySet(String key) {
+        try (DbSession dbSession = dbClient.openSession(false)) {
+            return !dbClient.propertiesDao().selectByQuery(PropertyQuery.builder().setKey(key).build(), dbSession).isEmpty();
+        }
+    }
+
+    /**
+     * Merge request to prefetch for a project, given by its iid or by its source branch.
+     */
+    @Immutable
+    public static class PrefetchRequest {
+        private final String projectKey;
+        @Nullable
+        private final Integer iid;
+        @Nullable
+        private final String sourceBranch;
+
+        private PrefetchRequest(String projectKey, @Nullable Integer iid, @Nullable String sourceBranch) {
+            this.projectKey = projectKey;
+            this.iid = iid;
+            this.sourceBranch = sourceBranch;
+        }
+
+        public static PrefetchRequest ofMergeRequest(String projectKey, int iid) {
+            return new PrefetchRequest(projectKey, iid, null);
+        }
+
+        public static PrefetchRequest ofSourceBranch(String projectKey, String sourceBranch) {
+            return new PrefetchRequest(projectKey, null, sourceBranch);
+        }
+
+        public String getProjectKey() {
+            return projectKey;
+        }
+
+        @CheckForNull
+        public Integer getIid() {
+            return iid;
+        }
+
+        @CheckForNull
+        public String getSourceBranch() {
+            return sourceBranch;
+        }
+
+        private String toLine() {
+            return projectKey + "\t" + (iid == null ? "" : iid) + "\t" + (sourceBranch == null ? "" : sourceBranch);
+        }
+
+        @CheckForNull
+        private static PrefetchRequest fromLine(String line) {
+            String[] fields = line.split("\t", 3);
+            if (fields.length != 3 || fields[0].isEmpty()) {
+                return null;
+            }
+            if (!fields[1].isEmpty()) {
+                return ofMergeRequest(fields[0], Integer.parseInt(fields[1]));
+            }
+            return fields[2].isEmpty() ? null : ofSourceBranch(fields[0], fields[2]);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            PrefetchRequest that = (PrefetchRequest) o;
+            return projectKey.equals(that.projectKey) && Objects.equals(iid, that.iid) && Objects.equals(sourceBranch, that.sourceBranch);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(projectKey, iid, sourceBranch);
+        }
+    }
+}
@@ -13,66 +13,84 @@ public class DiffUtils {
      * @param line  new line
      * @return null if line is new or source line before applying this diffs
      */
-    public static Integer getBaseSourceLine(List<String> diffs, int line) {
-        List<Integer> addedLines = new ArrayList<>();
-        List<Integer> removedLines = new ArrayList<>();
+    public static Integer getBaseSourceLine(List<? extends CharSequence> diffs, int line) {
+        LineTracker tracker = new LineTracker();
+        for (CharSequence diff : diffs) {
+            UnifiedDiffParser.parse(diff, tracker);
+        }
 
-        for (String diff : diffs) {
+        if (tracker.addedLines.contains(line)) {
+            return null;
+        }
 
-            Integer oldCounter = 0;
-            Integer newCounter = 0;
-            Integer oldLineStart = 0;
-            Integer newLineStart = 0;
+        return calcLineIndex(line, tracker.addedLines, tracker.removedLines);
+    }
 
-            String[] lines = diff.split("\n");
-            for (String header : lines) {
-                if (header.startsWith("@@")) {
-                    String delta = header.substring(header.indexOf("@@") + 3, header.lastIndexOf("@@"));
-                    String[] intervals = delta.split(" ");
-                    oldLineStart = Math.abs(Integer.parseInt(intervals[0].split(",")[0]));
-                    newLineStart = Math.abs(Integer.parseInt(intervals[1].split(",")[0]));
-                    oldCounter = 0;
-                    newCounter = 0;
-                } else if (header.startsWith("-")) {
-                    // line is deleted
-                    if (addedLines.contains(newLineStart + newCounter)) {
-                        addedLines.sort(Integer::compareTo);
-                        int ind = addedLines.indexOf(newLineStart + newCounter);
-                        for (int i = ind + 1; i < addedLines.size(); i++) {
-                            addedLines.set(i, addedLines.get(i) - 1);
-                        }
-                        addedLines.remove((Integer) (newLineStart + newCounter));
-                    } else {
-                        removedLines.add(oldLineStart + oldCounter);
-                        for (int i = 0; i < addedLines.size(); i++) {
-                            Integer value = addedLines.get(i);
-                            if (value > oldLineStart + oldCounter) {
-                                addedLines.set(i, value - 1);
-                            }
-                        }
-                        oldCounter++;
-                    }
-                } else if (header.startsWith("+")) {
-                    // line is added
-                    addedLines.add(newLineStart + newCounter);
-                    addedLines.sort(Integer::compareTo);
-                    int ind = addedLines.indexOf(newLineStart + newCounter);
-                    for (int i = ind + 1; i < addedLines.size(); i++) {
-                        addedLines.set(i, addedLines.get(i) + 1);
-                    }
-                    newCounter++;
-                } else {
+    /**
+     * Collects added and removed lines of successive diffs.
+     */
+    private static class LineTracker implements UnifiedDiffParser.Handler {
+
+        private final List<Integer> addedLines = new ArrayList<>();
+        private final List<Integer> removedLines = new ArrayList<>();
+        private int oldCounter;
+        private int newCounter;
+        private int oldLineStart;
+        private int newLineStart;
+
+        @Override
+        public void hunk(int oldStart, int oldCount, int newStart, int newCount) {
+            oldLineStart = oldStart;
+            newLineStart = newStart;
+            oldCounter = 0;
+            newCounter = 0;
+        }
+
+        @Override
+        public void line(UnifiedDiffParser.LineType type, CharSequence diff, int start, int end) {
+            switch (type) {
+                case REMOVED:
+                    removed();
+                    break;
+                case ADDED:
+                    added();
+                    break;
+                default:
                     newCounter++;
                     oldCounter++;
-                }
             }
         }
 
-        if (addedLines.contains(line)) {
-            return null;
+        private void removed() {
+            Integer newLine = newLineStart + newCounter;
+            if (addedLines.contains(newLine)) {
+                addedLines.sort(Integer::compareTo);
+                int ind = addedLines.indexOf(newLine);
+                for (int i = ind + 1; i < addedLines.size(); i++) {
+                    addedLines.set(i, addedLines.get(i) - 1);
+                }
+                addedLines.remove(newLine);
+            } else {
+                removedLines.add(oldLineStart + oldCounter);
+                for (int i = 0; i < addedLines.size(); i++) {
+                    Integer value = addedLines.get(i);
+                    if (value > oldLineStart + oldCounter) {
+                        addedLines.set(i, value - 1);
+                    }
+                }
+                oldCounter++;
+            }
         }
 
-        return calcLineIndex(line, addedLines, removedLines);
+        private void added() {
+            addedLines.add(newLineStart + newCounter);
+            addedLines.sort(Integer::compareTo);
+            int ind = addedLines.indexOf(newLineStart + newCounter);
+            for (int i = ind + 1; i < addedLines.size(); i++) {
+                addedLines.set(i, addedLines.get(i) + 1);
+            }
+            newCounter++;
+        }
     }
 
     @Nonnull
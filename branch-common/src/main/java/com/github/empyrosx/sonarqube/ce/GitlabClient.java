@@ -0,0 +1,517 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Calls the Gitlab REST API endpoints used by decoration and purge.
+ * <p>
+ * Requests go through {@link HttpURLConnection}. Responses are always read to the end and closed without
+ * disconnecting, so connections are kept alive and reused by later requests to the same host.
+ * Each request, including each page, is counted in the decoration metrics when the client is given them.
+ */
+public class GitlabClient {
+
+    public static final int PAGE_SIZE = 100;
+
+    private static final Gson GSON = new GsonBuilder()
+            .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+            .create();
+
+    private final String apiUrl;
+    private final String token;
+    private final DecorationMetrics metrics;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+
+    public GitlabClient(String url, String token) {
+        this(url, token, null);
+    }
+
+    public GitlabClient(String url, String token, @Nullable DecorationMetrics metrics) {
+        this(url, token, metrics, GitlabSettings.DEFAULT_CONNECT_TIMEOUT_MS, GitlabSettings.DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    /**
+     * Creates client counting every request, and every failed one, by endpoint in the metrics.
+     * Requests fail when Gitlab does not accept the connection, or does not send data, within the timeouts.
+     */
+    public GitlabClient(String url, String token, @Nullable DecorationMetrics metrics, int connectTimeoutMs, int readTimeoutMs) {
+        this.apiUrl = (url.endsWith("/") ? url.substring(0, url.length() - 1) : url) + "/api/v4";
+        this.token = token;
+        this.metrics = metrics;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    public User getUser() throws IOException {
+        return request("GET", "user", "/user", null, User.class);
+    }
+
+    /**
+     * Returns the project given by its id or full path.
+     */
+    public Project getProject(String projectId) throws IOException {
+        return request("GET", "project", "/projects/" + encode(projectId), null, Project.class);
+    }
+
+    /**
+     * Returns the merge request, throws {@link FileNotFoundException} when it does not exist.
+     */
+    public MergeRequest getMergeRequest(int projectId, int iid) throws IOException {
+        return request("GET", "merge_request", mergeRequestPath(projectId, iid), null, MergeRequest.class);
+    }
+
+    /**
+     * Returns open merge requests of the source branch.
+     */
+    public List<MergeRequest> getOpenMergeRequests(int projectId, String sourceBranch) throws IOException {
+        return Arrays.asList(request("GET", "merge_requests", "/projects/" + projectId + "/merge_requests?state=opened&source_branch="
+                + encode(sourceBranch), null, MergeRequest[].class));
+    }
+
+    /**
+     * Returns merge requests of the project by their iids, whatever their state. Iids which do not exist are ignored.
+     */
+    public List<MergeRequest> getMergeRequests(int projectId, Collection<Integer> iids) throws IOException {
+        if (iids.size() > PAGE_SIZE) {
+            throw new IllegalArgumentException("At most " + PAGE_SIZE + " merge requests can be requested at once");
+        }
+        StringBuilder path = new StringBuilder("/projects/").append(projectId)
+                .append("/merge_requests?state=all&per_page=").append(PAGE_SIZE);
+        iids.forEach(iid -> path.append("&iids%5B%5D=").append(iid));
+        return Arrays.asList(request("GET", "merge_requests", path.toString(), null, MergeRequest[].class));
+    }
+
+    public List<Commit> getCommits(MergeRequest mergeRequest) throws IOException {
+        List<Commit> commits = new ArrayList<>();
+        Iterator<Commit[]> pages = pages("commits", mergeRequestPath(mergeRequest.getProjectId(), mergeRequest.getIid()) + "/commits", Commit[].class);
+        try {
+            while (pages.hasNext()) {
+                commits.addAll(Arrays.asList(pages.next()));
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return commits;
+    }
+
+    public List<FileDiff> getCommitDiffs(int projectId, String sha) throws IOException {
+        List<FileDiff> diffs = new ArrayList<>();
+        Iterator<FileDiff[]> pages = pages("commit_diffs", "/projects/" + projectId + "/repository/commits/" + sha + "/diff", FileDiff[].class);
+        try {
+            while (pages.hasNext()) {
+                diffs.addAll(Arrays.asList(pages.next()));
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return diffs;
+    }
+
+    /**
+     * Returns pages of discussions of the merge request, each page is requested when iterated.
+     * Failed requests throw {@link UncheckedIOException}.
+     */
+    public Iterator<Discussion[]> getDiscussions(MergeRequest mergeRequest) {
+        return pages("discussions", mergeRequestPath(mergeRequest.getProjectId(), mergeRequest.getIid()) + "/discussions", Discussion[].class);
+    }
+
+    /**
+     * Returns the raw file at the commit, or null when the file does not exist. The stream must be closed.
+     */
+    @CheckForNull
+    public InputStream getRawFile(int projectId, String path, String ref) throws IOException {
+        String rawPath = "/projects/" + projectId + "/repository/files/" + encode(path) + "/raw?ref=" + encode(ref);
+        String endpoint = count("GET", "raw file");
+        try {
+            HttpURLConnection connection = open("GET", rawPath);
+            check(connection, "GET", rawPath);
+            return connection.getInputStream();
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            countError(endpoint);
+            throw e;
+        }
+    }
+
+    public void createCommitStatus(int projectId, String sha, String state, String ref, String name,
+                                   String targetUrl, String description) throws IOException {
+        Map<String, Object> form = new LinkedHashMap<>();
+        form.put("state", state);
+        form.put("ref", ref);
+        form.put("name", name);
+        form.put("target_url", targetUrl);
+        form.put("description", description);
+        request("POST", "statuses", "/projects/" + projectId + "/statuses/" + sha, form, Void.class);
+    }
+
+    /**
+     * Starts a general discussion of the merge request.
+     */
+    public Discussion createDiscussion(MergeRequest mergeRequest, String body) throws IOException {
+        return request("POST", "discussions", mergeRequestPath(mergeRequest.getProjectId(), mergeRequest.getIid()) + "/discussions",
+                Collections.singletonMap("body", body), Discussion.class);
+    }
+
+    /**
+     * Starts a discussion on a line of the merge request head diff.
+     */
+    public Discussion createDiscussion(MergeRequest mergeRequest, String body, String newPath, @Nullable Integer newLine,
+                                       String oldPath, @Nullable Integer oldLine) throws IOException {
+        Map<String, Object> form = new LinkedHashMap<>();
+        form.put("body", body);
+        form.put("position[base_sha]", mergeRequest.getBaseSha());
+        form.put("position[start_sha]", mergeRequest.getStartSha());
+        form.put("position[head_sha]", mergeRequest.getSha());
+        form.put("position[position_type]", "text");
+        form.put("position[new_path]", newPath);
+        form.put("position[new_line]", newLine);
+        form.put("position[old_path]", oldPath);
+        form.put("position[old_line]", oldLine);
+        return request("POST", "discussions", mergeRequestPath(mergeRequest.getProjectId(), mergeRequest.getIid()) + "/discussions",
+                form, Discussion.class);
+    }
+
+    public void deleteNote(MergeRequest mergeRequest, String discussionId, int noteId) throws IOException {
+        request("DELETE", "notes", mergeRequestPath(mergeRequest.getProjectId(), mergeRequest.getIid()) +
+                "/discussions/" + discussionId + "/notes/" + noteId, null, Void.class);
+    }
+
+    /**
+     * Converts JSON with the field names of the REST API to a model.
+     */
+    static <T> T fromJson(JsonElement json, Class<T> type) {
+        return GSON.fromJson(json, type);
+    }
+
+    private static String mergeRequestPath(int projectId, int iid) {
+        return "/projects/" + projectId + "/merge_requests/" + iid;
+    }
+
+    private <T> Iterator<T[]> pages(String endpointName, String path, Class<T[]> type) {
+        return new Iterator<T[]>() {
+            private String nextPage = "1";
+
+            @Override
+            public boolean hasNext() {
+                return nextPage != null;
+            }
+
+            @Override
+            public T[] next() {
+                if (nextPage == null) {
+                    throw new NoSuchElementException();
+                }
+                String pagePath = path + (path.contains("?") ? "&" : "?") + "per_page=" + PAGE_SIZE + "&page=" + nextPage;
+                String endpoint = count("GET", endpointName);
+                try {
+                    HttpURLConnection connection = open("GET", pagePath);
+                    check(connection, "GET", pagePath);
+                    String header = connection.getHeaderField("X-Next-Page");
+                    nextPage = header == null || header.trim().isEmpty() ? null : header.trim();
+                    return read(connection, type);
+                } catch (IOException e) {
+                    countError(endpoint);
+                    throw new UncheckedIOException(e);
+                } catch (RuntimeException e) {
+                    countError(endpoint);
+                    throw e;
+                }
+            }
+        };
+    }
+
+    private <T> T request(String method, String endpointName, String path, @Nullable Map<String, ?> form, Class<T> type) throws IOException {
+        String endpoint = count(method, endpointName);
+        try {
+            HttpURLConnection connection = open(method, path);
+            if (form != null) {
+                byte[] body = encodeForm(form).getBytes(StandardCharsets.UTF_8);
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                connection.setFixedLengthStreamingMode(body.length);
+                try (OutputStream output = connection.getOutputStream()) {
+                    output.write(body);
+                }
+            }
+            check(connection, method, path);
+            if (type == Void.class) {
+                drain(connection.getInputStream());
+                return null;
+            }
+            return read(connection, type);
+        } catch (IOException | RuntimeException e) {
+            countError(endpoint);
+            throw e;
+        }
+    }
+
+    /**
+     * Counts a request to the endpoint, returns its name in the metrics.
+     */
+    private String count(String method, String endpointName) {
+        String endpoint = method + " " + endpointName;
+        if (metrics != null) {
+            metrics.apiCall(endpoint);
+        }
+        return endpoint;
+    }
+
+    private void countError(String endpoint) {
+        if (metrics != null) {
+            metrics.error(endpoint);
+        }
+    }
+
+    private HttpURLConnection open(String method, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(apiUrl + path).openConnection();
+        connection.setConnectTimeout(connectTimeoutMs);
+        connection.setReadTimeout(readTimeoutMs);
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("PRIVATE-TOKEN", token);
+        connection.setRequestProperty("Accept", "application/json");
+        return connection;
+    }
+
+    /**
+     * Throws when the response is an error, reading the error body so the connection can be reused.
+     */
+    private static void check(HttpURLConnection connection, String method, String path) throws IOException {
+        int status = connection.getResponseCode();
+        if (status < HttpURLConnection.HTTP_BAD_REQUEST) {
+            return;
+        }
+        InputStream error = connection.getErrorStream();
+        String message = error == null ? "" : new String(drain(error), StandardCharsets.UTF_8);
+        if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+            throw new FileNotFoundException(String.format("%s %s: %s", method, path, message));
+        }
+        throw new IOException(String.format("Gitlab request %s %s failed with status %d: %s", method, path, status, message));
+    }
+
+    private static <T> T read(HttpURLConnection connection, Class<T> type) throws IOException {
+        try (Reader reader = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+            T result = GSON.fromJson(reader, type);
+            while (reader.read() != -1) {
+                // read to the end, so the connection is kept alive
+            }
+            return result;
+        }
+    }
+
+    private static byte[] drain(InputStream input) throws IOException {
+        try (InputStream stream = input) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        }
+    }
+
+    private static String encodeForm(Map<String, ?> form) throws UnsupportedEncodingException {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, ?> entry : form.entrySet()) {
+            if (entry.getValue() == null) {
+                continue;
+            }
+            if (result.length() > 0) {
+                result.append('&');
+            }
+            result.append(URLEncoder.encode(entry.getKey(), "UTF-8")).append('=')
+                    .append(URLEncoder.encode(String.valueOf(entry.getValue()), "UTF-8"));
+        }
+        return result.toString();
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+    }
+
+    public static class User {
+        private String username;
+
+        public String getUsername() {
+            return username;
+        }
+    }
+
+    public static class Project {
+        private int id;
+        private String pathWithNamespace;
+
+        public int getId() {
+            return id;
+        }
+
+        public String getPathWithNamespace() {
+            return pathWithNamespace;
+        }
+    }
+
+    public static class MergeRequest {
+        private int iid;
+        private int projectId;
+        private String state;
+        private String sourceBranch;
+        private String sha;
+        private DiffRefs diffRefs;
+
+        public int getIid() {
+            return iid;
+        }
+
+        public int getProjectId() {
+            return projectId;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public String getSourceBranch() {
+            return sourceBranch;
+        }
+
+        public String getSha() {
+            return sha;
+        }
+
+        @CheckForNull
+        public String getBaseSha() {
+            return diffRefs == null ? null : diffRefs.baseSha;
+        }
+
+        @CheckForNull
+        public String getStartSha() {
+            return diffRefs == null ? null : diffRefs.startSha;
+        }
+    }
+
+    private static class DiffRefs {
+        private String baseSha;
+        private String startSha;
+    }
+
+    public static class Commit {
+        private String id;
+        private String committedDate;
+        private List<String> parentIds;
+
+        public String getId() {
+            return id;
+        }
+
+        public String getCommittedDate() {
+            return committedDate;
+        }
+
+        public List<String> getParentIds() {
+            return parentIds;
+        }
+    }
+
+    /**
+     * Diff of a file in a commit, with the flags Gitlab sets when the diff is not returned.
+     */
+    public static class FileDiff {
+        private String oldPath;
+        private String newPath;
+        private String diff;
+        private boolean newFile;
+        private boolean renamedFile;
+        private boolean deletedFile;
+        private boolean tooLarge;
+        private boolean collapsed;
+
+        public String getOldPath() {
+            return oldPath;
+        }
+
+        public String getNewPath() {
+            return newPath;
+        }
+
+        public String getDiff() {
+            return diff;
+        }
+
+        public boolean isNewFile() {
+            return newFile;
+        }
+
+        public boolean isDeletedFile() {
+            return deletedFile;
+        }
+
+        /**
+         * Returns true when Gitlab did not return the diff because it is too large or collapsed. An empty diff
+         * of binary files, mode changes and empty files is not truncated, it has no hunks.
+         */
+        public boolean isTruncated() {
+            return tooLarge || collapsed;
+        }
+    }
+
+    public static class Discussion {
+        private String id;
+        private List<Note> notes;
+
+        public String getId() {
+            return id;
+        }
+
+        public List<Note> getNotes() {
+            return notes == null ? Collections.emptyList() : notes;
+        }
+    }
+
+    public static class Note {
+        private int id;
+        private String body;
+        private User author;
+
+        public int getId() {
+            return id;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public User getAuthor() {
+            return author;
+        }
+    }
+}
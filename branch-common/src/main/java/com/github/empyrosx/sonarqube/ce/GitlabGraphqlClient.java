@@ -0,0 +1,210 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fetches merge request data through the Gitlab GraphQL API, asking only for the fields used by decoration.
+ * <p>
+ * A single query returns the merge request with its diff refs, the current user and the first page of discussions,
+ * where the REST API needs a call for each of them and for each page of discussions.
+ */
+public class GitlabGraphqlClient {
+
+    static final int PAGE_SIZE = 100;
+
+    private static final String DISCUSSIONS = "discussions(first: " + PAGE_SIZE + ", after: $after) {" +
+            " pageInfo { hasNextPage endCursor }" +
+            " nodes { id notes { nodes { id body author { username } } } } }";
+
+    static final String MERGE_REQUEST_QUERY = "query($project: ID!, $iid: String!, $after: String) {" +
+            " currentUser { username }" +
+            " project(fullPath: $project) { id" +
+            " mergeRequest(iid: $iid) { iid state sourceBranch diffHeadSha" +
+            " diffRefs { baseSha startSha headSha } " + DISCUSSIONS + " } } }";
+
+    static final String DISCUSSIONS_QUERY = "query($project: ID!, $iid: String!, $after: String) {" +
+            " project(fullPath: $project) { mergeRequest(iid: $iid) { " + DISCUSSIONS + " } } }";
+
+    private static final Gson GSON = new Gson();
+    private static final String ENDPOINT = "POST graphql";
+
+    private final String url;
+    private final String token;
+    private final DecorationMetrics metrics;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+
+    public GitlabGraphqlClient(String url, String token, DecorationMetrics metrics) {
+        this(url, token, metrics, GitlabSettings.DEFAULT_CONNECT_TIMEOUT_MS, GitlabSettings.DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    public GitlabGraphqlClient(String url, String token, DecorationMetrics metrics, int connectTimeoutMs, int readTimeoutMs) {
+        this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        this.token = token;
+        this.metrics = metrics;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    /**
+     * Returns the merge request, or null when it does not exist.
+     */
+    public MergeRequestData getMergeRequest(String projectPath, int iid) throws IOException {
+        JsonObject data = query(MERGE_REQUEST_QUERY, projectPath, iid, null);
+        JsonObject project = getObject(data, "project");
+        JsonObject mergeRequest = getObject(project, "mergeRequest");
+        if (mergeRequest == null) {
+            return null;
+        }
+
+        JsonObject diffRefs = getObject(mergeRequest, "diffRefs");
+        Map<String, Object> restDiffRefs = new LinkedHashMap<>();
+        if (diffRefs != null) {
+            restDiffRefs.put("base_sha", getString(diffRefs, "baseSha"));
+            restDiffRefs.put("start_sha", getString(diffRefs, "startSha"));
+            restDiffRefs.put("head_sha", getString(diffRefs, "headSha"));
+        }
+        Map<String, Object> restMergeRequest = new LinkedHashMap<>();
+        restMergeRequest.put("iid", Integer.parseInt(getString(mergeRequest, "iid")));
+        restMergeRequest.put("project_id", Integer.parseInt(lastSegment(getString(project, "id"))));
+        restMergeRequest.put("state", getString(mergeRequest, "state"));
+        restMergeRequest.put("source_branch", getString(mergeRequest, "sourceBranch"));
+        restMergeRequest.put("sha", getString(mergeRequest, "diffHeadSha"));
+        restMergeRequest.put("diff_refs", restDiffRefs);
+
+        MergeRequestData result = new MergeRequestData();
+        result.mergeRequest = GitlabClient.fromJson(GSON.toJsonTree(restMergeRequest), GitlabClient.MergeRequest.class);
+        result.username = getString(getObject(data, "currentUser"), "username");
+        result.projectPath = projectPath;
+        result.discussions = getObject(mergeRequest, "discussions");
+        return result;
+    }
+
+    /**
+     * Returns notes of all discussions of the merge request, fetching the pages after the one returned with it.
+     */
+    public List<MergeRequestContext.Note> getNotes(MergeRequestData data) throws IOException {
+        List<MergeRequestContext.Note> notes = new ArrayList<>();
+        JsonObject discussions = data.discussions;
+        while (discussions != null) {
+            for (JsonElement discussion : discussions.getAsJsonArray("nodes")) {
+                String discussionId = lastSegment(getString(discussion.getAsJsonObject(), "id"));
+                JsonArray discussionNotes = getObject(discussion.getAsJsonObject(), "notes").getAsJsonArray("nodes");
+                for (JsonElement element : discussionNotes) {
+                    JsonObject note = element.getAsJsonObject();
+                    notes.add(new MergeRequestContext.Note(discussionId, Integer.parseInt(lastSegment(getString(note, "id"))),
+                            getString(getObject(note, "author"), "username"), getString(note, "body")));
+                }
+            }
+
+            JsonObject pageInfo = getObject(discussions, "pageInfo");
+            if (pageInfo == null || !pageInfo.get("hasNextPage").getAsBoolean()) {
+                break;
+            }
+            JsonObject page = query(DISCUSSIONS_QUERY, data.projectPath, data.mergeRequest.getIid(), getString(pageInfo, "endCursor"));
+            discussions = getObject(getObject(getObject(page, "project"), "mergeRequest"), "discussions");
+        }
+        return notes;
+    }
+
+    private JsonObject query(String query, String projectPath, int iid, String after) throws IOException {
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("project", projectPath);
+        variables.put("iid", String.valueOf(iid));
+        variables.put("after", after);
+        Map<String, Object> request = new HashMap<>();
+        request.put("query", query);
+        request.put("variables", variables);
+
+        metrics.apiCall(ENDPOINT);
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url + "/api/graphql").openConnection();
+            connection.setConnectTimeout(connectTimeoutMs);
+            connection.setReadTimeout(readTimeoutMs);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty("Authorization", "Bearer " + token);
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(GSON.toJson(request).getBytes(StandardCharsets.UTF_8));
+            }
+
+            int status = connection.getResponseCode();
+            if (status >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                throw new IOException(String.format("Gitlab GraphQL request failed with status %d", status));
+            }
+            JsonObject response;
+            try (InputStream input = connection.getInputStream()) {
+                response = new JsonParser().parse(new InputStreamReader(input, StandardCharsets.UTF_8)).getAsJsonObject();
+            }
+            if (response.has("errors")) {
+                throw new IOException("Gitlab GraphQL request failed: " + response.get("errors"));
+            }
+            return getObject(response, "data");
+        } catch (IOException | RuntimeException e) {
+            metrics.error(ENDPOINT);
+            throw e;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static JsonObject getObject(JsonObject object, String name) {
+        if (object == null || !object.has(name) || object.get(name).isJsonNull()) {
+            return null;
+        }
+        return object.getAsJsonObject(name);
+    }
+
+    private static String getString(JsonObject object, String name) {
+        if (object == null || !object.has(name) || object.get(name).isJsonNull()) {
+            return null;
+        }
+        return object.get(name).getAsString();
+    }
+
+    /**
+     * Returns the last segment of a global ID, like 42 for gid://gitlab/Note/42.
+     */
+    static String lastSegment(String globalId) {
+        return globalId.substring(globalId.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Merge request with the current user and the first page of its discussions.
+     */
+    public static class MergeRequestData {
+        private GitlabClient.MergeRequest mergeRequest;
+        private String username;
+        private String projectPath;
+        private JsonObject discussions;
+
+        public GitlabClient.MergeRequest getMergeRequest() {
+            return mergeRequest;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+    }
+}
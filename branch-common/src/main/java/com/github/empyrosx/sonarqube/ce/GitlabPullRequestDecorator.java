@@ -1,7 +1,5 @@
 package com.github.empyrosx.sonarqube.ce;
 
-import org.gitlab.api.GitlabAPI;
-import org.gitlab.api.models.*;
 import org.sonar.api.ce.posttask.Analysis;
 import org.sonar.api.ce.posttask.Branch;
 import org.sonar.api.ce.posttask.PostProjectAnalysisTask;
@@ -9,35 +7,54 @@ import org.sonar.api.ce.posttask.QualityGate;
 import org.sonar.api.config.Configuration;
 import org.sonar.api.issue.Issue;
 import org.sonar.api.platform.Server;
-import org.sonar.api.rules.RuleType;
-import org.sonar.api.utils.MessageException;
 import org.sonar.api.utils.log.Logger;
 import org.sonar.api.utils.log.Loggers;
 import org.sonar.ce.task.projectanalysis.component.ConfigurationRepository;
+import org.sonar.ce.task.projectanalysis.component.TreeRootHolder;
 import org.sonar.core.issue.DefaultIssue;
+import org.sonar.db.DbClient;
+import org.sonar.db.DbSession;
+import org.sonar.db.ce.CeQueueDto;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
-import java.util.*;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
-import static org.gitlab.api.http.Method.DELETE;
-import static org.sonar.api.rule.Severity.*;
-
+/**
+ * Decorates merge request after the analysis of its pull request.
+ * <p>
+ * When many analyses are waiting in the compute engine queue, the decoration is reduced to a summary or to the status.
+ * Its digest is not saved then, so the full decoration is made by the next redecoration of the project.
+ */
 public class GitlabPullRequestDecorator implements PostProjectAnalysisTask {
 
+    public static final String SUMMARY_ONLY_QUEUE_SIZE = "sonar.pullrequest.decoration.summaryOnlyQueueSize";
+    public static final String STATUS_ONLY_QUEUE_SIZE = "sonar.pullrequest.decoration.statusOnlyQueueSize";
+
     private static final Logger LOG = Loggers.get(GitlabPullRequestDecorator.class);
 
     private final ConfigurationRepository configurationRepository;
     private final PullRequestIssueVisitor pullRequestIssueVisitor;
     private final Server server;
+    private final TreeRootHolder treeRootHolder;
+    private final DecorationStore decorationStore;
+    private final MergeRequestDecoration decoration;
+    private final DbClient dbClient;
 
     public GitlabPullRequestDecorator(Server server, ConfigurationRepository configurationRepository,
-                                      PullRequestIssueVisitor pullRequestIssueVisitor) {
+                                      PullRequestIssueVisitor pullRequestIssueVisitor, TreeRootHolder treeRootHolder,
+                                      DecorationStore decorationStore, MergeRequestDecoration decoration, DbClient dbClient) {
         super();
         this.configurationRepository = configurationRepository;
         this.server = server;
         this.pullRequestIssueVisitor = pullRequestIssueVisitor;
+        this.treeRootHolder = treeRootHolder;
+        this.decorationStore = decorationStore;
+        this.decoration = decoration;
+        this.dbClient = dbClient;
     }
 
     @Override
@@ -61,171 +78,76 @@ public class GitlabPullRequestDecorator implements PostProjectAnalysisTask {
             return;
         }
 
-        try {
-            Configuration configuration = configurationRepository.getConfiguration();
-            final String url = getProperty("sonar.pullrequest.gitlab.url", configuration);
-            final String token = getProperty("sonar.pullrequest.gitlab.token", configuration);
-            final String projectId = getProperty("sonar.pullrequest.gitlab.project", configuration);
-            final String pullRequestBranch = projectAnalysis.getBranch().get().getName().get();
-
-            GitlabAPI api = GitlabAPI.connect(url, token);
-
-            GitlabProject project = api.getProject(projectId);
-            GitlabMergeRequest mergeRequest = findMergeRequest(api, project, pullRequestBranch);
-
-            String checker = configuration.get("sonar.pullrequest.gitlab.checker").orElse("SonarQube");
-            postStatus(api, mergeRequest, projectAnalysis, checker);
-
-            List<DefaultIssue> openIssues = new ArrayList<>(pullRequestIssueVisitor.getIssues());
-
-            removeOldNotes(api, mergeRequest, checker);
+        Configuration configuration = configurationRepository.getConfiguration();
+        GitlabSettings settings = GitlabSettings.of(configuration::get);
+        DecorationSnapshot snapshot = createSnapshot(projectAnalysis, revision.get());
+        String pullRequestUuid = treeRootHolder.getRoot().getUuid();
+        String digest = DecorationStore.digest(snapshot, settings);
+        if (decorationStore.isDecorated(pullRequestUuid, digest)) {
+            LOG.info("Pull request {} is already decorated for commit {}", snapshot.getPullRequestKey(), snapshot.getRevision());
+            return;
+        }
 
-            for (DefaultIssue issue : openIssues) {
-                if (!Issue.STATUS_CLOSED.equals(issue.status()) && !Issue.STATUS_RESOLVED.equals(issue.status()))
-                    postCommitComment(api, mergeRequest, issue, checker);
-            }
+        decorationStore.saveRecentProject(snapshot.getProjectKey());
+        MergeRequestDecoration.Level level = getLevel(configuration);
+        if (level != MergeRequestDecoration.Level.FULL) {
+            LOG.info("Compute engine is busy, pull request {} is decorated with {} level only", snapshot.getPullRequestKey(), level);
+        }
+        boolean complete = false;
+        try {
+            complete = decoration.decorate(settings, snapshot, level);
         } catch (IOException ex) {
             throw new IllegalStateException("Could not decorate Pull Request on Gitlab", ex);
+        } finally {
+            decorationStore.saveDecoration(pullRequestUuid, snapshot, complete ? digest : null);
         }
     }
 
-    private void removeOldNotes(GitlabAPI api, GitlabMergeRequest mergeRequest, String checker) throws IOException {
-        String discussionsUrl = GitlabProject.URL + "/" + mergeRequest.getProjectId() +
-                GitlabMergeRequest.URL + "/" + mergeRequest.getIid() +
-                GitlabDiscussion.URL;
-
-        String username = api.getUser().getUsername();
-        Iterator<GitlabDiscussion[]> iterator = api.retrieve().asIterator(discussionsUrl, GitlabDiscussion[].class);
-        while (iterator.hasNext()) {
-            GitlabDiscussion[] discussions = iterator.next();
-            for (GitlabDiscussion disc : discussions) {
-                for (GitlabNote note : disc.getNotes())
-                    if (note.getAuthor().getUsername().equals(username) && (note.getBody().startsWith(checker + ": "))) {
-                        String tailUrl = GitlabProject.URL + "/" + mergeRequest.getProjectId() +
-                                GitlabMergeRequest.URL + "/" + mergeRequest.getIid() +
-                                GitlabDiscussion.URL + "/" + disc.getId() +
-                                GitlabNote.URL + "/" + note.getId();
-                        try {
-                            api.retrieve().method(DELETE).to(tailUrl, Void.class);
-                        } catch (Exception e) {
-                            LOG.warn("Comment %s is not deleted", tailUrl);
-                        }
-//                    This method expects int disc.getId() but really it String
-//                    TODO: fix it in gitlab-api
-//                    api.deleteDiscussionNote(mergeRequest, disc.getId(), note.getId());
-                    }
-            }
+    /**
+     * Chooses decoration level by the number of pending compute engine tasks.
+     */
+    private MergeRequestDecoration.Level getLevel(Configuration configuration) {
+        int summaryOnly = configuration.getInt(SUMMARY_ONLY_QUEUE_SIZE).orElse(0);
+        int statusOnly = configuration.getInt(STATUS_ONLY_QUEUE_SIZE).orElse(0);
+        if (summaryOnly <= 0 && statusOnly <= 0) {
+            return MergeRequestDecoration.Level.FULL;
         }
-    }
 
-    private GitlabMergeRequest findMergeRequest(GitlabAPI api, GitlabProject project, String pullRequestBranch) throws IOException {
-        List<GitlabMergeRequest> mergeRequests = api.getOpenMergeRequests(project);
-        for (GitlabMergeRequest mr : mergeRequests) {
-            if (mr.getIid().equals(Integer.parseInt(pullRequestBranch))) {
-                return api.getMergeRequest(project, mr.getIid());
-            }
+        int pending;
+        try (DbSession dbSession = dbClient.openSession(false)) {
+            pending = dbClient.ceQueueDao().countByStatus(dbSession, CeQueueDto.Status.PENDING);
         }
-        throw MessageException.of(String.format("Pull request for branch %s is not found", pullRequestBranch));
-    }
-
-    private void postCommitComment(GitlabAPI api, GitlabMergeRequest mergeRequest, DefaultIssue issue, String checker) {
-        String fileName = pullRequestIssueVisitor.getFileName(issue);
-        try {
-            List<GitlabCommit> commits = api.getCommits(mergeRequest);
-            commits.sort(Comparator.comparing(GitlabCommit::getCommittedDate));
-
-            List<String> diffs = new ArrayList<>();
-            for (GitlabCommit commit : commits) {
-                List<GitlabCommitDiff> commitDiffs = api.getCommitDiffs(mergeRequest.getProjectId(), commit.getId());
-                for (GitlabCommitDiff diff : commitDiffs) {
-                    if (diff.getNewPath().equalsIgnoreCase(fileName)) {
-                        diffs.add(diff.getDiff());
-                    }
-                }
-            }
-
-            Integer oldLine = issue.getLine() == null ? null : DiffUtils.getBaseSourceLine(diffs, issue.getLine());
-
-            LOG.info("Calculating base line for file: " + fileName);
-            LOG.info("New line: " + issue.getLine());
-            LOG.info("Old line: " + oldLine);
-
-            String message = checker + ": " + getIcon(issue) + " " + issue.getMessage();
-            api.createTextDiscussion(mergeRequest, message,
-                    null,
-                    mergeRequest.getBaseSha(),
-                    mergeRequest.getStartSha(),
-                    mergeRequest.getSha(),
-                    fileName,
-                    issue.getLine(),
-                    fileName,
-                    oldLine);
-        } catch (Exception e) {
-            LOG.error("Can't make comment", e);
+        if (statusOnly > 0 && pending >= statusOnly) {
+            return MergeRequestDecoration.Level.STATUS;
         }
-    }
-
-    @Nonnull
-    private String getIcon(DefaultIssue issue) {
-        String icon;
-        switch (issue.severity()) {
-            case BLOCKER:
-                icon = ":exclamation:";
-                break;
-            case CRITICAL:
-                icon = ":arrow_up:";
-                break;
-            case MAJOR:
-                icon = ":arrow_up_small:";
-                break;
-            case MINOR:
-                icon = ":arrow_down:";
-                break;
-            case INFO:
-                icon = ":information_source:";
-                break;
-            default:
-                icon = "";
+        if (summaryOnly > 0 && pending >= summaryOnly) {
+            return MergeRequestDecoration.Level.SUMMARY;
         }
-        return icon;
-    }
-
-    private static String pluralOf(long value, String singleLabel, String multiLabel) {
-        return value + " " + (1 == value ? singleLabel : multiLabel);
+        return MergeRequestDecoration.Level.FULL;
     }
 
-    protected void postStatus(GitlabAPI api, GitlabMergeRequest mergeRequest, ProjectAnalysis projectAnalysis, String checker) throws IOException {
+    private DecorationSnapshot createSnapshot(ProjectAnalysis projectAnalysis, String revision) {
+        String projectKey = projectAnalysis.getProject().getKey();
+        String pullRequestKey = projectAnalysis.getBranch().get().getName().get();
+        String targetURL = String.format("%s/dashboard?id=%s&pullRequest=%s", server.getPublicRootUrl()
+                , projectKey
+                , pullRequestKey);
 
-        List<DefaultIssue> openIssues = pullRequestIssueVisitor.getIssues().stream()
+        List<DecorationSnapshot.Issue> openIssues = pullRequestIssueVisitor.getIssues().stream()
                 .filter(issue -> !Issue.STATUS_CLOSED.equals(issue.status()) && !Issue.STATUS_RESOLVED.equals(issue.status()))
+                .map(this::toSnapshotIssue)
+                .sorted(Comparator.comparing(DecorationSnapshot.Issue::getFileName, Comparator.nullsFirst(Comparator.naturalOrder()))
+                        .thenComparing(DecorationSnapshot.Issue::getLine, Comparator.nullsFirst(Comparator.naturalOrder()))
+                        .thenComparing(DecorationSnapshot.Issue::getKey))
                 .collect(Collectors.toList());
-        Map<RuleType, Long> issueCounts = Arrays.stream(RuleType.values()).collect(Collectors.toMap(k -> k,
-                k -> openIssues
-                        .stream()
-                        .filter(i -> k == i.type())
-                        .count()));
-
-        String state = (QualityGate.Status.OK == projectAnalysis.getQualityGate().getStatus() ? "success" : "failed");
-        String NEW_LINE = "\n\n";
 
-        String summaryComment = String.format("%s %s", state, NEW_LINE) +
-                String.format("# Analysis Details %s", NEW_LINE) +
-                String.format("## %s Issues %s", issueCounts.values().stream().mapToLong(l -> l).sum(), NEW_LINE) +
-                String.format(" - %s %s", pluralOf(issueCounts.get(RuleType.BUG), "Bug", "Bugs"), NEW_LINE) +
-                String.format(" - %s %s", pluralOf(issueCounts.get(RuleType.VULNERABILITY), "Vulnerability", "Vulnerabilities"), NEW_LINE) +
-                String.format(" - %s %s", pluralOf(issueCounts.get(RuleType.SECURITY_HOTSPOT), "Security issue", "Security issues"), NEW_LINE) +
-                String.format(" - %s %s", pluralOf(issueCounts.get(RuleType.CODE_SMELL), "Code Smell", "Code Smells"), NEW_LINE);
-
-
-        String targetURL = String.format("%s/dashboard?id=%s&pullRequest=%s", server.getPublicRootUrl()
-                , projectAnalysis.getProject().getKey()
-                , projectAnalysis.getBranch().get().getName().get());
-        api.createCommitStatus(mergeRequest.getProjectId(), mergeRequest.getSha().substring(0, 8), state, mergeRequest.getSourceBranch(), checker, targetURL, summaryComment);
+        return new DecorationSnapshot(projectKey, pullRequestKey, revision,
+                QualityGate.Status.OK == projectAnalysis.getQualityGate().getStatus(), targetURL, openIssues);
     }
 
-    private static String getProperty(String propertyName, Configuration configuration) {
-        return configuration.get(propertyName)
-                .orElseThrow(() -> new IllegalStateException(String.format("%s must be defined in the project configuration", propertyName)));
+    private DecorationSnapshot.Issue toSnapshotIssue(DefaultIssue issue) {
+        return new DecorationSnapshot.Issue(issue.key(), pullRequestIssueVisitor.getFileName(issue), issue.getLine(),
+                issue.severity(), issue.type().name(), issue.getMessage());
     }
 
 //    @Override
@@ -233,4 +155,4 @@ public class GitlabPullRequestDecorator implements PostProjectAnalysisTask {
         return "Pull Request Decoration";
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,265 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Forwards requests of a decoration to Gitlab and records them, with responses and latencies, into a gzipped archive.
+ * <p>
+ * The archive starts with the decoration snapshot, followed by one exchange per line with its response body encoded
+ * with base64. Tokens and cookies are redacted, and links to Gitlab are replaced by a placeholder,
+ * so {@link GitlabReplayer} can serve them again.
+ */
+public class GitlabRecorder implements AutoCloseable {
+
+    static final String GITLAB_PLACEHOLDER = "${gitlab}";
+    static final String REDACTED = "REDACTED";
+    private static final Set<String> SECRET_HEADERS = new HashSet<>(Arrays.asList("private-token", "authorization", "cookie", "set-cookie"));
+    private static final Set<String> SECRET_PARAMS = new HashSet<>(Arrays.asList("private_token", "access_token"));
+    private static final Pattern SECRET_PARAMS_IN_LINKS = Pattern.compile("(?i)(private_token|access_token)=[^&>;\\s]*");
+    private static final Set<String> SKIPPED_HEADERS = new HashSet<>(Arrays.asList("host", "connection", "content-length",
+            "transfer-encoding", "accept-encoding", "content-encoding"));
+    private static final Logger LOG = Loggers.get(GitlabRecorder.class);
+    private static final Gson GSON = new Gson();
+
+    private final String target;
+    private final Path archive;
+    private final Writer writer;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+
+    public GitlabRecorder(String targetUrl, Path archive, GitlabSettings settings, DecorationSnapshot snapshot) throws IOException {
+        this.target = targetUrl.endsWith("/") ? targetUrl.substring(0, targetUrl.length() - 1) : targetUrl;
+        this.archive = archive;
+        this.connectTimeoutMs = settings.getConnectTimeoutMs();
+        this.readTimeoutMs = settings.getReadTimeoutMs();
+        Files.createDirectories(archive.getParent());
+        this.writer = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(archive)), StandardCharsets.UTF_8);
+
+        Header header = new Header();
+        header.projectId = settings.getProjectId();
+        header.checker = settings.getChecker();
+        header.graphql = settings.isGraphql();
+        header.snapshot = snapshot;
+        write(GSON.toJson(header));
+
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.executor = Executors.newFixedThreadPool(4);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Returns URL to connect to Gitlab through the recorder.
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public Path getArchive() {
+        return archive;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.stop(0);
+        executor.shutdownNow();
+        synchronized (writer) {
+            writer.close();
+        }
+        LOG.info("Gitlab requests are recorded to {}", archive);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            Exchange recorded = forward(exchange);
+            write(GSON.toJson(recorded.redacted()));
+
+            for (Map.Entry<String, List<String>> header : recorded.responseHeaders.entrySet()) {
+                for (String value : header.getValue()) {
+                    exchange.getResponseHeaders().add(header.getKey(), value.replace(GITLAB_PLACEHOLDER, getUrl()));
+                }
+            }
+            byte[] body = recorded.getResponseBody();
+            exchange.sendResponseHeaders(recorded.status, body.length == 0 ? -1 : body.length);
+            if (body.length > 0) {
+                try (OutputStream output = exchange.getResponseBody()) {
+                    output.write(body);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not forward request {} to Gitlab", exchange.getRequestURI().getRawPath(), e);
+            exchange.sendResponseHeaders(502, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Exchange forward(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        byte[] requestBody = read(exchange.getRequestBody());
+
+        Exchange recorded = new Exchange();
+        recorded.method = exchange.getRequestMethod();
+        recorded.path = exchange.getRequestURI().getRawPath();
+        recorded.query = redactQuery(query);
+        recorded.requestBody = new String(requestBody, StandardCharsets.UTF_8);
+
+        long start = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) new URL(target + recorded.path + (query == null ? "" : "?" + query)).openConnection();
+        connection.setConnectTimeout(connectTimeoutMs);
+        connection.setReadTimeout(readTimeoutMs);
+        connection.setRequestMethod(recorded.method);
+        for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ENGLISH);
+            if (!SKIPPED_HEADERS.contains(name)) {
+                for (String value : header.getValue()) {
+                    connection.addRequestProperty(header.getKey(), value);
+                }
+                recorded.requestHeaders.put(header.getKey(), SECRET_HEADERS.contains(name)
+                        ? Arrays.asList(REDACTED) : header.getValue());
+            }
+        }
+        if (requestBody.length > 0) {
+            connection.setDoOutput(true);
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(requestBody);
+            }
+        }
+
+        recorded.status = connection.getResponseCode();
+        InputStream input = recorded.status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        recorded.setResponseBody(input == null ? new byte[0] : read(input));
+        recorded.latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            String name = header.getKey() == null ? null : header.getKey().toLowerCase(Locale.ENGLISH);
+            if (name != null && !SKIPPED_HEADERS.contains(name) && !SECRET_HEADERS.contains(name)) {
+                recorded.responseHeaders.put(header.getKey(), header.getValue().stream()
+                        .map(value -> value.replace(target, GITLAB_PLACEHOLDER))
+                        .collect(Collectors.toList()));
+            }
+        }
+        return recorded;
+    }
+
+    private void write(String line) throws IOException {
+        synchronized (writer) {
+            writer.write(line);
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Redacts secret parameters of links, Gitlab repeats request parameters in the links to the next pages.
+     */
+    static String redactLinks(String value) {
+        return SECRET_PARAMS_IN_LINKS.matcher(value).replaceAll("$1=" + REDACTED);
+    }
+
+    static String redactQuery(String query) {
+        if (query == null || query.isEmpty()) {
+            return "";
+        }
+        StringBuilder result = new StringBuilder();
+        for (String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+            String name = separator < 0 ? pair : pair.substring(0, separator);
+            if (result.length() > 0) {
+                result.append('&');
+            }
+            result.append(SECRET_PARAMS.contains(name.toLowerCase(Locale.ENGLISH)) ? name + "=" + REDACTED : pair);
+        }
+        return result.toString();
+    }
+
+    private static byte[] read(InputStream input) throws IOException {
+        try (InputStream in = input) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        }
+    }
+
+    static class Header {
+        String projectId;
+        String checker;
+        boolean graphql;
+        DecorationSnapshot snapshot;
+    }
+
+    static class Exchange {
+        String method;
+        String path;
+        String query;
+        Map<String, List<String>> requestHeaders = new LinkedHashMap<>();
+        String requestBody;
+        int status;
+        Map<String, List<String>> responseHeaders = new LinkedHashMap<>();
+        /**
+         * Response body encoded with base64, so raw files which are binary or not UTF-8 are served unchanged.
+         */
+        String responseBody;
+        long latencyMs;
+
+        byte[] getResponseBody() {
+            return responseBody == null ? new byte[0] : Base64.getDecoder().decode(responseBody);
+        }
+
+        void setResponseBody(byte[] body) {
+            responseBody = Base64.getEncoder().encodeToString(body);
+        }
+
+        private Exchange redacted() {
+            Exchange result = new Exchange();
+            result.method = method;
+            result.path = path;
+            result.query = query;
+            result.requestHeaders = requestHeaders;
+            result.requestBody = requestBody;
+            result.status = status;
+            responseHeaders.forEach((name, values) -> result.responseHeaders.put(name, values.stream()
+                    .map(GitlabRecorder::redactLinks)
+                    .collect(Collectors.toList())));
+            result.responseBody = responseBody;
+            result.latencyMs = latencyMs;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Serves requests recorded by {@link GitlabRecorder}, so a recorded decoration can be repeated offline.
+ * <p>
+ * Requests are matched by method, path and query. Repeated requests get the recorded responses in order,
+ * the last one is served again when they are exhausted. Each response is delayed by its recorded latency
+ * multiplied by the latency scale.
+ * <p>
+ * Run {@code ./gradlew :benchmarks:replay --args='<archive> [latencyScale]'} to repeat the recorded decoration
+ * and print how long it took.
+ */
+public class GitlabReplayer implements AutoCloseable {
+
+    private static final Gson GSON = new Gson();
+
+    private final GitlabRecorder.Header header;
+    private final Map<String, Deque<GitlabRecorder.Exchange>> exchanges = new HashMap<>();
+    private final double latencyScale;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public GitlabReplayer(Path archive, double latencyScale) throws IOException {
+        this.latencyScale = latencyScale;
+        try (InputStream input = new GZIPInputStream(Files.newInputStream(archive));
+             BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            header = GSON.fromJson(reader.readLine(), GitlabRecorder.Header.class);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                GitlabRecorder.Exchange exchange = GSON.fromJson(line, GitlabRecorder.Exchange.class);
+                exchanges.computeIfAbsent(key(exchange.method, exchange.path, exchange.query), k -> new ArrayDeque<>()).add(exchange);
+            }
+        }
+
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.executor = Executors.newFixedThreadPool(4);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public DecorationSnapshot getSnapshot() {
+        return header.snapshot;
+    }
+
+    /**
+     * Returns settings of the recorded decoration pointing to this replayer.
+     */
+    public GitlabSettings getSettings() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(GitlabSettings.URL, getUrl());
+        properties.put(GitlabSettings.TOKEN, GitlabRecorder.REDACTED);
+        properties.put(GitlabSettings.PROJECT, header.projectId);
+        properties.put(GitlabSettings.CHECKER, header.checker);
+        properties.put(GitlabSettings.GRAPHQL, String.valueOf(header.graphql));
+        return GitlabSettings.of(key -> Optional.ofNullable(properties.get(key)));
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String key = key(exchange.getRequestMethod(), exchange.getRequestURI().getRawPath(),
+                    GitlabRecorder.redactQuery(exchange.getRequestURI().getRawQuery()));
+            GitlabRecorder.Exchange recorded = next(key);
+            if (recorded == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            Thread.sleep((long) (recorded.latencyMs * latencyScale));
+            for (Map.Entry<String, List<String>> header : recorded.responseHeaders.entrySet()) {
+                for (String value : header.getValue()) {
+                    exchange.getResponseHeaders().add(header.getKey(), value.replace(GitlabRecorder.GITLAB_PLACEHOLDER, getUrl()));
+                }
+            }
+            byte[] body = recorded.getResponseBody();
+            exchange.sendResponseHeaders(recorded.status, body.length == 0 ? -1 : body.length);
+            if (body.length > 0) {
+                try (OutputStream output = exchange.getResponseBody()) {
+                    output.write(body);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private synchronized GitlabRecorder.Exchange next(String key) {
+        Deque<GitlabRecorder.Exchange> queue = exchanges.get(key);
+        if (queue == null || queue.isEmpty()) {
+            return null;
+        }
+        return queue.size() == 1 ? queue.peek() : queue.poll();
+    }
+
+    private static String key(String method, String path, String query) {
+        return method + " " + path + "?" + query;
+    }
+}
@@ -0,0 +1,122 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Gitlab settings of a project.
+ */
+@Immutable
+public class GitlabSettings {
+
+    public static final String URL = "sonar.pullrequest.gitlab.url";
+    public static final String TOKEN = "sonar.pullrequest.gitlab.token";
+    public static final String PROJECT = "sonar.pullrequest.gitlab.project";
+    public static final String CHECKER = "sonar.pullrequest.gitlab.checker";
+    public static final String RECORD_DIRECTORY = "sonar.pullrequest.gitlab.recordDirectory";
+    public static final String GRAPHQL = "sonar.pullrequest.gitlab.graphql";
+    public static final String CONNECT_TIMEOUT = "sonar.pullrequest.gitlab.connectTimeoutMs";
+    public static final String READ_TIMEOUT = "sonar.pullrequest.gitlab.readTimeoutMs";
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10_000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 30_000;
+
+    // keys shared by the web server and the compute engine
+    public static final String WEBHOOK_PATH = "/branch_plugin/gitlab_webhook";
+    public static final String WEBHOOK_SECRET = "sonar.pullrequest.gitlab.webhookSecret.secured";
+    public static final String PURGE_ENABLED = "sonar.pullrequest.purge.enabled";
+    public static final String PURGE_DAYS = "sonar.pullrequest.purge.days";
+    public static final String PURGE_CLOSED = "sonar.pullrequest.purge.closedMergeRequests";
+    public static final String PURGE_BATCH_SIZE = "sonar.pullrequest.purge.batchSize";
+    public static final String PURGE_PAUSE = "sonar.pullrequest.purge.pauseMs";
+    public static final String PURGE_HOURS = "sonar.pullrequest.purge.hours";
+    public static final String PURGE_INTERVAL = "sonar.pullrequest.purge.intervalMinutes";
+
+    private final String url;
+    private final String token;
+    private final String projectId;
+    private final String checker;
+    private final boolean graphql;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+
+    private GitlabSettings(String url, String token, String projectId, String checker, boolean graphql,
+                           int connectTimeoutMs, int readTimeoutMs) {
+        this.url = url;
+        this.token = token;
+        this.projectId = projectId;
+        this.checker = checker;
+        this.graphql = graphql;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    /**
+     * Reads settings from project configuration, for example {@code Configuration::get}.
+     */
+    public static GitlabSettings of(Function<String, Optional<String>> configuration) {
+        return new GitlabSettings(getProperty(URL, configuration), getProperty(TOKEN, configuration),
+                getProperty(PROJECT, configuration), configuration.apply(CHECKER).orElse("SonarQube"),
+                configuration.apply(GRAPHQL).map(Boolean::parseBoolean).orElse(false),
+                getTimeout(CONNECT_TIMEOUT, configuration, DEFAULT_CONNECT_TIMEOUT_MS),
+                getTimeout(READ_TIMEOUT, configuration, DEFAULT_READ_TIMEOUT_MS));
+    }
+
+    /**
+     * Reads timeout in milliseconds, the default is used when the value is not a positive number.
+     */
+    public static int getTimeout(String propertyName, Function<String, Optional<String>> configuration, int defaultValue) {
+        try {
+            return configuration.apply(propertyName).map(String::trim).map(Integer::parseInt)
+                    .filter(timeout -> timeout > 0)
+                    .orElse(defaultValue);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static String getProperty(String propertyName, Function<String, Optional<String>> configuration) {
+        return configuration.apply(propertyName)
+                .orElseThrow(() -> new IllegalStateException(String.format("%s must be defined in the project configuration", propertyName)));
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public String getProjectId() {
+        return projectId;
+    }
+
+    public String getChecker() {
+        return checker;
+    }
+
+    /**
+     * Tells whether merge request, user and discussions are fetched through the GraphQL API instead of the REST API.
+     */
+    public boolean isGraphql() {
+        return graphql;
+    }
+
+    public int getConnectTimeoutMs() {
+        return connectTimeoutMs;
+    }
+
+    public int getReadTimeoutMs() {
+        return readTimeoutMs;
+    }
+
+    /**
+     * Returns settings which affect what is posted, the token is not included.
+     */
+    List<String> getDecorationSettings() {
+        return Arrays.asList(url, projectId, checker);
+    }
+}
@@ -0,0 +1,94 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import org.sonar.api.Startable;
+import org.sonar.api.ce.ComputeEngineSide;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Opens connections to Gitlab and fetches projects and token users of recently decorated projects
+ * when the compute engine starts, so the first decorations after a restart do not wait for them.
+ * <p>
+ * Warm-up runs in the background and failures are only logged, decoration fetches whatever is missing.
+ */
+@ComputeEngineSide
+public class GitlabWarmUp implements Startable {
+
+    public static final String WARM_UP_ENABLED = "sonar.pullrequest.gitlab.warmUp";
+
+    private static final Logger LOG = Loggers.get(GitlabWarmUp.class);
+
+    private final Configuration configuration;
+    private final DecorationStore decorationStore;
+    private final MergeRequestContextCache contextCache;
+    private final DecorationMetrics metrics;
+    private ExecutorService executor;
+
+    public GitlabWarmUp(Configuration configuration, DecorationStore decorationStore, MergeRequestContextCache contextCache,
+                        DecorationMetrics metrics) {
+        this.configuration = configuration;
+        this.decorationStore = decorationStore;
+        this.contextCache = contextCache;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void start() {
+        if (!configuration.getBoolean(WARM_UP_ENABLED).orElse(true)) {
+            return;
+        }
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gitlab-warm-up");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.execute(this::warmUpSafely);
+    }
+
+    @Override
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void warmUpSafely() {
+        try {
+            warmUp();
+        } catch (RuntimeException e) {
+            LOG.warn("Could not warm up Gitlab connections", e);
+        }
+    }
+
+    /**
+     * Warms up each Gitlab project of recently decorated projects once.
+     */
+    void warmUp() {
+        Set<List<String>> done = new HashSet<>();
+        for (String projectKey : decorationStore.loadRecentProjects()) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            try {
+                GitlabSettings settings = decorationStore.loadSettings(projectKey, configuration);
+                if (done.add(Arrays.asList(settings.getUrl(), settings.getToken(), settings.getProjectId()))) {
+                    contextCache.warmUp(new GitlabClient(settings.getUrl(), settings.getToken(), metrics,
+                            settings.getConnectTimeoutMs(), settings.getReadTimeoutMs()),
+                            settings.getUrl(), settings.getToken(), settings.getProjectId());
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.debug("Could not warm up Gitlab connection of project {}", projectKey, e);
+            }
+        }
+        LOG.info("Warmed up {} Gitlab projects", done.size());
+    }
+}
@@ -0,0 +1,243 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+
+/**
+ * Computes a unified diff of two file versions, for files whose diff Gitlab does not return.
+ * <p>
+ * Files are streamed and only a 64-bit hash of each line is kept, so memory depends on the number of lines
+ * rather than on the size of the files. With 64-bit hashes, lines of different content are not expected to be
+ * taken as equal even in files with millions of lines. Lines are compared with the linear space variant of the Myers algorithm.
+ * The resulting diff has no context lines and no line contents, it is only meant for line mapping.
+ */
+final class LineDiff {
+
+    /**
+     * Files with more lines are not compared.
+     */
+    static final int MAX_LINES = 1_000_000;
+
+    /**
+     * Ranges needing more edits to find their middle snake are considered as replaced, this bounds the time on rewritten files.
+     */
+    private static final int MAX_EDIT_DISTANCE = 2048;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long[] a;
+    private final long[] b;
+    private final BitSet removed = new BitSet();
+    private final BitSet added = new BitSet();
+
+    private LineDiff(long[] a, long[] b) {
+        this.a = a;
+        this.b = b;
+    }
+
+    /**
+     * Returns unified diff of files given by hashes of their lines.
+     */
+    static String unifiedDiff(long[] before, long[] after) {
+        LineDiff diff = new LineDiff(before, after);
+        diff.compare();
+        return diff.format();
+    }
+
+    /**
+     * Returns hashes of lines of the stream, ignoring carriage returns before line feeds. The stream is closed.
+     */
+    static long[] hashLines(InputStream stream) throws IOException {
+        try (InputStream input = new BufferedInputStream(stream)) {
+            long[] hashes = new long[1024];
+            int count = 0;
+            long hash = FNV_OFFSET;
+            boolean pendingCarriageReturn = false;
+            boolean inLine = false;
+            int read;
+            while ((read = input.read()) != -1) {
+                if (read == '\n') {
+                    if (count == hashes.length) {
+                        hashes = grow(hashes);
+                    }
+                    hashes[count++] = hash;
+                    hash = FNV_OFFSET;
+                    pendingCarriageReturn = false;
+                    inLine = false;
+                    continue;
+                }
+                if (pendingCarriageReturn) {
+                    hash = (hash ^ '\r') * FNV_PRIME;
+                }
+                pendingCarriageReturn = read == '\r';
+                if (!pendingCarriageReturn) {
+                    hash = (hash ^ read) * FNV_PRIME;
+                }
+                inLine = true;
+            }
+            if (inLine) {
+                if (pendingCarriageReturn) {
+                    hash = (hash ^ '\r') * FNV_PRIME;
+                }
+                if (count == hashes.length) {
+                    hashes = grow(hashes);
+                }
+                hashes[count++] = hash;
+            }
+            return Arrays.copyOf(hashes, count);
+        }
+    }
+
+    private static long[] grow(long[] hashes) {
+        if (hashes.length >= MAX_LINES) {
+            throw new IllegalStateException("File has more than " + MAX_LINES + " lines");
+        }
+        return Arrays.copyOf(hashes, Math.min(MAX_LINES, hashes.length * 2));
+    }
+
+    /**
+     * Marks removed and added lines, splitting ranges at the middle snake until they are trivial.
+     */
+    private void compare() {
+        Deque<int[]> ranges = new ArrayDeque<>();
+        ranges.push(new int[]{0, a.length, 0, b.length});
+        while (!ranges.isEmpty()) {
+            int[] range = ranges.pop();
+            int aStart = range[0];
+            int aEnd = range[1];
+            int bStart = range[2];
+            int bEnd = range[3];
+            while (aStart < aEnd && bStart < bEnd && a[aStart] == b[bStart]) {
+                aStart++;
+                bStart++;
+            }
+            while (aStart < aEnd && bStart < bEnd && a[aEnd - 1] == b[bEnd - 1]) {
+                aEnd--;
+                bEnd--;
+            }
+            if (aStart == aEnd || bStart == bEnd) {
+                removed.set(aStart, aEnd);
+                added.set(bStart, bEnd);
+                continue;
+            }
+
+            int[] split = middleSnake(aStart, aEnd, bStart, bEnd);
+            if (split == null) {
+                removed.set(aStart, aEnd);
+                added.set(bStart, bEnd);
+            } else {
+                ranges.push(new int[]{split[0], aEnd, split[1], bEnd});
+                ranges.push(new int[]{aStart, split[0], bStart, split[1]});
+            }
+        }
+    }
+
+    /**
+     * Searches forward and backward paths at the same time, returns the point where they meet.
+     */
+    private int[] middleSnake(int aStart, int aEnd, int bStart, int bEnd) {
+        int n = aEnd - aStart;
+        int m = bEnd - bStart;
+        int maxD = Math.min((n + m + 1) / 2, MAX_EDIT_DISTANCE);
+        int offset = maxD + 1;
+        int length = 2 * maxD + 3;
+        int[] forward = new int[length];
+        int[] backward = new int[length];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int k1Start = 0;
+        int k1End = 0;
+        int k2Start = 0;
+        int k2End = 0;
+
+        for (int d = 0; d < maxD; d++) {
+            for (int k1 = -d + k1Start; k1 <= d - k1End; k1 += 2) {
+                int k1Offset = offset + k1;
+                int x1 = k1 == -d || (k1 != d && forward[k1Offset - 1] < forward[k1Offset + 1])
+                        ? forward[k1Offset + 1] : forward[k1Offset - 1] + 1;
+                int y1 = x1 - k1;
+                while (x1 < n && y1 < m && a[aStart + x1] == b[bStart + y1]) {
+                    x1++;
+                    y1++;
+                }
+                forward[k1Offset] = x1;
+                if (x1 > n) {
+                    k1End += 2;
+                } else if (y1 > m) {
+                    k1Start += 2;
+                } else if (odd) {
+                    int k2Offset = offset + delta - k1;
+                    if (k2Offset >= 0 && k2Offset < length && backward[k2Offset] != -1 && x1 >= n - backward[k2Offset]) {
+                        return new int[]{aStart + x1, bStart + y1};
+                    }
+                }
+            }
+
+            for (int k2 = -d + k2Start; k2 <= d - k2End; k2 += 2) {
+                int k2Offset = offset + k2;
+                int x2 = k2 == -d || (k2 != d && backward[k2Offset - 1] < backward[k2Offset + 1])
+                        ? backward[k2Offset + 1] : backward[k2Offset - 1] + 1;
+                int y2 = x2 - k2;
+                while (x2 < n && y2 < m && a[aEnd - x2 - 1] == b[bEnd - y2 - 1]) {
+                    x2++;
+                    y2++;
+                }
+                backward[k2Offset] = x2;
+                if (x2 > n) {
+                    k2End += 2;
+                } else if (y2 > m) {
+                    k2Start += 2;
+                } else if (!odd) {
+                    int k1Offset = offset + delta - k2;
+                    if (k1Offset >= 0 && k1Offset < length && forward[k1Offset] != -1) {
+                        int x1 = forward[k1Offset];
+                        int y1 = offset + x1 - k1Offset;
+                        if (x1 >= n - x2) {
+                            return new int[]{aStart + x1, bStart + y1};
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes a hunk for each run of changed lines.
+     */
+    private String format() {
+        StringBuilder diff = new StringBuilder();
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (removed.get(i) || added.get(j)) {
+                int oldStart = i;
+                int newStart = j;
+                i = removed.nextClearBit(i);
+                j = added.nextClearBit(j);
+                diff.append("@@ -").append(oldStart + 1).append(',').append(i - oldStart)
+                        .append(" +").append(newStart + 1).append(',').append(j - newStart).append(" @@\n");
+                for (int line = oldStart; line < i; line++) {
+                    diff.append("-\n");
+                }
+                for (int line = newStart; line < j; line++) {
+                    diff.append("+\n");
+                }
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return diff.toString();
+    }
+}
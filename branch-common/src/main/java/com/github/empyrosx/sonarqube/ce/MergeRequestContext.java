@@ -0,0 +1,116 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Merge request data used by a decoration, for a single head commit.
+ * <p>
+ * Diffs are shared by all decorations of the same head commit. Discussions are fetched for each decoration,
+ * notes created or deleted through the context are reflected in its discussion snapshot.
+ */
+public class MergeRequestContext {
+
+    private final GitlabClient.MergeRequest mergeRequest;
+    private final String username;
+    private final Map<String, List<DiffSource>> diffs;
+    private final List<Note> notes;
+
+    MergeRequestContext(GitlabClient.MergeRequest mergeRequest, String username, Map<String, List<DiffSource>> diffs, List<Note> notes) {
+        this.mergeRequest = mergeRequest;
+        this.username = username;
+        this.diffs = diffs;
+        this.notes = new ArrayList<>(notes);
+    }
+
+    public GitlabClient.MergeRequest getMergeRequest() {
+        return mergeRequest;
+    }
+
+    public String getHeadSha() {
+        return mergeRequest.getSha();
+    }
+
+    /**
+     * Returns user the Gitlab token belongs to.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Returns diffs of the file in all commits of the merge request, sorted by commit date.
+     * Diffs which Gitlab did not return are computed on first use, with the client of the calling decoration.
+     */
+    public List<String> getDiffs(GitlabClient api, @Nullable String fileName) throws IOException {
+        if (fileName == null) {
+            return Collections.emptyList();
+        }
+        List<DiffSource> sources = diffs.getOrDefault(normalizePath(fileName), Collections.emptyList());
+        List<String> result = new ArrayList<>(sources.size());
+        for (DiffSource source : sources) {
+            result.add(source.get(api));
+        }
+        return result;
+    }
+
+    public synchronized List<Note> getNotes() {
+        return new ArrayList<>(notes);
+    }
+
+    synchronized void addNote(Note note) {
+        notes.add(note);
+    }
+
+    synchronized void removeNote(Note note) {
+        notes.remove(note);
+    }
+
+    static String normalizePath(String path) {
+        return path.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Diff of a file in a commit, the client is only used when the diff has to be fetched.
+     */
+    interface DiffSource {
+        String get(GitlabClient api) throws IOException;
+    }
+
+    @Immutable
+    public static class Note {
+        private final String discussionId;
+        private final Integer noteId;
+        private final String author;
+        private final String body;
+
+        Note(String discussionId, Integer noteId, String author, String body) {
+            this.discussionId = discussionId;
+            this.noteId = noteId;
+            this.author = author;
+            this.body = body;
+        }
+
+        public String getDiscussionId() {
+            return discussionId;
+        }
+
+        public Integer getNoteId() {
+            return noteId;
+        }
+
+        public String getAuthor() {
+            return author;
+        }
+
+        public String getBody() {
+            return body;
+        }
+    }
+}
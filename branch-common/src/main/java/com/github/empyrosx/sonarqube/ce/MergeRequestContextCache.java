@@ -0,0 +1,413 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import org.sonar.api.ce.ComputeEngineSide;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.MessageException;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares merge request data between decorations of the same merge request.
+ * <p>
+ * Each decoration fetches the merge request to get its head commit, and its discussions, which may have been changed
+ * by another process since the last decoration. Commits and diffs are fetched only once per head commit,
+ * concurrent decorations of the same merge request wait for a single fetch, which holds no lock while it talks to Gitlab.
+ * Diffs which Gitlab does not return, because they are too large or collapsed, are computed from the file contents
+ * when an issue is reported on the file. Projects and token users are kept for all merge requests, and can be fetched
+ * in advance with {@link #warmUp}. Merge requests themselves can be fetched in advance with {@link #prefetch},
+ * before their analysis is finished. Each of these caches drops its least recently used entries when it has too many,
+ * diffs are also dropped when their total size exceeds {@link #MAX_DIFF_SIZE} characters.
+ */
+@ComputeEngineSide
+@ServerSide
+public class MergeRequestContextCache {
+
+    private static final Logger LOG = Loggers.get(MergeRequestContextCache.class);
+
+    private static final int MAX_ENTRIES = 100;
+
+    /**
+     * Diffs computed from file contents when a merge request is prefetched, the others are computed on first use.
+     */
+    static final int MAX_PREFETCHED_DIFFS = 20;
+
+    /**
+     * Total length of the cached diffs, including the computed ones.
+     */
+    static final long MAX_DIFF_SIZE = 64L * 1024 * 1024;
+
+    private final DecorationMetrics metrics;
+    private final long maxDiffSize;
+    private final Map<List<String>, GitlabClient.Project> projects = Collections.synchronizedMap(newLruMap());
+    private final Map<List<String>, String> usernames = Collections.synchronizedMap(newLruMap());
+    private final Map<Key, Entry> entries = newLruMap();
+    private final ConcurrentMap<Key, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+
+    public MergeRequestContextCache(DecorationMetrics metrics) {
+        this(metrics, MAX_DIFF_SIZE);
+    }
+
+    MergeRequestContextCache(DecorationMetrics metrics, long maxDiffSize) {
+        this.metrics = metrics;
+        this.maxDiffSize = maxDiffSize;
+    }
+
+    public MergeRequestContext get(GitlabClient api, String url, String token, String projectId, int iid) throws IOException {
+        GitlabClient.MergeRequest mergeRequest = getOpenMergeRequest(api, url, token, projectId, iid);
+        Map<String, List<MergeRequestContext.DiffSource>> diffs = getDiffs(new Key(url, token, projectId, iid), api, mergeRequest);
+        return new MergeRequestContext(mergeRequest, getUsername(api, url, token), diffs, loadNotes(api, mergeRequest));
+    }
+
+    /**
+     * Same as {@link #get(GitlabClient, String, String, String, int)}, with the merge request, the current user
+     * and the discussions fetched through GraphQL.
+     */
+    public MergeRequestContext get(GitlabGraphqlClient graphql, GitlabClient api, String url, String token, String projectId, int iid) throws IOException {
+        GitlabGraphqlClient.MergeRequestData data = graphql.getMergeRequest(getProjectPath(api, url, token, projectId), iid);
+        if (data == null || !"opened".equals(data.getMergeRequest().getState())) {
+            throw MessageException.of(String.format("Pull request for branch %s is not found", iid));
+        }
+        GitlabClient.MergeRequest mergeRequest = data.getMergeRequest();
+        usernames.putIfAbsent(Arrays.asList(url, token), data.getUsername());
+        Map<String, List<MergeRequestContext.DiffSource>> diffs = getDiffs(new Key(url, token, projectId, iid), api, mergeRequest);
+        return new MergeRequestContext(mergeRequest, data.getUsername(), diffs, graphql.getNotes(data));
+    }
+
+    /**
+     * Returns diffs of the head commit of the merge request, fetched when the cache has none for this commit.
+     * Only one fetch per merge request runs at a time, the others wait for its result and fetch again if it was
+     * for another head commit.
+     */
+    private Map<String, List<MergeRequestContext.DiffSource>> getDiffs(Key key, GitlabClient api, GitlabClient.MergeRequest mergeRequest) throws IOException {
+        while (true) {
+            Entry entry;
+            synchronized (entries) {
+                entry = entries.get(key);
+            }
+            if (entry != null && entry.headSha.equals(mergeRequest.getSha())) {
+                return entry.diffs;
+            }
+
+            CompletableFuture<Entry> future = new CompletableFuture<>();
+            CompletableFuture<Entry> current = loading.putIfAbsent(key, future);
+            if (current == null) {
+                try (DecorationMetrics.Timer ignored = metrics.time(DecorationMetrics.Stage.DIFFS)) {
+                    entry = loadDiffs(api, mergeRequest);
+                    synchronized (entries) {
+                        entries.put(key, entry);
+                    }
+                    trim();
+                    future.complete(entry);
+                    return entry.diffs;
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    loading.remove(key, future);
+                }
+            }
+
+            entry = await(current);
+            if (entry.headSha.equals(mergeRequest.getSha())) {
+                return entry.diffs;
+            }
+        }
+    }
+
+    private static Entry await(CompletableFuture<Entry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for diffs");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Drops least recently used diffs until their total size fits, the most recent ones are kept even if too large.
+     */
+    private void trim() {
+        synchronized (entries) {
+            long size = 0;
+            for (Entry entry : entries.values()) {
+                size += entry.size.get();
+            }
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (size > maxDiffSize && entries.size() > 1) {
+                size -= iterator.next().size.get();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns full path of the project, GraphQL does not accept numeric project ids.
+     */
+    private String getProjectPath(GitlabClient api, String url, String token, String projectId) throws IOException {
+        if (!projectId.chars().allMatch(Character::isDigit)) {
+            return projectId;
+        }
+        return getProject(api, url, token, projectId).getPathWithNamespace();
+    }
+
+    /**
+     * Fetches the project and the token user if they are not known yet, which also opens a connection to Gitlab.
+     */
+    public void warmUp(GitlabClient api, String url, String token, String projectId) throws IOException {
+        getProject(api, url, token, projectId);
+        getUsername(api, url, token);
+    }
+
+    /**
+     * Fetches commits and diffs of the merge request for its current head commit, and computes up to
+     * {@link #MAX_PREFETCHED_DIFFS} diffs which Gitlab does not return, so decoration of the head commit does not wait
+     * for Gitlab. Diffs which could not be computed are computed again by the decoration. Discussions are not
+     * prefetched, they are fetched by the decoration. Returns false when the merge request isn't open.
+     */
+    public boolean prefetch(GitlabClient api, String url, String token, String projectId, int iid) throws IOException {
+        GitlabClient.MergeRequest mergeRequest;
+        try {
+            mergeRequest = getOpenMergeRequest(api, url, token, projectId, iid);
+        } catch (MessageException e) {
+            return false;
+        }
+        Map<String, List<MergeRequestContext.DiffSource>> diffs = getDiffs(new Key(url, token, projectId, iid), api, mergeRequest);
+        getUsername(api, url, token);
+        int computed = 0;
+        for (List<MergeRequestContext.DiffSource> sources : diffs.values()) {
+            for (MergeRequestContext.DiffSource source : sources) {
+                if (!(source instanceof ComputedDiff)) {
+                    continue;
+                }
+                if (computed++ == MAX_PREFETCHED_DIFFS) {
+                    return true;
+                }
+                try {
+                    source.get(api);
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn("Could not compute diff of {} in merge request {}", ((ComputedDiff) source).fileDiff.getNewPath(), iid, e);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns iids of the open merge requests of the source branch.
+     */
+    public List<Integer> getOpenMergeRequests(GitlabClient api, String url, String token, String projectId, String sourceBranch) throws IOException {
+        GitlabClient.Project project = getProject(api, url, token, projectId);
+        List<Integer> result = new ArrayList<>();
+        for (GitlabClient.MergeRequest mergeRequest : api.getOpenMergeRequests(project.getId(), sourceBranch)) {
+            result.add(mergeRequest.getIid());
+        }
+        return result;
+    }
+
+    private GitlabClient.Project getProject(GitlabClient api, String url, String token, String projectId) throws IOException {
+        List<String> key = Arrays.asList(url, token, projectId);
+        GitlabClient.Project project = projects.get(key);
+        if (project == null) {
+            project = api.getProject(projectId);
+            projects.put(key, project);
+        }
+        return project;
+    }
+
+    private String getUsername(GitlabClient api, String url, String token) throws IOException {
+        List<String> key = Arrays.asList(url, token);
+        String username = usernames.get(key);
+        if (username == null) {
+            username = api.getUser().getUsername();
+            usernames.put(key, username);
+        }
+        return username;
+    }
+
+    /**
+     * Returns the open merge request, without loading its commits, diffs and discussions.
+     */
+    public GitlabClient.MergeRequest getMergeRequest(GitlabClient api, String url, String token, String projectId, int iid) throws IOException {
+        return getOpenMergeRequest(api, url, token, projectId, iid);
+    }
+
+    private GitlabClient.MergeRequest getOpenMergeRequest(GitlabClient api, String url, String token, String projectId, int iid) throws IOException {
+        GitlabClient.Project project = getProject(api, url, token, projectId);
+        try {
+            GitlabClient.MergeRequest mergeRequest = api.getMergeRequest(project.getId(), iid);
+            if ("opened".equals(mergeRequest.getState())) {
+                return mergeRequest;
+            }
+        } catch (FileNotFoundException e) {
+            // merge request does not exist
+        }
+        throw MessageException.of(String.format("Pull request for branch %s is not found", iid));
+    }
+
+    private Entry loadDiffs(GitlabClient api, GitlabClient.MergeRequest mergeRequest) throws IOException {
+        List<GitlabClient.Commit> commits = api.getCommits(mergeRequest);
+        commits.sort(Comparator.comparing(commit -> OffsetDateTime.parse(commit.getCommittedDate())));
+
+        AtomicLong size = new AtomicLong();
+        Map<String, List<MergeRequestContext.DiffSource>> diffs = new HashMap<>();
+        for (GitlabClient.Commit commit : commits) {
+            for (GitlabClient.FileDiff diff : api.getCommitDiffs(mergeRequest.getProjectId(), commit.getId())) {
+                MergeRequestContext.DiffSource source;
+                if (diff.isTruncated()) {
+                    source = new ComputedDiff(mergeRequest.getProjectId(), commit, diff, size);
+                } else {
+                    String text = diff.getDiff() == null ? "" : diff.getDiff();
+                    size.addAndGet(text.length());
+                    source = client -> text;
+                }
+                diffs.computeIfAbsent(MergeRequestContext.normalizePath(diff.getNewPath()), k -> new ArrayList<>()).add(source);
+            }
+        }
+        return new Entry(mergeRequest.getSha(), diffs, size);
+    }
+
+    private List<MergeRequestContext.Note> loadNotes(GitlabClient api, GitlabClient.MergeRequest mergeRequest) throws IOException {
+        List<MergeRequestContext.Note> notes = new ArrayList<>();
+        Iterator<GitlabClient.Discussion[]> iterator = api.getDiscussions(mergeRequest);
+        try {
+            while (iterator.hasNext()) {
+                for (GitlabClient.Discussion discussion : iterator.next()) {
+                    for (GitlabClient.Note note : discussion.getNotes()) {
+                        notes.add(new MergeRequestContext.Note(discussion.getId(), note.getId(), note.getAuthor().getUsername(), note.getBody()));
+                    }
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        return notes;
+    }
+
+    /**
+     * Returns hashes of the file lines at the given commit, the file is streamed and not kept.
+     */
+    private long[] hashRawFile(GitlabClient api, int projectId, String path, String ref) throws IOException {
+        InputStream input = api.getRawFile(projectId, path, ref);
+        return input == null ? new long[0] : LineDiff.hashLines(input);
+    }
+
+    /**
+     * Diff computed from the file contents before and after a commit, on first use. The contents are fetched
+     * with the client of the decoration using the diff, not the one which created the context.
+     */
+    private class ComputedDiff implements MergeRequestContext.DiffSource {
+        private final int projectId;
+        private final GitlabClient.Commit commit;
+        private final GitlabClient.FileDiff fileDiff;
+        private final AtomicLong size;
+        private String diff;
+
+        private ComputedDiff(int projectId, GitlabClient.Commit commit, GitlabClient.FileDiff fileDiff, AtomicLong size) {
+            this.projectId = projectId;
+            this.commit = commit;
+            this.fileDiff = fileDiff;
+            this.size = size;
+        }
+
+        @Override
+        public synchronized String get(GitlabClient api) throws IOException {
+            if (diff == null) {
+                List<String> parents = commit.getParentIds();
+                long[] before = fileDiff.isNewFile() || parents == null || parents.isEmpty()
+                        ? new long[0] : hashRawFile(api, projectId, fileDiff.getOldPath(), parents.get(0));
+                long[] after = fileDiff.isDeletedFile()
+                        ? new long[0] : hashRawFile(api, projectId, fileDiff.getNewPath(), commit.getId());
+                diff = LineDiff.unifiedDiff(before, after);
+                size.addAndGet(diff.length());
+                trim();
+            }
+            return diff;
+        }
+    }
+
+    /**
+     * Creates map dropping its least recently used entry when it has too many.
+     */
+    private static <K, V> Map<K, V> newLruMap() {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    private static class Entry {
+        private final String headSha;
+        private final Map<String, List<MergeRequestContext.DiffSource>> diffs;
+        private final AtomicLong size;
+
+        private Entry(String headSha, Map<String, List<MergeRequestContext.DiffSource>> diffs, AtomicLong size) {
+            this.headSha = headSha;
+            this.diffs = diffs;
+            this.size = size;
+        }
+    }
+
+    private static class Key {
+        private final String url;
+        private final String token;
+        private final String projectId;
+        private final int iid;
+
+        private Key(String url, String token, String projectId, int iid) {
+            this.url = url;
+            this.token = token;
+            this.projectId = projectId;
+            this.iid = iid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return iid == key.iid && url.equals(key.url) && token.equals(key.token) && projectId.equals(key.projectId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(url, token, projectId, iid);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import org.sonar.api.ce.ComputeEngineSide;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.rules.RuleType;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.MessageException;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.sonar.api.rule.Severity.*;
+
+/**
+ * Posts decoration snapshot of a pull request to its Gitlab merge request:
+ * commit status with the summary, and a discussion for each open issue replacing the previous ones.
+ * <p>
+ * The decoration can be reduced to a single summary discussion, or to the commit status only.
+ */
+@ComputeEngineSide
+@ServerSide
+public class MergeRequestDecoration {
+
+    private static final Logger LOG = Loggers.get(MergeRequestDecoration.class);
+
+    /**
+     * Detail of a decoration.
+     */
+    public enum Level {
+        /**
+         * Commit status and a discussion for each issue.
+         */
+        FULL,
+        /**
+         * Commit status and a single discussion with the summary.
+         */
+        SUMMARY,
+        /**
+         * Commit status only, previous discussions are kept.
+         */
+        STATUS
+    }
+
+    private final MergeRequestContextCache contextCache;
+    private final DecorationMetrics metrics;
+    private final String recordDirectory;
+
+    /**
+     * Creates decoration recording Gitlab requests to the directory of the server configuration, if any.
+     */
+    public MergeRequestDecoration(MergeRequestContextCache contextCache, DecorationMetrics metrics, Configuration configuration) {
+        this(contextCache, metrics, configuration.get(GitlabSettings.RECORD_DIRECTORY).orElse(null));
+    }
+
+    MergeRequestDecoration(MergeRequestContextCache contextCache, DecorationMetrics metrics) {
+        this(contextCache, metrics, (String) null);
+    }
+
+    private MergeRequestDecoration(MergeRequestContextCache contextCache, DecorationMetrics metrics, @Nullable String recordDirectory) {
+        this.contextCache = contextCache;
+        this.metrics = metrics;
+        this.recordDirectory = recordDirectory;
+    }
+
+    /**
+     * Decorates merge request.
+     *
+     * @return true when every issue was posted
+     */
+    public boolean decorate(GitlabSettings settings, DecorationSnapshot snapshot) throws IOException {
+        return decorate(settings, snapshot, Level.FULL);
+    }
+
+    /**
+     * Decorates merge request with the given detail.
+     *
+     * @return true when the decoration is full and every issue was posted
+     */
+    public boolean decorate(GitlabSettings settings, DecorationSnapshot snapshot, Level level) throws IOException {
+        return decorate(settings, snapshot, level, false);
+    }
+
+    /**
+     * Decorates merge request again from a saved snapshot, only when its head commit is still the analyzed revision.
+     *
+     * @return true when every issue was posted
+     * @throws StaleSnapshotException when the merge request has commits newer than the analysis, nothing is posted then
+     */
+    public boolean redecorate(GitlabSettings settings, DecorationSnapshot snapshot) throws IOException {
+        return decorate(settings, snapshot, Level.FULL, true);
+    }
+
+    private boolean decorate(GitlabSettings settings, DecorationSnapshot snapshot, Level level, boolean analyzedHeadOnly) throws IOException {
+        if (recordDirectory == null) {
+            return decorate(settings, settings.getUrl(), snapshot, level, analyzedHeadOnly);
+        }
+
+        Path archive = Paths.get(recordDirectory, String.format("%s-%s-%d.jsonl.gz",
+                snapshot.getProjectKey().replaceAll("[^\\w.-]", "_"), snapshot.getPullRequestKey(), System.currentTimeMillis()));
+        try (GitlabRecorder recorder = new GitlabRecorder(settings.getUrl(), archive, settings, snapshot)) {
+            return decorate(settings, recorder.getUrl(), snapshot, level, analyzedHeadOnly);
+        }
+    }
+
+    private boolean decorate(GitlabSettings settings, String url, DecorationSnapshot snapshot, Level level,
+                             boolean analyzedHeadOnly) throws IOException {
+        metrics.decorated();
+        GitlabClient api = new GitlabClient(url, settings.getToken(), metrics, settings.getConnectTimeoutMs(), settings.getReadTimeoutMs());
+        if (!settings.isGraphql()) {
+            try (DecorationMetrics.Timer ignored = metrics.time(DecorationMetrics.Stage.CONNECT)) {
+                contextCache.warmUp(api, url, settings.getToken(), settings.getProjectId());
+            }
+        }
+
+        if (level == Level.STATUS) {
+            GitlabClient.MergeRequest mergeRequest;
+            try (DecorationMetrics.Timer ignored = metrics.time(DecorationMetrics.Stage.MERGE_REQUEST)) {
+                mergeRequest = contextCache.getMergeRequest(api, url, settings.getToken(), settings.getProjectId(),
+                        parseIid(snapshot.getPullRequestKey()));
+            }
+            checkHead(mergeRequest.getSha(), snapshot, analyzedHeadOnly);
+            postStatus(api, mergeRequest, snapshot, settings.getChecker());
+            return false;
+        }
+
+        MergeRequestContext context;
+        try (DecorationMetrics.Timer ignored = metrics.time(DecorationMetrics.Stage.MERGE_REQUEST)) {
+            int iid = parseIid(snapshot.getPullRequestKey());
+            if (settings.isGraphql()) {
+                GitlabGraphqlClient graphql = new GitlabGraphqlClient(url, settings.getToken(), metrics,
+                        settings.getConnectTimeoutMs(), settings.getReadTimeoutMs());
+                context = contextCache.get(graphql, api, url, settings.getToken(), settings.getProjectId(), iid);
+            } else {
+                context = contextCache.get(api, url, settings.getToken(), settings.getProjectId(), iid);
+            }
+        }
+        checkHead(context.getHeadSha(), snapshot, analyzedHeadOnly);
+        postStatus(api, context.getMergeRequest(), snapshot, settings.getChecker());
+
+        try (DecorationMetrics.Timer ignored = metrics.time(DecorationMetrics.Stage.CLEANUP)) {
+            removeOldNotes(api, context, settings.getChecker());
+        }
+
+        if (level == Level.SUMMARY) {
+            postSummary(api, context, snapshot, settings.getChecker());
+            return false;
+        }
+
+        boolean complete = true;
+        for (DecorationSnapshot.Issue issue : snapshot.getIssues()) {
+            complete &= postCommitComment(api, context, issue, settings.getChecker());
+        }
+        return complete;
+    }
+
+    private static void checkHead(String headSha, DecorationSnapshot snapshot, boolean analyzedHeadOnly) {
+        if (analyzedHeadOnly && !headSha.equals(snapshot.getRevision())) {
+            throw new StaleSnapshotException(String.format("Merge request %s has new commits since the analysis of %s",
+                    snapshot.getPullRequestKey(), snapshot.getRevision()));
+        }
+    }
+
+    private void postStatus(GitlabClient api, GitlabClient.MergeRequest mergeRequest, DecorationSnapshot snapshot, String checker) throws IOException {
+        try (DecorationMetrics.Timer ignored = metrics.time(DecorationMetrics.Stage.STATUS)) {
+            api.createCommitStatus(mergeRequest.getProjectId(), mergeRequest.getSha().substring(0, 8), getState(snapshot),
+                    mergeRequest.getSourceBranch(), checker, snapshot.getTargetUrl(), getSummary(snapshot));
+        }
+    }
+
+    /**
+     * Posts a discussion with the summary instead of a discussion for each issue.
+     */
+    private void postSummary(GitlabClient api, MergeRequestContext context, DecorationSnapshot snapshot, String checker) throws IOException {
+        String body = checker + ": " + getSummary(snapshot) +
+                String.format("Comments on issues are postponed, see [the analysis](%s).", snapshot.getTargetUrl());
+        try (DecorationMetrics.Timer ignored = metrics.time(DecorationMetrics.Stage.POSTING)) {
+            GitlabClient.Discussion discussion = api.createDiscussion(context.getMergeRequest(), body);
+            for (GitlabClient.Note note : discussion.getNotes()) {
+                context.addNote(new MergeRequestContext.Note(discussion.getId(), note.getId(), context.getUsername(), note.getBody()));
+            }
+        }
+    }
+
+    private void removeOldNotes(GitlabClient api, MergeRequestContext context, String checker) {
+        GitlabClient.MergeRequest mergeRequest = context.getMergeRequest();
+        for (MergeRequestContext.Note note : context.getNotes()) {
+            if (note.getAuthor().equals(context.getUsername()) && (note.getBody().startsWith(checker + ": "))) {
+                try {
+                    api.deleteNote(mergeRequest, note.getDiscussionId(), note.getNoteId());
+                    context.removeNote(note);
+                } catch (Exception e) {
+                    LOG.warn("Comment {} of discussion {} is not deleted", note.getNoteId(), note.getDiscussionId(), e);
+                }
+            }
+        }
+    }
+
+    private static int parseIid(String pullRequestBranch) {
+        try {
+            return Integer.parseInt(pullRequestBranch);
+        } catch (NumberFormatException e) {
+            throw MessageException.of(String.format("Pull request for branch %s is not found", pullRequestBranch));
+        }
+    }
+
+    private boolean postCommitComment(GitlabClient api, MergeRequestContext context, DecorationSnapshot.Issue issue, String checker) {
+        String fileName = issue.getFileName();
+        GitlabClient.MergeRequest mergeRequest = context.getMergeRequest();
+        try {
+            List<String> diffs = context.getDiffs(api, fileName);
+
+            Integer oldLine;
+            try (DecorationMetrics.Timer ignored = metrics.time(DecorationMetrics.Stage.LINE_MAPPING)) {
+                oldLine = issue.getLine() == null ? null : DiffUtils.getBaseSourceLine(diffs, issue.getLine());
+            }
+
+            LOG.info("Calculating base line for file: " + fileName);
+            LOG.info("New line: " + issue.getLine());
+            LOG.info("Old line: " + oldLine);
+
+            String message = checker + ": " + getIcon(issue) + " " + issue.getMessage();
+            GitlabClient.Discussion discussion;
+            try (DecorationMetrics.Timer ignored = metrics.time(DecorationMetrics.Stage.POSTING)) {
+                discussion = api.createDiscussion(mergeRequest, message, fileName, issue.getLine(), fileName, oldLine);
+            }
+            for (GitlabClient.Note note : discussion.getNotes()) {
+                context.addNote(new MergeRequestContext.Note(discussion.getId(), note.getId(), context.getUsername(), note.getBody()));
+            }
+            metrics.issuePosted();
+            return true;
+        } catch (Exception e) {
+            LOG.error("Can't make comment", e);
+            return false;
+        }
+    }
+
+    @Nonnull
+    private static String getIcon(DecorationSnapshot.Issue issue) {
+        String icon;
+        switch (issue.getSeverity()) {
+            case BLOCKER:
+                icon = ":exclamation:";
+                break;
+            case CRITICAL:
+                icon = ":arrow_up:";
+                break;
+            case MAJOR:
+                icon = ":arrow_up_small:";
+                break;
+            case MINOR:
+                icon = ":arrow_down:";
+                break;
+            case INFO:
+                icon = ":information_source:";
+                break;
+            default:
+                icon = "";
+        }
+        return icon;
+    }
+
+    private static String pluralOf(long value, String singleLabel, String multiLabel) {
+        return value + " " + (1 == value ? singleLabel : multiLabel);
+    }
+
+    private static String getState(DecorationSnapshot snapshot) {
+        return snapshot.isQualityGatePassed() ? "success" : "failed";
+    }
+
+    private static String getSummary(DecorationSnapshot snapshot) {
+        Map<RuleType, Long> issueCounts = Arrays.stream(RuleType.values()).collect(Collectors.toMap(k -> k,
+                k -> snapshot.getIssues()
+                        .stream()
+                        .filter(i -> k.name().equals(i.getType()))
+                        .count()));
+
+        String NEW_LINE = "\n\n";
+
+        return String.format("%s %s", getState(snapshot), NEW_LINE) +
+                String.format("# Analysis Details %s", NEW_LINE) +
+                String.format("## %s Issues %s", issueCounts.values().stream().mapToLong(l -> l).sum(), NEW_LINE) +
+                String.format(" - %s %s", pluralOf(issueCounts.get(RuleType.BUG), "Bug", "Bugs"), NEW_LINE) +
+                String.format(" - %s %s", pluralOf(issueCounts.get(RuleType.VULNERABILITY), "Vulnerability", "Vulnerabilities"), NEW_LINE) +
+                String.format(" - %s %s", pluralOf(issueCounts.get(RuleType.SECURITY_HOTSPOT), "Security issue", "Security issues"), NEW_LINE) +
+                String.format(" - %s %s", pluralOf(issueCounts.get(RuleType.CODE_SMELL), "Code Smell", "Code Smells"), NEW_LINE);
+    }
+
+    /**
+     * Thrown when the head commit of the merge request is not the analyzed revision of the snapshot.
+     */
+    public static class StaleSnapshotException extends IllegalStateException {
+
+        public StaleSnapshotException(String message) {
+            super(message);
+        }
+    }
+}
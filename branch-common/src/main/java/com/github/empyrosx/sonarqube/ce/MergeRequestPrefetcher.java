@@ -0,0 +1,117 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import org.sonar.api.Startable;
+import org.sonar.api.ce.ComputeEngineSide;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches merge requests queued by the Gitlab webhook of the web server, while their analysis is still running,
+ * so their decoration finds the merge request data of the new head commit already cached.
+ * <p>
+ * The queue is polled in background and failures are only logged, decoration fetches whatever is missing.
+ * It is not polled while no webhook secret is set, as the web server accepts no events then.
+ */
+@ComputeEngineSide
+public class MergeRequestPrefetcher implements Startable {
+
+    private static final Logger LOG = Loggers.get(MergeRequestPrefetcher.class);
+    private static final long POLL_INTERVAL_SECONDS = 5;
+    private static final long WEBHOOK_CHECK_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private final Configuration configuration;
+    private final DecorationStore decorationStore;
+    private final MergeRequestContextCache contextCache;
+    private final DecorationMetrics metrics;
+    private ScheduledExecutorService executor;
+    private long webhookCheckedAt;
+    private boolean webhookConfigured;
+
+    public MergeRequestPrefetcher(Configuration configuration, DecorationStore decorationStore, MergeRequestContextCache contextCache,
+                                  DecorationMetrics metrics) {
+        this.configuration = configuration;
+        this.decorationStore = decorationStore;
+        this.contextCache = contextCache;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "merge-request-prefetcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::pollSafely, POLL_INTERVAL_SECONDS, POLL_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void pollSafely() {
+        try {
+            poll();
+        } catch (RuntimeException e) {
+            LOG.warn("Could not prefetch merge requests", e);
+        }
+    }
+
+    void poll() {
+        if (!isWebhookConfigured()) {
+            return;
+        }
+        for (DecorationStore.PrefetchRequest request : decorationStore.takePrefetchRequests()) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            prefetch(request);
+        }
+    }
+
+    /**
+     * Tells whether a webhook secret is set globally or on any project, checked again once a minute.
+     */
+    private boolean isWebhookConfigured() {
+        long now = System.currentTimeMillis();
+        if (webhookCheckedAt == 0 || now - webhookCheckedAt >= WEBHOOK_CHECK_INTERVAL_MS) {
+            webhookConfigured = configuration.hasKey(GitlabSettings.WEBHOOK_SECRET)
+                    || decorationStore.isPropertySet(GitlabSettings.WEBHOOK_SECRET);
+            webhookCheckedAt = now;
+        }
+        return webhookConfigured;
+    }
+
+    /**
+     * Fetches the merge request of the request, or the open merge requests of its source branch.
+     */
+    void prefetch(DecorationStore.PrefetchRequest request) {
+        try {
+            GitlabSettings settings = decorationStore.loadSettings(request.getProjectKey(), configuration);
+            GitlabClient api = new GitlabClient(settings.getUrl(), settings.getToken(), metrics,
+                    settings.getConnectTimeoutMs(), settings.getReadTimeoutMs());
+            List<Integer> iids = request.getIid() != null
+                    ? Collections.singletonList(request.getIid())
+                    : contextCache.getOpenMergeRequests(api, settings.getUrl(), settings.getToken(), settings.getProjectId(),
+                    request.getSourceBranch());
+            for (int iid : iids) {
+                if (contextCache.prefetch(api, settings.getUrl(), settings.getToken(), settings.getProjectId(), iid)) {
+                    LOG.debug("Prefetched merge request {} of project {}", iid, request.getProjectKey());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not prefetch merge requests of project {}", request.getProjectKey(), e);
+        }
+    }
+}
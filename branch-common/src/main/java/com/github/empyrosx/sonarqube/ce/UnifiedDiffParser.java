@@ -0,0 +1,137 @@
+package com.github.empyrosx.sonarqube.ce;
+
+/**
+ * Streaming parser of unified diffs.
+ * <p>
+ * Walks the diff in place and reports hunks and lines with their bounds in the diff, so no string is created per line.
+ * Lines before the first hunk, like file headers, are skipped. Hunk header counts may be omitted, in which case they are 1.
+ */
+public final class UnifiedDiffParser {
+
+    public enum LineType {
+        CONTEXT, ADDED, REMOVED
+    }
+
+    public interface Handler {
+
+        void hunk(int oldStart, int oldCount, int newStart, int newCount);
+
+        /**
+         * Reports a line of the current hunk, its content is {@code diff.subSequence(start, end)}
+         * without the leading marker and the line break.
+         */
+        void line(LineType type, CharSequence diff, int start, int end);
+
+        /**
+         * Reports that the previous line has no line break at the end of the file.
+         */
+        default void noNewlineAtEnd() {
+        }
+    }
+
+    private final CharSequence diff;
+    private final Handler handler;
+    private int position;
+
+    private UnifiedDiffParser(CharSequence diff, Handler handler) {
+        this.diff = diff;
+        this.handler = handler;
+    }
+
+    public static void parse(CharSequence diff, Handler handler) {
+        new UnifiedDiffParser(diff, handler).parse();
+    }
+
+    private void parse() {
+        int length = diff.length();
+        boolean inHunk = false;
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && diff.charAt(end) != '\n') {
+                end++;
+            }
+            int next = end + 1;
+            if (end > start && diff.charAt(end - 1) == '\r') {
+                end--;
+            }
+
+            char marker = start < end ? diff.charAt(start) : ' ';
+            int contentStart = start < end ? start + 1 : start;
+            if (marker == '@' && end - start > 1 && diff.charAt(start + 1) == '@') {
+                parseHeader(start, end);
+                inHunk = true;
+            } else if (inHunk) {
+                switch (marker) {
+                    case ' ':
+                        handler.line(LineType.CONTEXT, diff, contentStart, end);
+                        break;
+                    case '+':
+                        handler.line(LineType.ADDED, diff, contentStart, end);
+                        break;
+                    case '-':
+                        handler.line(LineType.REMOVED, diff, contentStart, end);
+                        break;
+                    case '\\':
+                        handler.noNewlineAtEnd();
+                        break;
+                    default:
+                        // "diff --git" and other headers of the next file
+                        inHunk = false;
+                }
+            }
+            start = next;
+        }
+    }
+
+    /**
+     * Parses "@@ -oldStart[,oldCount] +newStart[,newCount] @@ section".
+     */
+    private void parseHeader(int start, int end) {
+        position = start + 2;
+        expect('-', start, end);
+        int oldStart = readNumber(start, end);
+        int oldCount = readCount(start, end);
+        expect('+', start, end);
+        int newStart = readNumber(start, end);
+        int newCount = readCount(start, end);
+        expect('@', start, end);
+        handler.hunk(oldStart, oldCount, newStart, newCount);
+    }
+
+    private void expect(char expected, int start, int end) {
+        while (position < end && diff.charAt(position) == ' ') {
+            position++;
+        }
+        if (position >= end || diff.charAt(position) != expected) {
+            throw invalidHeader(start, end);
+        }
+        position++;
+    }
+
+    private int readCount(int start, int end) {
+        if (position < end && diff.charAt(position) == ',') {
+            position++;
+            return readNumber(start, end);
+        }
+        return 1;
+    }
+
+    private int readNumber(int start, int end) {
+        int value = 0;
+        int digits = 0;
+        while (position < end && Character.isDigit(diff.charAt(position))) {
+            value = value * 10 + (diff.charAt(position) - '0');
+            position++;
+            digits++;
+        }
+        if (digits == 0) {
+            throw invalidHeader(start, end);
+        }
+        return value;
+    }
+
+    private IllegalArgumentException invalidHeader(int start, int end) {
+        return new IllegalArgumentException("Invalid hunk header: " + diff.subSequence(start, end));
+    }
+}
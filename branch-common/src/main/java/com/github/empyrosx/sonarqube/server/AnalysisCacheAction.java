@@ -0,0 +1,98 @@
+package com.github.empyrosx.sonarqube.server;
+
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+import org.sonar.api.web.UserRole;
+import org.sonar.db.DbClient;
+import org.sonar.db.DbSession;
+import org.sonar.db.component.BranchDto;
+import org.sonar.db.component.ComponentDto;
+import org.sonar.db.permission.GlobalPermission;
+import org.sonar.server.exceptions.ForbiddenException;
+import org.sonar.server.exceptions.NotFoundException;
+import org.sonar.server.user.UserSession;
+
+import javax.annotation.Nullable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.lang.String.format;
+
+/**
+ * Returns the gzipped analysis cache uploaded by the last analysis of a branch.
+ * <p>
+ * The file is streamed as stored, the scanner decompresses it while reading.
+ */
+public class AnalysisCacheAction implements BranchWsAction {
+
+    static final String PARAM_PROJECT = "project";
+    static final String PARAM_BRANCH = "branch";
+    static final String MEDIA_TYPE = "application/gzip";
+
+    private final DbClient dbClient;
+    private final UserSession userSession;
+    private final AnalysisCacheStore store;
+
+    public AnalysisCacheAction(DbClient dbClient, UserSession userSession, AnalysisCacheStore store) {
+        this.dbClient = dbClient;
+        this.userSession = userSession;
+        this.store = store;
+    }
+
+    @Override
+    public void define(WebService.NewController controller) {
+        WebService.NewAction action = controller.createAction("analysis_cache")
+                .setSince("1.0")
+                .setDescription("Download the gzipped analysis cache of a branch, uploaded by its last analysis.<br/>" +
+                        "Requires 'Browse' or 'Execute Analysis' permission on the project.")
+                .setHandler(this);
+
+        action.createParam(PARAM_PROJECT)
+                .setRequired(true)
+                .setDescription("Project key");
+        action.createParam(PARAM_BRANCH)
+                .setDescription("Branch name, the main branch when not set");
+    }
+
+    @Override
+    public void handle(Request request, Response response) throws Exception {
+        String projectKey = request.mandatoryParam(PARAM_PROJECT);
+        String branchKey = request.param(PARAM_BRANCH);
+
+        Path file;
+        try (DbSession dbSession = dbClient.openSession(false)) {
+            ComponentDto project = selectProject(dbClient, dbSession, projectKey);
+            if (!userSession.hasComponentPermission(UserRole.USER, project)
+                    && !userSession.hasComponentPermission(UserRole.SCAN, project)
+                    && !userSession.hasPermission(GlobalPermission.SCAN)) {
+                throw new ForbiddenException("Insufficient privileges");
+            }
+            BranchDto branch = selectBranch(dbClient, dbSession, project, branchKey);
+            file = store.get(project.uuid(), branch.getUuid())
+                    .orElseThrow(() -> new NotFoundException(format("No analysis cache of branch '%s'", branch.getKey())));
+        }
+
+        Response.Stream stream = response.stream();
+        stream.setMediaType(MEDIA_TYPE);
+        Files.copy(file, stream.output());
+    }
+
+    static ComponentDto selectProject(DbClient dbClient, DbSession dbSession, String projectKey) {
+        return dbClient.componentDao().selectByKey(dbSession, projectKey)
+                .filter(c -> c.getMainBranchProjectUuid() == null)
+                .orElseThrow(() -> new NotFoundException(format("Project '%s' not found", projectKey)));
+    }
+
+    /**
+     * Returns the branch by its name, or the main branch when name isn't set. Pull requests are not returned.
+     */
+    static BranchDto selectBranch(DbClient dbClient, DbSession dbSession, ComponentDto project, @Nullable String branchKey) {
+        if (branchKey == null) {
+            return dbClient.branchDao().selectByUuid(dbSession, project.uuid())
+                    .orElseThrow(() -> new NotFoundException(format("Main branch of project '%s' not found", project.getKey())));
+        }
+        return dbClient.branchDao().selectByBranchKey(dbSession, project.uuid(), branchKey)
+                .orElseThrow(() -> new NotFoundException(format("Branch '%s' not found in project '%s'", branchKey, project.getKey())));
+    }
+}
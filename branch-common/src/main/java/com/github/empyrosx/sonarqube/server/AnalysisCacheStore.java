@@ -0,0 +1,114 @@
+package com.github.empyrosx.sonarqube.server;
+
+import org.sonar.api.config.Configuration;
+import org.sonar.api.platform.ServerFileSystem;
+import org.sonar.api.server.ServerSide;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps analysis cache of branches in the data directory of the server, one gzipped file per branch.
+ * <p>
+ * Files are stored as uploaded by the scanner and are streamed back without being decompressed.
+ * The data directory isn't shared between nodes of a cluster, each node keeps the caches uploaded to it.
+ */
+@ServerSide
+public class AnalysisCacheStore {
+
+    static final long MAX_SIZE = 128L * 1024 * 1024;
+    private static final String EXTENSION = ".gz";
+
+    private final Path directory;
+
+    public AnalysisCacheStore(Configuration configuration, ServerFileSystem fileSystem) {
+        Path dataDir = configuration.get("sonar.path.data").map(Paths::get)
+                .orElseGet(() -> fileSystem.getHomeDir().toPath().resolve("data"));
+        this.directory = dataDir.resolve("branch-plugin").resolve("analysis-cache");
+    }
+
+    /**
+     * Returns the cache file of branch when it exists.
+     */
+    public Optional<Path> get(String projectUuid, String branchUuid) {
+        Path file = path(projectUuid, branchUuid);
+        return Files.isRegularFile(file) ? Optional.of(file) : Optional.empty();
+    }
+
+    /**
+     * Replaces the cache of branch with gzipped content.
+     * The previous cache is kept when content isn't gzipped or is too large.
+     */
+    public void put(String projectUuid, String branchUuid, InputStream content) throws IOException {
+        Path file = path(projectUuid, branchUuid);
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), branchUuid, ".tmp");
+        try {
+            try (OutputStream output = Files.newOutputStream(temp)) {
+                copy(content, output);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Deletes caches of the project branches which are not in the list, for example of deleted branches.
+     */
+    public void retain(String projectUuid, Collection<String> branchUuids) throws IOException {
+        Path projectDir = directory.resolve(projectUuid);
+        if (!Files.isDirectory(projectDir)) {
+            return;
+        }
+        List<Path> stale;
+        try (Stream<Path> files = Files.list(projectDir)) {
+            stale = files.filter(f -> f.getFileName().toString().endsWith(EXTENSION))
+                    .filter(f -> !branchUuids.contains(uuidOf(f)))
+                    .collect(Collectors.toList());
+        }
+        for (Path file : stale) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private Path path(String projectUuid, String branchUuid) {
+        return directory.resolve(projectUuid).resolve(branchUuid + EXTENSION);
+    }
+
+    private static String uuidOf(Path file) {
+        String name = file.getFileName().toString();
+        return name.substring(0, name.length() - EXTENSION.length());
+    }
+
+    private static void copy(InputStream input, OutputStream output) throws IOException {
+        int first = input.read();
+        int second = input.read();
+        if (first != 0x1f || second != 0x8b) {
+            throw new IllegalArgumentException("Analysis cache must be gzipped");
+        }
+        output.write(first);
+        output.write(second);
+
+        byte[] buffer = new byte[8192];
+        long total = 2;
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            total += read;
+            if (total > MAX_SIZE) {
+                throw new IllegalArgumentException("Analysis cache is larger than " + MAX_SIZE + " bytes");
+            }
+            output.write(buffer, 0, read);
+        }
+    }
+}
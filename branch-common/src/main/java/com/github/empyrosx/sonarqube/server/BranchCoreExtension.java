@@ -1,5 +1,9 @@
 package com.github.empyrosx.sonarqube.server;
 
+import com.github.empyrosx.sonarqube.ce.DecorationMetrics;
+import com.github.empyrosx.sonarqube.ce.DecorationStore;
+import com.github.empyrosx.sonarqube.ce.MergeRequestContextCache;
+import com.github.empyrosx.sonarqube.ce.MergeRequestDecoration;
 import org.sonar.api.SonarQubeSide;
 import org.sonar.core.extension.CoreExtension;
 
@@ -16,7 +20,12 @@ public class BranchCoreExtension implements CoreExtension {
     @Override
     public void load(Context context) {
         if (SonarQubeSide.SERVER == context.getRuntime().getSonarQubeSide()) {
-            context.addExtensions(BranchFeatureExtensionImpl.class, BranchSupportDelegateImpl.class);
+            context.addExtensions(BranchFeatureExtensionImpl.class, BranchSupportDelegateImpl.class,
+                    BranchWs.class, LookupAction.class, ProvisionAction.class, PullRequestPurger.class,
+                    MergeRequestContextCache.class, MergeRequestDecoration.class, DecorationStore.class, RedecorateAction.class,
+                    DecorationMetrics.class, DecorationMetricsAction.class,
+                    AnalysisCacheStore.class, AnalysisCacheAction.class, UploadAnalysisCacheAction.class,
+                    GitlabWebhookFilter.class);
         }
     }
 }
@@ -82,6 +82,15 @@ public class BranchSupportDelegateImpl implements BranchSupportDelegate {
             return mainComponentDto;
         }
 
+        ComponentDto result = newBranchComponent(componentKey, mainComponentDto);
+        dbClient.componentDao().insert(dbSession, result);
+        return result;
+    }
+
+    /**
+     * Creates root component of branch or pull request, without persisting it.
+     */
+    ComponentDto newBranchComponent(BranchSupport.ComponentKey componentKey, ComponentDto mainComponentDto) {
         String branchUuid = uuidFactory.create();
 
         ComponentDto result = mainComponentDto.copy();
@@ -93,7 +102,6 @@ public class BranchSupportDelegateImpl implements BranchSupportDelegate {
         result.setMainBranchProjectUuid(mainComponentDto.uuid());
         result.setDbKey(componentKey.getDbKey());
         result.setCreatedAt(new Date(clock.millis()));
-        dbClient.componentDao().insert(dbSession, result);
         return result;
     }
 
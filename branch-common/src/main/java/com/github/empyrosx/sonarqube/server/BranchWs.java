@@ -0,0 +1,28 @@
+package com.github.empyrosx.sonarqube.server;
+
+import org.sonar.api.server.ws.WebService;
+
+/**
+ * Web services of branch plugin.
+ */
+public class BranchWs implements WebService {
+
+    public static final String CONTROLLER = "api/branch_plugin";
+
+    private final BranchWsAction[] actions;
+
+    public BranchWs(BranchWsAction... actions) {
+        this.actions = actions;
+    }
+
+    @Override
+    public void define(Context context) {
+        NewController controller = context.createController(CONTROLLER)
+                .setSince("1.0")
+                .setDescription("Branch plugin services.");
+        for (BranchWsAction action : actions) {
+            action.define(controller);
+        }
+        controller.done();
+    }
+}
@@ -0,0 +1,14 @@
+package com.github.empyrosx.sonarqube.server;
+
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.server.ws.RequestHandler;
+import org.sonar.api.server.ws.WebService;
+
+/**
+ * Action of {@link BranchWs}.
+ */
+@ServerSide
+public interface BranchWsAction extends RequestHandler {
+
+    void define(WebService.NewController controller);
+}
@@ -0,0 +1,55 @@
+package com.github.empyrosx.sonarqube.server;
+
+import com.github.empyrosx.sonarqube.ce.DecorationMetrics;
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+import org.sonar.api.utils.text.JsonWriter;
+import org.sonar.server.exceptions.ForbiddenException;
+import org.sonar.server.user.UserSession;
+
+import java.util.Optional;
+
+/**
+ * Returns decoration metrics of the compute engine, as saved last time, and of the web server.
+ */
+public class DecorationMetricsAction implements BranchWsAction {
+
+    private final UserSession userSession;
+    private final DecorationMetrics metrics;
+
+    public DecorationMetricsAction(UserSession userSession, DecorationMetrics metrics) {
+        this.userSession = userSession;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void define(WebService.NewController controller) {
+        controller.createAction("decoration_metrics")
+                .setSince("1.0")
+                .setInternal(true)
+                .setDescription("Get timings of decoration stages, Gitlab API calls and errors since the start of each process.<br/>" +
+                        "Compute engine metrics are updated every minute.<br/>" +
+                        "Requires 'Administer System' permission.")
+                .setHandler(this);
+    }
+
+    @Override
+    public void handle(Request request, Response response) throws Exception {
+        if (!userSession.isSystemAdministrator()) {
+            throw new ForbiddenException("Insufficient privileges");
+        }
+
+        Optional<DecorationMetrics.Snapshot> computeEngine = metrics.loadComputeEngineSnapshot();
+        try (JsonWriter json = response.newJsonWriter()) {
+            json.beginObject();
+            if (computeEngine.isPresent()) {
+                json.name("computeEngine");
+                computeEngine.get().writeTo(json);
+            }
+            json.name("webServer");
+            metrics.snapshot().writeTo(json);
+            json.endObject();
+        }
+    }
+}
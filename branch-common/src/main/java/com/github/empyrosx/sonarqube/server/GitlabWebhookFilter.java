@@ -0,0 +1,265 @@
+package com.github.empyrosx.sonarqube.server;
+
+import com.github.empyrosx.sonarqube.ce.DecorationStore;
+import com.github.empyrosx.sonarqube.ce.GitlabSettings;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.api.web.ServletFilter;
+import org.sonar.db.DbClient;
+import org.sonar.db.DbSession;
+import org.sonar.db.component.ComponentDto;
+import org.sonar.db.property.PropertyDto;
+import org.sonar.db.property.PropertyQuery;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Receives merge request and push events of Gitlab webhooks, and queues their merge requests to be fetched
+ * by the compute engine while they are analyzed.
+ * <p>
+ * Events are accepted for the projects whose Gitlab project is the project of the event and whose webhook secret
+ * is the token sent by Gitlab. Requests without a token are rejected before their body is read, and bodies larger
+ * than {@link #MAX_BODY_SIZE} are rejected. Events of closed merge requests and of deleted branches are ignored.
+ * The filter doesn't need a user session, when authentication is forced the credentials are given in the webhook URL.
+ */
+public class GitlabWebhookFilter extends ServletFilter {
+
+    static final String TOKEN_HEADER = "X-Gitlab-Token";
+    static final int MAX_BODY_SIZE = 1024 * 1024;
+
+    private static final Logger LOG = Loggers.get(GitlabWebhookFilter.class);
+    private static final String BRANCH_REF_PREFIX = "refs/heads/";
+    private static final String NULL_SHA = "0000000000000000000000000000000000000000";
+
+    private final DbClient dbClient;
+    private final Configuration configuration;
+    private final DecorationStore decorationStore;
+
+    public GitlabWebhookFilter(DbClient dbClient, Configuration configuration, DecorationStore decorationStore) {
+        this.dbClient = dbClient;
+        this.configuration = configuration;
+        this.decorationStore = decorationStore;
+    }
+
+    @Override
+    public UrlPattern doGetPattern() {
+        return UrlPattern.create(GitlabSettings.WEBHOOK_PATH);
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+        // nothing to do
+    }
+
+    @Override
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain) throws IOException {
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+        if (!"POST".equals(request.getMethod())) {
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            return;
+        }
+
+        String token = request.getHeader(TOKEN_HEADER);
+        if (token == null || token.isEmpty()) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "Missing token");
+            return;
+        }
+        byte[] body = readBody(request);
+        if (body == null) {
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Event is too large");
+            return;
+        }
+
+        Event event;
+        try {
+            event = Event.parse(new JsonParser().parse(new String(body, StandardCharsets.UTF_8)));
+        } catch (JsonParseException | IllegalStateException | NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed event");
+            return;
+        }
+        if (event == null) {
+            response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+            return;
+        }
+
+        List<String> projectKeys = selectProjects(event, token);
+        if (projectKeys.isEmpty()) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "No project accepts the event");
+            return;
+        }
+        decorationStore.addPrefetchRequests(projectKeys.stream()
+                .map(event::toPrefetchRequest)
+                .collect(Collectors.toList()));
+        LOG.debug("Queued prefetch of {} for projects {}", event, projectKeys);
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+    }
+
+    @Override
+    public void destroy() {
+        // nothing to do
+    }
+
+    /**
+     * Returns the request body, or null when it has more than {@link #MAX_BODY_SIZE} bytes.
+     */
+    @CheckForNull
+    private static byte[] readBody(HttpServletRequest request) throws IOException {
+        if (request.getContentLength() > MAX_BODY_SIZE) {
+            return null;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream input = request.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                if (body.size() + read > MAX_BODY_SIZE) {
+                    return null;
+                }
+                body.write(buffer, 0, read);
+            }
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Returns keys of the projects bound to the Gitlab project of the event, whose webhook secret is the token.
+     * <p>
+     * Projects are only looked up by their Gitlab project when the token is the global secret or the secret
+     * of a project, other tokens are rejected with a single query on the secrets.
+     */
+    private List<String> selectProjects(Event event, String token) {
+        try (DbSession dbSession = dbClient.openSession(false)) {
+            List<PropertyDto> secrets = dbClient.propertiesDao().selectByQuery(PropertyQuery.builder().setKey(GitlabSettings.WEBHOOK_SECRET).build(), dbSession)
+                    .stream()
+                    .filter(p -> p.getComponentUuid() != null && p.getValue() != null)
+                    .collect(Collectors.toList());
+            Set<String> acceptingUuids = secrets.stream()
+                    .filter(p -> matches(p.getValue(), token))
+                    .map(PropertyDto::getComponentUuid)
+                    .collect(Collectors.toSet());
+            boolean globalSecretMatches = matches(configuration.get(GitlabSettings.WEBHOOK_SECRET).orElse(null), token);
+            if (acceptingUuids.isEmpty() && !globalSecretMatches) {
+                return new ArrayList<>();
+            }
+
+            Set<String> ownSecretUuids = secrets.stream().map(PropertyDto::getComponentUuid).collect(Collectors.toSet());
+            Set<String> gitlabProjects = event.getGitlabProjects();
+            List<String> projectUuids = dbClient.propertiesDao().selectByQuery(PropertyQuery.builder().setKey(GitlabSettings.PROJECT).build(), dbSession)
+                    .stream()
+                    .filter(p -> p.getComponentUuid() != null && gitlabProjects.contains(p.getValue()))
+                    .map(PropertyDto::getComponentUuid)
+                    .filter(uuid -> acceptingUuids.contains(uuid) || (globalSecretMatches && !ownSecretUuids.contains(uuid)))
+                    .collect(Collectors.toList());
+            return dbClient.componentDao().selectByUuids(dbSession, projectUuids).stream()
+                    .map(ComponentDto::getDbKey)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Compares the secret with the token in constant time.
+     */
+    static boolean matches(@Nullable String secret, String token) {
+        return secret != null && !secret.isEmpty()
+                && MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Merge request or push event, reduced to what identifies its merge requests.
+     */
+    static class Event {
+        private final String projectId;
+        @Nullable
+        private final String projectPath;
+        @Nullable
+        private final Integer iid;
+        @Nullable
+        private final String sourceBranch;
+
+        private Event(String projectId, @Nullable String projectPath, @Nullable Integer iid, @Nullable String sourceBranch) {
+            this.projectId = projectId;
+            this.projectPath = projectPath;
+            this.iid = iid;
+            this.sourceBranch = sourceBranch;
+        }
+
+        /**
+         * Returns the event, or null when it doesn't change the head of an open merge request.
+         */
+        @CheckForNull
+        static Event parse(JsonElement json) {
+            JsonObject event = json.getAsJsonObject();
+            String kind = getString(event, "object_kind");
+            JsonObject project = event.has("project") && event.get("project").isJsonObject() ? event.getAsJsonObject("project") : new JsonObject();
+            String projectPath = getString(project, "path_with_namespace");
+            if ("merge_request".equals(kind)) {
+                JsonObject attributes = event.getAsJsonObject("object_attributes");
+                String projectId = getString(project, "id");
+                if (attributes == null || projectId == null || !"opened".equals(getString(attributes, "state"))
+                        || getString(attributes, "iid") == null) {
+                    return null;
+                }
+                return new Event(projectId, projectPath, attributes.get("iid").getAsInt(), null);
+            }
+            if ("push".equals(kind)) {
+                String projectId = getString(event, "project_id");
+                String ref = getString(event, "ref");
+                if (projectId == null || ref == null || !ref.startsWith(BRANCH_REF_PREFIX) || NULL_SHA.equals(getString(event, "after"))) {
+                    return null;
+                }
+                return new Event(projectId, projectPath, null, ref.substring(BRANCH_REF_PREFIX.length()));
+            }
+            return null;
+        }
+
+        @CheckForNull
+        private static String getString(JsonObject object, String name) {
+            JsonElement value = object.get(name);
+            return value == null || !value.isJsonPrimitive() ? null : value.getAsString();
+        }
+
+        /**
+         * Returns values the Gitlab project of the event may be configured with, its id and its full path.
+         */
+        Set<String> getGitlabProjects() {
+            return Stream.of(projectId, projectPath)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toSet());
+        }
+
+        DecorationStore.PrefetchRequest toPrefetchRequest(String projectKey) {
+            return iid != null
+                    ? DecorationStore.PrefetchRequest.ofMergeRequest(projectKey, iid)
+                    : DecorationStore.PrefetchRequest.ofSourceBranch(projectKey, sourceBranch);
+        }
+
+        @Override
+        public String toString() {
+            return iid != null ? "merge request " + iid + " of " + projectId : "branch " + sourceBranch + " of " + projectId;
+        }
+    }
+}
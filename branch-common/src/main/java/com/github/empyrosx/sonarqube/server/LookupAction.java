@@ -0,0 +1,320 @@
+package com.github.empyrosx.sonarqube.server;
+
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+import org.sonar.api.utils.DateUtils;
+import org.sonar.api.utils.text.JsonWriter;
+import org.sonar.api.web.UserRole;
+import org.sonar.db.DbClient;
+import org.sonar.db.DbSession;
+import org.sonar.db.component.BranchDto;
+import org.sonar.db.component.BranchType;
+import org.sonar.db.component.ComponentDto;
+import org.sonar.db.component.SnapshotDto;
+import org.sonar.db.permission.GlobalPermission;
+import org.sonar.db.protobuf.DbProjectBranches;
+import org.sonar.server.exceptions.ForbiddenException;
+import org.sonar.server.exceptions.NotFoundException;
+import org.sonar.server.user.UserSession;
+import org.sonarqube.ws.MediaTypes;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+
+/**
+ * Returns only the requested branches and pull requests of the project, together with its main branch.
+ * <p>
+ * Without requested keys all branches and pull requests are listed page by page. Project branches DAO can only
+ * load all of them, so pages are selected with plain SQL.
+ * The response has the same fields as api/project_branches/list and api/project_pull_requests/list,
+ * so the scanner reads it with the same parsers. The response has an ETag, so the scanner can revalidate its cached copy.
+ */
+public class LookupAction implements BranchWsAction {
+
+    static final String PARAM_PROJECT = "project";
+    static final String PARAM_BRANCH = "branch";
+    static final String PARAM_PULL_REQUEST = "pullRequest";
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 500;
+    private static final String SELECT_PAGE = "select uuid, kee, merge_branch_uuid, pull_request_binary from project_branches " +
+            "where project_uuid = ? and branch_type = ? and uuid <> project_uuid order by kee";
+    private static final String COUNT = "select count(*) from project_branches where project_uuid = ? and branch_type = ?";
+
+    private final DbClient dbClient;
+    private final UserSession userSession;
+
+    public LookupAction(DbClient dbClient, UserSession userSession) {
+        this.dbClient = dbClient;
+        this.userSession = userSession;
+    }
+
+    @Override
+    public void define(WebService.NewController controller) {
+        WebService.NewAction action = controller.createAction("lookup")
+                .setSince("1.0")
+                .setDescription("Find branches and pull requests of a project by their keys. The main branch is always returned.<br/>" +
+                        "When neither branches nor pull requests are requested, all of them are listed page by page.<br/>" +
+                        "Requires 'Browse' or 'Execute Analysis' permission on the project.")
+                .setHandler(this);
+
+        action.createParam(PARAM_PROJECT)
+                .setRequired(true)
+                .setDescription("Project key");
+        action.createParam(PARAM_BRANCH)
+                .setDescription("Branch name, can be repeated");
+        action.createParam(PARAM_PULL_REQUEST)
+                .setDescription("Pull request key, can be repeated");
+        action.addPagingParams(DEFAULT_PAGE_SIZE, MAX_PAGE_SIZE);
+    }
+
+    @Override
+    public void handle(Request request, Response response) throws Exception {
+        String projectKey = request.mandatoryParam(PARAM_PROJECT);
+        List<String> branchKeys = request.multiParam(PARAM_BRANCH);
+        List<String> pullRequestKeys = request.multiParam(PARAM_PULL_REQUEST);
+
+        try (DbSession dbSession = dbClient.openSession(false)) {
+            ComponentDto project = dbClient.componentDao().selectByKey(dbSession, projectKey)
+                    .filter(c -> c.getMainBranchProjectUuid() == null)
+                    .orElseThrow(() -> new NotFoundException(format("Project '%s' not found", projectKey)));
+            checkPermission(project);
+
+            List<BranchDto> branchesPage;
+            List<BranchDto> pullRequestsPage;
+            Paging paging = null;
+            if (branchKeys.isEmpty() && pullRequestKeys.isEmpty()) {
+                paging = new Paging(request.mandatoryParamAsInt(WebService.Param.PAGE), request.mandatoryParamAsInt(WebService.Param.PAGE_SIZE));
+                branchesPage = selectBranchesPage(dbSession, project.uuid(), paging);
+                pullRequestsPage = selectPage(dbSession, project.uuid(), BranchType.PULL_REQUEST, paging.offset(), paging.pageSize);
+            } else {
+                Collection<BranchDto> branches = selectByKeys(dbSession, project.uuid(), branchKeys, pullRequestKeys);
+                branchesPage = branches.stream()
+                        .filter(b -> b.getBranchType() != BranchType.PULL_REQUEST)
+                        .sorted(Comparator.comparing(BranchDto::isMain).reversed().thenComparing(BranchDto::getKey))
+                        .collect(Collectors.toList());
+                pullRequestsPage = branches.stream()
+                        .filter(b -> b.getBranchType() == BranchType.PULL_REQUEST)
+                        .sorted(Comparator.comparing(BranchDto::getKey))
+                        .collect(Collectors.toList());
+            }
+
+            Map<String, BranchDto> byUuid = new HashMap<>();
+            branchesPage.forEach(b -> byUuid.put(b.getUuid(), b));
+            pullRequestsPage.forEach(b -> byUuid.put(b.getUuid(), b));
+            resolveMergeBranches(dbSession, branchesPage, pullRequestsPage, byUuid);
+            Map<String, Long> analysisDates = selectAnalysisDates(dbSession, pullRequestsPage);
+
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            try (JsonWriter json = JsonWriter.of(new OutputStreamWriter(content, StandardCharsets.UTF_8))) {
+                json.beginObject();
+                json.name("branches").beginArray();
+                for (BranchDto branch : branchesPage) {
+                    json.beginObject()
+                            .prop("name", branch.getKey())
+                            .prop("isMain", branch.isMain())
+                            .prop("type", branch.getBranchType().name())
+                            .prop("mergeBranch", keyOf(byUuid, branch.getMergeBranchUuid()))
+                            .endObject();
+                }
+                json.endArray();
+                json.name("pullRequests").beginArray();
+                for (BranchDto pullRequest : pullRequestsPage) {
+                    DbProjectBranches.PullRequestData data = pullRequest.getPullRequestData();
+                    Long analysisDate = analysisDates.get(pullRequest.getUuid());
+                    json.beginObject()
+                            .prop("key", pullRequest.getKey())
+                            .prop("branch", data == null ? pullRequest.getKey() : data.getBranch())
+                            .prop("base", keyOf(byUuid, pullRequest.getMergeBranchUuid()))
+                            .prop("analysisDate", analysisDate == null ? null : DateUtils.formatDateTime(analysisDate))
+                            .endObject();
+                }
+                json.endArray();
+                if (paging != null) {
+                    json.name("paging").beginObject()
+                            .prop("pageIndex", paging.page)
+                            .prop("pageSize", paging.pageSize)
+                            .prop("branchesTotal", count(dbSession, project.uuid(), BranchType.BRANCH))
+                            .prop("pullRequestsTotal", count(dbSession, project.uuid(), BranchType.PULL_REQUEST))
+                            .endObject();
+                }
+                json.endObject();
+            }
+            write(request, response, content);
+        }
+    }
+
+    /**
+     * Writes content with its digest as ETag, or only the status 304 when the client already has the same content.
+     */
+    private static void write(Request request, Response response, ByteArrayOutputStream content) throws IOException {
+        String etag = etag(content.toByteArray());
+        response.setHeader("ETag", etag);
+        Response.Stream stream = response.stream();
+        if (request.header("If-None-Match").filter(etag::equals).isPresent()) {
+            stream.setStatus(HttpURLConnection.HTTP_NOT_MODIFIED);
+            return;
+        }
+        stream.setMediaType(MediaTypes.JSON);
+        content.writeTo(stream.output());
+    }
+
+    private void checkPermission(ComponentDto project) {
+        if (userSession.hasComponentPermission(UserRole.USER, project)
+                || userSession.hasComponentPermission(UserRole.SCAN, project)
+                || userSession.hasPermission(GlobalPermission.SCAN)) {
+            return;
+        }
+        throw new ForbiddenException("Insufficient privileges");
+    }
+
+    private Collection<BranchDto> selectByKeys(DbSession dbSession, String projectUuid, List<String> branchKeys, List<String> pullRequestKeys) {
+        Map<String, BranchDto> result = new LinkedHashMap<>();
+        dbClient.branchDao().selectByUuid(dbSession, projectUuid).ifPresent(b -> result.put(b.getUuid(), b));
+        for (String key : branchKeys) {
+            dbClient.branchDao().selectByBranchKey(dbSession, projectUuid, key).ifPresent(b -> result.put(b.getUuid(), b));
+        }
+        for (String key : pullRequestKeys) {
+            dbClient.branchDao().selectByPullRequestKey(dbSession, projectUuid, key).ifPresent(b -> result.put(b.getUuid(), b));
+        }
+        return result.values();
+    }
+
+    /**
+     * Selects a page of branches, the main branch comes first and is followed by the other branches ordered by key.
+     */
+    private List<BranchDto> selectBranchesPage(DbSession dbSession, String projectUuid, Paging paging) throws SQLException, IOException {
+        List<BranchDto> result = new ArrayList<>();
+        long offset = paging.offset();
+        int limit = paging.pageSize;
+        if (offset == 0) {
+            dbClient.branchDao().selectByUuid(dbSession, projectUuid).ifPresent(result::add);
+            limit -= result.size();
+        } else {
+            offset--;
+        }
+        result.addAll(selectPage(dbSession, projectUuid, BranchType.BRANCH, offset, limit));
+        return result;
+    }
+
+    /**
+     * Selects a page of branches or pull requests other than the main branch, ordered by key.
+     * The rows before the page are skipped on the cursor, so only the rows of the page are read into memory.
+     */
+    private static List<BranchDto> selectPage(DbSession dbSession, String projectUuid, BranchType branchType, long offset, int limit)
+            throws SQLException, IOException {
+        List<BranchDto> result = new ArrayList<>();
+        if (limit <= 0 || offset + limit > Integer.MAX_VALUE) {
+            return result;
+        }
+        try (PreparedStatement statement = dbSession.getConnection().prepareStatement(SELECT_PAGE)) {
+            statement.setString(1, projectUuid);
+            statement.setString(2, branchType.name());
+            statement.setMaxRows((int) (offset + limit));
+            try (ResultSet rows = statement.executeQuery()) {
+                for (long row = 0; rows.next(); row++) {
+                    if (row < offset) {
+                        continue;
+                    }
+                    BranchDto branch = new BranchDto()
+                            .setUuid(rows.getString(1))
+                            .setProjectUuid(projectUuid)
+                            .setKey(rows.getString(2))
+                            .setBranchType(branchType)
+                            .setMergeBranchUuid(rows.getString(3));
+                    byte[] pullRequestData = rows.getBytes(4);
+                    if (pullRequestData != null) {
+                        branch.setPullRequestData(DbProjectBranches.PullRequestData.parseFrom(pullRequestData));
+                    }
+                    result.add(branch);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int count(DbSession dbSession, String projectUuid, BranchType branchType) throws SQLException {
+        try (PreparedStatement statement = dbSession.getConnection().prepareStatement(COUNT)) {
+            statement.setString(1, projectUuid);
+            statement.setString(2, branchType.name());
+            try (ResultSet rows = statement.executeQuery()) {
+                return rows.next() ? rows.getInt(1) : 0;
+            }
+        }
+    }
+
+    /**
+     * Adds branches which are referenced by the returned ones but weren't requested.
+     */
+    private void resolveMergeBranches(DbSession dbSession, List<BranchDto> branches, List<BranchDto> pullRequests, Map<String, BranchDto> byUuid) {
+        List<BranchDto> all = new ArrayList<>(branches);
+        all.addAll(pullRequests);
+        for (BranchDto branch : all) {
+            String mergeBranchUuid = branch.getMergeBranchUuid();
+            if (mergeBranchUuid != null && !byUuid.containsKey(mergeBranchUuid)) {
+                dbClient.branchDao().selectByUuid(dbSession, mergeBranchUuid).ifPresent(b -> byUuid.put(b.getUuid(), b));
+            }
+        }
+    }
+
+    private Map<String, Long> selectAnalysisDates(DbSession dbSession, List<BranchDto> pullRequests) {
+        if (pullRequests.isEmpty()) {
+            return new HashMap<>();
+        }
+        List<String> uuids = pullRequests.stream().map(BranchDto::getUuid).collect(Collectors.toList());
+        return dbClient.snapshotDao().selectLastAnalysesByRootComponentUuids(dbSession, uuids).stream()
+                .collect(Collectors.toMap(SnapshotDto::getComponentUuid, SnapshotDto::getCreatedAt, (a, b) -> a));
+    }
+
+    private static String etag(byte[] content) {
+        try {
+            StringBuilder result = new StringBuilder("\"");
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(content)) {
+                result.append(String.format("%02x", b));
+            }
+            return result.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported", e);
+        }
+    }
+
+    @CheckForNull
+    private static String keyOf(Map<String, BranchDto> byUuid, @Nullable String uuid) {
+        return Optional.ofNullable(uuid).map(byUuid::get).map(BranchDto::getKey).orElse(null);
+    }
+
+    private static class Paging {
+        private final int page;
+        private final int pageSize;
+
+        private Paging(int page, int pageSize) {
+            this.page = page;
+            this.pageSize = pageSize;
+        }
+
+        private long offset() {
+            return (long) (page - 1) * pageSize;
+        }
+    }
+}
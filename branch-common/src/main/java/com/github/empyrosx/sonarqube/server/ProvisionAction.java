@@ -0,0 +1,180 @@
+package com.github.empyrosx.sonarqube.server;
+
+import org.apache.commons.lang.StringUtils;
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+import org.sonar.api.utils.text.JsonWriter;
+import org.sonar.api.web.UserRole;
+import org.sonar.db.DbClient;
+import org.sonar.db.DbSession;
+import org.sonar.db.component.BranchDto;
+import org.sonar.db.component.BranchType;
+import org.sonar.db.component.ComponentDto;
+import org.sonar.db.permission.GlobalPermission;
+import org.sonar.server.ce.queue.BranchSupport;
+import org.sonar.server.exceptions.ForbiddenException;
+import org.sonar.server.exceptions.NotFoundException;
+import org.sonar.server.user.UserSession;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+
+/**
+ * Creates the same branch or pull request in many projects at once.
+ * <p>
+ * Components are created exactly as on report submission, together with their branch rows, in one batch session
+ * committed once, so submissions and lookups of the provisioned branch find them already existing.
+ */
+public class ProvisionAction implements BranchWsAction {
+
+    static final String PARAM_PROJECTS = "projects";
+    static final String PARAM_BRANCH = "branch";
+    static final String PARAM_PULL_REQUEST = "pullRequest";
+    private static final int MAX_PROJECTS = 500;
+
+    private final DbClient dbClient;
+    private final UserSession userSession;
+    private final BranchSupportDelegateImpl branchSupport;
+
+    public ProvisionAction(DbClient dbClient, UserSession userSession, BranchSupportDelegateImpl branchSupport) {
+        this.dbClient = dbClient;
+        this.userSession = userSession;
+        this.branchSupport = branchSupport;
+    }
+
+    @Override
+    public void define(WebService.NewController controller) {
+        WebService.NewAction action = controller.createAction("provision")
+                .setSince("1.0")
+                .setPost(true)
+                .setDescription("Create a branch or a pull request in several projects in one transaction.<br/>" +
+                        "Existing branches and pull requests are left unchanged.<br/>" +
+                        "Requires 'Execute Analysis' permission on every project.")
+                .setHandler(this);
+
+        action.createParam(PARAM_PROJECTS)
+                .setRequired(true)
+                .setDescription(format("Comma-separated list of project keys, at most %d", MAX_PROJECTS));
+        action.createParam(PARAM_BRANCH)
+                .setDescription("Branch name");
+        action.createParam(PARAM_PULL_REQUEST)
+                .setDescription("Pull request key");
+    }
+
+    @Override
+    public void handle(Request request, Response response) throws Exception {
+        List<String> projectKeys = new ArrayList<>(new LinkedHashSet<>(request.mandatoryParamAsStrings(PARAM_PROJECTS)));
+        String branch = StringUtils.trimToNull(request.param(PARAM_BRANCH));
+        String pullRequest = StringUtils.trimToNull(request.param(PARAM_PULL_REQUEST));
+        if ((branch == null) == (pullRequest == null)) {
+            throw new IllegalArgumentException(format("Exactly one of '%s' or '%s' must be provided", PARAM_BRANCH, PARAM_PULL_REQUEST));
+        }
+        if (projectKeys.size() > MAX_PROJECTS) {
+            throw new IllegalArgumentException(format("At most %d projects can be provisioned at once", MAX_PROJECTS));
+        }
+
+        List<ComponentDto> created = new ArrayList<>();
+        List<ComponentDto> existing = new ArrayList<>();
+        try (DbSession dbSession = dbClient.openSession(true)) {
+            List<ComponentDto> projects = selectProjects(dbSession, projectKeys);
+            projects.forEach(this::checkPermission);
+
+            Map<String, BranchSupport.ComponentKey> componentKeys = projects.stream()
+                    .collect(Collectors.toMap(ComponentDto::getDbKey, p -> branch == null
+                            ? BranchSupportDelegateImpl.ComponentKeyImpl.forPullRequest(p.getDbKey(), pullRequest)
+                            : BranchSupportDelegateImpl.ComponentKeyImpl.forBranch(p.getDbKey(), branch)));
+            Map<String, ComponentDto> existingComponents = dbClient.componentDao().selectByKeys(dbSession,
+                    componentKeys.values().stream().map(BranchSupport.ComponentKey::getDbKey).collect(Collectors.toList()))
+                    .stream()
+                    .collect(Collectors.toMap(ComponentDto::getDbKey, Function.identity()));
+            Set<String> mainBranchNames = dbClient.branchDao().selectByUuids(dbSession,
+                    projects.stream().map(ComponentDto::uuid).collect(Collectors.toList()))
+                    .stream()
+                    .map(b -> b.getProjectUuid() + ":" + b.getKey())
+                    .collect(Collectors.toSet());
+
+            for (ComponentDto project : projects) {
+                BranchSupport.ComponentKey componentKey = componentKeys.get(project.getDbKey());
+                ComponentDto component = existingComponents.get(componentKey.getDbKey());
+                if (component == null && branch != null && mainBranchNames.contains(project.uuid() + ":" + branch)) {
+                    component = project;
+                }
+                if (component == null) {
+                    created.add(branchSupport.newBranchComponent(componentKey, project));
+                } else {
+                    existing.add(component);
+                }
+            }
+
+            if (!created.isEmpty()) {
+                dbClient.componentDao().insert(dbSession, created);
+                for (ComponentDto component : created) {
+                    dbClient.branchDao().insert(dbSession, newBranch(component, branch, pullRequest));
+                }
+                dbSession.commit();
+            }
+        }
+
+        try (JsonWriter json = response.newJsonWriter()) {
+            json.beginObject();
+            writeComponents(json, "created", created);
+            writeComponents(json, "existing", existing);
+            json.endObject();
+        }
+    }
+
+    private List<ComponentDto> selectProjects(DbSession dbSession, List<String> projectKeys) {
+        List<ComponentDto> projects = dbClient.componentDao().selectByKeys(dbSession, projectKeys).stream()
+                .filter(c -> c.getMainBranchProjectUuid() == null)
+                .collect(Collectors.toList());
+        if (projects.size() < projectKeys.size()) {
+            Set<String> found = projects.stream().map(ComponentDto::getDbKey).collect(Collectors.toSet());
+            String missing = projectKeys.stream().filter(k -> !found.contains(k)).collect(Collectors.joining(", "));
+            throw new NotFoundException(format("Projects not found: %s", missing));
+        }
+        return projects;
+    }
+
+    private void checkPermission(ComponentDto project) {
+        if (userSession.hasComponentPermission(UserRole.SCAN, project) || userSession.hasPermission(GlobalPermission.SCAN)) {
+            return;
+        }
+        throw new ForbiddenException(format("Insufficient privileges on project '%s'", project.getDbKey()));
+    }
+
+    /**
+     * Creates branch row of the provisioned component, a pull request targets the main branch and has no pull request
+     * data until it is analyzed, as its source branch is not known yet.
+     */
+    private static BranchDto newBranch(ComponentDto component, @Nullable String branch, @Nullable String pullRequest) {
+        BranchDto result = new BranchDto()
+                .setUuid(component.uuid())
+                .setProjectUuid(component.getMainBranchProjectUuid());
+        if (pullRequest == null) {
+            return result.setKey(branch).setBranchType(BranchType.BRANCH);
+        }
+        return result.setKey(pullRequest)
+                .setBranchType(BranchType.PULL_REQUEST)
+                .setMergeBranchUuid(component.getMainBranchProjectUuid());
+    }
+
+    private static void writeComponents(JsonWriter json, String name, List<ComponentDto> components) {
+        json.name(name).beginArray();
+        for (ComponentDto component : components) {
+            json.beginObject()
+                    .prop("project", component.getKey())
+                    .prop("key", component.getDbKey())
+                    .endObject();
+        }
+        json.endArray();
+    }
+}
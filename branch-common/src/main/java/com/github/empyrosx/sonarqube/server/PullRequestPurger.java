@@ -0,0 +1,285 @@
+package com.github.empyrosx.sonarqube.server;
+
+import com.github.empyrosx.sonarqube.ce.DecorationStore;
+import com.github.empyrosx.sonarqube.ce.GitlabClient;
+import com.github.empyrosx.sonarqube.ce.GitlabSettings;
+import org.sonar.api.Startable;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.db.DbClient;
+import org.sonar.db.DbSession;
+import org.sonar.db.component.BranchDto;
+import org.sonar.db.component.BranchType;
+import org.sonar.db.component.ComponentDto;
+import org.sonar.db.component.SnapshotDto;
+import org.sonar.db.property.PropertyDto;
+import org.sonar.db.property.PropertyQuery;
+import org.sonar.server.component.ComponentCleanerService;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Periodically deletes pull requests which are not needed anymore.
+ * <p>
+ * A pull request is deleted when purge is enabled for its project and either its last analysis is older than
+ * the configured number of days, or its merge request is merged or closed on Gitlab. The age of a pull request
+ * which was never analyzed, for example provisioned or waiting for its first report, is counted from its creation.
+ * The saved decoration of a deleted pull request is deleted too. Each run deletes a limited number of pull requests with a pause between them, and runs only within the configured hours.
+ * States of merge requests are requested by pages, and only until enough pull requests are found for the run.
+ */
+@ServerSide
+public class PullRequestPurger implements Startable {
+
+    private static final Logger LOG = Loggers.get(PullRequestPurger.class);
+    private static final int DEFAULT_DAYS = 30;
+    private static final int DEFAULT_BATCH_SIZE = 50;
+    private static final long DEFAULT_PAUSE_MS = 1000;
+    private static final long DEFAULT_INTERVAL_MINUTES = 60;
+    private static final Pattern HOURS = Pattern.compile("\\s*(\\d{1,2})\\s*-\\s*(\\d{1,2})\\s*");
+
+    private final DbClient dbClient;
+    private final ComponentCleanerService componentCleanerService;
+    private final DecorationStore decorationStore;
+    private final Configuration configuration;
+    private final System2 system2;
+    private ScheduledExecutorService executor;
+    private String invalidHours;
+
+    public PullRequestPurger(DbClient dbClient, ComponentCleanerService componentCleanerService, DecorationStore decorationStore,
+                             Configuration configuration, System2 system2) {
+        this.dbClient = dbClient;
+        this.componentCleanerService = componentCleanerService;
+        this.decorationStore = decorationStore;
+        this.configuration = configuration;
+        this.system2 = system2;
+    }
+
+    @Override
+    public void start() {
+        long interval = configuration.getLong(GitlabSettings.PURGE_INTERVAL).orElse(DEFAULT_INTERVAL_MINUTES);
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "pull-request-purger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::purgeSafely, interval, interval, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void purgeSafely() {
+        try {
+            purge();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOG.error("Pull requests purge failed", e);
+        }
+    }
+
+    void purge() throws InterruptedException {
+        if (!isWithinHours()) {
+            return;
+        }
+
+        int budget = configuration.getInt(GitlabSettings.PURGE_BATCH_SIZE).orElse(DEFAULT_BATCH_SIZE);
+        long pause = configuration.getLong(GitlabSettings.PURGE_PAUSE).orElse(DEFAULT_PAUSE_MS);
+        for (ComponentDto project : selectProjects()) {
+            if (budget <= 0) {
+                return;
+            }
+            for (BranchDto pullRequest : selectStalePullRequests(project, budget)) {
+                if (!isWithinHours()) {
+                    return;
+                }
+                delete(pullRequest);
+                budget--;
+                Thread.sleep(pause);
+            }
+        }
+    }
+
+    private void delete(BranchDto pullRequest) {
+        LOG.info("Deleting stale pull request {} of project {}", pullRequest.getKey(), pullRequest.getProjectUuid());
+        try (DbSession dbSession = dbClient.openSession(false)) {
+            componentCleanerService.deleteBranch(dbSession, pullRequest);
+            dbSession.commit();
+        }
+        decorationStore.deleteDecoration(pullRequest.getUuid());
+    }
+
+    private List<ComponentDto> selectProjects() {
+        try (DbSession dbSession = dbClient.openSession(false)) {
+            List<String> projectUuids = dbClient.propertiesDao().selectByQuery(PropertyQuery.builder().setKey(GitlabSettings.PURGE_ENABLED).build(), dbSession)
+                    .stream()
+                    .filter(p -> p.getComponentUuid() != null && Boolean.parseBoolean(p.getValue()))
+                    .map(PropertyDto::getComponentUuid)
+                    .collect(Collectors.toList());
+            return dbClient.componentDao().selectByUuids(dbSession, projectUuids);
+        }
+    }
+
+    /**
+     * Selects at most limit pull requests to delete, the ones which are too old come first.
+     */
+    private List<BranchDto> selectStalePullRequests(ComponentDto project, int limit) {
+        Map<String, String> properties;
+        List<BranchDto> pullRequests;
+        Map<String, Long> analysisDates;
+        Map<String, Long> creationDates;
+        try (DbSession dbSession = dbClient.openSession(false)) {
+            properties = dbClient.propertiesDao().selectProjectProperties(dbSession, project.getDbKey()).stream()
+                    .filter(p -> p.getValue() != null)
+                    .collect(Collectors.toMap(PropertyDto::getKey, PropertyDto::getValue, (a, b) -> a));
+            pullRequests = dbClient.branchDao().selectByProjectUuid(dbSession, project.uuid()).stream()
+                    .filter(b -> b.getBranchType() == BranchType.PULL_REQUEST)
+                    .collect(Collectors.toList());
+            if (pullRequests.isEmpty()) {
+                return pullRequests;
+            }
+            List<String> uuids = pullRequests.stream().map(BranchDto::getUuid).collect(Collectors.toList());
+            analysisDates = dbClient.snapshotDao().selectLastAnalysesByRootComponentUuids(dbSession, uuids).stream()
+                    .collect(Collectors.toMap(SnapshotDto::getComponentUuid, SnapshotDto::getCreatedAt, (a, b) -> a));
+            creationDates = dbClient.componentDao().selectByUuids(dbSession, uuids).stream()
+                    .filter(c -> c.getCreatedAt() != null)
+                    .collect(Collectors.toMap(ComponentDto::uuid, c -> c.getCreatedAt().getTime(), (a, b) -> a));
+        }
+
+        int days = parseInt(properties.get(GitlabSettings.PURGE_DAYS)).orElse(DEFAULT_DAYS);
+        long threshold = system2.now() - TimeUnit.DAYS.toMillis(days);
+        List<BranchDto> result = new ArrayList<>();
+        List<BranchDto> recent = new ArrayList<>();
+        for (BranchDto pullRequest : pullRequests) {
+            Long lastActivity = Optional.ofNullable(analysisDates.get(pullRequest.getUuid()))
+                    .orElse(creationDates.get(pullRequest.getUuid()));
+            if (lastActivity != null && lastActivity < threshold) {
+                result.add(pullRequest);
+            } else {
+                recent.add(pullRequest);
+            }
+        }
+        if (result.size() >= limit) {
+            return result.subList(0, limit);
+        }
+
+        MergeRequestStates states = Boolean.parseBoolean(properties.get(GitlabSettings.PURGE_CLOSED))
+                ? connect(decorationStore.loadProjectSettings(project.getDbKey(), configuration)) : null;
+        if (states != null) {
+            result.addAll(states.selectClosed(recent, limit - result.size()));
+        }
+        return result;
+    }
+
+    @CheckForNull
+    private MergeRequestStates connect(Function<String, Optional<String>> settings) {
+        String url = settings.apply(GitlabSettings.URL).orElse("https://gitlab.com");
+        String token = settings.apply(GitlabSettings.TOKEN).orElse(null);
+        String projectId = settings.apply(GitlabSettings.PROJECT).orElse(null);
+        if (token == null || projectId == null) {
+            return null;
+        }
+
+        try {
+            GitlabClient client = new GitlabClient(url, token, null,
+                    GitlabSettings.getTimeout(GitlabSettings.CONNECT_TIMEOUT, settings, GitlabSettings.DEFAULT_CONNECT_TIMEOUT_MS),
+                    GitlabSettings.getTimeout(GitlabSettings.READ_TIMEOUT, settings, GitlabSettings.DEFAULT_READ_TIMEOUT_MS));
+            return new MergeRequestStates(client, client.getProject(projectId));
+        } catch (IOException e) {
+            LOG.warn("Could not connect to Gitlab project {}", projectId, e);
+            return null;
+        }
+    }
+
+    /**
+     * Tells whether the current hour is within the configured range, any hour is allowed when the range is not valid.
+     */
+    private boolean isWithinHours() {
+        String hours = configuration.get(GitlabSettings.PURGE_HOURS).map(String::trim).orElse("");
+        if (hours.isEmpty()) {
+            return true;
+        }
+
+        Matcher range = HOURS.matcher(hours);
+        int from = range.matches() ? Integer.parseInt(range.group(1)) : -1;
+        int to = range.matches() ? Integer.parseInt(range.group(2)) : -1;
+        if (from < 0 || from > 24 || to < 0 || to > 24) {
+            if (!hours.equals(invalidHours)) {
+                LOG.warn("Invalid value '{}' of {}, expected a range of hours like 1-6. Pull requests are purged at any time", hours, GitlabSettings.PURGE_HOURS);
+                invalidHours = hours;
+            }
+            return true;
+        }
+
+        int hour = Instant.ofEpochMilli(system2.now()).atZone(ZoneId.systemDefault()).getHour();
+        return from <= to ? (hour >= from && hour < to) : (hour >= from || hour < to);
+    }
+
+    private static Optional<Integer> parseInt(@Nullable String value) {
+        try {
+            return value == null ? Optional.empty() : Optional.of(Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static class MergeRequestStates {
+        private final GitlabClient client;
+        private final GitlabClient.Project project;
+
+        private MergeRequestStates(GitlabClient client, GitlabClient.Project project) {
+            this.client = client;
+            this.project = project;
+        }
+
+        /**
+         * Selects at most limit pull requests whose merge request is merged or closed, requesting one page of merge requests at a time.
+         */
+        private List<BranchDto> selectClosed(List<BranchDto> pullRequests, int limit) {
+            Map<Integer, BranchDto> byIid = new LinkedHashMap<>();
+            for (BranchDto pullRequest : pullRequests) {
+                parseInt(pullRequest.getKey()).ifPresent(iid -> byIid.put(iid, pullRequest));
+            }
+
+            List<BranchDto> result = new ArrayList<>();
+            List<Integer> iids = new ArrayList<>(byIid.keySet());
+            for (int from = 0; from < iids.size() && result.size() < limit; from += GitlabClient.PAGE_SIZE) {
+                List<Integer> page = iids.subList(from, Math.min(iids.size(), from + GitlabClient.PAGE_SIZE));
+                try {
+                    for (GitlabClient.MergeRequest mergeRequest : client.getMergeRequests(project.getId(), page)) {
+                        if (result.size() < limit && ("merged".equals(mergeRequest.getState()) || "closed".equals(mergeRequest.getState()))) {
+                            Optional.ofNullable(byIid.get(mergeRequest.getIid())).ifPresent(result::add);
+                        }
+                    }
+                } catch (IOException e) {
+                    LOG.warn("Could not get states of merge requests of Gitlab project {}", project.getPathWithNamespace(), e);
+                    break;
+                }
+            }
+            return result;
+        }
+    }
+}
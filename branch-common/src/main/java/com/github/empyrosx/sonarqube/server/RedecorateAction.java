@@ -0,0 +1,192 @@
+package com.github.empyrosx.sonarqube.server;
+
+import com.github.empyrosx.sonarqube.ce.DecorationSnapshot;
+import com.github.empyrosx.sonarqube.ce.DecorationStore;
+import com.github.empyrosx.sonarqube.ce.GitlabSettings;
+import com.github.empyrosx.sonarqube.ce.MergeRequestDecoration;
+import org.apache.commons.lang.StringUtils;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.api.utils.text.JsonWriter;
+import org.sonar.api.web.UserRole;
+import org.sonar.db.DbClient;
+import org.sonar.db.DbSession;
+import org.sonar.db.component.BranchDto;
+import org.sonar.db.component.BranchType;
+import org.sonar.db.component.ComponentDto;
+import org.sonar.server.exceptions.ForbiddenException;
+import org.sonar.server.exceptions.NotFoundException;
+import org.sonar.server.user.UserSession;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+
+/**
+ * Decorates merge requests again from the decoration snapshots saved by the last analyses, without new analysis.
+ * <p>
+ * Without a pull request key, every pull request of the project whose last decoration didn't succeed is decorated,
+ * at most a given number per call, in the order of their keys. The key of the last pull request checked and the number
+ * of pull requests still to decorate after it are returned, to call again from that key until none is left.
+ * So a pull request which can't be decorated is tried once per pass and doesn't hold back the next ones.
+ * A merge request with commits newer than its last analysis is not decorated and is reported as stale.
+ * <p>
+ * Decorations run on the request thread, so only a few are made per call. A pull request being decorated
+ * by another call, for example by a client which retried a call still running, is skipped as in progress.
+ */
+public class RedecorateAction implements BranchWsAction {
+
+    static final String PARAM_PROJECT = "project";
+    static final String PARAM_PULL_REQUEST = "pullRequest";
+    static final String PARAM_MAX = "max";
+    static final String PARAM_AFTER = "after";
+    private static final int DEFAULT_MAX = 3;
+    static final int MAX_MAX = 5;
+    private static final Logger LOG = Loggers.get(RedecorateAction.class);
+
+    private final DbClient dbClient;
+    private final UserSession userSession;
+    private final Configuration configuration;
+    private final DecorationStore decorationStore;
+    private final MergeRequestDecoration decoration;
+    private final Set<String> inProgress = ConcurrentHashMap.newKeySet();
+
+    public RedecorateAction(DbClient dbClient, UserSession userSession, Configuration configuration,
+                            DecorationStore decorationStore, MergeRequestDecoration decoration) {
+        this.dbClient = dbClient;
+        this.userSession = userSession;
+        this.configuration = configuration;
+        this.decorationStore = decorationStore;
+        this.decoration = decoration;
+    }
+
+    @Override
+    public void define(WebService.NewController controller) {
+        WebService.NewAction action = controller.createAction("redecorate")
+                .setSince("1.0")
+                .setPost(true)
+                .setDescription("Decorate merge requests again with the results of their last analysis.<br/>" +
+                        "Without pull request, decorates pull requests of the project whose last decoration failed, " +
+                        "at most 'max' per call, in the order of their keys. The key of the last pull request checked " +
+                        "is returned as 'last' and the number of pull requests still to decorate after it as 'remaining', " +
+                        "to call again with 'after' set to 'last' until none is left.<br/>" +
+                        "A merge request with commits newer than its last analysis is skipped with status 'STALE', " +
+                        "a pull request being decorated by another call is skipped with status 'IN_PROGRESS'.<br/>" +
+                        "Requires 'Administer' permission on the project.")
+                .setHandler(this);
+
+        action.createParam(PARAM_PROJECT)
+                .setRequired(true)
+                .setDescription("Project key");
+        action.createParam(PARAM_PULL_REQUEST)
+                .setDescription("Pull request key");
+        action.createParam(PARAM_MAX)
+                .setDefaultValue(DEFAULT_MAX)
+                .setMaximumValue(MAX_MAX)
+                .setDescription("Maximum number of pull requests decorated by the call, when no pull request is given");
+        action.createParam(PARAM_AFTER)
+                .setDescription("Key of the last pull request checked by the previous call, when no pull request is given");
+    }
+
+    @Override
+    public void handle(Request request, Response response) throws Exception {
+        String projectKey = request.mandatoryParam(PARAM_PROJECT);
+        String pullRequestKey = StringUtils.trimToNull(request.param(PARAM_PULL_REQUEST));
+        String after = StringUtils.trimToNull(request.param(PARAM_AFTER));
+        int max = Optional.ofNullable(request.paramAsInt(PARAM_MAX)).orElse(DEFAULT_MAX);
+        if (max < 1 || max > MAX_MAX) {
+            throw new IllegalArgumentException(format("'%s' must be between 1 and %d", PARAM_MAX, MAX_MAX));
+        }
+
+        ComponentDto project;
+        List<BranchDto> pullRequests;
+        try (DbSession dbSession = dbClient.openSession(false)) {
+            project = dbClient.componentDao().selectByKey(dbSession, projectKey)
+                    .filter(c -> c.getMainBranchProjectUuid() == null)
+                    .orElseThrow(() -> new NotFoundException(format("Project '%s' not found", projectKey)));
+            if (!userSession.hasComponentPermission(UserRole.ADMIN, project)) {
+                throw new ForbiddenException("Insufficient privileges");
+            }
+
+            if (pullRequestKey == null) {
+                pullRequests = dbClient.branchDao().selectByProjectUuid(dbSession, project.uuid()).stream()
+                        .filter(b -> b.getBranchType() == BranchType.PULL_REQUEST)
+                        .filter(b -> after == null || b.getKey().compareTo(after) > 0)
+                        .sorted(Comparator.comparing(BranchDto::getKey))
+                        .collect(Collectors.toList());
+            } else {
+                pullRequests = Collections.singletonList(dbClient.branchDao().selectByPullRequestKey(dbSession, project.uuid(), pullRequestKey)
+                        .orElseThrow(() -> new NotFoundException(format("Pull request '%s' not found", pullRequestKey))));
+            }
+        }
+
+        GitlabSettings settings = decorationStore.loadSettings(project.getDbKey(), configuration);
+
+        try (JsonWriter json = response.newJsonWriter()) {
+            json.beginObject();
+            json.name("pullRequests").beginArray();
+            int decorated = 0;
+            int remaining = 0;
+            String last = after;
+            for (BranchDto pullRequest : pullRequests) {
+                Optional<DecorationSnapshot> snapshot = decorationStore.loadSnapshot(pullRequest.getUuid());
+                if (!snapshot.isPresent()) {
+                    if (pullRequestKey != null) {
+                        throw new NotFoundException(format("Pull request '%s' has no decoration to repeat", pullRequestKey));
+                    }
+                    continue;
+                }
+
+                String digest = DecorationStore.digest(snapshot.get(), settings);
+                if (pullRequestKey == null && decorationStore.isDecorated(pullRequest.getUuid(), digest)) {
+                    continue;
+                }
+                if (decorated >= max) {
+                    remaining++;
+                    continue;
+                }
+                last = pullRequest.getKey();
+
+                json.beginObject().prop("key", pullRequest.getKey());
+                if (!inProgress.add(pullRequest.getUuid())) {
+                    json.prop("status", "IN_PROGRESS").endObject();
+                    continue;
+                }
+                decorated++;
+                try {
+                    boolean complete = decoration.redecorate(settings, snapshot.get());
+                    if (complete) {
+                        decorationStore.saveDecoration(pullRequest.getUuid(), snapshot.get(), digest);
+                    }
+                    json.prop("status", complete ? "DECORATED" : "PARTIAL");
+                } catch (MergeRequestDecoration.StaleSnapshotException e) {
+                    LOG.info("Pull request {} of project {} is not decorated: {}", pullRequest.getKey(), projectKey, e.getMessage());
+                    json.prop("status", "STALE");
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn("Could not decorate pull request {} of project {}", pullRequest.getKey(), projectKey, e);
+                    json.prop("status", "FAILED").prop("error", e.getMessage());
+                } finally {
+                    inProgress.remove(pullRequest.getUuid());
+                }
+                json.endObject();
+            }
+            json.endArray();
+            if (pullRequestKey == null) {
+                json.prop("last", last);
+                json.prop("remaining", remaining);
+            }
+            json.endObject();
+        }
+    }
+}
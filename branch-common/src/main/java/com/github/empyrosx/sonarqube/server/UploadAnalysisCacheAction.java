@@ -0,0 +1,89 @@
+package com.github.empyrosx.sonarqube.server;
+
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+import org.sonar.api.web.UserRole;
+import org.sonar.db.DbClient;
+import org.sonar.db.DbSession;
+import org.sonar.db.component.BranchDto;
+import org.sonar.db.component.ComponentDto;
+import org.sonar.db.permission.GlobalPermission;
+import org.sonar.server.exceptions.ForbiddenException;
+import org.sonar.server.user.UserSession;
+
+import java.io.InputStream;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.github.empyrosx.sonarqube.server.AnalysisCacheAction.selectBranch;
+import static com.github.empyrosx.sonarqube.server.AnalysisCacheAction.selectProject;
+
+/**
+ * Stores the gzipped analysis cache of a branch, replacing the previous one.
+ * <p>
+ * Caches of branches which don't exist anymore are deleted at the same time.
+ */
+public class UploadAnalysisCacheAction implements BranchWsAction {
+
+    static final String PARAM_PROJECT = "project";
+    static final String PARAM_BRANCH = "branch";
+    static final String PARAM_DATA = "data";
+
+    private final DbClient dbClient;
+    private final UserSession userSession;
+    private final AnalysisCacheStore store;
+
+    public UploadAnalysisCacheAction(DbClient dbClient, UserSession userSession, AnalysisCacheStore store) {
+        this.dbClient = dbClient;
+        this.userSession = userSession;
+        this.store = store;
+    }
+
+    @Override
+    public void define(WebService.NewController controller) {
+        WebService.NewAction action = controller.createAction("upload_analysis_cache")
+                .setSince("1.0")
+                .setPost(true)
+                .setDescription("Upload the gzipped analysis cache of a branch.<br/>" +
+                        "Requires 'Execute Analysis' permission on the project.")
+                .setHandler(this);
+
+        action.createParam(PARAM_PROJECT)
+                .setRequired(true)
+                .setDescription("Project key");
+        action.createParam(PARAM_BRANCH)
+                .setDescription("Branch name, the main branch when not set");
+        action.createParam(PARAM_DATA)
+                .setRequired(true)
+                .setDescription("Gzipped analysis cache, at most " + AnalysisCacheStore.MAX_SIZE + " bytes");
+    }
+
+    @Override
+    public void handle(Request request, Response response) throws Exception {
+        String projectKey = request.mandatoryParam(PARAM_PROJECT);
+        String branchKey = request.param(PARAM_BRANCH);
+
+        String projectUuid;
+        String branchUuid;
+        Set<String> branchUuids;
+        try (DbSession dbSession = dbClient.openSession(false)) {
+            ComponentDto project = selectProject(dbClient, dbSession, projectKey);
+            if (!userSession.hasComponentPermission(UserRole.SCAN, project)
+                    && !userSession.hasPermission(GlobalPermission.SCAN)) {
+                throw new ForbiddenException("Insufficient privileges");
+            }
+            projectUuid = project.uuid();
+            branchUuid = selectBranch(dbClient, dbSession, project, branchKey).getUuid();
+            branchUuids = dbClient.branchDao().selectByProjectUuid(dbSession, projectUuid).stream()
+                    .map(BranchDto::getUuid)
+                    .collect(Collectors.toSet());
+        }
+
+        try (InputStream content = request.mandatoryParamAsPart(PARAM_DATA).getInputStream()) {
+            store.put(projectUuid, branchUuid, content);
+        }
+        store.retain(projectUuid, branchUuids);
+        response.noContent();
+    }
+}
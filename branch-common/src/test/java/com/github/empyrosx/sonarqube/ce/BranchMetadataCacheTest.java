@@ -0,0 +1,120 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.System2;
+import org.sonar.db.component.BranchDto;
+import org.sonar.db.component.BranchType;
+
+public class BranchMetadataCacheTest {
+
+    private final FakeDbClient dbClient = new FakeDbClient();
+    private long now = 1_000_000L;
+    private final System2 system2 = new System2() {
+        @Override
+        public long now() {
+            return now;
+        }
+    };
+    private final BranchMetadataCache cache = new BranchMetadataCache(dbClient, system2,
+            new MapSettings().setProperty(BranchMetadataCache.TTL_PROPERTY, "60").asConfig());
+
+    @Test
+    public void testFindsBranches() {
+        dbClient.addBranch("project", "project", "master", BranchType.BRANCH);
+        dbClient.addBranch("project", "b1", "feature", BranchType.BRANCH);
+
+        Assert.assertTrue(cache.findByUuid("project", "project").get().isMain());
+        Assert.assertEquals("b1", cache.findByKey("project", "feature").get().getUuid());
+        Assert.assertFalse(cache.findByKey("project", "feature").get().isMain());
+    }
+
+    @Test
+    public void testDoesNotFindPullRequests() {
+        dbClient.addBranch("project", "project", "master", BranchType.BRANCH);
+        dbClient.addBranch("project", "pr1", "12", BranchType.PULL_REQUEST);
+
+        Assert.assertFalse(cache.findByKey("project", "12").isPresent());
+        Assert.assertFalse(cache.findByUuid("project", "pr1").isPresent());
+    }
+
+    @Test
+    public void testMissReloadsProject() {
+        dbClient.addBranch("project", "project", "master", BranchType.BRANCH);
+        Assert.assertFalse(cache.findByKey("project", "feature").isPresent());
+
+        dbClient.addBranch("project", "b1", "feature", BranchType.BRANCH);
+
+        Assert.assertEquals("b1", cache.findByKey("project", "feature").get().getUuid());
+    }
+
+    @Test
+    public void testRecreatedBranchIsFoundAfterTtl() {
+        dbClient.addBranch("project", "b1", "feature", BranchType.BRANCH);
+        Assert.assertEquals("b1", cache.findByKey("project", "feature").get().getUuid());
+
+        dbClient.branches.remove("b1");
+        dbClient.addBranch("project", "b2", "feature", BranchType.BRANCH);
+        Assert.assertEquals("b1", cache.findByKey("project", "feature").get().getUuid());
+
+        now += 60_000;
+        Assert.assertEquals("b2", cache.findByKey("project", "feature").get().getUuid());
+    }
+
+    @Test
+    public void testFindsPullRequestAsTarget() {
+        dbClient.addBranch("project", "project", "master", BranchType.BRANCH);
+        dbClient.addBranch("project", "pr1", "12", BranchType.PULL_REQUEST);
+
+        Assert.assertEquals(BranchType.PULL_REQUEST, cache.findTargetByKey("project", "12").get().getBranchType());
+        Assert.assertEquals(BranchType.BRANCH, cache.findTargetByKey("project", "master").get().getBranchType());
+    }
+
+    @Test
+    public void testRenamedBranchIsFoundByNewKey() {
+        BranchDto main = dbClient.addBranch("project", "project", "master", BranchType.BRANCH);
+        Assert.assertTrue(cache.findByKey("project", "master").isPresent());
+
+        main.setKey("main");
+
+        Assert.assertTrue(cache.findByKey("project", "main").get().isMain());
+        Assert.assertFalse(cache.findByKey("project", "master").isPresent());
+    }
+
+    @Test
+    public void testHitDoesNotQueryDatabase() {
+        dbClient.addBranch("project", "b1", "feature", BranchType.BRANCH);
+        cache.findByKey("project", "feature");
+        int branchQueries = dbClient.branchQueries;
+
+        Assert.assertTrue(cache.findByKey("project", "feature").isPresent());
+        Assert.assertTrue(cache.findByUuid("project", "b1").isPresent());
+
+        Assert.assertEquals(branchQueries, dbClient.branchQueries);
+    }
+
+    @Test
+    public void testTargetHitDoesNotQueryDatabase() {
+        dbClient.addBranch("project", "b1", "feature", BranchType.BRANCH);
+        cache.findTargetByKey("project", "feature");
+        int branchQueries = dbClient.branchQueries;
+
+        Assert.assertEquals("b1", cache.findTargetByKey("project", "feature").get().getUuid());
+        Assert.assertEquals("b1", cache.findByKey("project", "feature").get().getUuid());
+
+        Assert.assertEquals(branchQueries, dbClient.branchQueries);
+    }
+
+    @Test
+    public void testEntryExpires() {
+        dbClient.addBranch("project", "b1", "feature", BranchType.BRANCH);
+        cache.findByKey("project", "feature");
+        int branchQueries = dbClient.branchQueries;
+
+        now += 60_000;
+        cache.findByKey("project", "feature");
+
+        Assert.assertEquals("project is reloaded", branchQueries + 1, dbClient.branchQueries);
+    }
+}
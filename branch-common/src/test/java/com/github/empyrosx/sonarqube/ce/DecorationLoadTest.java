@@ -0,0 +1,132 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures decoration of a large merge request against {@link FakeGitlabServer}.
+ * <p>
+ * Excluded from the test task, run with {@code ./gradlew :branch-common:loadTest}.
+ */
+public class DecorationLoadTest {
+
+    private static final int ISSUES = 500;
+    private static final int COMMITS = 50;
+    private static final int FILES = 50;
+    private static final int LATENCY_MS = 100;
+
+    private static FakeGitlabServer newServer() throws Exception {
+        FakeGitlabServer gitlab = new FakeGitlabServer();
+        for (int commit = 0; commit < COMMITS; commit++) {
+            Map<String, String> diffs = new HashMap<>();
+            for (int file = commit % 5; file < FILES; file += 5) {
+                diffs.put(fileName(file), newDiff(commit));
+            }
+            gitlab.addCommit(String.format("%040x", commit + 1), diffs);
+        }
+        return gitlab;
+    }
+
+    private static String fileName(int file) {
+        return "src/main/java/File" + file + ".java";
+    }
+
+    private static String newDiff(int commit) {
+        StringBuilder diff = new StringBuilder();
+        for (int hunk = 0; hunk < 20; hunk++) {
+            int line = hunk * 50 + commit + 1;
+            diff.append("@@ -").append(line).append(",6 +").append(line).append(",7 @@ \n")
+                    .append(" a\n b\n c\n+added\n d\n e\n f\n");
+        }
+        return diff.toString();
+    }
+
+    private static DecorationSnapshot newSnapshot(String projectKey) {
+        List<DecorationSnapshot.Issue> issues = new ArrayList<>();
+        for (int i = 0; i < ISSUES; i++) {
+            issues.add(new DecorationSnapshot.Issue("AX" + i, fileName(i % FILES), i % 1000 + 1, "MAJOR", "CODE_SMELL", "Issue " + i));
+        }
+        return new DecorationSnapshot(projectKey, String.valueOf(FakeGitlabServer.MERGE_REQUEST_IID), "abc", true,
+                "http://localhost:9000/dashboard", issues);
+    }
+
+    private static GitlabSettings newSettings(FakeGitlabServer gitlab, String checker) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(GitlabSettings.URL, gitlab.getUrl());
+        properties.put(GitlabSettings.TOKEN, "secret");
+        properties.put(GitlabSettings.PROJECT, FakeGitlabServer.PROJECT);
+        properties.put(GitlabSettings.CHECKER, checker);
+        return GitlabSettings.of(key -> Optional.ofNullable(properties.get(key)));
+    }
+
+    private static void report(String scenario, long start, FakeGitlabServer gitlab, DecorationMetrics metrics) {
+        System.out.printf("%s: %d ms, %d calls%n", scenario, System.currentTimeMillis() - start, gitlab.getTotalCalls());
+        gitlab.getCalls().forEach((endpoint, count) -> System.out.printf("  %-55s %6d%n", endpoint, count));
+        System.out.printf("  issues posted %d, errors %s%n", metrics.getIssuesPosted(), metrics.getErrors());
+        System.out.printf("  stage p95 ms %s%n", metrics.getStageP95Millis());
+    }
+
+    @Test
+    public void testLargeMergeRequestWithLatency() throws Exception {
+        try (FakeGitlabServer gitlab = newServer().setLatencyMs(LATENCY_MS)) {
+            DecorationMetrics metrics = new DecorationMetrics(null, null);
+            MergeRequestDecoration decoration = new MergeRequestDecoration(new MergeRequestContextCache(metrics), metrics);
+
+            long start = System.currentTimeMillis();
+            Assert.assertTrue(decoration.decorate(newSettings(gitlab, "SonarQube"), newSnapshot("project")));
+            report("500 issues, 50 commits, 100ms latency", start, gitlab, metrics);
+        }
+    }
+
+    @Test
+    public void testLargeMergeRequestWithFaults() throws Exception {
+        try (FakeGitlabServer gitlab = newServer().setLatencyMs(LATENCY_MS)) {
+            DecorationMetrics metrics = new DecorationMetrics(null, null);
+            MergeRequestDecoration decoration = new MergeRequestDecoration(new MergeRequestContextCache(metrics), metrics);
+            // load merge request data before faults, so only posting is affected
+            decoration.decorate(newSettings(gitlab, "SonarQube"), newSnapshot("project"));
+            gitlab.resetCalls();
+            gitlab.setRateLimitedRatio(0.05).setServerErrorRatio(0.02);
+
+            long start = System.currentTimeMillis();
+            try {
+                decoration.decorate(newSettings(gitlab, "SonarQube"), newSnapshot("project"));
+            } catch (Exception e) {
+                System.out.println("Decoration failed: " + e);
+            }
+            report("500 issues, 5% of 429 and 2% of 502", start, gitlab, metrics);
+        }
+    }
+
+    @Test
+    public void testMonorepoProjectsDecoratingSameMergeRequest() throws Exception {
+        int projects = 30;
+        try (FakeGitlabServer gitlab = newServer().setLatencyMs(LATENCY_MS)) {
+            DecorationMetrics metrics = new DecorationMetrics(null, null);
+            MergeRequestDecoration decoration = new MergeRequestDecoration(new MergeRequestContextCache(metrics), metrics);
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+
+            long start = System.currentTimeMillis();
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < projects; i++) {
+                GitlabSettings settings = newSettings(gitlab, "project" + i);
+                DecorationSnapshot snapshot = newSnapshot("project" + i);
+                results.add(executor.submit(() -> decoration.decorate(settings, snapshot)));
+            }
+            for (Future<Boolean> result : results) {
+                Assert.assertTrue(result.get());
+            }
+            executor.shutdown();
+            report("30 projects, 4 workers, same merge request", start, gitlab, metrics);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DecorationMetricsTest {
+
+    @Test
+    public void testCounters() {
+        DecorationMetrics metrics = new DecorationMetrics(null, null);
+        metrics.decorated();
+        metrics.apiCall("POST discussions");
+        metrics.apiCall("POST discussions");
+        metrics.error("POST discussions");
+        metrics.issuePosted();
+
+        Assert.assertEquals(1, metrics.getDecorations());
+        Assert.assertEquals(1, metrics.getIssuesPosted());
+        Assert.assertEquals(Long.valueOf(2), metrics.getApiCalls().get("POST discussions"));
+        Assert.assertEquals(Long.valueOf(1), metrics.getErrors().get("POST discussions"));
+    }
+
+    @Test
+    public void testTimer() {
+        DecorationMetrics metrics = new DecorationMetrics(null, null);
+        for (int i = 0; i < 10; i++) {
+            metrics.time(DecorationMetrics.Stage.POSTING).close();
+        }
+
+        Assert.assertEquals(Long.valueOf(10), metrics.getStageCounts().get("POSTING"));
+        Assert.assertEquals(Long.valueOf(0), metrics.getStageCounts().get("STATUS"));
+        Assert.assertTrue(metrics.getStageP95Millis().get("POSTING") <= metrics.getStageMaxMillis().get("POSTING"));
+    }
+}
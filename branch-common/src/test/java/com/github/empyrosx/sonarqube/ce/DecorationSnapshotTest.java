@@ -0,0 +1,50 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+public class DecorationSnapshotTest {
+
+    private DecorationSnapshot newSnapshot(String message) {
+        return new DecorationSnapshot("project", "12", "abcdef0123456789", false,
+                "http://localhost:9000/dashboard?id=project&pullRequest=12",
+                Arrays.asList(new DecorationSnapshot.Issue("AX1", "src/Main.java", 10, "MAJOR", "BUG", message),
+                        new DecorationSnapshot.Issue("AX2", null, null, "INFO", "CODE_SMELL", null)));
+    }
+
+    private GitlabSettings newSettings(String checker) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(GitlabSettings.URL, "https://gitlab.com");
+        properties.put(GitlabSettings.TOKEN, "token");
+        properties.put(GitlabSettings.PROJECT, "group/project");
+        properties.put(GitlabSettings.CHECKER, checker);
+        return GitlabSettings.of(key -> Optional.ofNullable(properties.get(key)));
+    }
+
+    @Test
+    public void testJsonRoundTrip() {
+        DecorationSnapshot snapshot = DecorationSnapshot.fromJson(newSnapshot("Fix it").toJson());
+
+        Assert.assertEquals("12", snapshot.getPullRequestKey());
+        Assert.assertFalse(snapshot.isQualityGatePassed());
+        Assert.assertEquals(2, snapshot.getIssues().size());
+        Assert.assertEquals("src/Main.java", snapshot.getIssues().get(0).getFileName());
+        Assert.assertEquals(Integer.valueOf(10), snapshot.getIssues().get(0).getLine());
+        Assert.assertNull(snapshot.getIssues().get(1).getLine());
+        Assert.assertEquals(newSnapshot("Fix it").toJson(), snapshot.toJson());
+    }
+
+    @Test
+    public void testDigest() {
+        String digest = DecorationStore.digest(newSnapshot("Fix it"), newSettings("SonarQube"));
+
+        Assert.assertEquals(digest, DecorationStore.digest(newSnapshot("Fix it"), newSettings("SonarQube")));
+        Assert.assertNotEquals(digest, DecorationStore.digest(newSnapshot("Fix it now"), newSettings("SonarQube")));
+        Assert.assertNotEquals(digest, DecorationStore.digest(newSnapshot("Fix it"), newSettings("Sonar")));
+    }
+}
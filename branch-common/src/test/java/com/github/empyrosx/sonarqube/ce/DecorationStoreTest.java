@@ -0,0 +1,188 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.CoreProperties;
+import org.sonar.api.config.internal.Encryption;
+import org.sonar.api.config.internal.MapSettings;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class DecorationStoreTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final FakeDbClient dbClient = new FakeDbClient();
+    private final DecorationStore store = new DecorationStore(dbClient);
+
+    @Test
+    public void testDecorationIsKeptInInternalProperty() {
+        DecorationSnapshot snapshot = new DecorationSnapshot("project", "1", "sha", true, "https://sonar.example.com",
+                Collections.emptyList());
+
+        store.saveDecoration("pr1", snapshot, null);
+        Assert.assertEquals(snapshot.toJson(), store.loadSnapshot("pr1").get().toJson());
+        Assert.assertFalse(store.isDecorated("pr1", "digest"));
+
+        store.saveDecoration("pr1", snapshot, "digest");
+        Assert.assertTrue(store.isDecorated("pr1", "digest"));
+        Assert.assertFalse(store.isDecorated("pr1", "other"));
+        Assert.assertTrue(dbClient.properties.isEmpty());
+
+        store.deleteDecoration("pr1");
+        Assert.assertFalse(store.loadSnapshot("pr1").isPresent());
+    }
+
+    @Test
+    public void testRecentProjectIsWrittenOnlyWhenChanged() {
+        store.saveRecentProject("a");
+        store.saveRecentProject("b");
+        int connections = dbClient.connections;
+
+        store.saveRecentProject("b");
+        Assert.assertEquals(connections, dbClient.connections);
+
+        store.saveRecentProject("a");
+        Assert.assertEquals(Arrays.asList("a", "b"), store.loadRecentProjects());
+    }
+
+    @Test
+    public void testSettingsAreDecrypted() throws Exception {
+        Encryption encryption = new Encryption(null);
+        Path secretKey = temp.newFile().toPath();
+        Files.write(secretKey, encryption.generateRandomSecretKey().getBytes(StandardCharsets.UTF_8));
+        encryption = new Encryption(secretKey.toString());
+        dbClient.addProperty(dbClient.addProject("uuid", "project").uuid(), GitlabSettings.TOKEN, encryption.encrypt("secret"));
+
+        GitlabSettings settings = store.loadSettings("project", new MapSettings()
+                .setProperty(CoreProperties.ENCRYPTION_SECRET_KEY_PATH, secretKey.toString()).asConfig());
+        Assert.assertEquals("secret", settings.getToken());
+    }
+
+    @Test
+    public void testProjectSettingsOverrideConfigurationAndGlobalProperties() {
+        dbClient.addProperty(dbClient.addProject("uuid", "project").uuid(), GitlabSettings.PROJECT, "42");
+        dbClient.addProperty(null, GitlabSettings.PROJECT, "1");
+        dbClient.addProperty(null, GitlabSettings.TOKEN, "global");
+        dbClient.addProperty(null, GitlabSettings.URL, "https://global.example.com");
+
+        GitlabSettings settings = store.loadSettings("project", new MapSettings()
+                .setProperty(GitlabSettings.URL, "https://gitlab.example.com").asConfig());
+        Assert.assertEquals("42", settings.getProjectId());
+        Assert.assertEquals("https://gitlab.example.com", settings.getUrl());
+        Assert.assertEquals("global", settings.getToken());
+    }
+
+    @Test
+    public void testPrefetchRequestsAreTakenOnce() {
+        store.addPrefetchRequests(Arrays.asList(
+                DecorationStore.PrefetchRequest.ofMergeRequest("project", 7),
+                DecorationStore.PrefetchRequest.ofSourceBranch("project", "feature"),
+                DecorationStore.PrefetchRequest.ofMergeRequest("project", 7)));
+
+        Assert.assertEquals(Arrays.asList(
+                DecorationStore.PrefetchRequest.ofMergeRequest("project", 7),
+                DecorationStore.PrefetchRequest.ofSourceBranch("project", "feature")),
+                store.takePrefetchRequests());
+        Assert.assertTrue(new DecorationStore(dbClient).takePrefetchRequests().isEmpty());
+
+        store.addPrefetchRequests(Collections.singletonList(DecorationStore.PrefetchRequest.ofMergeRequest("project", 8)));
+        Assert.assertEquals(Collections.singletonList(DecorationStore.PrefetchRequest.ofMergeRequest("project", 8)),
+                store.takePrefetchRequests());
+    }
+
+    @Test
+    public void testPrefetchRequestsAreNotDropped() {
+        List<DecorationStore.PrefetchRequest> requests = new ArrayList<>();
+        for (int iid = 1; iid <= 250; iid++) {
+            requests.add(DecorationStore.PrefetchRequest.ofMergeRequest("project", iid));
+        }
+        store.addPrefetchRequests(requests);
+
+        Assert.assertEquals(requests, store.takePrefetchRequests());
+    }
+
+    @Test
+    public void testPrefetchQueueIsBounded() {
+        List<DecorationStore.PrefetchRequest> requests = new ArrayList<>();
+        for (int iid = 1; iid <= DecorationStore.MAX_PREFETCH_REQUESTS + 5; iid++) {
+            requests.add(DecorationStore.PrefetchRequest.ofMergeRequest("project", iid));
+        }
+        store.addPrefetchRequests(requests.subList(0, 10));
+        store.addPrefetchRequests(requests.subList(10, requests.size()));
+        store.addPrefetchRequests(Collections.singletonList(DecorationStore.PrefetchRequest.ofSourceBranch("project", "feature")));
+
+        Assert.assertEquals(requests.subList(0, DecorationStore.MAX_PREFETCH_REQUESTS), store.takePrefetchRequests());
+        store.addPrefetchRequests(Collections.singletonList(DecorationStore.PrefetchRequest.ofSourceBranch("project", "feature")));
+        Assert.assertEquals(1, store.takePrefetchRequests().size());
+    }
+
+    @Test
+    public void testConcurrentTakersShareRequests() throws Exception {
+        int count = 400;
+        ConcurrentLinkedQueue<DecorationStore.PrefetchRequest> taken = new ConcurrentLinkedQueue<>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int producer = 0; producer < 2; producer++) {
+                int first = producer * count / 2;
+                tasks.add(executor.submit(() -> {
+                    for (int iid = first; iid < first + count / 2; iid++) {
+                        new DecorationStore(dbClient).addPrefetchRequests(
+                                Collections.singletonList(DecorationStore.PrefetchRequest.ofMergeRequest("project", iid)));
+                    }
+                }));
+            }
+            for (int consumer = 0; consumer < 2; consumer++) {
+                tasks.add(executor.submit(() -> {
+                    DecorationStore consumerStore = new DecorationStore(dbClient);
+                    long deadline = System.currentTimeMillis() + 10_000;
+                    while (taken.size() < count && System.currentTimeMillis() < deadline) {
+                        taken.addAll(consumerStore.takePrefetchRequests());
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Set<Integer> iids = new HashSet<>();
+        for (DecorationStore.PrefetchRequest request : taken) {
+            Assert.assertTrue("Request taken twice: " + request.getIid(), iids.add(request.getIid()));
+        }
+        Assert.assertEquals(count, iids.size());
+    }
+
+    @Test
+    public void testQueueIsNotPolledWithoutWebhookSecret() {
+        List<DecorationStore.PrefetchRequest> requests = Collections.singletonList(DecorationStore.PrefetchRequest.ofMergeRequest("project", 7));
+        DecorationMetrics metrics = new DecorationMetrics(null, null);
+
+        store.addPrefetchRequests(requests);
+        new MergeRequestPrefetcher(new MapSettings().asConfig(), store, new MergeRequestContextCache(metrics), metrics).poll();
+        Assert.assertEquals(requests, store.takePrefetchRequests());
+
+        store.addPrefetchRequests(requests);
+        dbClient.addProperty("project-uuid", GitlabSettings.WEBHOOK_SECRET, "secret");
+        new MergeRequestPrefetcher(new MapSettings().asConfig(), store, new MergeRequestContextCache(metrics), metrics).poll();
+        Assert.assertTrue(store.takePrefetchRequests().isEmpty());
+    }
+}
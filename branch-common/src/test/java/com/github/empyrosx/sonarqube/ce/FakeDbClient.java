@@ -0,0 +1,411 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import org.sonar.api.utils.System2;
+import org.sonar.db.DbClient;
+import org.sonar.db.DbSession;
+import org.sonar.db.component.BranchDao;
+import org.sonar.db.component.BranchDto;
+import org.sonar.db.component.BranchType;
+import org.sonar.db.component.ComponentDao;
+import org.sonar.db.component.ComponentDto;
+import org.sonar.db.component.SnapshotDao;
+import org.sonar.db.component.SnapshotDto;
+import org.sonar.db.property.InternalPropertiesDao;
+import org.sonar.db.property.PropertiesDao;
+import org.sonar.db.property.PropertyDto;
+import org.sonar.db.property.PropertyQuery;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Database client keeping rows in memory, only the queries used by the plugin are implemented.
+ * <p>
+ * Plain SQL is run on an in-memory H2 database, which is filled with the branches when a session asks for its connection.
+ * Internal properties are only kept in that database, where they are shared by the sessions of the client.
+ */
+public class FakeDbClient extends DbClient {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    public final Map<String, BranchDto> branches = new LinkedHashMap<>();
+    public final Map<String, ComponentDto> components = new LinkedHashMap<>();
+    public final List<SnapshotDto> analyses = new ArrayList<>();
+    public final List<PropertyDto> properties = new ArrayList<>();
+    public int branchQueries;
+    public int connections;
+    public int batchedInserts;
+
+    private final Set<DbSession> batchSessions = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final String url = "jdbc:h2:mem:fake-db-" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+
+    private final BranchDao branchDao = new FakeBranchDao();
+    private final ComponentDao componentDao = new FakeComponentDao();
+    private final SnapshotDao snapshotDao = new FakeSnapshotDao();
+    private final PropertiesDao propertiesDao = new FakePropertiesDao();
+    private final InternalPropertiesDao internalPropertiesDao = new FakeInternalPropertiesDao();
+
+    public FakeDbClient() {
+        super(null, null, null);
+    }
+
+    public BranchDto addBranch(String projectUuid, String uuid, String key, BranchType branchType) {
+        BranchDto branch = new BranchDto();
+        branch.setProjectUuid(projectUuid);
+        branch.setUuid(uuid);
+        branch.setKey(key);
+        branch.setBranchType(branchType);
+        branches.put(uuid, branch);
+        return branch;
+    }
+
+    public ComponentDto addProject(String uuid, String key) {
+        ComponentDto project = new ComponentDto()
+                .setUuid(uuid)
+                .setProjectUuid(uuid)
+                .setRootUuid(uuid)
+                .setDbKey(key)
+                .setQualifier("TRK")
+                .setScope("PRJ");
+        components.put(uuid, project);
+        return project;
+    }
+
+    public SnapshotDto addAnalysis(String componentUuid, long createdAt) {
+        SnapshotDto analysis = new SnapshotDto()
+                .setUuid("analysis-" + analyses.size())
+                .setComponentUuid(componentUuid)
+                .setCreatedAt(createdAt)
+                .setLast(true);
+        analyses.add(analysis);
+        return analysis;
+    }
+
+    public PropertyDto addProperty(@Nullable String componentUuid, String key, String value) {
+        PropertyDto property = new PropertyDto().setComponentUuid(componentUuid).setKey(key).setValue(value);
+        properties.add(property);
+        return property;
+    }
+
+    @Override
+    public DbSession openSession(boolean batch) {
+        Connection[] connection = new Connection[1];
+        DbSession session = (DbSession) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{DbSession.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getConnection":
+                            if (connection[0] == null) {
+                                connection[0] = newConnection();
+                            }
+                            return connection[0];
+                        case "close":
+                            if (connection[0] != null) {
+                                connection[0].close();
+                            }
+                            return null;
+                        default:
+                            return method.getReturnType() == boolean.class ? false : null;
+                    }
+                });
+        if (batch) {
+            batchSessions.add(session);
+        }
+        return session;
+    }
+
+    private Connection newConnection() throws SQLException {
+        connections++;
+        Connection connection = DriverManager.getConnection(url);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("create table if not exists internal_properties (kee varchar(20) primary key, is_empty boolean, " +
+                    "text_value varchar(4000), clob_value clob, created_at bigint)");
+            statement.execute("create local temporary table project_branches (uuid varchar(50), project_uuid varchar(50), kee varchar(255), " +
+                    "branch_type varchar(12), merge_branch_uuid varchar(50), pull_request_binary blob)");
+        }
+        try (PreparedStatement statement = connection.prepareStatement("insert into project_branches values (?, ?, ?, ?, ?, ?)")) {
+            for (BranchDto branch : branches.values()) {
+                statement.setString(1, branch.getUuid());
+                statement.setString(2, branch.getProjectUuid());
+                statement.setString(3, branch.getKey());
+                statement.setString(4, branch.getBranchType().name());
+                statement.setString(5, branch.getMergeBranchUuid());
+                statement.setBytes(6, branch.getPullRequestData() == null ? null : branch.getPullRequestData().toByteArray());
+                statement.executeUpdate();
+            }
+        }
+        return connection;
+    }
+
+    @Override
+    public BranchDao branchDao() {
+        return branchDao;
+    }
+
+    @Override
+    public ComponentDao componentDao() {
+        return componentDao;
+    }
+
+    @Override
+    public SnapshotDao snapshotDao() {
+        return snapshotDao;
+    }
+
+    @Override
+    public PropertiesDao propertiesDao() {
+        return propertiesDao;
+    }
+
+    @Override
+    public InternalPropertiesDao internalPropertiesDao() {
+        return internalPropertiesDao;
+    }
+
+    private class FakeBranchDao extends BranchDao {
+
+        FakeBranchDao() {
+            super(System2.INSTANCE);
+        }
+
+        @Override
+        public Optional<BranchDto> selectByUuid(DbSession session, String uuid) {
+            branchQueries++;
+            return Optional.ofNullable(branches.get(uuid));
+        }
+
+        @Override
+        public Optional<BranchDto> selectByBranchKey(DbSession dbSession, String projectUuid, String key) {
+            branchQueries++;
+            return select(projectUuid, key, BranchType.BRANCH);
+        }
+
+        @Override
+        public Optional<BranchDto> selectByPullRequestKey(DbSession dbSession, String projectUuid, String key) {
+            branchQueries++;
+            return select(projectUuid, key, BranchType.PULL_REQUEST);
+        }
+
+        private Optional<BranchDto> select(String projectUuid, String key, BranchType branchType) {
+            return branches.values().stream()
+                    .filter(b -> b.getProjectUuid().equals(projectUuid) && b.getKey().equals(key))
+                    .filter(b -> b.getBranchType() == branchType)
+                    .findFirst();
+        }
+
+        @Override
+        public Collection<BranchDto> selectByProjectUuid(DbSession dbSession, String projectUuid) {
+            branchQueries++;
+            return branches.values().stream()
+                    .filter(b -> b.getProjectUuid().equals(projectUuid))
+                    .collect(Collectors.toCollection(ArrayList::new));
+        }
+
+        @Override
+        public List<BranchDto> selectByUuids(DbSession session, Collection<String> uuids) {
+            branchQueries++;
+            return uuids.stream().map(branches::get).filter(b -> b != null).collect(Collectors.toList());
+        }
+
+        @Override
+        public void insert(DbSession dbSession, BranchDto dto) {
+            countInsert(dbSession);
+            branches.put(dto.getUuid(), dto);
+        }
+    }
+
+    private void countInsert(@Nullable DbSession session) {
+        if (session != null && batchSessions.contains(session)) {
+            batchedInserts++;
+        }
+    }
+
+    private class FakeComponentDao extends ComponentDao {
+
+        @Override
+        public Optional<ComponentDto> selectByKey(DbSession session, String key) {
+            return components.values().stream().filter(c -> c.getDbKey().equals(key)).findFirst();
+        }
+
+        @Override
+        public Optional<ComponentDto> selectByUuid(DbSession session, String uuid) {
+            return Optional.ofNullable(components.get(uuid));
+        }
+
+        @Override
+        public List<ComponentDto> selectByUuids(DbSession session, Collection<String> uuids) {
+            return uuids.stream().map(components::get).filter(c -> c != null).collect(Collectors.toList());
+        }
+
+        @Override
+        public List<ComponentDto> selectByKeys(DbSession session, Collection<String> keys) {
+            return components.values().stream().filter(c -> keys.contains(c.getDbKey())).collect(Collectors.toList());
+        }
+
+        @Override
+        public void insert(DbSession session, ComponentDto item) {
+            countInsert(session);
+            components.put(item.uuid(), item);
+        }
+
+        @Override
+        public void insert(DbSession session, Collection<ComponentDto> items) {
+            items.forEach(item -> insert(session, item));
+        }
+    }
+
+    private class FakeSnapshotDao extends SnapshotDao {
+
+        @Override
+        public List<SnapshotDto> selectLastAnalysesByRootComponentUuids(DbSession dbSession, Collection<String> componentUuids) {
+            return analyses.stream()
+                    .filter(a -> a.getLast() && componentUuids.contains(a.getComponentUuid()))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private class FakePropertiesDao extends PropertiesDao {
+
+        FakePropertiesDao() {
+            super(null, System2.INSTANCE, null);
+        }
+
+        @Override
+        public List<PropertyDto> selectByQuery(PropertyQuery query, DbSession session) {
+            return properties.stream()
+                    .filter(p -> p.getKey().equals(query.key()))
+                    .filter(p -> query.componentUuid() == null || query.componentUuid().equals(p.getComponentUuid()))
+                    .collect(Collectors.toList());
+        }
+
+        @Override
+        public void saveProperty(DbSession session, PropertyDto property) {
+            properties.removeIf(p -> p.getKey().equals(property.getKey())
+                    && Objects.equals(p.getComponentUuid(), property.getComponentUuid()));
+            properties.add(property);
+        }
+
+        @Override
+        public List<PropertyDto> selectGlobalProperties(DbSession session) {
+            return properties.stream().filter(p -> p.getComponentUuid() == null).collect(Collectors.toList());
+        }
+
+        @Override
+        public List<PropertyDto> selectProjectProperties(DbSession session, String projectKey) {
+            return components.values().stream()
+                    .filter(c -> c.getDbKey().equals(projectKey))
+                    .flatMap(c -> properties.stream().filter(p -> c.uuid().equals(p.getComponentUuid())))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static class FakeInternalPropertiesDao extends InternalPropertiesDao {
+
+        FakeInternalPropertiesDao() {
+            super(System2.INSTANCE);
+        }
+
+        @Override
+        public Optional<String> selectByKey(DbSession dbSession, String key) {
+            try (PreparedStatement statement = dbSession.getConnection().prepareStatement(
+                    "select coalesce(text_value, clob_value) from internal_properties where kee = ?")) {
+                statement.setString(1, key);
+                try (ResultSet rows = statement.executeQuery()) {
+                    return rows.next() ? Optional.ofNullable(rows.getString(1)) : Optional.empty();
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public Map<String, String> selectByKeys(DbSession dbSession, @Nullable Set<String> keys) {
+            Map<String, String> result = new LinkedHashMap<>();
+            try (PreparedStatement statement = dbSession.getConnection().prepareStatement(
+                    "select kee, coalesce(text_value, clob_value) from internal_properties");
+                 ResultSet rows = statement.executeQuery()) {
+                while (rows.next()) {
+                    if (keys != null && keys.contains(rows.getString(1))) {
+                        result.put(rows.getString(1), rows.getString(2) == null ? "" : rows.getString(2));
+                    }
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+            return result;
+        }
+
+        /**
+         * Takes the lock when it is free or older than its maximal age, the lock is kept under the "lock." prefix.
+         */
+        @Override
+        public boolean tryLock(DbSession dbSession, String name, int maxAgeInSeconds) {
+            long now = System.currentTimeMillis();
+            try (PreparedStatement statement = dbSession.getConnection().prepareStatement(
+                    "update internal_properties set created_at = ? where kee = ? and created_at < ?")) {
+                statement.setLong(1, now);
+                statement.setString(2, "lock." + name);
+                statement.setLong(3, now - maxAgeInSeconds * 1000L);
+                if (statement.executeUpdate() == 1) {
+                    return true;
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+            try (PreparedStatement statement = dbSession.getConnection().prepareStatement(
+                    "insert into internal_properties (kee, is_empty, text_value, created_at) values (?, false, ?, ?)")) {
+                statement.setString(1, "lock." + name);
+                statement.setString(2, String.valueOf(now));
+                statement.setLong(3, now);
+                return statement.executeUpdate() == 1;
+            } catch (SQLException e) {
+                // taken by another session
+                return false;
+            }
+        }
+
+        @Override
+        public void save(DbSession dbSession, String key, String value) {
+            delete(dbSession, key);
+            try (PreparedStatement statement = dbSession.getConnection().prepareStatement(
+                    "insert into internal_properties (kee, is_empty, text_value, clob_value, created_at) values (?, ?, ?, ?, ?)")) {
+                statement.setString(1, key);
+                statement.setBoolean(2, value.isEmpty());
+                statement.setString(3, value.length() > 4000 ? null : value);
+                statement.setString(4, value.length() > 4000 ? value : null);
+                statement.setLong(5, System.nanoTime());
+                statement.executeUpdate();
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void delete(DbSession dbSession, String key) {
+            try (PreparedStatement statement = dbSession.getConnection().prepareStatement(
+                    "delete from internal_properties where kee = ?")) {
+                statement.setString(1, key);
+                statement.executeUpdate();
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,572 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in of the Gitlab API v4 endpoints used by decoration, with one project and one merge request.
+ * The GraphQL endpoint answers the queries of {@link GitlabGraphqlClient}.
+ * <p>
+ * Every response can be delayed, and requests can be failed at random with 429 or 502, to see how decoration behaves
+ * under load. Calls are counted by endpoint.
+ */
+public class FakeGitlabServer implements AutoCloseable {
+
+    public static final String PROJECT = "group/project";
+    public static final int PROJECT_ID = 1;
+    public static final int MERGE_REQUEST_IID = 7;
+    public static final String USERNAME = "sonar-bot";
+    private static final int DEFAULT_PAGE_SIZE = 20;
+
+    private static final Pattern PROJECT_PATH = Pattern.compile("/api/v4/projects/([^/]+)(/.*)?");
+    private static final Pattern MERGE_REQUEST_PATH = Pattern.compile("/merge_requests/(\\d+)(/.*)?");
+    private static final Pattern COMMIT_DIFF_PATH = Pattern.compile("/repository/commits/([^/]+)/diff");
+    private static final Pattern NOTE_PATH = Pattern.compile("/discussions/([^/]+)/notes/(\\d+)");
+    private static final Pattern STATUS_PATH = Pattern.compile("/statuses/([^/]+)");
+    private static final Pattern RAW_FILE_PATH = Pattern.compile("/repository/files/([^/]+)/raw");
+
+    private final Gson gson = new Gson();
+    private final Random random = new Random(42);
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    private final List<Map<String, Object>> commits = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, List<Map<String, Object>>> diffs = new ConcurrentHashMap<>();
+    private final Map<String, String> files = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Object>> discussions = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final List<Map<String, Object>> statuses = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger ids = new AtomicInteger(1000);
+    private final Map<Integer, String> mergeRequestStates = new ConcurrentHashMap<>();
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private volatile String headSha = "0123456789abcdef0123456789abcdef01234567";
+    private volatile long latencyMs;
+    private volatile double rateLimitedRatio;
+    private volatile double serverErrorRatio;
+
+    public FakeGitlabServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        executor = Executors.newFixedThreadPool(32);
+        server.setExecutor(executor);
+        server.createContext("/api/v4/", this::handleSafely);
+        server.createContext("/api/graphql", this::handleSafely);
+        server.start();
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public FakeGitlabServer setLatencyMs(long latencyMs) {
+        this.latencyMs = latencyMs;
+        return this;
+    }
+
+    /**
+     * Sets ratio of requests answered with 429 Too Many Requests.
+     */
+    public FakeGitlabServer setRateLimitedRatio(double rateLimitedRatio) {
+        this.rateLimitedRatio = rateLimitedRatio;
+        return this;
+    }
+
+    /**
+     * Sets ratio of requests answered with 502 Bad Gateway.
+     */
+    public FakeGitlabServer setServerErrorRatio(double serverErrorRatio) {
+        this.serverErrorRatio = serverErrorRatio;
+        return this;
+    }
+
+    public FakeGitlabServer setHeadSha(String headSha) {
+        this.headSha = headSha;
+        return this;
+    }
+
+    /**
+     * Adds commit to the merge request with diffs of files by path, a null diff is returned as too large.
+     */
+    public FakeGitlabServer addCommit(String sha, Map<String, String> fileDiffs) {
+        Map<String, Object> commit = new LinkedHashMap<>();
+        commit.put("id", sha);
+        commit.put("parent_ids", Collections.singletonList(commits.isEmpty() ? "base0000" : commits.get(commits.size() - 1).get("id")));
+        commit.put("short_id", sha.substring(0, 8));
+        commit.put("title", "Commit " + sha);
+        commit.put("committed_date", String.format("2020-01-01T10:%02d:%02d.000Z", (commits.size() / 60) % 60, commits.size() % 60));
+        commits.add(commit);
+
+        List<Map<String, Object>> commitDiffs = new ArrayList<>();
+        fileDiffs.forEach((path, diff) -> {
+            Map<String, Object> fileDiff = new LinkedHashMap<>();
+            fileDiff.put("old_path", path);
+            fileDiff.put("new_path", path);
+            fileDiff.put("diff", diff == null ? "" : diff);
+            fileDiff.put("too_large", diff == null);
+            commitDiffs.add(fileDiff);
+        });
+        diffs.put(sha, commitDiffs);
+        return this;
+    }
+
+    /**
+     * Adds merge request which is only returned by the list of merge requests by iids.
+     */
+    public FakeGitlabServer addMergeRequest(int iid, String state) {
+        mergeRequestStates.put(iid, state);
+        return this;
+    }
+
+    /**
+     * Sets content of the file at the given commit.
+     */
+    public FakeGitlabServer addFile(String sha, String path, String content) {
+        files.put(sha + ":" + path, content);
+        return this;
+    }
+
+    /**
+     * Adds note written by another user.
+     */
+    public FakeGitlabServer addNote(String author, String body) {
+        createDiscussion(author, body);
+        return this;
+    }
+
+    public List<String> getNoteBodies() {
+        List<String> result = new ArrayList<>();
+        synchronized (discussions) {
+            for (Map<String, Object> discussion : discussions.values()) {
+                for (Map<String, Object> note : getNotes(discussion)) {
+                    result.add((String) note.get("body"));
+                }
+            }
+        }
+        return result;
+    }
+
+    public List<Map<String, Object>> getStatuses() {
+        return new ArrayList<>(statuses);
+    }
+
+    /**
+     * Returns number of calls by endpoint, for example {@code "GET /merge_requests/:iid"}.
+     */
+    public Map<String, Integer> getCalls() {
+        Map<String, Integer> result = new TreeMap<>();
+        calls.forEach((endpoint, count) -> result.put(endpoint, count.get()));
+        return result;
+    }
+
+    public int getTotalCalls() {
+        return calls.values().stream().mapToInt(AtomicInteger::get).sum();
+    }
+
+    public void resetCalls() {
+        calls.clear();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handleSafely(HttpExchange exchange) throws IOException {
+        try {
+            handle(exchange);
+        } catch (RuntimeException e) {
+            send(exchange, 500, Collections.singletonMap("message", String.valueOf(e.getMessage())));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getRawPath();
+        Map<String, String> params = readParams(exchange);
+
+        if (latencyMs > 0) {
+            try {
+                Thread.sleep(latencyMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        double dice;
+        synchronized (random) {
+            dice = random.nextDouble();
+        }
+        if (dice < rateLimitedRatio) {
+            count(method, "429");
+            exchange.getResponseHeaders().add("Retry-After", "1");
+            send(exchange, 429, Collections.singletonMap("message", "429 Too Many Requests"));
+            return;
+        } else if (dice < rateLimitedRatio + serverErrorRatio) {
+            count(method, "502");
+            send(exchange, 502, Collections.singletonMap("message", "502 Bad Gateway"));
+            return;
+        }
+
+        if ("/api/graphql".equals(path)) {
+            count(method, "/graphql");
+            send(exchange, 200, Collections.singletonMap("data", graphql(params)));
+            return;
+        }
+
+        if ("/api/v4/user".equals(path)) {
+            count(method, "/user");
+            send(exchange, 200, user(USERNAME));
+            return;
+        }
+
+        Matcher project = PROJECT_PATH.matcher(path);
+        if (!project.matches() || !isProject(decode(project.group(1)))) {
+            notFound(exchange, method, path);
+            return;
+        }
+
+        String tail = project.group(2) == null ? "" : project.group(2);
+        Matcher mergeRequest = MERGE_REQUEST_PATH.matcher(tail);
+        Matcher commitDiff = COMMIT_DIFF_PATH.matcher(tail);
+        Matcher status = STATUS_PATH.matcher(tail);
+        Matcher rawFile = RAW_FILE_PATH.matcher(tail);
+        if (tail.isEmpty()) {
+            count(method, "/projects/:id");
+            send(exchange, 200, project());
+        } else if (commitDiff.matches()) {
+            count(method, "/repository/commits/:sha/diff");
+            send(exchange, 200, diffs.getOrDefault(commitDiff.group(1), Collections.emptyList()));
+        } else if (rawFile.matches()) {
+            count(method, "/repository/files/:path/raw");
+            String content = files.get(params.get("ref") + ":" + decode(rawFile.group(1)));
+            if (content == null) {
+                notFound(exchange, method, tail);
+            } else {
+                byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (OutputStream output = exchange.getResponseBody()) {
+                    output.write(bytes);
+                }
+            }
+        } else if ("/merge_requests".equals(tail)) {
+            count(method, "/merge_requests");
+            List<Integer> iids = readIids(exchange.getRequestURI().getRawQuery());
+            if (!iids.isEmpty()) {
+                List<Map<String, Object>> mergeRequests = new ArrayList<>();
+                iids.stream().filter(mergeRequestStates::containsKey)
+                        .forEach(iid -> mergeRequests.add(mergeRequest(iid, mergeRequestStates.get(iid))));
+                send(exchange, 200, mergeRequests);
+                return;
+            }
+            boolean matches = "opened".equals(params.get("state")) && "feature".equals(params.get("source_branch"));
+            send(exchange, 200, matches ? Collections.singletonList(mergeRequest()) : Collections.emptyList());
+        } else if ("/repository/commits".equals(tail)) {
+            count(method, "/repository/commits");
+            sendPage(exchange, commits, params);
+        } else if (status.matches() && "POST".equals(method)) {
+            count(method, "/statuses/:sha");
+            Map<String, Object> commitStatus = new LinkedHashMap<>(params);
+            commitStatus.put("id", ids.incrementAndGet());
+            commitStatus.put("sha", status.group(1));
+            commitStatus.put("status", params.get("state"));
+            statuses.add(commitStatus);
+            send(exchange, 201, commitStatus);
+        } else if (mergeRequest.matches() && Integer.parseInt(mergeRequest.group(1)) == MERGE_REQUEST_IID) {
+            handleMergeRequest(exchange, method, mergeRequest.group(2) == null ? "" : mergeRequest.group(2), params);
+        } else {
+            notFound(exchange, method, path);
+        }
+    }
+
+    private void handleMergeRequest(HttpExchange exchange, String method, String tail, Map<String, String> params) throws IOException {
+        Matcher note = NOTE_PATH.matcher(tail);
+        if (tail.isEmpty()) {
+            count(method, "/merge_requests/:iid");
+            send(exchange, 200, mergeRequest());
+        } else if ("/commits".equals(tail)) {
+            count(method, "/merge_requests/:iid/commits");
+            sendPage(exchange, commits, params);
+        } else if ("/discussions".equals(tail) && "GET".equals(method)) {
+            count(method, "/merge_requests/:iid/discussions");
+            List<Map<String, Object>> all;
+            synchronized (discussions) {
+                all = new ArrayList<>(discussions.values());
+            }
+            sendPage(exchange, all, params);
+        } else if ("/discussions".equals(tail) && "POST".equals(method)) {
+            count(method, "/merge_requests/:iid/discussions");
+            send(exchange, 201, createDiscussion(USERNAME, params.get("body")));
+        } else if (note.matches() && "DELETE".equals(method)) {
+            count(method, "/merge_requests/:iid/discussions/:id/notes/:id");
+            Map<String, Object> discussion = discussions.get(note.group(1));
+            boolean removed = discussion != null
+                    && getNotes(discussion).removeIf(n -> n.get("id").equals(Integer.parseInt(note.group(2))));
+            if (removed && getNotes(discussion).isEmpty()) {
+                discussions.remove(note.group(1));
+            }
+            send(exchange, removed ? 204 : 404, null);
+        } else {
+            notFound(exchange, method, tail);
+        }
+    }
+
+    private Map<String, Object> createDiscussion(String author, String body) {
+        Map<String, Object> note = new LinkedHashMap<>();
+        note.put("id", ids.incrementAndGet());
+        note.put("body", body);
+        note.put("author", user(author));
+
+        Map<String, Object> discussion = new LinkedHashMap<>();
+        String id = Integer.toHexString(ids.incrementAndGet());
+        discussion.put("id", id);
+        discussion.put("notes", Collections.synchronizedList(new ArrayList<>(Collections.singletonList(note))));
+        discussions.put(id, discussion);
+        return discussion;
+    }
+
+    private Map<String, Object> graphql(Map<String, String> params) {
+        JsonObject variables = new JsonParser().parse(params.get("variables")).getAsJsonObject();
+        String after = variables.has("after") && !variables.get("after").isJsonNull() ? variables.get("after").getAsString() : null;
+
+        Map<String, Object> data = new LinkedHashMap<>();
+        if (params.get("query").contains("currentUser")) {
+            data.put("currentUser", Collections.singletonMap("username", USERNAME));
+        }
+        if (!isProject(variables.get("project").getAsString())) {
+            data.put("project", null);
+            return data;
+        }
+
+        Map<String, Object> project = new LinkedHashMap<>();
+        project.put("id", "gid://gitlab/Project/" + PROJECT_ID);
+        data.put("project", project);
+        if (Integer.parseInt(variables.get("iid").getAsString()) != MERGE_REQUEST_IID) {
+            project.put("mergeRequest", null);
+            return data;
+        }
+
+        Map<String, Object> restMergeRequest = mergeRequest();
+        Map<String, Object> mergeRequest = new LinkedHashMap<>();
+        mergeRequest.put("iid", String.valueOf(MERGE_REQUEST_IID));
+        mergeRequest.put("state", restMergeRequest.get("state"));
+        mergeRequest.put("sourceBranch", restMergeRequest.get("source_branch"));
+        mergeRequest.put("diffHeadSha", headSha);
+        Map<String, Object> diffRefs = new LinkedHashMap<>();
+        diffRefs.put("baseSha", "base0000");
+        diffRefs.put("startSha", "start000");
+        diffRefs.put("headSha", headSha);
+        mergeRequest.put("diffRefs", diffRefs);
+        project.put("mergeRequest", mergeRequest);
+
+        List<Map<String, Object>> all;
+        synchronized (discussions) {
+            all = new ArrayList<>(discussions.values());
+        }
+        int from = after == null ? 0 : Integer.parseInt(after);
+        int to = Math.min(all.size(), from + GitlabGraphqlClient.PAGE_SIZE);
+        List<Map<String, Object>> nodes = new ArrayList<>();
+        for (Map<String, Object> discussion : all.subList(from, to)) {
+            List<Map<String, Object>> notes = new ArrayList<>();
+            for (Map<String, Object> note : getNotes(discussion)) {
+                Map<String, Object> graphqlNote = new LinkedHashMap<>();
+                graphqlNote.put("id", "gid://gitlab/Note/" + note.get("id"));
+                graphqlNote.put("body", note.get("body"));
+                graphqlNote.put("author", Collections.singletonMap("username", ((Map<?, ?>) note.get("author")).get("username")));
+                notes.add(graphqlNote);
+            }
+            Map<String, Object> node = new LinkedHashMap<>();
+            node.put("id", "gid://gitlab/Discussion/" + discussion.get("id"));
+            node.put("notes", Collections.singletonMap("nodes", notes));
+            nodes.add(node);
+        }
+        Map<String, Object> pageInfo = new LinkedHashMap<>();
+        pageInfo.put("hasNextPage", to < all.size());
+        pageInfo.put("endCursor", String.valueOf(to));
+        Map<String, Object> page = new LinkedHashMap<>();
+        page.put("pageInfo", pageInfo);
+        page.put("nodes", nodes);
+        mergeRequest.put("discussions", page);
+        return data;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> getNotes(Map<String, Object> discussion) {
+        return (List<Map<String, Object>>) discussion.get("notes");
+    }
+
+    private static boolean isProject(String id) {
+        return PROJECT.equals(id) || String.valueOf(PROJECT_ID).equals(id);
+    }
+
+    private static Map<String, Object> user(String username) {
+        Map<String, Object> user = new LinkedHashMap<>();
+        user.put("id", username.hashCode());
+        user.put("username", username);
+        user.put("name", username);
+        return user;
+    }
+
+    private static Map<String, Object> project() {
+        Map<String, Object> project = new LinkedHashMap<>();
+        project.put("id", PROJECT_ID);
+        project.put("name", "project");
+        project.put("path", "project");
+        project.put("path_with_namespace", PROJECT);
+        return project;
+    }
+
+    private Map<String, Object> mergeRequest() {
+        return mergeRequest(MERGE_REQUEST_IID, "opened");
+    }
+
+    private Map<String, Object> mergeRequest(int iid, String state) {
+        Map<String, Object> diffRefs = new LinkedHashMap<>();
+        diffRefs.put("base_sha", "base0000");
+        diffRefs.put("start_sha", "start000");
+        diffRefs.put("head_sha", headSha);
+
+        Map<String, Object> mergeRequest = new LinkedHashMap<>();
+        mergeRequest.put("id", 100 + iid);
+        mergeRequest.put("iid", iid);
+        mergeRequest.put("project_id", PROJECT_ID);
+        mergeRequest.put("source_project_id", PROJECT_ID);
+        mergeRequest.put("target_project_id", PROJECT_ID);
+        mergeRequest.put("source_branch", "feature");
+        mergeRequest.put("target_branch", "master");
+        mergeRequest.put("state", state);
+        mergeRequest.put("sha", headSha);
+        mergeRequest.put("diff_refs", diffRefs);
+        return mergeRequest;
+    }
+
+    private void sendPage(HttpExchange exchange, List<Map<String, Object>> items, Map<String, String> params) throws IOException {
+        int page = Integer.parseInt(params.getOrDefault("page", "1"));
+        int pageSize = Integer.parseInt(params.getOrDefault("per_page", String.valueOf(DEFAULT_PAGE_SIZE)));
+        int from = Math.min(items.size(), (page - 1) * pageSize);
+        int to = Math.min(items.size(), from + pageSize);
+
+        exchange.getResponseHeaders().add("X-Page", String.valueOf(page));
+        exchange.getResponseHeaders().add("X-Per-Page", String.valueOf(pageSize));
+        exchange.getResponseHeaders().add("X-Total", String.valueOf(items.size()));
+        if (to < items.size()) {
+            exchange.getResponseHeaders().add("X-Next-Page", String.valueOf(page + 1));
+            String next = getUrl() + exchange.getRequestURI().getRawPath() + "?page=" + (page + 1) + "&per_page=" + pageSize;
+            exchange.getResponseHeaders().add("Link", "<" + next + ">; rel=\"next\"");
+        }
+        send(exchange, 200, new ArrayList<>(items.subList(from, to)));
+    }
+
+    private void notFound(HttpExchange exchange, String method, String path) throws IOException {
+        count(method, "404");
+        send(exchange, 404, Collections.singletonMap("message", "404 Not found: " + path));
+    }
+
+    private void count(String method, String endpoint) {
+        calls.computeIfAbsent(method + " " + endpoint, k -> new AtomicInteger()).incrementAndGet();
+    }
+
+    private void send(HttpExchange exchange, int code, Object body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(code, -1);
+            return;
+        }
+        byte[] bytes = gson.toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    /**
+     * Reads query parameters and the form or JSON body of the request.
+     */
+    private static Map<String, String> readParams(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parseForm(exchange.getRequestURI().getRawQuery(), params);
+
+        String body = readBody(exchange.getRequestBody());
+        if (body.trim().startsWith("{")) {
+            JsonObject json = new JsonParser().parse(body).getAsJsonObject();
+            for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
+                if (!entry.getValue().isJsonNull()) {
+                    params.put(entry.getKey(), entry.getValue().isJsonPrimitive()
+                            ? entry.getValue().getAsString() : entry.getValue().toString());
+                }
+            }
+        } else {
+            parseForm(body, params);
+        }
+        return params;
+    }
+
+    private static List<Integer> readIids(String query) {
+        List<Integer> iids = new ArrayList<>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                if (pair.startsWith("iids%5B%5D=") || pair.startsWith("iids[]=")) {
+                    iids.add(Integer.parseInt(pair.substring(pair.indexOf('=') + 1)));
+                }
+            }
+        }
+        return iids;
+    }
+
+    private static void parseForm(String form, Map<String, String> params) {
+        if (form == null || form.isEmpty()) {
+            return;
+        }
+        for (String pair : form.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                params.put(decode(pair.substring(0, separator)), decode(pair.substring(separator + 1)));
+            }
+        }
+    }
+
+    private static String readBody(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import com.google.gson.Gson;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.internal.MapSettings;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+public class GitlabRecorderTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testRecordAndReplay() throws Exception {
+        Path directory = temp.newFolder().toPath();
+        DecorationSnapshot snapshot = new DecorationSnapshot("group:project", String.valueOf(FakeGitlabServer.MERGE_REQUEST_IID),
+                "abc", true, "http://localhost:9000/dashboard?id=project&pullRequest=7", Collections.singletonList(
+                new DecorationSnapshot.Issue("AX1", "src/Main.java", 2, "MAJOR", "BUG", "Fix the bug")));
+
+        FakeGitlabServer gitlab = new FakeGitlabServer()
+                .addCommit("1111111111111111111111111111111111111111", Collections.singletonMap("src/Main.java",
+                        "@@ -1,3 +1,4 @@ \n line1\n+added\n line2\n line3\n"));
+        try {
+            Map<String, String> properties = new HashMap<>();
+            properties.put(GitlabSettings.URL, gitlab.getUrl());
+            properties.put(GitlabSettings.TOKEN, "secret");
+            properties.put(GitlabSettings.PROJECT, FakeGitlabServer.PROJECT);
+            Assert.assertTrue(newDecoration(directory).decorate(GitlabSettings.of(key -> Optional.ofNullable(properties.get(key))), snapshot));
+        } finally {
+            gitlab.close();
+        }
+
+        List<Path> archives;
+        try (Stream<Path> files = Files.list(directory)) {
+            archives = files.collect(Collectors.toList());
+        }
+        Assert.assertEquals(1, archives.size());
+        Assert.assertTrue(archives.get(0).getFileName().toString().startsWith("group_project-7-"));
+        String content = unzip(archives.get(0));
+        Assert.assertFalse(content.contains("secret"));
+        Assert.assertFalse(content.contains(gitlab.getUrl()));
+
+        try (GitlabReplayer replayer = new GitlabReplayer(archives.get(0), 0)) {
+            Assert.assertEquals("Fix the bug", replayer.getSnapshot().getIssues().get(0).getMessage());
+            Assert.assertTrue(newDecoration().decorate(replayer.getSettings(), replayer.getSnapshot()));
+        }
+    }
+
+    @Test
+    public void testResponseBodyIsKeptAsBytes() {
+        byte[] body = {(byte) 0xff, 0, (byte) 0xc3, '\n', (byte) 0x80};
+        GitlabRecorder.Exchange exchange = new GitlabRecorder.Exchange();
+        exchange.setResponseBody(body);
+
+        Gson gson = new Gson();
+        GitlabRecorder.Exchange replayed = gson.fromJson(gson.toJson(exchange), GitlabRecorder.Exchange.class);
+
+        Assert.assertArrayEquals(body, replayed.getResponseBody());
+    }
+
+    @Test
+    public void testProjectPropertyDoesNotRecord() throws Exception {
+        Path directory = temp.newFolder().toPath();
+        DecorationSnapshot snapshot = new DecorationSnapshot("project", String.valueOf(FakeGitlabServer.MERGE_REQUEST_IID),
+                "abc", true, "http://localhost:9000/dashboard?id=project&pullRequest=7", Collections.emptyList());
+
+        try (FakeGitlabServer gitlab = new FakeGitlabServer()) {
+            Map<String, String> properties = new HashMap<>();
+            properties.put(GitlabSettings.URL, gitlab.getUrl());
+            properties.put(GitlabSettings.TOKEN, "secret");
+            properties.put(GitlabSettings.PROJECT, FakeGitlabServer.PROJECT);
+            properties.put(GitlabSettings.RECORD_DIRECTORY, directory.toString());
+            newDecoration().decorate(GitlabSettings.of(key -> Optional.ofNullable(properties.get(key))), snapshot);
+        }
+
+        try (Stream<Path> files = Files.list(directory)) {
+            Assert.assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void testRedactQuery() {
+        Assert.assertEquals("", GitlabRecorder.redactQuery(null));
+        Assert.assertEquals("page=2&private_token=REDACTED&per_page=20",
+                GitlabRecorder.redactQuery("page=2&private_token=abc&per_page=20"));
+        Assert.assertEquals("<http://host/api?access_token=REDACTED&page=2>; rel=\"next\"",
+                GitlabRecorder.redactLinks("<http://host/api?access_token=abc&page=2>; rel=\"next\""));
+    }
+
+    private static MergeRequestDecoration newDecoration() {
+        DecorationMetrics metrics = new DecorationMetrics(null, null);
+        return new MergeRequestDecoration(new MergeRequestContextCache(metrics), metrics);
+    }
+
+    private static MergeRequestDecoration newDecoration(Path directory) {
+        DecorationMetrics metrics = new DecorationMetrics(null, null);
+        return new MergeRequestDecoration(new MergeRequestContextCache(metrics), metrics,
+                new MapSettings().setProperty(GitlabSettings.RECORD_DIRECTORY, directory.toString()).asConfig());
+    }
+
+    private static String unzip(Path archive) throws Exception {
+        try (InputStream input = new GZIPInputStream(Files.newInputStream(archive))) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
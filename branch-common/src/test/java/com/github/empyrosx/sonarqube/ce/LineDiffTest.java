@@ -0,0 +1,96 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Random;
+
+public class LineDiffTest {
+
+    private static ByteArrayInputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testUnifiedDiff() throws Exception {
+        String diff = LineDiff.unifiedDiff(LineDiff.hashLines(stream("a\nb\nc\nd\n")), LineDiff.hashLines(stream("a\nx\nc\nd\ne")));
+
+        Assert.assertEquals("@@ -2,1 +2,1 @@\n-\n+\n@@ -5,0 +5,1 @@\n+\n", diff);
+        Assert.assertEquals(Integer.valueOf(3), DiffUtils.getBaseSourceLine(Collections.singletonList(diff), 3));
+        Assert.assertNull(DiffUtils.getBaseSourceLine(Collections.singletonList(diff), 5));
+    }
+
+    @Test
+    public void testHashLines() throws Exception {
+        Assert.assertEquals(0, LineDiff.hashLines(stream("")).length);
+        Assert.assertArrayEquals(LineDiff.hashLines(stream("a\r\nb\n")), LineDiff.hashLines(stream("a\nb")));
+        Assert.assertNotEquals(LineDiff.hashLines(stream("a\r"))[0], LineDiff.hashLines(stream("a"))[0]);
+    }
+
+    @Test
+    public void testLinesWithEqual32BitHashesDiffer() throws Exception {
+        // "costarring" and "liquid" have the same 32-bit FNV-1a hash
+        String diff = LineDiff.unifiedDiff(LineDiff.hashLines(stream("a\ncostarring\n")), LineDiff.hashLines(stream("a\nliquid\n")));
+
+        Assert.assertEquals("@@ -2,1 +2,1 @@\n-\n+\n", diff);
+    }
+
+    @Test
+    public void testMinimalDiff() {
+        Random random = new Random(7);
+        for (int iteration = 0; iteration < 200; iteration++) {
+            long[] before = randomLines(random, random.nextInt(60));
+            long[] after = randomLines(random, random.nextInt(60));
+            String diff = LineDiff.unifiedDiff(before, after);
+
+            int[] unchanged = new int[2];
+            int[] changed = new int[1];
+            UnifiedDiffParser.parse(diff, new UnifiedDiffParser.Handler() {
+                @Override
+                public void hunk(int oldStart, int oldCount, int newStart, int newCount) {
+                    assertUnchanged(before, after, unchanged, oldStart - 1, newStart - 1);
+                    unchanged[0] = oldStart - 1 + oldCount;
+                    unchanged[1] = newStart - 1 + newCount;
+                }
+
+                @Override
+                public void line(UnifiedDiffParser.LineType type, CharSequence diff, int start, int end) {
+                    changed[0]++;
+                }
+            });
+            assertUnchanged(before, after, unchanged, before.length, after.length);
+            Assert.assertEquals(before.length + after.length - 2 * lcs(before, after), changed[0]);
+        }
+    }
+
+    /**
+     * Checks that lines between hunks are equal, starting after the previous hunk.
+     */
+    private static void assertUnchanged(long[] before, long[] after, int[] from, int oldEnd, int newEnd) {
+        Assert.assertEquals(oldEnd - from[0], newEnd - from[1]);
+        for (int i = 0; i < oldEnd - from[0]; i++) {
+            Assert.assertEquals(before[from[0] + i], after[from[1] + i]);
+        }
+    }
+
+    private static long[] randomLines(Random random, int count) {
+        long[] lines = new long[count];
+        for (int i = 0; i < count; i++) {
+            lines[i] = random.nextInt(4);
+        }
+        return lines;
+    }
+
+    private static int lcs(long[] a, long[] b) {
+        int[][] lengths = new int[a.length + 1][b.length + 1];
+        for (int i = a.length - 1; i >= 0; i--) {
+            for (int j = b.length - 1; j >= 0; j--) {
+                lengths[i][j] = a[i] == b[j] ? lengths[i + 1][j + 1] + 1 : Math.max(lengths[i + 1][j], lengths[i][j + 1]);
+            }
+        }
+        return lengths[0][0];
+    }
+}
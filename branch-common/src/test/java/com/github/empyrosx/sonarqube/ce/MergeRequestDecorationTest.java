@@ -0,0 +1,413 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class MergeRequestDecorationTest {
+
+    private FakeGitlabServer gitlab;
+    private DecorationMetrics metrics;
+    private MergeRequestDecoration decoration;
+    private GitlabSettings settings;
+
+    @Before
+    public void setUp() throws Exception {
+        gitlab = new FakeGitlabServer()
+                .addCommit("1111111111111111111111111111111111111111", Collections.singletonMap("src/Main.java",
+                        "@@ -1,3 +1,4 @@ \n line1\n+added\n line2\n line3\n"))
+                .addCommit("2222222222222222222222222222222222222222", Collections.singletonMap("src/Other.java",
+                        "@@ -10,3 +10,3 @@ \n line10\n-old\n+new\n line12\n"))
+                .addNote(FakeGitlabServer.USERNAME, "SonarQube: :arrow_down: Old issue")
+                .addNote("reviewer", "Looks good");
+
+        metrics = new DecorationMetrics(null, null);
+        decoration = new MergeRequestDecoration(new MergeRequestContextCache(metrics), metrics);
+
+        Map<String, String> properties = new HashMap<>();
+        properties.put(GitlabSettings.URL, gitlab.getUrl());
+        properties.put(GitlabSettings.TOKEN, "secret");
+        properties.put(GitlabSettings.PROJECT, FakeGitlabServer.PROJECT);
+        settings = GitlabSettings.of(key -> Optional.ofNullable(properties.get(key)));
+    }
+
+    @After
+    public void tearDown() {
+        gitlab.close();
+    }
+
+    private static DecorationSnapshot newSnapshot() {
+        return new DecorationSnapshot("project", String.valueOf(FakeGitlabServer.MERGE_REQUEST_IID), "abc", false,
+                "http://localhost:9000/dashboard?id=project&pullRequest=7", Arrays.asList(
+                new DecorationSnapshot.Issue("AX1", "src/Main.java", 3, "MAJOR", "BUG", "Fix the bug"),
+                new DecorationSnapshot.Issue("AX2", "src/Other.java", 11, "INFO", "CODE_SMELL", "Rename it")));
+    }
+
+    @Test
+    public void testDecorate() throws Exception {
+        Assert.assertTrue(decoration.decorate(settings, newSnapshot()));
+
+        Assert.assertEquals(1, gitlab.getStatuses().size());
+        Assert.assertEquals("failed", gitlab.getStatuses().get(0).get("status"));
+        List<String> notes = gitlab.getNoteBodies();
+        Assert.assertEquals(3, notes.size());
+        Assert.assertTrue(notes.contains("Looks good"));
+        Assert.assertTrue(notes.contains("SonarQube: :arrow_up_small: Fix the bug"));
+        Assert.assertTrue(notes.contains("SonarQube: :information_source: Rename it"));
+    }
+
+    @Test
+    public void testApiCallsAreCountedByEndpoint() throws Exception {
+        decoration.decorate(settings, newSnapshot());
+
+        Map<String, Long> calls = metrics.getApiCalls();
+        Assert.assertEquals(Long.valueOf(1), calls.get("GET merge_request"));
+        Assert.assertEquals(Long.valueOf(1), calls.get("POST statuses"));
+        Assert.assertEquals(Long.valueOf(2), calls.get("POST discussions"));
+        Assert.assertEquals(gitlab.getTotalCalls(), calls.values().stream().mapToLong(Long::longValue).sum());
+        Assert.assertTrue(metrics.getErrors().isEmpty());
+    }
+
+    @Test
+    public void testConnectStageTimesProjectAndUserRequests() throws Exception {
+        decoration.decorate(settings, newSnapshot());
+        decoration.decorate(settings, newSnapshot());
+
+        Assert.assertEquals(Long.valueOf(2), metrics.getStageCounts().get("CONNECT"));
+        Assert.assertEquals(Long.valueOf(1), metrics.getApiCalls().get("GET project"));
+        Assert.assertEquals(Long.valueOf(1), metrics.getApiCalls().get("GET user"));
+    }
+
+    @Test
+    public void testOnlyFailedRequestsAreCountedAsErrors() throws Exception {
+        DecorationSnapshot snapshot = new DecorationSnapshot("project", String.valueOf(FakeGitlabServer.MERGE_REQUEST_IID), "abc", false,
+                "http://localhost:9000/dashboard?id=project&pullRequest=7", Collections.singletonList(
+                new DecorationSnapshot.Issue("AX1", "src/Main.java", 3, null, "BUG", "Fix the bug")));
+
+        Assert.assertFalse(decoration.decorate(settings, snapshot));
+
+        Assert.assertTrue(metrics.getErrors().isEmpty());
+        Assert.assertNull(metrics.getApiCalls().get("POST discussions"));
+    }
+
+    @Test
+    public void testMergeRequestDataIsReusedForSameHead() throws Exception {
+        decoration.decorate(settings, newSnapshot());
+        gitlab.resetCalls();
+
+        Assert.assertTrue(decoration.decorate(settings, newSnapshot()));
+
+        Map<String, Integer> calls = gitlab.getCalls();
+        Assert.assertEquals(Integer.valueOf(1), calls.get("GET /merge_requests/:iid"));
+        Assert.assertEquals(Integer.valueOf(1), calls.get("GET /merge_requests/:iid/discussions"));
+        Assert.assertFalse(calls.containsKey("GET /repository/commits/:sha/diff"));
+        Assert.assertEquals(Integer.valueOf(2), calls.get("DELETE /merge_requests/:iid/discussions/:id/notes/:id"));
+        Assert.assertEquals(3, gitlab.getNoteBodies().size());
+    }
+
+    @Test
+    public void testNotesPostedByAnotherProcessAreRemoved() throws Exception {
+        decoration.decorate(settings, newSnapshot());
+        gitlab.addNote(FakeGitlabServer.USERNAME, "SonarQube: :arrow_down: Posted by the web server");
+        gitlab.resetCalls();
+
+        Assert.assertTrue(decoration.decorate(settings, newSnapshot()));
+
+        Assert.assertEquals(Integer.valueOf(3), gitlab.getCalls().get("DELETE /merge_requests/:iid/discussions/:id/notes/:id"));
+        Assert.assertFalse(gitlab.getNoteBodies().contains("SonarQube: :arrow_down: Posted by the web server"));
+        Assert.assertEquals(3, gitlab.getNoteBodies().size());
+    }
+
+    @Test
+    public void testSummaryLevel() throws Exception {
+        Assert.assertFalse(decoration.decorate(settings, newSnapshot(), MergeRequestDecoration.Level.SUMMARY));
+
+        Assert.assertEquals(1, gitlab.getStatuses().size());
+        List<String> notes = gitlab.getNoteBodies();
+        Assert.assertEquals(2, notes.size());
+        Assert.assertTrue(notes.contains("Looks good"));
+        Assert.assertTrue(notes.stream().anyMatch(n -> n.startsWith("SonarQube: failed") && n.contains("## 2 Issues")));
+
+        Assert.assertTrue(decoration.decorate(settings, newSnapshot()));
+        Assert.assertEquals(3, gitlab.getNoteBodies().size());
+    }
+
+    @Test
+    public void testStatusLevel() throws Exception {
+        Assert.assertFalse(decoration.decorate(settings, newSnapshot(), MergeRequestDecoration.Level.STATUS));
+
+        Assert.assertEquals(1, gitlab.getStatuses().size());
+        Assert.assertEquals(2, gitlab.getNoteBodies().size());
+        Map<String, Integer> calls = gitlab.getCalls();
+        Assert.assertFalse(calls.containsKey("GET /merge_requests/:iid/commits"));
+        Assert.assertFalse(calls.containsKey("GET /merge_requests/:iid/discussions"));
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        DecorationMetrics metrics = new DecorationMetrics(null, null);
+        MergeRequestContextCache contextCache = new MergeRequestContextCache(metrics);
+        contextCache.warmUp(new GitlabClient(gitlab.getUrl(), "secret"), gitlab.getUrl(), "secret", FakeGitlabServer.PROJECT);
+        Assert.assertEquals(Integer.valueOf(1), gitlab.getCalls().get("GET /user"));
+        gitlab.resetCalls();
+
+        Assert.assertTrue(new MergeRequestDecoration(contextCache, metrics).decorate(settings, newSnapshot()));
+
+        Map<String, Integer> calls = gitlab.getCalls();
+        Assert.assertFalse(calls.containsKey("GET /user"));
+        Assert.assertFalse(calls.containsKey("GET /projects/:id"));
+        Assert.assertEquals(3, gitlab.getNoteBodies().size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedProjectsAndUsersAreDropped() throws Exception {
+        MergeRequestContextCache contextCache = new MergeRequestContextCache(new DecorationMetrics(null, null));
+        GitlabClient api = new GitlabClient(gitlab.getUrl(), "secret");
+        for (int i = 0; i <= 100; i++) {
+            contextCache.warmUp(api, gitlab.getUrl(), "token" + i, FakeGitlabServer.PROJECT);
+        }
+        gitlab.resetCalls();
+
+        contextCache.warmUp(api, gitlab.getUrl(), "token100", FakeGitlabServer.PROJECT);
+        Assert.assertEquals(0, gitlab.getTotalCalls());
+        contextCache.warmUp(api, gitlab.getUrl(), "token0", FakeGitlabServer.PROJECT);
+        Assert.assertEquals(Integer.valueOf(1), gitlab.getCalls().get("GET /projects/:id"));
+        Assert.assertEquals(Integer.valueOf(1), gitlab.getCalls().get("GET /user"));
+    }
+
+    @Test
+    public void testConcurrentDecorationsShareDiffsFetch() throws Exception {
+        MergeRequestContextCache contextCache = new MergeRequestContextCache(metrics);
+        GitlabClient api = new GitlabClient(gitlab.getUrl(), "secret");
+        gitlab.setLatencyMs(50);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<MergeRequestContext>> contexts = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                contexts.add(executor.submit(() -> contextCache.get(api, gitlab.getUrl(), "secret",
+                        FakeGitlabServer.PROJECT, FakeGitlabServer.MERGE_REQUEST_IID)));
+            }
+            for (Future<MergeRequestContext> context : contexts) {
+                Assert.assertFalse(context.get().getDiffs(api, "src/Main.java").isEmpty());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(Integer.valueOf(1), gitlab.getCalls().get("GET /merge_requests/:iid/commits"));
+    }
+
+    @Test
+    public void testDiffsAreDroppedWhenTooLarge() throws Exception {
+        GitlabClient api = new GitlabClient(gitlab.getUrl(), "secret");
+        MergeRequestContextCache contextCache = new MergeRequestContextCache(metrics, 1);
+        contextCache.get(api, gitlab.getUrl(), "secret", FakeGitlabServer.PROJECT, FakeGitlabServer.MERGE_REQUEST_IID);
+        contextCache.get(api, gitlab.getUrl(), "other", FakeGitlabServer.PROJECT, FakeGitlabServer.MERGE_REQUEST_IID);
+        gitlab.resetCalls();
+
+        contextCache.get(api, gitlab.getUrl(), "other", FakeGitlabServer.PROJECT, FakeGitlabServer.MERGE_REQUEST_IID);
+        Assert.assertFalse(gitlab.getCalls().containsKey("GET /merge_requests/:iid/commits"));
+        contextCache.get(api, gitlab.getUrl(), "secret", FakeGitlabServer.PROJECT, FakeGitlabServer.MERGE_REQUEST_IID);
+        Assert.assertEquals(Integer.valueOf(1), gitlab.getCalls().get("GET /merge_requests/:iid/commits"));
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        DecorationMetrics metrics = new DecorationMetrics(null, null);
+        MergeRequestContextCache contextCache = new MergeRequestContextCache(metrics);
+        GitlabClient api = new GitlabClient(gitlab.getUrl(), "secret");
+        Assert.assertEquals(Collections.singletonList(FakeGitlabServer.MERGE_REQUEST_IID),
+                contextCache.getOpenMergeRequests(api, gitlab.getUrl(), "secret", FakeGitlabServer.PROJECT, "feature"));
+        Assert.assertTrue(contextCache.getOpenMergeRequests(api, gitlab.getUrl(), "secret", FakeGitlabServer.PROJECT, "other").isEmpty());
+        Assert.assertTrue(contextCache.prefetch(api, gitlab.getUrl(), "secret", FakeGitlabServer.PROJECT, FakeGitlabServer.MERGE_REQUEST_IID));
+        Assert.assertFalse(contextCache.prefetch(api, gitlab.getUrl(), "secret", FakeGitlabServer.PROJECT, 8));
+        gitlab.resetCalls();
+
+        Assert.assertTrue(new MergeRequestDecoration(contextCache, metrics).decorate(settings, newSnapshot()));
+
+        Map<String, Integer> calls = gitlab.getCalls();
+        Assert.assertEquals(Integer.valueOf(1), calls.get("GET /merge_requests/:iid"));
+        Assert.assertFalse(calls.containsKey("GET /merge_requests/:iid/commits"));
+        Assert.assertEquals(Integer.valueOf(1), calls.get("GET /merge_requests/:iid/discussions"));
+        Assert.assertFalse(calls.containsKey("GET /repository/commits/:sha/diff"));
+        Assert.assertEquals(3, gitlab.getNoteBodies().size());
+    }
+
+    @Test
+    public void testPrefetchComputesLimitedNumberOfDiffs() throws Exception {
+        String sha = "3333333333333333333333333333333333333333";
+        Map<String, String> fileDiffs = new HashMap<>();
+        for (int i = 0; i < MergeRequestContextCache.MAX_PREFETCHED_DIFFS + 5; i++) {
+            fileDiffs.put("src/Big" + i + ".java", null);
+            gitlab.addFile(sha, "src/Big" + i + ".java", "a\n");
+        }
+        gitlab.addCommit(sha, fileDiffs);
+        GitlabClient api = new GitlabClient(gitlab.getUrl(), "secret");
+
+        Assert.assertTrue(new MergeRequestContextCache(metrics)
+                .prefetch(api, gitlab.getUrl(), "secret", FakeGitlabServer.PROJECT, FakeGitlabServer.MERGE_REQUEST_IID));
+        Assert.assertEquals(Integer.valueOf(2 * MergeRequestContextCache.MAX_PREFETCHED_DIFFS),
+                gitlab.getCalls().get("GET /repository/files/:path/raw"));
+    }
+
+    @Test
+    public void testPrefetchSkipsDiffWhichCannotBeComputed() throws Exception {
+        String sha = "3333333333333333333333333333333333333333";
+        StringBuilder huge = new StringBuilder();
+        for (int i = 0; i <= LineDiff.MAX_LINES; i++) {
+            huge.append('\n');
+        }
+        Map<String, String> fileDiffs = new HashMap<>();
+        fileDiffs.put("src/Huge.java", null);
+        fileDiffs.put("src/Big.java", null);
+        gitlab.addCommit(sha, fileDiffs)
+                .addFile(sha, "src/Huge.java", huge.toString())
+                .addFile(sha, "src/Big.java", "a\nb\n");
+        MergeRequestContextCache contextCache = new MergeRequestContextCache(metrics);
+        GitlabClient api = new GitlabClient(gitlab.getUrl(), "secret");
+
+        Assert.assertTrue(contextCache.prefetch(api, gitlab.getUrl(), "secret", FakeGitlabServer.PROJECT, FakeGitlabServer.MERGE_REQUEST_IID));
+        gitlab.resetCalls();
+
+        MergeRequestContext context = contextCache.get(api, gitlab.getUrl(), "secret", FakeGitlabServer.PROJECT,
+                FakeGitlabServer.MERGE_REQUEST_IID);
+        context.getDiffs(api, "src/Big.java");
+        Assert.assertFalse(gitlab.getCalls().containsKey("GET /repository/files/:path/raw"));
+    }
+
+    @Test
+    public void testGraphqlNeedsFewerRequests() throws Exception {
+        for (int i = 0; i < 45; i++) {
+            gitlab.addNote("reviewer", "Comment " + i);
+        }
+        Assert.assertTrue(decoration.decorate(settings, newSnapshot()));
+        int restCalls = gitlab.getTotalCalls();
+        gitlab.resetCalls();
+
+        Map<String, String> properties = new HashMap<>();
+        properties.put(GitlabSettings.URL, gitlab.getUrl());
+        properties.put(GitlabSettings.TOKEN, "secret");
+        properties.put(GitlabSettings.PROJECT, FakeGitlabServer.PROJECT);
+        properties.put(GitlabSettings.GRAPHQL, "true");
+        DecorationMetrics metrics = new DecorationMetrics(null, null);
+        MergeRequestDecoration graphqlDecoration = new MergeRequestDecoration(new MergeRequestContextCache(metrics), metrics);
+        Assert.assertTrue(graphqlDecoration.decorate(GitlabSettings.of(key -> Optional.ofNullable(properties.get(key))), newSnapshot()));
+
+        Map<String, Integer> calls = gitlab.getCalls();
+        Assert.assertEquals(Integer.valueOf(1), calls.get("POST /graphql"));
+        Assert.assertFalse(calls.containsKey("GET /merge_requests/:iid/discussions"));
+        Assert.assertEquals(Integer.valueOf(2), calls.get("DELETE /merge_requests/:iid/discussions/:id/notes/:id"));
+        Assert.assertTrue(gitlab.getTotalCalls() < restCalls);
+        Assert.assertEquals(48, gitlab.getNoteBodies().size());
+    }
+
+    @Test
+    public void testTooLargeDiffIsComputedFromFiles() throws Exception {
+        String sha = "3333333333333333333333333333333333333333";
+        gitlab.addCommit(sha, Collections.singletonMap("src/Big.java", null))
+                .addFile("2222222222222222222222222222222222222222", "src/Big.java", "a\nb\nc\n")
+                .addFile(sha, "src/Big.java", "a\nnew\nb\nc\n");
+
+        MergeRequestContext context = new MergeRequestContextCache(new DecorationMetrics(null, null))
+                .get(new GitlabClient(gitlab.getUrl(), "secret"), gitlab.getUrl(), "secret", FakeGitlabServer.PROJECT,
+                        FakeGitlabServer.MERGE_REQUEST_IID);
+        Assert.assertFalse(gitlab.getCalls().containsKey("GET /repository/files/:path/raw"));
+
+        List<String> diffs = context.getDiffs(new GitlabClient(gitlab.getUrl(), "secret"), "src/Big.java");
+        Assert.assertEquals(Integer.valueOf(2), gitlab.getCalls().get("GET /repository/files/:path/raw"));
+        Assert.assertNull(DiffUtils.getBaseSourceLine(diffs, 2));
+        Assert.assertEquals(Integer.valueOf(3), DiffUtils.getBaseSourceLine(diffs, 4));
+    }
+
+    @Test
+    public void testEmptyDiffIsNotComputedFromFiles() throws Exception {
+        String sha = "3333333333333333333333333333333333333333";
+        gitlab.addCommit(sha, Collections.singletonMap("src/logo.png", ""))
+                .addFile("2222222222222222222222222222222222222222", "src/logo.png", "\u0000\u0001\n")
+                .addFile(sha, "src/logo.png", "\u0000\u0002\n");
+
+        MergeRequestContext context = new MergeRequestContextCache(new DecorationMetrics(null, null))
+                .get(new GitlabClient(gitlab.getUrl(), "secret"), gitlab.getUrl(), "secret", FakeGitlabServer.PROJECT,
+                        FakeGitlabServer.MERGE_REQUEST_IID);
+        List<String> diffs = context.getDiffs(new GitlabClient(gitlab.getUrl(), "secret"), "src/logo.png");
+
+        Assert.assertEquals(Collections.singletonList(""), diffs);
+        Assert.assertFalse(gitlab.getCalls().containsKey("GET /repository/files/:path/raw"));
+        Assert.assertEquals(Integer.valueOf(1), DiffUtils.getBaseSourceLine(diffs, 1));
+    }
+
+    @Test
+    public void testComputedDiffUsesClientOfCallingDecoration() throws Exception {
+        String sha = "3333333333333333333333333333333333333333";
+        gitlab.addCommit(sha, Collections.singletonMap("src/Big.java", null))
+                .addFile("2222222222222222222222222222222222222222", "src/Big.java", "a\nb\nc\n")
+                .addFile(sha, "src/Big.java", "a\nnew\nb\nc\n");
+        DecorationMetrics creatorMetrics = new DecorationMetrics(null, null);
+        DecorationMetrics callerMetrics = new DecorationMetrics(null, null);
+
+        MergeRequestContext context = new MergeRequestContextCache(creatorMetrics)
+                .get(new GitlabClient(gitlab.getUrl(), "secret", creatorMetrics), gitlab.getUrl(), "secret",
+                        FakeGitlabServer.PROJECT, FakeGitlabServer.MERGE_REQUEST_IID);
+        context.getDiffs(new GitlabClient(gitlab.getUrl(), "secret", callerMetrics), "src/Big.java");
+
+        Assert.assertFalse(creatorMetrics.getApiCalls().containsKey("GET raw file"));
+        Assert.assertEquals(Long.valueOf(2), callerMetrics.getApiCalls().get("GET raw file"));
+    }
+
+    @Test
+    public void testStalledRequestTimesOut() throws Exception {
+        gitlab.setLatencyMs(2000);
+        GitlabClient client = new GitlabClient(gitlab.getUrl(), "secret", metrics, 1000, 200);
+
+        try {
+            client.getProject(FakeGitlabServer.PROJECT);
+            Assert.fail("Stalled request must time out");
+        } catch (SocketTimeoutException e) {
+            Assert.assertEquals(Long.valueOf(1), metrics.getErrors().get("GET project"));
+        }
+    }
+
+    @Test
+    public void testInvalidTimeoutsFallBackToDefaults() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(GitlabSettings.CONNECT_TIMEOUT, "-1");
+        properties.put(GitlabSettings.READ_TIMEOUT, "soon");
+
+        Assert.assertEquals(GitlabSettings.DEFAULT_CONNECT_TIMEOUT_MS,
+                GitlabSettings.getTimeout(GitlabSettings.CONNECT_TIMEOUT, key -> Optional.ofNullable(properties.get(key)), GitlabSettings.DEFAULT_CONNECT_TIMEOUT_MS));
+        Assert.assertEquals(GitlabSettings.DEFAULT_READ_TIMEOUT_MS,
+                GitlabSettings.getTimeout(GitlabSettings.READ_TIMEOUT, key -> Optional.ofNullable(properties.get(key)), GitlabSettings.DEFAULT_READ_TIMEOUT_MS));
+        properties.put(GitlabSettings.READ_TIMEOUT, " 5000 ");
+        Assert.assertEquals(5000,
+                GitlabSettings.getTimeout(GitlabSettings.READ_TIMEOUT, key -> Optional.ofNullable(properties.get(key)), GitlabSettings.DEFAULT_READ_TIMEOUT_MS));
+    }
+
+    @Test
+    public void testRedecorateSkipsMergeRequestWithNewCommits() throws Exception {
+        try {
+            decoration.redecorate(settings, newSnapshot());
+            Assert.fail("Snapshot of an older commit must not be posted");
+        } catch (MergeRequestDecoration.StaleSnapshotException e) {
+            Assert.assertTrue(gitlab.getStatuses().isEmpty());
+            Assert.assertEquals(2, gitlab.getNoteBodies().size());
+        }
+
+        DecorationSnapshot current = new DecorationSnapshot("project", String.valueOf(FakeGitlabServer.MERGE_REQUEST_IID),
+                "0123456789abcdef0123456789abcdef01234567", true, "http://localhost:9000/dashboard?id=project&pullRequest=7",
+                Collections.emptyList());
+        Assert.assertTrue(decoration.redecorate(settings, current));
+        Assert.assertEquals(1, gitlab.getStatuses().size());
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.empyrosx.sonarqube.ce;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class UnifiedDiffParserTest {
+
+    private static List<String> parse(String diff) {
+        List<String> events = new ArrayList<>();
+        UnifiedDiffParser.parse(diff, new UnifiedDiffParser.Handler() {
+            @Override
+            public void hunk(int oldStart, int oldCount, int newStart, int newCount) {
+                events.add("hunk " + oldStart + "," + oldCount + " " + newStart + "," + newCount);
+            }
+
+            @Override
+            public void line(UnifiedDiffParser.LineType type, CharSequence diff, int start, int end) {
+                events.add(type + " " + diff.subSequence(start, end));
+            }
+
+            @Override
+            public void noNewlineAtEnd() {
+                events.add("no newline");
+            }
+        });
+        return events;
+    }
+
+    @Test
+    public void testHunks() {
+        Assert.assertEquals(Arrays.asList(
+                "hunk 2,3 2,3",
+                "CONTEXT a",
+                "REMOVED b",
+                "ADDED c",
+                "CONTEXT ",
+                "hunk 10,1 10,2",
+                "CONTEXT d",
+                "ADDED e"),
+                parse("@@ -2,3 +2,3 @@ class Main\n a\n-b\n+c\n\n@@ -10,1 +10,2 @@\n d\n+e"));
+    }
+
+    @Test
+    public void testHeaderWithoutCount() {
+        Assert.assertEquals(Arrays.asList("hunk 1,1 1,1", "REMOVED a", "ADDED b"), parse("@@ -1 +1 @@\n-a\n+b\n"));
+        Assert.assertEquals(Arrays.asList("hunk 0,0 1,1", "ADDED a"), parse("@@ -0,0 +1 @@\n+a\n"));
+    }
+
+    @Test
+    public void testNoNewlineAtEnd() {
+        Assert.assertEquals(Arrays.asList("hunk 1,1 1,1", "REMOVED a", "no newline", "ADDED a", "no newline"),
+                parse("@@ -1 +1 @@\n-a\n\\ No newline at end of file\n+a\n\\ No newline at end of file\n"));
+    }
+
+    @Test
+    public void testFileHeadersAndCarriageReturns() {
+        Assert.assertEquals(Arrays.asList("hunk 1,2 1,2", "CONTEXT a", "ADDED b", "hunk 5,1 5,1", "REMOVED c"),
+                parse("diff --git a/Main.java b/Main.java\r\n--- a/Main.java\r\n+++ b/Main.java\r\n" +
+                        "@@ -1,2 +1,2 @@\r\n a\r\n+b\r\n" +
+                        "diff --git a/Other.java b/Other.java\n--- a/Other.java\n+++ b/Other.java\n" +
+                        "@@ -5 +5,1 @@\n-c\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidHeader() {
+        parse("@@ -a,1 +1 @@\n a\n");
+    }
+}
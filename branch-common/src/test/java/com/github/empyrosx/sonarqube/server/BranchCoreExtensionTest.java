@@ -0,0 +1,82 @@
+package com.github.empyrosx.sonarqube.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sonar.api.SonarEdition;
+import org.sonar.api.SonarQubeSide;
+import org.sonar.api.ce.ComputeEngineSide;
+import org.sonar.api.config.PropertyDefinition;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.internal.SonarRuntimeImpl;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.AnnotationUtils;
+import org.sonar.api.utils.Version;
+import org.sonar.core.extension.CoreExtension;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.ServiceLoader;
+
+public class BranchCoreExtensionTest {
+
+    @Test
+    public void testServerComponentsAreServerSide() {
+        assertAnnotated(SonarQubeSide.SERVER, ServerSide.class);
+    }
+
+    @Test
+    public void testComputeEngineComponentsAreComputeEngineSide() {
+        assertAnnotated(SonarQubeSide.COMPUTE_ENGINE, ComputeEngineSide.class);
+    }
+
+    /**
+     * Loads every registered core extension for the side and checks that the installer would keep its components,
+     * property definitions are declared on all sides and are not checked.
+     */
+    private void assertAnnotated(SonarQubeSide side, Class<? extends Annotation> annotation) {
+        List<Object> extensions = new ArrayList<>();
+        int loaded = 0;
+        for (CoreExtension extension : ServiceLoader.load(CoreExtension.class)) {
+            extension.load(context(side, extensions));
+            loaded++;
+        }
+
+        Assert.assertEquals(2, loaded);
+        Assert.assertFalse(extensions.isEmpty());
+        for (Object extension : extensions) {
+            if (!(extension instanceof PropertyDefinition)) {
+                Assert.assertNotNull(extension + " is not annotated with " + annotation.getSimpleName(),
+                        AnnotationUtils.getAnnotation(extension, annotation));
+            }
+        }
+    }
+
+    private static CoreExtension.Context context(SonarQubeSide side, List<Object> extensions) {
+        return (CoreExtension.Context) Proxy.newProxyInstance(BranchCoreExtensionTest.class.getClassLoader(),
+                new Class[]{CoreExtension.Context.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getRuntime":
+                            return SonarRuntimeImpl.forSonarQube(Version.create(8, 7), side, SonarEdition.COMMUNITY);
+                        case "getBootConfiguration":
+                            return new MapSettings().asConfig();
+                        case "addExtension":
+                            extensions.add(args[0]);
+                            return proxy;
+                        case "addExtensions":
+                            if (args[0] instanceof Collection) {
+                                extensions.addAll((Collection<?>) args[0]);
+                            } else {
+                                extensions.add(args[0]);
+                                extensions.addAll(Arrays.asList((Object[]) args[1]));
+                            }
+                            return proxy;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,94 @@
+package com.github.empyrosx.sonarqube.server;
+
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.utils.text.JsonWriter;
+import org.sonar.api.utils.text.XmlWriter;
+
+import javax.annotation.CheckForNull;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Web service response keeping status, headers and content in memory.
+ */
+public class FakeResponse implements Response {
+
+    private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+    private final Map<String, String> headers = new HashMap<>();
+    private int status = 200;
+    private String mediaType;
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    public String getContent() {
+        return new String(content.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public JsonWriter newJsonWriter() {
+        mediaType = "application/json";
+        return JsonWriter.of(new OutputStreamWriter(content, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public XmlWriter newXmlWriter() {
+        mediaType = "application/xml";
+        return XmlWriter.of(new OutputStreamWriter(content, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Response noContent() {
+        status = 204;
+        return this;
+    }
+
+    @Override
+    public Response setHeader(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    @Override
+    public Collection<String> getHeaderNames() {
+        return headers.keySet();
+    }
+
+    @CheckForNull
+    @Override
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    @Override
+    public Stream stream() {
+        return new Stream() {
+            @Override
+            public Stream setMediaType(String s) {
+                mediaType = s;
+                return this;
+            }
+
+            @Override
+            public Stream setStatus(int httpStatus) {
+                status = httpStatus;
+                return this;
+            }
+
+            @Override
+            public OutputStream output() {
+                return content;
+            }
+        };
+    }
+}
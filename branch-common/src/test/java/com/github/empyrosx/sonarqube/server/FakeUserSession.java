@@ -0,0 +1,52 @@
+package com.github.empyrosx.sonarqube.server;
+
+import org.sonar.server.exceptions.ForbiddenException;
+import org.sonar.server.user.UserSession;
+
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Optional;
+
+/**
+ * Creates sessions of a logged in user who has either all permissions or none.
+ */
+public final class FakeUserSession {
+
+    private FakeUserSession() {
+    }
+
+    public static UserSession allowed() {
+        return create(true);
+    }
+
+    public static UserSession denied() {
+        return create(false);
+    }
+
+    private static UserSession create(boolean allowed) {
+        return (UserSession) Proxy.newProxyInstance(FakeUserSession.class.getClassLoader(), new Class[]{UserSession.class},
+                (proxy, method, args) -> {
+                    String name = method.getName();
+                    if (name.startsWith("has") || name.startsWith("is")) {
+                        return allowed || "isLoggedIn".equals(name);
+                    }
+                    if (name.startsWith("check")) {
+                        if (!allowed && !"checkLoggedIn".equals(name)) {
+                            throw new ForbiddenException("Insufficient privileges");
+                        }
+                        return proxy;
+                    }
+                    if ("getLogin".equals(name) || "getName".equals(name)) {
+                        return "user";
+                    }
+                    if (method.getReturnType() == Optional.class) {
+                        return Optional.empty();
+                    }
+                    if (Collection.class.isAssignableFrom(method.getReturnType())) {
+                        return Collections.emptyList();
+                    }
+                    return null;
+                });
+    }
+}
@@ -0,0 +1,178 @@
+package com.github.empyrosx.sonarqube.server;
+
+import com.github.empyrosx.sonarqube.ce.DecorationStore;
+import com.github.empyrosx.sonarqube.ce.FakeDbClient;
+import com.github.empyrosx.sonarqube.ce.GitlabSettings;
+import com.google.gson.JsonParser;
+import org.junit.Assert;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+
+import javax.annotation.Nullable;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class GitlabWebhookFilterTest {
+
+    private static final String MERGE_REQUEST_EVENT = "{\"object_kind\": \"merge_request\", " +
+            "\"project\": {\"id\": 42, \"path_with_namespace\": \"group/project\"}, " +
+            "\"object_attributes\": {\"iid\": 7, \"state\": \"opened\"}}";
+
+    private final FakeDbClient dbClient = new FakeDbClient();
+    private final MapSettings settings = new MapSettings();
+    private final DecorationStore decorationStore = new DecorationStore(dbClient);
+    private final GitlabWebhookFilter filter = new GitlabWebhookFilter(dbClient, settings.asConfig(), decorationStore);
+
+    public GitlabWebhookFilterTest() {
+        dbClient.addProject("uuid-1", "project-1");
+        dbClient.addProperty("uuid-1", GitlabSettings.PROJECT, "group/project");
+        dbClient.addProperty("uuid-1", GitlabSettings.WEBHOOK_SECRET, "secret-1");
+        dbClient.addProject("uuid-2", "project-2");
+        dbClient.addProperty("uuid-2", GitlabSettings.PROJECT, "42");
+        dbClient.addProject("uuid-3", "project-3");
+        dbClient.addProperty("uuid-3", GitlabSettings.PROJECT, "other/project");
+    }
+
+    @Test
+    public void testParseMergeRequestEvent() {
+        GitlabWebhookFilter.Event event = GitlabWebhookFilter.Event.parse(new JsonParser().parse(MERGE_REQUEST_EVENT));
+
+        Assert.assertNotNull(event);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("42", "group/project")), event.getGitlabProjects());
+        Assert.assertEquals(DecorationStore.PrefetchRequest.ofMergeRequest("project-1", 7), event.toPrefetchRequest("project-1"));
+    }
+
+    @Test
+    public void testParsePushEvent() {
+        GitlabWebhookFilter.Event event = GitlabWebhookFilter.Event.parse(new JsonParser().parse(
+                "{\"object_kind\": \"push\", \"project_id\": 42, \"ref\": \"refs/heads/feature/x\", \"after\": \"abc\"}"));
+
+        Assert.assertNotNull(event);
+        Assert.assertEquals(DecorationStore.PrefetchRequest.ofSourceBranch("project-1", "feature/x"), event.toPrefetchRequest("project-1"));
+    }
+
+    @Test
+    public void testParseIgnoresEventsNotChangingOpenMergeRequests() {
+        Assert.assertNull(GitlabWebhookFilter.Event.parse(new JsonParser().parse(MERGE_REQUEST_EVENT.replace("opened", "merged"))));
+        Assert.assertNull(GitlabWebhookFilter.Event.parse(new JsonParser().parse(
+                "{\"object_kind\": \"push\", \"project_id\": 42, \"ref\": \"refs/tags/v1\", \"after\": \"abc\"}")));
+        Assert.assertNull(GitlabWebhookFilter.Event.parse(new JsonParser().parse(
+                "{\"object_kind\": \"push\", \"project_id\": 42, \"ref\": \"refs/heads/feature\", " +
+                        "\"after\": \"0000000000000000000000000000000000000000\"}")));
+        Assert.assertNull(GitlabWebhookFilter.Event.parse(new JsonParser().parse("{\"object_kind\": \"note\"}")));
+    }
+
+    @Test
+    public void testTokenMatching() {
+        Assert.assertTrue(GitlabWebhookFilter.matches("secret", "secret"));
+        Assert.assertFalse(GitlabWebhookFilter.matches("secret", "secret2"));
+        Assert.assertFalse(GitlabWebhookFilter.matches("secret", ""));
+        Assert.assertFalse(GitlabWebhookFilter.matches("", ""));
+        Assert.assertFalse(GitlabWebhookFilter.matches(null, "secret"));
+    }
+
+    @Test
+    public void testEventIsQueuedForProjectsAcceptingToken() throws Exception {
+        settings.setProperty(GitlabSettings.WEBHOOK_SECRET, "global");
+
+        Assert.assertEquals(HttpServletResponse.SC_ACCEPTED, post("secret-1", MERGE_REQUEST_EVENT));
+        Assert.assertEquals(HttpServletResponse.SC_ACCEPTED, post("global", MERGE_REQUEST_EVENT));
+        Assert.assertEquals(Arrays.asList(
+                DecorationStore.PrefetchRequest.ofMergeRequest("project-1", 7),
+                DecorationStore.PrefetchRequest.ofMergeRequest("project-2", 7)),
+                decorationStore.takePrefetchRequests());
+    }
+
+    @Test
+    public void testMissingOrWrongTokenIsForbidden() throws Exception {
+        Assert.assertEquals(HttpServletResponse.SC_FORBIDDEN, post(null, MERGE_REQUEST_EVENT));
+        Assert.assertEquals(HttpServletResponse.SC_FORBIDDEN, post("", "not json"));
+        Assert.assertEquals(HttpServletResponse.SC_FORBIDDEN, post("wrong", MERGE_REQUEST_EVENT));
+        Assert.assertTrue(decorationStore.takePrefetchRequests().isEmpty());
+    }
+
+    @Test
+    public void testMalformedEventIsRejected() throws Exception {
+        Assert.assertEquals(HttpServletResponse.SC_BAD_REQUEST, post("secret-1", "{\"object_kind\": "));
+        Assert.assertEquals(HttpServletResponse.SC_BAD_REQUEST, post("secret-1", "[]"));
+        Assert.assertEquals(HttpServletResponse.SC_BAD_REQUEST, post("secret-1", MERGE_REQUEST_EVENT.replace("7", "\"seven\"")));
+    }
+
+    @Test
+    public void testLargeEventIsRejected() throws Exception {
+        char[] padding = new char[GitlabWebhookFilter.MAX_BODY_SIZE];
+        Arrays.fill(padding, ' ');
+
+        Assert.assertEquals(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, post("secret-1", MERGE_REQUEST_EVENT + new String(padding)));
+    }
+
+    @Test
+    public void testIgnoredEventHasNoContent() throws Exception {
+        Assert.assertEquals(HttpServletResponse.SC_NO_CONTENT, post("secret-1", MERGE_REQUEST_EVENT.replace("opened", "closed")));
+        Assert.assertTrue(decorationStore.takePrefetchRequests().isEmpty());
+    }
+
+    /**
+     * Posts the event with the token, the length of the body is not sent, and returns the response status.
+     */
+    private int post(@Nullable String token, String body) throws Exception {
+        ByteArrayInputStream content = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+        ServletInputStream input = new ServletInputStream() {
+            @Override
+            public int read() {
+                return content.read();
+            }
+
+            @Override
+            public boolean isFinished() {
+                return content.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{HttpServletRequest.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getMethod":
+                            return "POST";
+                        case "getHeader":
+                            return GitlabWebhookFilter.TOKEN_HEADER.equals(args[0]) ? token : null;
+                        case "getContentLength":
+                            return -1;
+                        case "getInputStream":
+                            return input;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        int[] status = {HttpServletResponse.SC_OK};
+        HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{HttpServletResponse.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "sendError":
+                        case "setStatus":
+                            status[0] = (Integer) args[0];
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        filter.doFilter(request, response, (req, res) -> Assert.fail("Webhook events must not reach other filters"));
+        return status[0];
+    }
+}
@@ -0,0 +1,119 @@
+package com.github.empyrosx.sonarqube.server;
+
+import com.github.empyrosx.sonarqube.ce.FakeDbClient;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Assert;
+import org.junit.Test;
+import org.sonar.api.impl.ws.SimpleGetRequest;
+import org.sonar.db.component.BranchType;
+import org.sonar.db.protobuf.DbProjectBranches;
+import org.sonar.server.exceptions.ForbiddenException;
+import org.sonar.server.exceptions.NotFoundException;
+
+public class LookupActionTest {
+
+    private final FakeDbClient dbClient = new FakeDbClient();
+
+    public LookupActionTest() {
+        dbClient.addProject("project", "project");
+        dbClient.addBranch("project", "project", "master", BranchType.BRANCH);
+        dbClient.addBranch("project", "b1", "feature-a", BranchType.BRANCH).setMergeBranchUuid("project");
+        dbClient.addBranch("project", "b2", "feature-b", BranchType.BRANCH);
+        dbClient.addBranch("project", "pr1", "1", BranchType.PULL_REQUEST)
+                .setMergeBranchUuid("b1")
+                .setPullRequestData(DbProjectBranches.PullRequestData.newBuilder().setBranch("feature/1").build());
+        dbClient.addBranch("project", "pr2", "2", BranchType.PULL_REQUEST).setMergeBranchUuid("project");
+        dbClient.addAnalysis("pr1", 1_575_316_777_000L);
+    }
+
+    private FakeResponse call(SimpleGetRequest request) throws Exception {
+        FakeResponse response = new FakeResponse();
+        new LookupAction(dbClient, FakeUserSession.allowed()).handle(request, response);
+        return response;
+    }
+
+    private static JsonObject parse(FakeResponse response) {
+        return new JsonParser().parse(response.getContent()).getAsJsonObject();
+    }
+
+    private static String name(JsonArray array, int index, String property) {
+        return array.get(index).getAsJsonObject().get(property).getAsString();
+    }
+
+    @Test
+    public void testLookupReturnsRequestedAndMainBranches() throws Exception {
+        JsonObject json = parse(call(new SimpleGetRequest()
+                .setParam("project", "project")
+                .setParam("branch", "feature-a")
+                .setParam("pullRequest", "1")));
+
+        JsonArray branches = json.getAsJsonArray("branches");
+        Assert.assertEquals(2, branches.size());
+        Assert.assertEquals("master", name(branches, 0, "name"));
+        Assert.assertTrue(branches.get(0).getAsJsonObject().get("isMain").getAsBoolean());
+        Assert.assertEquals("feature-a", name(branches, 1, "name"));
+        Assert.assertEquals("master", name(branches, 1, "mergeBranch"));
+
+        JsonArray pullRequests = json.getAsJsonArray("pullRequests");
+        Assert.assertEquals(1, pullRequests.size());
+        Assert.assertEquals("feature/1", name(pullRequests, 0, "branch"));
+        Assert.assertEquals("feature-a", name(pullRequests, 0, "base"));
+        Assert.assertTrue(pullRequests.get(0).getAsJsonObject().has("analysisDate"));
+        Assert.assertFalse(json.has("paging"));
+    }
+
+    @Test
+    public void testListsPageByPage() throws Exception {
+        JsonObject first = parse(call(new SimpleGetRequest()
+                .setParam("project", "project").setParam("p", "1").setParam("ps", "2")));
+
+        JsonArray branches = first.getAsJsonArray("branches");
+        Assert.assertEquals(2, branches.size());
+        Assert.assertEquals("master", name(branches, 0, "name"));
+        Assert.assertEquals("feature-a", name(branches, 1, "name"));
+        Assert.assertEquals(2, first.getAsJsonArray("pullRequests").size());
+        Assert.assertEquals("feature-a", name(first.getAsJsonArray("pullRequests"), 0, "base"));
+        Assert.assertEquals(3, first.getAsJsonObject("paging").get("branchesTotal").getAsInt());
+        Assert.assertEquals(2, first.getAsJsonObject("paging").get("pullRequestsTotal").getAsInt());
+
+        JsonObject second = parse(call(new SimpleGetRequest()
+                .setParam("project", "project").setParam("p", "2").setParam("ps", "2")));
+
+        Assert.assertEquals(1, second.getAsJsonArray("branches").size());
+        Assert.assertEquals("feature-b", name(second.getAsJsonArray("branches"), 0, "name"));
+        Assert.assertEquals(0, second.getAsJsonArray("pullRequests").size());
+    }
+
+    @Test
+    public void testNotModified() throws Exception {
+        FakeResponse first = call(new SimpleGetRequest().setParam("project", "project").setParam("branch", "feature-a"));
+        String etag = first.getHeader("ETag");
+        Assert.assertNotNull(etag);
+        Assert.assertEquals(200, first.getStatus());
+
+        FakeResponse second = call(new SimpleGetRequest().setParam("project", "project").setParam("branch", "feature-a")
+                .setHeader("If-None-Match", etag));
+        Assert.assertEquals(304, second.getStatus());
+        Assert.assertEquals("", second.getContent());
+
+        dbClient.addBranch("project", "b3", "feature-a", BranchType.BRANCH);
+        dbClient.branches.remove("b1");
+        FakeResponse changed = call(new SimpleGetRequest().setParam("project", "project").setParam("branch", "feature-a")
+                .setHeader("If-None-Match", etag));
+        Assert.assertEquals(200, changed.getStatus());
+        Assert.assertNotEquals(etag, changed.getHeader("ETag"));
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testUnknownProject() throws Exception {
+        call(new SimpleGetRequest().setParam("project", "unknown").setParam("branch", "feature-a"));
+    }
+
+    @Test(expected = ForbiddenException.class)
+    public void testRequiresPermission() throws Exception {
+        new LookupAction(dbClient, FakeUserSession.denied())
+                .handle(new SimpleGetRequest().setParam("project", "project").setParam("branch", "feature-a"), new FakeResponse());
+    }
+}
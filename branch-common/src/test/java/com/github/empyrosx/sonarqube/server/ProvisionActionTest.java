@@ -0,0 +1,125 @@
+package com.github.empyrosx.sonarqube.server;
+
+import com.github.empyrosx.sonarqube.ce.FakeDbClient;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Assert;
+import org.junit.Test;
+import org.sonar.api.impl.ws.SimpleGetRequest;
+import org.sonar.db.component.BranchDto;
+import org.sonar.db.component.BranchType;
+import org.sonar.db.component.ComponentDto;
+import org.sonar.server.exceptions.ForbiddenException;
+import org.sonar.server.exceptions.NotFoundException;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ProvisionActionTest {
+
+    private final FakeDbClient dbClient = new FakeDbClient();
+    private final AtomicInteger uuids = new AtomicInteger();
+    private final BranchSupportDelegateImpl branchSupport = new BranchSupportDelegateImpl(() -> "uuid" + uuids.incrementAndGet(),
+            dbClient, Clock.fixed(Instant.ofEpochMilli(1_000_000L), ZoneOffset.UTC));
+
+    public ProvisionActionTest() {
+        dbClient.addProject("p1", "project1");
+        dbClient.addBranch("p1", "p1", "master", BranchType.BRANCH);
+        dbClient.addProject("p2", "project2");
+        dbClient.addBranch("p2", "p2", "master", BranchType.BRANCH);
+    }
+
+    private JsonObject call(SimpleGetRequest request) throws Exception {
+        FakeResponse response = new FakeResponse();
+        new ProvisionAction(dbClient, FakeUserSession.allowed(), branchSupport).handle(request, response);
+        return new JsonParser().parse(response.getContent()).getAsJsonObject();
+    }
+
+    @Test
+    public void testCreatesBranchComponentsAndRows() throws Exception {
+        JsonObject json = call(new SimpleGetRequest()
+                .setParam("projects", "project1,project2")
+                .setParam("branch", "feature"));
+
+        Assert.assertEquals(2, json.getAsJsonArray("created").size());
+        Assert.assertEquals(0, json.getAsJsonArray("existing").size());
+        ComponentDto component = dbClient.componentDao().selectByKey(null, "project1:BRANCH:feature").get();
+        BranchDto branch = dbClient.branches.get(component.uuid());
+        Assert.assertEquals("p1", branch.getProjectUuid());
+        Assert.assertEquals("feature", branch.getKey());
+        Assert.assertEquals(BranchType.BRANCH, branch.getBranchType());
+        Assert.assertEquals("feature", dbClient.branchDao().selectByBranchKey(null, "p2", "feature").get().getKey());
+    }
+
+    @Test
+    public void testInsertsInBatchSession() throws Exception {
+        call(new SimpleGetRequest()
+                .setParam("projects", "project1,project2")
+                .setParam("branch", "feature"));
+
+        Assert.assertEquals(4, dbClient.batchedInserts);
+    }
+
+    @Test
+    public void testCreatesPullRequestRows() throws Exception {
+        call(new SimpleGetRequest()
+                .setParam("projects", "project1")
+                .setParam("pullRequest", "12"));
+
+        BranchDto pullRequest = dbClient.branchDao().selectByPullRequestKey(null, "p1", "12").get();
+        Assert.assertEquals(BranchType.PULL_REQUEST, pullRequest.getBranchType());
+        Assert.assertEquals("p1", pullRequest.getMergeBranchUuid());
+        Assert.assertNull(pullRequest.getPullRequestData());
+        Assert.assertTrue(dbClient.componentDao().selectByUuid(null, pullRequest.getUuid()).isPresent());
+    }
+
+    @Test
+    public void testLeavesExistingBranchesUnchanged() throws Exception {
+        call(new SimpleGetRequest().setParam("projects", "project1").setParam("branch", "feature"));
+        int branches = dbClient.branches.size();
+
+        JsonObject json = call(new SimpleGetRequest()
+                .setParam("projects", "project1,project2")
+                .setParam("branch", "feature"));
+
+        Assert.assertEquals(1, json.getAsJsonArray("created").size());
+        Assert.assertEquals(1, json.getAsJsonArray("existing").size());
+        Assert.assertEquals(branches + 1, dbClient.branches.size());
+    }
+
+    @Test
+    public void testMainBranchIsExisting() throws Exception {
+        JsonObject json = call(new SimpleGetRequest().setParam("projects", "project1").setParam("branch", "master"));
+
+        Assert.assertEquals(0, json.getAsJsonArray("created").size());
+        Assert.assertEquals("project1", json.getAsJsonArray("existing").get(0).getAsJsonObject().get("key").getAsString());
+    }
+
+    @Test
+    public void testDuplicateProjectIsProvisionedOnce() throws Exception {
+        JsonObject json = call(new SimpleGetRequest()
+                .setParam("projects", "project1,project2,project1")
+                .setParam("branch", "feature"));
+
+        Assert.assertEquals(2, json.getAsJsonArray("created").size());
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testUnknownProject() throws Exception {
+        call(new SimpleGetRequest().setParam("projects", "project1,unknown").setParam("branch", "feature"));
+    }
+
+    @Test
+    public void testRequiresPermissionOnEveryProject() throws Exception {
+        try {
+            new ProvisionAction(dbClient, FakeUserSession.denied(), branchSupport).handle(new SimpleGetRequest()
+                    .setParam("projects", "project1")
+                    .setParam("branch", "feature"), new FakeResponse());
+            Assert.fail();
+        } catch (ForbiddenException e) {
+            Assert.assertEquals(2, dbClient.branches.size());
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.github.empyrosx.sonarqube.server;
+
+import com.github.empyrosx.sonarqube.ce.DecorationSnapshot;
+import com.github.empyrosx.sonarqube.ce.DecorationStore;
+import com.github.empyrosx.sonarqube.ce.FakeDbClient;
+import com.github.empyrosx.sonarqube.ce.FakeGitlabServer;
+import com.github.empyrosx.sonarqube.ce.GitlabSettings;
+import org.junit.Assert;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.utils.System2;
+import org.sonar.db.DbSession;
+import org.sonar.db.component.BranchDto;
+import org.sonar.db.component.BranchType;
+import org.sonar.db.component.ComponentDto;
+import org.sonar.server.component.ComponentCleanerService;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class PullRequestPurgerTest {
+
+    private static final long NOW = 1_600_000_000_000L;
+    private static final long OLD = NOW - TimeUnit.DAYS.toMillis(40);
+    private static final long RECENT = NOW - TimeUnit.DAYS.toMillis(1);
+
+    private final FakeDbClient dbClient = new FakeDbClient();
+    private final List<String> deleted = new ArrayList<>();
+    private final ComponentCleanerService cleaner = new ComponentCleanerService(null, null, null) {
+        @Override
+        public void deleteBranch(DbSession dbSession, BranchDto branch) {
+            deleted.add(branch.getKey());
+            dbClient.branches.remove(branch.getUuid());
+        }
+    };
+    private final DecorationStore decorationStore = new DecorationStore(dbClient);
+    private final MapSettings settings = new MapSettings().setProperty(GitlabSettings.PURGE_PAUSE, "0");
+    private final System2 system2 = new System2() {
+        @Override
+        public long now() {
+            return NOW;
+        }
+    };
+
+    public PullRequestPurgerTest() {
+        dbClient.addProject("project", "project");
+        dbClient.addBranch("project", "project", "master", BranchType.BRANCH);
+        dbClient.addProperty("project", GitlabSettings.PURGE_ENABLED, "true");
+    }
+
+    private void addPullRequest(String key, Long createdAt, Long analysisDate) {
+        String uuid = "pr" + key;
+        dbClient.addBranch("project", uuid, key, BranchType.PULL_REQUEST);
+        if (createdAt != null) {
+            dbClient.components.put(uuid, new ComponentDto().setUuid(uuid).setDbKey("project:PULL_REQUEST:" + key)
+                    .setMainBranchProjectUuid("project").setCreatedAt(new Date(createdAt)));
+        }
+        if (analysisDate != null) {
+            dbClient.addAnalysis(uuid, analysisDate);
+        }
+    }
+
+    private void purge() throws InterruptedException {
+        new PullRequestPurger(dbClient, cleaner, decorationStore, settings.asConfig(), system2).purge();
+    }
+
+    @Test
+    public void testDeletesPullRequestsNotAnalyzedForDays() throws Exception {
+        addPullRequest("1", OLD, OLD);
+        addPullRequest("2", OLD, RECENT);
+
+        purge();
+
+        Assert.assertEquals(1, deleted.size());
+        Assert.assertEquals("1", deleted.get(0));
+    }
+
+    @Test
+    public void testDeletesDecorationOfPullRequest() throws Exception {
+        addPullRequest("1", OLD, OLD);
+        addPullRequest("2", OLD, RECENT);
+        for (String uuid : Arrays.asList("pr1", "pr2")) {
+            decorationStore.saveDecoration(uuid, new DecorationSnapshot("project", uuid, "sha", true,
+                    "https://sonar.example.com", Collections.emptyList()), "digest");
+        }
+
+        purge();
+
+        Assert.assertFalse(decorationStore.loadSnapshot("pr1").isPresent());
+        Assert.assertTrue(decorationStore.loadSnapshot("pr2").isPresent());
+    }
+
+    @Test
+    public void testNeverAnalyzedPullRequestsAgeFromCreation() throws Exception {
+        addPullRequest("1", RECENT, null);
+        addPullRequest("2", OLD, null);
+        addPullRequest("3", null, null);
+
+        purge();
+
+        Assert.assertEquals(1, deleted.size());
+        Assert.assertEquals("2", deleted.get(0));
+    }
+
+    @Test
+    public void testProjectDays() throws Exception {
+        dbClient.addProperty("project", GitlabSettings.PURGE_DAYS, "50");
+        addPullRequest("1", OLD, OLD);
+
+        purge();
+
+        Assert.assertTrue(deleted.isEmpty());
+    }
+
+    @Test
+    public void testBatchSize() throws Exception {
+        settings.setProperty(GitlabSettings.PURGE_BATCH_SIZE, "2");
+        addPullRequest("1", OLD, OLD);
+        addPullRequest("2", OLD, OLD);
+        addPullRequest("3", OLD, OLD);
+
+        purge();
+
+        Assert.assertEquals(2, deleted.size());
+    }
+
+    @Test
+    public void testProjectsAreNotQueriedOnceBatchIsDone() throws Exception {
+        settings.setProperty(GitlabSettings.PURGE_BATCH_SIZE, "1");
+        dbClient.addProject("other", "other");
+        dbClient.addProperty("other", GitlabSettings.PURGE_ENABLED, "true");
+        addPullRequest("1", OLD, OLD);
+
+        purge();
+
+        Assert.assertEquals(1, deleted.size());
+        Assert.assertEquals(1, dbClient.branchQueries);
+    }
+
+    @Test
+    public void testOutsideHours() throws Exception {
+        int hour = Instant.ofEpochMilli(NOW).atZone(ZoneId.systemDefault()).getHour();
+        settings.setProperty(GitlabSettings.PURGE_HOURS, ((hour + 1) % 24) + "-" + ((hour + 2) % 24));
+        addPullRequest("1", OLD, OLD);
+
+        purge();
+
+        Assert.assertTrue(deleted.isEmpty());
+    }
+
+    @Test
+    public void testInvalidHoursAllowAnyTime() throws Exception {
+        settings.setProperty(GitlabSettings.PURGE_HOURS, "1");
+        addPullRequest("1", OLD, OLD);
+
+        purge();
+
+        Assert.assertEquals(1, deleted.size());
+    }
+
+    @Test
+    public void testDeletesClosedMergeRequests() throws Exception {
+        try (FakeGitlabServer gitlab = new FakeGitlabServer()) {
+            gitlab.addMergeRequest(1, "merged").addMergeRequest(2, "opened").addMergeRequest(3, "closed");
+            dbClient.addProperty("project", GitlabSettings.PURGE_CLOSED, "true");
+            dbClient.addProperty("project", GitlabSettings.URL, gitlab.getUrl());
+            dbClient.addProperty("project", GitlabSettings.TOKEN, "token");
+            dbClient.addProperty("project", GitlabSettings.PROJECT, FakeGitlabServer.PROJECT);
+            addPullRequest("1", RECENT, RECENT);
+            addPullRequest("2", RECENT, RECENT);
+            addPullRequest("3", RECENT, RECENT);
+            addPullRequest("feature", RECENT, RECENT);
+
+            purge();
+
+            Assert.assertEquals(2, deleted.size());
+            Assert.assertTrue(deleted.contains("1"));
+            Assert.assertTrue(deleted.contains("3"));
+            Assert.assertEquals(Integer.valueOf(1), gitlab.getCalls().get("GET /merge_requests"));
+        }
+    }
+
+    @Test
+    public void testClosedMergeRequestsWithinBatchSize() throws Exception {
+        settings.setProperty(GitlabSettings.PURGE_BATCH_SIZE, "1");
+        try (FakeGitlabServer gitlab = new FakeGitlabServer()) {
+            gitlab.addMergeRequest(1, "merged");
+            dbClient.addProperty("project", GitlabSettings.PURGE_CLOSED, "true");
+            dbClient.addProperty("project", GitlabSettings.URL, gitlab.getUrl());
+            dbClient.addProperty("project", GitlabSettings.TOKEN, "token");
+            dbClient.addProperty("project", GitlabSettings.PROJECT, FakeGitlabServer.PROJECT);
+            addPullRequest("1", RECENT, RECENT);
+            addPullRequest("2", OLD, OLD);
+
+            purge();
+
+            Assert.assertEquals(1, deleted.size());
+            Assert.assertEquals("2", deleted.get(0));
+            Assert.assertNull("Gitlab is not called when the batch is full", gitlab.getCalls().get("GET /merge_requests"));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.github.empyrosx.sonarqube.server;
+
+import com.github.empyrosx.sonarqube.ce.DecorationSnapshot;
+import com.github.empyrosx.sonarqube.ce.DecorationStore;
+import com.github.empyrosx.sonarqube.ce.FakeDbClient;
+import com.github.empyrosx.sonarqube.ce.GitlabSettings;
+import com.github.empyrosx.sonarqube.ce.MergeRequestDecoration;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Assert;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.impl.ws.SimpleGetRequest;
+import org.sonar.db.component.BranchType;
+import org.sonar.server.exceptions.NotFoundException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class RedecorateActionTest {
+
+    private final FakeDbClient dbClient = new FakeDbClient();
+    private final DecorationStore decorationStore = new DecorationStore(dbClient);
+    private final List<String> decorated = new ArrayList<>();
+    private String staleRevision;
+    private boolean retryDuringDecoration;
+    private JsonObject retried;
+    private final MergeRequestDecoration decoration = new MergeRequestDecoration(null, null, new MapSettings().asConfig()) {
+        @Override
+        public boolean redecorate(GitlabSettings settings, DecorationSnapshot snapshot) {
+            if (snapshot.getRevision().equals(staleRevision)) {
+                throw new StaleSnapshotException("stale");
+            }
+            if (retryDuringDecoration) {
+                retryDuringDecoration = false;
+                try {
+                    retried = call(new SimpleGetRequest().setParam("project", "project").setParam("pullRequest", "4"));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            decorated.add(snapshot.getPullRequestKey());
+            return true;
+        }
+    };
+    private final MapSettings settings = new MapSettings()
+            .setProperty(GitlabSettings.URL, "https://gitlab.example.com")
+            .setProperty(GitlabSettings.TOKEN, "token")
+            .setProperty(GitlabSettings.PROJECT, "group/project");
+    private final RedecorateAction action = new RedecorateAction(dbClient, FakeUserSession.allowed(), settings.asConfig(),
+            decorationStore, decoration);
+
+    public RedecorateActionTest() {
+        dbClient.addProject("project", "project");
+        dbClient.addBranch("project", "project", "master", BranchType.BRANCH);
+        for (int i = 1; i <= 5; i++) {
+            dbClient.addBranch("project", "pr" + i, String.valueOf(i), BranchType.PULL_REQUEST);
+            decorationStore.saveDecoration("pr" + i, new DecorationSnapshot("project", String.valueOf(i), "sha" + i, true,
+                    "https://sonar.example.com", Collections.emptyList()), null);
+        }
+    }
+
+    private JsonObject call(SimpleGetRequest request) throws Exception {
+        FakeResponse response = new FakeResponse();
+        action.handle(request, response);
+        return new JsonParser().parse(response.getContent()).getAsJsonObject();
+    }
+
+    @Test
+    public void testDecoratesAtMostMaxPullRequests() throws Exception {
+        JsonObject json = call(new SimpleGetRequest().setParam("project", "project").setParam("max", "2"));
+
+        Assert.assertEquals(2, json.getAsJsonArray("pullRequests").size());
+        Assert.assertEquals("2", json.get("last").getAsString());
+        Assert.assertEquals(3, json.get("remaining").getAsInt());
+        Assert.assertEquals(Arrays.asList("1", "2"), decorated);
+    }
+
+    @Test
+    public void testNextCallContinuesWithUndecoratedPullRequests() throws Exception {
+        call(new SimpleGetRequest().setParam("project", "project").setParam("max", "2"));
+        call(new SimpleGetRequest().setParam("project", "project").setParam("max", "2"));
+        JsonObject json = call(new SimpleGetRequest().setParam("project", "project").setParam("max", "2"));
+
+        Assert.assertEquals(1, json.getAsJsonArray("pullRequests").size());
+        Assert.assertEquals(0, json.get("remaining").getAsInt());
+        Assert.assertEquals(5, decorated.size());
+        Assert.assertEquals(5, decorated.stream().distinct().count());
+    }
+
+    @Test
+    public void testFailedPullRequestsDoNotHoldBackNextOnes() throws Exception {
+        staleRevision = "sha1";
+        JsonObject json = call(new SimpleGetRequest().setParam("project", "project").setParam("max", "2"));
+        Assert.assertEquals("STALE", json.getAsJsonArray("pullRequests").get(0).getAsJsonObject().get("status").getAsString());
+        Assert.assertEquals(3, json.get("remaining").getAsInt());
+
+        while (json.get("remaining").getAsInt() > 0) {
+            json = call(new SimpleGetRequest().setParam("project", "project").setParam("max", "2")
+                    .setParam("after", json.get("last").getAsString()));
+        }
+
+        Assert.assertEquals(Arrays.asList("2", "3", "4", "5"), decorated);
+        Assert.assertEquals("5", json.get("last").getAsString());
+    }
+
+    @Test
+    public void testDecoratedPullRequestsAreNotRemaining() throws Exception {
+        call(new SimpleGetRequest().setParam("project", "project").setParam("pullRequest", "5"));
+
+        JsonObject json = call(new SimpleGetRequest().setParam("project", "project").setParam("max", "2"));
+
+        Assert.assertEquals(2, json.get("remaining").getAsInt());
+    }
+
+    @Test
+    public void testSinglePullRequest() throws Exception {
+        JsonObject json = call(new SimpleGetRequest().setParam("project", "project").setParam("pullRequest", "3"));
+
+        Assert.assertEquals(1, json.getAsJsonArray("pullRequests").size());
+        Assert.assertFalse(json.has("remaining"));
+        Assert.assertEquals(Collections.singletonList("3"), decorated);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxIsLimited() throws Exception {
+        call(new SimpleGetRequest().setParam("project", "project").setParam("max", String.valueOf(RedecorateAction.MAX_MAX + 1)));
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testUnknownPullRequest() throws Exception {
+        call(new SimpleGetRequest().setParam("project", "project").setParam("pullRequest", "9"));
+    }
+
+    @Test
+    public void testPullRequestBeingDecoratedIsSkipped() throws Exception {
+        retryDuringDecoration = true;
+        JsonObject json = call(new SimpleGetRequest().setParam("project", "project").setParam("pullRequest", "4"));
+
+        Assert.assertEquals("DECORATED", json.getAsJsonArray("pullRequests").get(0).getAsJsonObject().get("status").getAsString());
+        Assert.assertEquals("IN_PROGRESS", retried.getAsJsonArray("pullRequests").get(0).getAsJsonObject().get("status").getAsString());
+        Assert.assertEquals(Collections.singletonList("4"), decorated);
+    }
+
+    @Test
+    public void testStaleMergeRequestIsSkipped() throws Exception {
+        staleRevision = "sha2";
+
+        JsonObject json = call(new SimpleGetRequest().setParam("project", "project").setParam("pullRequest", "2"));
+
+        Assert.assertEquals("STALE", json.getAsJsonArray("pullRequests").get(0).getAsJsonObject().get("status").getAsString());
+        Assert.assertTrue(decorated.isEmpty());
+        Assert.assertFalse(decorationStore.isDecorated("pr2", DecorationStore.digest(decorationStore.loadSnapshot("pr2").get(),
+                GitlabSettings.of(settings.asConfig()::get))));
+    }
+}
@@ -0,0 +1,187 @@
+package com.github.empyrosx.sonarqube.scanner;
+
+import org.sonar.api.CoreProperties;
+import org.sonar.api.Startable;
+import org.sonar.api.scanner.ScannerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.scanner.bootstrap.GlobalConfiguration;
+import org.sonar.scanner.bootstrap.ScannerWsClient;
+import org.sonarqube.ws.client.GetRequest;
+import org.sonarqube.ws.client.HttpException;
+import org.sonarqube.ws.client.PostRequest;
+import org.sonarqube.ws.client.WsResponse;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.github.empyrosx.sonarqube.scanner.ScannerSettings.*;
+
+/**
+ * Downloads and uploads analysis cache of branches, the content hashes of files analyzed by the last analysis of a branch.
+ * <p>
+ * The cache of the reference branch is downloaded in background as soon as the branch is known, so pull request
+ * analysis can skip files which have the same content as on the reference branch.
+ * The cache is transferred gzipped and is decompressed while it is read.
+ */
+@ScannerSide
+public class AnalysisCache implements Startable {
+    private static final Logger LOG = Loggers.get(AnalysisCache.class);
+    private static final String DOWNLOAD_URL = "/api/branch_plugin/analysis_cache";
+    private static final String UPLOAD_URL = "/api/branch_plugin/upload_analysis_cache";
+    private static final String MEDIA_TYPE = "application/gzip";
+
+    private final ScannerWsClient wsClient;
+    private final GlobalConfiguration configuration;
+    private final boolean enabled;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "analysis-cache");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile CompletableFuture<Map<String, String>> hashes;
+
+    public AnalysisCache(ScannerWsClient wsClient, GlobalConfiguration configuration) {
+        this.wsClient = wsClient;
+        this.configuration = configuration;
+        this.enabled = configuration.getBoolean(SONAR_ANALYSIS_CACHE_ENABLED).orElse(false);
+    }
+
+    @Override
+    public void start() {
+        // nothing to do, the cache is downloaded once the reference branch is known
+    }
+
+    @Override
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts download of the reference branch cache, the main branch when name is null.
+     */
+    public synchronized void prefetch(@Nullable String branchName) {
+        if (enabled && hashes == null) {
+            hashes = CompletableFuture.supplyAsync(() -> download(branchName), executor);
+        }
+    }
+
+    /**
+     * Returns content hashes of the reference branch files by their project relative paths,
+     * empty when the cache wasn't prefetched or couldn't be downloaded.
+     */
+    public Map<String, String> getHashes() {
+        CompletableFuture<Map<String, String>> future = hashes;
+        return future == null ? Collections.emptyMap() : Utils.join(future);
+    }
+
+    private Map<String, String> download(@Nullable String branchName) {
+        long start = System.currentTimeMillis();
+        GetRequest request = new GetRequest(DOWNLOAD_URL + "?project=" + Utils.encodeForUrl(getProjectKey())
+                + (branchName == null ? "" : "&branch=" + Utils.encodeForUrl(branchName)));
+        try (WsResponse response = Utils.call(wsClient, request);
+             InputStream content = response.contentStream()) {
+            Map<String, String> result = read(content);
+            LOG.info("Analysis cache of {} files loaded", result.size());
+            return result;
+        } catch (HttpException e) {
+            if (404 == e.code()) {
+                LOG.info("No analysis cache of the reference branch, all files are analyzed");
+            } else {
+                LOG.warn("Could not load analysis cache from server, all files are analyzed", e);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not load analysis cache from server, all files are analyzed", e);
+        } finally {
+            LOG.debug("Load analysis cache (done) | time={}ms", System.currentTimeMillis() - start);
+        }
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Uploads content hashes of the branch files, the main branch when name is null.
+     * Failures are only logged, they don't fail the analysis.
+     */
+    public void upload(@Nullable String branchName, Map<String, String> fileHashes) {
+        long start = System.currentTimeMillis();
+        Path file = null;
+        try {
+            file = Files.createTempFile("analysis-cache", ".gz");
+            try (OutputStream output = Files.newOutputStream(file)) {
+                write(fileHashes, output);
+            }
+            PostRequest request = new PostRequest(UPLOAD_URL)
+                    .setParam("project", getProjectKey())
+                    .setPart("data", new PostRequest.Part(MEDIA_TYPE, file.toFile()));
+            if (branchName != null) {
+                request.setParam("branch", branchName);
+            }
+            Utils.call(wsClient, request).close();
+            LOG.info("Analysis cache of {} files uploaded", fileHashes.size());
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not upload analysis cache to server", e);
+        } finally {
+            if (file != null) {
+                file.toFile().delete();
+            }
+            LOG.debug("Upload analysis cache (done) | time={}ms", System.currentTimeMillis() - start);
+        }
+    }
+
+    private String getProjectKey() {
+        return configuration.get(CoreProperties.PROJECT_KEY_PROPERTY).orElse("");
+    }
+
+    /**
+     * Reads gzipped lines of content hash and file path separated by tab.
+     */
+    static Map<String, String> read(InputStream input) throws IOException {
+        Map<String, String> result = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(input), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0 && tab < line.length() - 1) {
+                    result.put(line.substring(tab + 1), line.substring(0, tab));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes content hashes by file paths as gzipped lines of hash and path separated by tab.
+     */
+    static void write(Map<String, String> fileHashes, OutputStream output) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(output), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, String> entry : fileHashes.entrySet()) {
+                writer.write(entry.getValue());
+                writer.write('\t');
+                writer.write(entry.getKey());
+                writer.write('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.empyrosx.sonarqube.scanner;
+
+import org.sonar.api.batch.fs.FileSystem;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultInputFile;
+import org.sonar.api.batch.postjob.PostJob;
+import org.sonar.api.batch.postjob.PostJobContext;
+import org.sonar.api.batch.postjob.PostJobDescriptor;
+import org.sonar.api.batch.sensor.SensorContext;
+import org.sonar.api.batch.sensor.SensorDescriptor;
+import org.sonar.api.scanner.sensor.ProjectSensor;
+import org.sonar.scanner.scan.branch.BranchConfiguration;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects content hashes of the analyzed files of a branch and uploads them as its analysis cache
+ * once the analysis report is submitted, so the upload doesn't delay the report.
+ * <p>
+ * Nothing is uploaded for pull requests.
+ */
+public class AnalysisCacheUploader implements ProjectSensor, PostJob {
+
+    private final AnalysisCache analysisCache;
+    private final BranchConfiguration branchConfiguration;
+    private Map<String, String> fileHashes;
+
+    public AnalysisCacheUploader(AnalysisCache analysisCache, BranchConfiguration branchConfiguration) {
+        this.analysisCache = analysisCache;
+        this.branchConfiguration = branchConfiguration;
+    }
+
+    @Override
+    public void describe(SensorDescriptor descriptor) {
+        descriptor.name("Analysis cache");
+    }
+
+    @Override
+    public void execute(SensorContext context) {
+        if (!analysisCache.isEnabled() || branchConfiguration.isPullRequest()) {
+            return;
+        }
+        FileSystem fileSystem = context.fileSystem();
+        Map<String, String> hashes = new HashMap<>();
+        for (InputFile inputFile : fileSystem.inputFiles(fileSystem.predicates().all())) {
+            if (inputFile instanceof DefaultInputFile) {
+                DefaultInputFile file = (DefaultInputFile) inputFile;
+                hashes.put(file.getProjectRelativePath(), file.md5Hash());
+            }
+        }
+        fileHashes = hashes;
+    }
+
+    @Override
+    public void describe(PostJobDescriptor descriptor) {
+        descriptor.name("Analysis cache upload");
+    }
+
+    @Override
+    public void execute(PostJobContext context) {
+        if (fileHashes != null) {
+            analysisCache.upload(branchConfiguration.branchName(), fileHashes);
+            fileHashes = null;
+        }
+    }
+}
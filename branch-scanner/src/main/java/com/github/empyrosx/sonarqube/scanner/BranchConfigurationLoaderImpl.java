@@ -5,6 +5,7 @@ import org.sonar.api.utils.log.Logger;
 import org.sonar.api.utils.log.Loggers;
 import org.sonar.scanner.scan.branch.*;
 
+import javax.annotation.Nullable;
 import java.util.*;
 
 import static com.github.empyrosx.sonarqube.scanner.ScannerSettings.*;
@@ -14,7 +15,15 @@ public class BranchConfigurationLoaderImpl implements BranchConfigurationLoader
     private static final Set<String> BRANCH_PARAMETERS = new HashSet<>(Arrays.asList(SONAR_BRANCH_NAME));
     private static final Set<String> PULL_REQUEST_PARAMETERS = new HashSet<>(Arrays.asList(SONAR_PR_KEY, SONAR_PR_BRANCH, SONAR_PR_BASE));
 
+    @Nullable
+    private final AnalysisCache analysisCache;
+
     public BranchConfigurationLoaderImpl() {
+        this(null);
+    }
+
+    public BranchConfigurationLoaderImpl(@Nullable AnalysisCache analysisCache) {
+        this.analysisCache = analysisCache;
     }
 
     @Override
@@ -24,7 +33,12 @@ public class BranchConfigurationLoaderImpl implements BranchConfigurationLoader
         }
 
         if (PULL_REQUEST_PARAMETERS.stream().anyMatch(localSettings::containsKey)) {
-            return createPullRequestConfiguration(localSettings, branches, pullRequests);
+            BranchConfiguration configuration = createPullRequestConfiguration(localSettings, branches, pullRequests);
+            if (analysisCache != null) {
+                // files unchanged since the reference branch are skipped by ChangedFilesFilter
+                analysisCache.prefetch(configuration.referenceBranchName());
+            }
+            return configuration;
         }
 
         return new DefaultBranchConfiguration();
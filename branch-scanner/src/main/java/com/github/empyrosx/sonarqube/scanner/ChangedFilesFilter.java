@@ -0,0 +1,181 @@
+package com.github.empyrosx.sonarqube.scanner;
+
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.InputFileFilter;
+import org.sonar.api.batch.fs.internal.DefaultInputFile;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.scanner.scan.branch.BranchConfiguration;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.empyrosx.sonarqube.scanner.ScannerSettings.*;
+
+/**
+ * Restricts pull request analysis to the files changed in the pull request.
+ * <p>
+ * Changed files are listed by git, from the merge base of the pull request base branch and HEAD.
+ * When they can not be listed, for example in a shallow clone without the base branch, files are compared
+ * with the content hashes of the analysis cache of the reference branch, if enabled. Otherwise all files are analyzed.
+ */
+public class ChangedFilesFilter implements InputFileFilter {
+
+    private static final Logger LOG = Loggers.get(ChangedFilesFilter.class);
+    private static final long GIT_TIMEOUT_SECONDS = 60;
+
+    @CheckForNull
+    private final Set<Path> changedFiles;
+    private final Map<String, String> referenceHashes;
+
+    public ChangedFilesFilter(Configuration configuration, BranchConfiguration branchConfiguration, AnalysisCache analysisCache) {
+        Set<Path> files = null;
+        if (branchConfiguration.isPullRequest() && configuration.getBoolean(SONAR_PR_CHANGED_FILES_ONLY).orElse(false)) {
+            files = findChangedFiles(configuration, branchConfiguration.targetBranchName());
+        }
+        this.changedFiles = files;
+
+        Map<String, String> hashes = Collections.emptyMap();
+        if (files == null && branchConfiguration.isPullRequest() && analysisCache.isEnabled()) {
+            hashes = analysisCache.getHashes();
+            if (!hashes.isEmpty()) {
+                LOG.info("Pull request analysis skips files unchanged since the last analysis of {}",
+                        branchConfiguration.referenceBranchName());
+            }
+        }
+        this.referenceHashes = hashes;
+    }
+
+    @Override
+    public boolean accept(InputFile inputFile) {
+        if (changedFiles != null) {
+            return changedFiles.contains(inputFile.path().toAbsolutePath().normalize());
+        }
+        if (!referenceHashes.isEmpty() && inputFile instanceof DefaultInputFile) {
+            DefaultInputFile file = (DefaultInputFile) inputFile;
+            return !file.md5Hash().equals(referenceHashes.get(file.getProjectRelativePath()));
+        }
+        return true;
+    }
+
+    @CheckForNull
+    private static Set<Path> findChangedFiles(Configuration configuration, @Nullable String base) {
+        if (base == null) {
+            LOG.warn("Pull request base is unknown, changed files are not listed");
+            return null;
+        }
+
+        Path baseDir = Paths.get(configuration.get("sonar.projectBaseDir").orElse(".")).toAbsolutePath().normalize();
+        try {
+            Set<Path> files = findChangedFiles(baseDir, base);
+            if (files == null) {
+                LOG.warn("Could not find git revision of pull request base {}, changed files are not listed", base);
+            } else {
+                LOG.info("Pull request analysis is restricted to {} files changed since {}", files.size(), base);
+            }
+            return files;
+        } catch (IOException e) {
+            LOG.warn("Could not list files changed since {}", base, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns absolute paths of files changed between the merge base of the base branch and HEAD,
+     * or null when neither the branch nor its remote tracking branch is found.
+     */
+    @CheckForNull
+    static Set<Path> findChangedFiles(Path baseDir, String base) throws IOException {
+        String revision = null;
+        for (String candidate : Arrays.asList(base, "origin/" + base)) {
+            if (git(baseDir, "rev-parse", "--verify", "--quiet", candidate + "^{commit}") != null) {
+                revision = candidate;
+                break;
+            }
+        }
+        if (revision == null) {
+            return null;
+        }
+
+        byte[] root = git(baseDir, "rev-parse", "--show-cdup");
+        byte[] names = git(baseDir, "diff", "--name-only", "-z", "--diff-filter=d", revision + "...HEAD");
+        if (root == null || names == null) {
+            throw new IOException("git diff failed against " + revision);
+        }
+        Path rootDir = baseDir.resolve(new String(root, StandardCharsets.UTF_8).trim()).normalize();
+        Set<Path> files = new HashSet<>();
+        for (String name : parseNames(names)) {
+            files.add(rootDir.resolve(name).normalize());
+        }
+        return files;
+    }
+
+    /**
+     * Splits NUL separated file names printed by git with -z.
+     */
+    static List<String> parseNames(byte[] output) {
+        String text = new String(output, StandardCharsets.UTF_8);
+        List<String> names = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\0') {
+                if (i > start) {
+                    names.add(text.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+        if (start < text.length()) {
+            names.add(text.substring(start));
+        }
+        return names;
+    }
+
+    /**
+     * Runs git in the directory, returns its output or null when it exits with an error.
+     */
+    @CheckForNull
+    private static byte[] git(Path directory, String... arguments) throws IOException {
+        String[] command = new String[arguments.length + 1];
+        command[0] = "git";
+        System.arraycopy(arguments, 0, command, 1, arguments.length);
+        Process process = new ProcessBuilder(command)
+                .directory(directory.toFile())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream input = process.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        }
+        try {
+            if (!process.waitFor(GIT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                throw new IOException("git " + arguments[0] + " timed out");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroyForcibly();
+            throw new IOException("Interrupted while waiting for git", e);
+        }
+        return process.exitValue() == 0 ? output.toByteArray() : null;
+    }
+}
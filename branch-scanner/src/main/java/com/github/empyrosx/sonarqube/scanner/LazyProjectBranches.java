@@ -0,0 +1,59 @@
+package com.github.empyrosx.sonarqube.scanner;
+
+import org.sonar.scanner.scan.branch.BranchInfo;
+import org.sonar.scanner.scan.branch.ProjectBranches;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Branches of the project which are requested from the server on first access.
+ * <p>
+ * A branch which was not returned by the lookup of this analysis is requested by its name,
+ * the whole list is downloaded only when the server doesn't provide the lookup.
+ */
+class LazyProjectBranches extends ProjectBranches {
+
+    private final ProjectDataFetcher fetcher;
+    @Nullable
+    private final String projectKey;
+    private final Map<String, Optional<BranchInfo>> requested = new HashMap<>();
+    private ProjectBranches loaded;
+
+    LazyProjectBranches(ProjectDataFetcher fetcher, @Nullable String projectKey) {
+        super(Collections.emptyList());
+        this.fetcher = fetcher;
+        this.projectKey = projectKey;
+    }
+
+    @CheckForNull
+    @Override
+    public synchronized BranchInfo get(String name) {
+        BranchInfo result = loaded().get(name);
+        if (result == null && fetcher.isLookupAvailable(projectKey)) {
+            result = requested.computeIfAbsent(name, key -> fetcher.lookupBranch(projectKey, key)).orElse(null);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return loaded().isEmpty();
+    }
+
+    @Override
+    public synchronized String defaultBranchName() {
+        return loaded().defaultBranchName();
+    }
+
+    private ProjectBranches loaded() {
+        if (loaded == null) {
+            loaded = new ProjectBranches(fetcher.getBranches(projectKey));
+        }
+        return loaded;
+    }
+}
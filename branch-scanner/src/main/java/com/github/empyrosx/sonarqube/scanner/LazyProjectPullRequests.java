@@ -0,0 +1,43 @@
+package com.github.empyrosx.sonarqube.scanner;
+
+import org.sonar.scanner.scan.branch.ProjectPullRequests;
+import org.sonar.scanner.scan.branch.PullRequestInfo;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+
+/**
+ * Pull requests of the project which are requested from the server on first access.
+ */
+class LazyProjectPullRequests extends ProjectPullRequests {
+
+    private final ProjectDataFetcher fetcher;
+    @Nullable
+    private final String projectKey;
+    private ProjectPullRequests loaded;
+
+    LazyProjectPullRequests(ProjectDataFetcher fetcher, @Nullable String projectKey) {
+        super(Collections.emptyList());
+        this.fetcher = fetcher;
+        this.projectKey = projectKey;
+    }
+
+    @CheckForNull
+    @Override
+    public synchronized PullRequestInfo get(String branch) {
+        return loaded().get(branch);
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return loaded().isEmpty();
+    }
+
+    private ProjectPullRequests loaded() {
+        if (loaded == null) {
+            loaded = new ProjectPullRequests(fetcher.getPullRequests(projectKey));
+        }
+        return loaded;
+    }
+}
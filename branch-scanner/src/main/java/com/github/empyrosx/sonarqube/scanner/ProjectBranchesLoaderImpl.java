@@ -1,79 +1,87 @@
 package com.github.empyrosx.sonarqube.scanner;
 
-import org.sonar.api.utils.MessageException;
-import org.sonar.api.utils.log.Logger;
-import org.sonar.api.utils.log.Loggers;
-import org.sonar.scanner.bootstrap.ScannerWsClient;
-import org.sonar.scanner.protocol.GsonHelper;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import org.sonar.scanner.scan.branch.BranchInfo;
 import org.sonar.scanner.scan.branch.BranchType;
 import org.sonar.scanner.scan.branch.ProjectBranches;
 import org.sonar.scanner.scan.branch.ProjectBranchesLoader;
-import org.sonarqube.ws.client.GetRequest;
-import org.sonarqube.ws.client.HttpException;
-import org.sonarqube.ws.client.WsRequest;
-import org.sonarqube.ws.client.WsResponse;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.Reader;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
 
 public class ProjectBranchesLoaderImpl implements ProjectBranchesLoader {
-    private static final Logger LOG = Loggers.get(ProjectBranchesLoaderImpl.class);
     private static final String PROJECT_BRANCHES_URL = "/api/project_branches/list";
-    private final ScannerWsClient wsClient;
+    private final ProjectDataFetcher fetcher;
 
-    public ProjectBranchesLoaderImpl(ScannerWsClient wsClient) {
-        this.wsClient = wsClient;
+    public ProjectBranchesLoaderImpl(ProjectDataFetcher fetcher) {
+        this.fetcher = fetcher;
     }
 
     public ProjectBranches load(@Nullable String projectKey) {
-        return new ProjectBranches(this.loadBranchInfos(projectKey));
+        return new LazyProjectBranches(fetcher, projectKey);
     }
 
-    private List<BranchInfo> loadBranchInfos(String projectKey) {
-        GetRequest request = new GetRequest(getUrl(projectKey));
+    static String getUrl(String projectKey) {
+        return PROJECT_BRANCHES_URL + "?project=" + Utils.encodeForUrl(projectKey);
+    }
 
-        try (WsResponse response = Utils.call(wsClient, request)) {
-            return parseResponse(response);
-        } catch (IOException e) {
-            throw MessageException.of("Could not load branches from server", e);
-        } catch (HttpException e) {
-            if (404 == e.code()) {
-                return Collections.emptyList();
+    /**
+     * Reads branches straight from the stream, the response is never bound as a whole.
+     */
+    static List<BranchInfo> parseResponse(Reader reader) throws IOException {
+        List<BranchInfo> result = new ArrayList<>();
+        JsonReader json = new JsonReader(reader);
+        json.beginObject();
+        while (json.hasNext()) {
+            if ("branches".equals(json.nextName())) {
+                json.beginArray();
+                while (json.hasNext()) {
+                    result.add(readBranch(json));
+                }
+                json.endArray();
             } else {
-                throw MessageException.of("Could not load branches from server", e);
+                json.skipValue();
             }
         }
+        json.endObject();
+        return result;
     }
 
-    private static String getUrl(String projectKey) {
-        return PROJECT_BRANCHES_URL + "?project=" + Utils.encodeForUrl(projectKey);
-    }
+    private static BranchInfo readBranch(JsonReader json) throws IOException {
+        String name = null;
+        String type = null;
+        boolean isMain = false;
+        String mergeBranch = null;
 
-    private static List<BranchInfo> parseResponse(WsResponse response) throws IOException {
-        try (Reader reader = response.contentReader()) {
-            WsProjectBranchesResponse branchesResponse = GsonHelper.create().fromJson(reader, WsProjectBranchesResponse.class);
-            return branchesResponse.branches.stream()
-                    .map((data) -> new BranchInfo(data.name, BranchType.valueOf(data.type), data.isMain, data.mergeBranch))
-                    .collect(Collectors.toList());
+        json.beginObject();
+        while (json.hasNext()) {
+            String field = json.nextName();
+            if (json.peek() == JsonToken.NULL) {
+                json.nextNull();
+                continue;
+            }
+            switch (field) {
+                case "name":
+                    name = json.nextString();
+                    break;
+                case "type":
+                    type = json.nextString();
+                    break;
+                case "isMain":
+                    isMain = json.nextBoolean();
+                    break;
+                case "mergeBranch":
+                    mergeBranch = json.nextString();
+                    break;
+                default:
+                    json.skipValue();
+            }
         }
-    }
-
-    private static class WsProjectBranchesResponse {
-        private List<WsProjectBranch> branches = new ArrayList<>();
-    }
-
-    private static class WsProjectBranch {
-        private String name;
-        private String type;
-        private boolean isMain;
-        private String mergeBranch;
+        json.endObject();
+        return new BranchInfo(name, BranchType.valueOf(type), isMain, mergeBranch);
     }
 }
@@ -0,0 +1,287 @@
+package com.github.empyrosx.sonarqube.scanner;
+
+import org.sonar.api.config.Configuration;
+import org.sonar.api.scanner.ScannerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.scanner.bootstrap.GlobalConfiguration;
+import org.sonarqube.ws.client.GetRequest;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.empyrosx.sonarqube.scanner.ScannerSettings.*;
+
+/**
+ * Keeps responses of branch lookups and of branch and pull request lists in the scanner user home.
+ * <p>
+ * Entries are keyed by server URL and request path, and keep the validators returned by the server,
+ * so the next request can be made conditional and answered with 304 when nothing has changed.
+ * Validators are kept on the first line of the content file, the time of the last validation in a separate file.
+ * Content is read from disk only when the server confirms it or doesn't answer.
+ */
+@ScannerSide
+public class ProjectDataCache {
+    private static final Logger LOG = Loggers.get(ProjectDataCache.class);
+    private static final String DEFAULT_SERVER_URL = "http://localhost:9000";
+    private static final long DEFAULT_MAX_STALE_SECONDS = TimeUnit.DAYS.toSeconds(1);
+
+    private static final String CONTENT_SUFFIX = ".entry";
+    private static final String VALIDATED_AT = "validatedAt";
+
+    private final boolean enabled;
+    private final Path directory;
+    private final String serverUrl;
+    private final long maxStaleMillis;
+
+    public ProjectDataCache(GlobalConfiguration configuration) {
+        this(configuration.getBoolean(SONAR_BRANCH_CACHE_ENABLED).orElse(true),
+                getUserHome(configuration).resolve("cache").resolve("branch-plugin"),
+                configuration.get("sonar.host.url").orElse(DEFAULT_SERVER_URL),
+                TimeUnit.SECONDS.toMillis(configuration.getLong(SONAR_BRANCH_CACHE_MAX_STALE).orElse(DEFAULT_MAX_STALE_SECONDS)));
+    }
+
+    ProjectDataCache(boolean enabled, Path directory, String serverUrl, long maxStaleMillis) {
+        this.enabled = enabled;
+        this.directory = directory;
+        this.serverUrl = serverUrl;
+        this.maxStaleMillis = maxStaleMillis;
+    }
+
+    private static Path getUserHome(Configuration configuration) {
+        Optional<String> path = configuration.get("sonar.userHome");
+        if (path.isPresent()) {
+            return Paths.get(path.get());
+        }
+        String env = System.getenv("SONAR_USER_HOME");
+        if (env != null && !env.isEmpty()) {
+            return Paths.get(env);
+        }
+        return Paths.get(System.getProperty("user.home"), ".sonar");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns cached response for request path regardless of its age.
+     */
+    public Optional<Entry> get(String path) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+
+        Path content = directory.resolve(key(path) + CONTENT_SUFFIX);
+        Path metadata = directory.resolve(key(path) + ".properties");
+        if (!Files.exists(content)) {
+            return Optional.empty();
+        }
+
+        try {
+            String[] validators;
+            try (BufferedReader reader = Files.newBufferedReader(content, StandardCharsets.UTF_8)) {
+                String header = reader.readLine();
+                validators = header == null ? new String[0] : header.split(" ", -1);
+            }
+            if (validators.length != 2) {
+                LOG.debug("Ignoring broken cache entry {}", content);
+                return Optional.empty();
+            }
+            return Optional.of(new Entry(content, metadata, decode(validators[0]), decode(validators[1]), readValidatedAt(metadata)));
+        } catch (IOException | NumberFormatException e) {
+            LOG.debug("Ignoring broken cache entry {}", content, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Returns cached response which was validated by the server not long ago enough to be used when the server is unavailable.
+     */
+    public Optional<Entry> getStale(String path) {
+        return get(path).filter(entry -> System.currentTimeMillis() - entry.validatedAt <= maxStaleMillis);
+    }
+
+    /**
+     * Stores response content, replacing previous entry for the same request, and returns the new entry.
+     * The entry is empty when the cache is disabled or can't be written, the content is then left unread.
+     * <p>
+     * Content is copied to disk as it is received, without being held in memory. Validators are stored
+     * in the content file, so an entry written by another scan never pairs the validators of one response
+     * with the content of another. Both files are replaced atomically.
+     */
+    public Optional<Entry> put(String path, @Nullable String etag, @Nullable String lastModified, InputStream content) throws IOException {
+        if (!enabled) {
+            return Optional.empty();
+        }
+
+        Path contentFile = directory.resolve(key(path) + CONTENT_SUFFIX);
+        Path metadataFile = directory.resolve(key(path) + ".properties");
+        Path tmp;
+        try {
+            Files.createDirectories(directory);
+            tmp = Files.createTempFile(directory, contentFile.getFileName().toString(), ".tmp");
+        } catch (IOException e) {
+            LOG.debug("Could not write cache entry {}", contentFile, e);
+            return Optional.empty();
+        }
+        try {
+            try (OutputStream output = Files.newOutputStream(tmp)) {
+                output.write((encode(etag) + " " + encode(lastModified) + "\n").getBytes(StandardCharsets.UTF_8));
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = content.read(buffer)) != -1) {
+                    output.write(buffer, 0, read);
+                }
+            }
+            Files.move(tmp, contentFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        Entry entry = new Entry(contentFile, metadataFile, etag, lastModified, System.currentTimeMillis());
+        touch(entry);
+        return Optional.of(entry);
+    }
+
+    /**
+     * Marks entry as confirmed by the server.
+     */
+    public void touch(Entry entry) {
+        Entry validated = new Entry(entry.content, entry.metadata, entry.etag, entry.lastModified, System.currentTimeMillis());
+        try {
+            writeMetadata(validated);
+        } catch (IOException e) {
+            LOG.debug("Could not update cache entry {}", entry.metadata, e);
+        }
+    }
+
+    /**
+     * Returns when the entry was last validated by the server, or 0 when it's not known.
+     */
+    private static long readValidatedAt(Path metadata) throws IOException {
+        if (!Files.exists(metadata)) {
+            return 0;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(metadata, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        return Long.parseLong(properties.getProperty(VALIDATED_AT, "0"));
+    }
+
+    private static void writeMetadata(Entry entry) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(VALIDATED_AT, String.valueOf(entry.validatedAt));
+        StringWriter writer = new StringWriter();
+        properties.store(writer, null);
+        writeAtomically(entry.metadata, writer.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes the file through a temporary file, so concurrent scans sharing the user home never read a partial file.
+     */
+    private static void writeAtomically(Path file, byte[] bytes) throws IOException {
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, bytes);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static String encode(@Nullable String value) throws UnsupportedEncodingException {
+        return value == null ? "" : URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+    }
+
+    @CheckForNull
+    private static String decode(String value) throws UnsupportedEncodingException {
+        return value.isEmpty() ? null : URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+    }
+
+    private String key(String path) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest((serverUrl + path).getBytes(StandardCharsets.UTF_8));
+            StringBuilder result = new StringBuilder();
+            for (byte b : hash) {
+                result.append(String.format("%02x", b));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported", e);
+        }
+    }
+
+    public static class Entry {
+        private final Path content;
+        private final Path metadata;
+        @Nullable
+        private final String etag;
+        @Nullable
+        private final String lastModified;
+        private final long validatedAt;
+
+        private Entry(Path content, Path metadata, @Nullable String etag, @Nullable String lastModified, long validatedAt) {
+            this.content = content;
+            this.metadata = metadata;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.validatedAt = validatedAt;
+        }
+
+        /**
+         * Makes request conditional, so the server can answer with 304 instead of the content.
+         */
+        public void addValidators(GetRequest request) {
+            if (etag != null) {
+                request.setHeader("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                request.setHeader("If-Modified-Since", lastModified);
+            }
+        }
+
+        @CheckForNull
+        String getEtag() {
+            return etag;
+        }
+
+        public long getValidatedAt() {
+            return validatedAt;
+        }
+
+        /**
+         * Opens the content, positioned after the validators.
+         */
+        public Reader openReader() throws IOException {
+            BufferedReader reader = Files.newBufferedReader(content, StandardCharsets.UTF_8);
+            try {
+                reader.readLine();
+            } catch (IOException e) {
+                reader.close();
+                throw e;
+            }
+            return reader;
+        }
+    }
+}
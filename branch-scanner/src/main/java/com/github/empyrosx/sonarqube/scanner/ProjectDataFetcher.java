@@ -0,0 +1,288 @@
+package com.github.empyrosx.sonarqube.scanner;
+
+import org.sonar.api.CoreProperties;
+import org.sonar.api.Startable;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.scanner.ScannerSide;
+import org.sonar.api.utils.MessageException;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.scanner.bootstrap.GlobalConfiguration;
+import org.sonar.scanner.bootstrap.ScannerWsClient;
+import org.sonar.scanner.scan.branch.BranchInfo;
+import org.sonar.scanner.scan.branch.PullRequestInfo;
+import org.sonarqube.ws.client.GetRequest;
+import org.sonarqube.ws.client.HttpException;
+import org.sonarqube.ws.client.WsResponse;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.github.empyrosx.sonarqube.scanner.ScannerSettings.*;
+
+/**
+ * Fetches branches and pull requests of the project in background.
+ * <p>
+ * Requests are started as soon as the scanner container starts, so they run concurrently with each other
+ * and with the rest of the bootstrap. Branches are requested for branch and pull request analysis, pull requests
+ * are only requested when their list is accessed, and nothing is requested for analysis of the main branch unless
+ * the lists are accessed.
+ * <p>
+ * When the server provides the branch plugin web service, only the branches and the pull request of this analysis
+ * are requested, otherwise the whole lists are downloaded.
+ * <p>
+ * Responses are kept in {@link ProjectDataCache} and revalidated on the next analysis. When the server fails
+ * or doesn't answer in time, a cached copy which is not too old is used while the request completes in background.
+ */
+@ScannerSide
+public class ProjectDataFetcher implements Startable {
+    private static final Logger LOG = Loggers.get(ProjectDataFetcher.class);
+    private static final long DEFAULT_STALE_TIMEOUT_MS = 10_000;
+    private static final String LOOKUP_URL = "/api/branch_plugin/lookup";
+
+    private final Object wsClient;
+    private final Configuration configuration;
+    private final ProjectDataCache cache;
+    private final long staleTimeoutMs;
+    private final ExecutorService executor = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "project-data-fetcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, CompletableFuture<Optional<String>>> lookups = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<List<BranchInfo>>> branches = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<List<PullRequestInfo>>> pullRequests = new ConcurrentHashMap<>();
+
+    public ProjectDataFetcher(ScannerWsClient wsClient, GlobalConfiguration configuration, ProjectDataCache cache) {
+        this((Object) wsClient, configuration, cache);
+    }
+
+    ProjectDataFetcher(Object wsClient, Configuration configuration, ProjectDataCache cache) {
+        this.wsClient = wsClient;
+        this.configuration = configuration;
+        this.cache = cache;
+        this.staleTimeoutMs = configuration.getLong(SONAR_BRANCH_CACHE_STALE_TIMEOUT).orElse(DEFAULT_STALE_TIMEOUT_MS);
+    }
+
+    @Override
+    public void start() {
+        String projectKey = configuration.get(CoreProperties.PROJECT_KEY_PROPERTY).orElse(null);
+        if (projectKey == null) {
+            return;
+        }
+
+        if (isPullRequestAnalysis() || isBranchAnalysis()) {
+            branches(projectKey);
+        }
+    }
+
+    @Override
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    public boolean isBranchAnalysis() {
+        return configuration.hasKey(SONAR_BRANCH_NAME);
+    }
+
+    public boolean isPullRequestAnalysis() {
+        return configuration.hasKey(SONAR_PR_KEY) || configuration.hasKey(SONAR_PR_BRANCH) || configuration.hasKey(SONAR_PR_BASE);
+    }
+
+    public List<BranchInfo> getBranches(@Nullable String projectKey) {
+        String url = ProjectBranchesLoaderImpl.getUrl(projectKey);
+        return await(branches(projectKey), projectKey, url, "branches", ProjectBranchesLoaderImpl::parseResponse);
+    }
+
+    public List<PullRequestInfo> getPullRequests(@Nullable String projectKey) {
+        String url = ProjectPullRequestsLoaderImpl.getUrl(projectKey);
+        return await(pullRequests(projectKey), projectKey, url, "pull requests", ProjectPullRequestsLoaderImpl::parseResponse);
+    }
+
+    /**
+     * Tells whether the branches of this analysis were returned by the lookup rather than by the whole list.
+     */
+    public boolean isLookupAvailable(@Nullable String projectKey) {
+        CompletableFuture<Optional<String>> lookup = lookup(nullToEmpty(projectKey));
+        return lookup.isDone() && !lookup.isCompletedExceptionally() && lookup.join().isPresent();
+    }
+
+    /**
+     * Requests single branch by its name.
+     */
+    public Optional<BranchInfo> lookupBranch(@Nullable String projectKey, String name) {
+        if (getRequestedBranches().contains(name)) {
+            // already requested by the lookup of this analysis
+            return Optional.empty();
+        }
+        String url = LOOKUP_URL + "?project=" + Utils.encodeForUrl(projectKey) + "&branch=" + Utils.encodeForUrl(name);
+        return fetch(url, "branch lookup", ProjectBranchesLoaderImpl::parseResponse)
+                .flatMap(branches -> branches.stream().filter(b -> name.equals(b.name())).findFirst());
+    }
+
+    private CompletableFuture<List<BranchInfo>> branches(@Nullable String projectKey) {
+        return branches.computeIfAbsent(nullToEmpty(projectKey), key -> lookup(key).thenApplyAsync(response -> response.isPresent()
+                ? parse(response.get(), "branches", ProjectBranchesLoaderImpl::parseResponse)
+                : fetchList(ProjectBranchesLoaderImpl.getUrl(key), "branches", ProjectBranchesLoaderImpl::parseResponse), executor));
+    }
+
+    private CompletableFuture<List<PullRequestInfo>> pullRequests(@Nullable String projectKey) {
+        return pullRequests.computeIfAbsent(nullToEmpty(projectKey), key -> lookup(key).thenApplyAsync(response -> response.isPresent()
+                ? parse(response.get(), "pull requests", ProjectPullRequestsLoaderImpl::parseResponse)
+                : fetchList(ProjectPullRequestsLoaderImpl.getUrl(key), "pull requests", ProjectPullRequestsLoaderImpl::parseResponse), executor));
+    }
+
+    /**
+     * Asks the plugin web service for the branches and the pull request of this analysis only.
+     * The response is empty when the server doesn't provide the service. It is small, so it is kept
+     * in memory to be parsed for both lists.
+     */
+    private CompletableFuture<Optional<String>> lookup(String projectKey) {
+        return lookups.computeIfAbsent(projectKey, key -> CompletableFuture.supplyAsync(() -> {
+            Optional<String> content = fetch(getLookupUrl(key), "branch lookup", ProjectDataFetcher::readAll);
+            if (!content.isPresent()) {
+                LOG.debug("Branch lookup is not available, loading all branches and pull requests");
+            }
+            return content;
+        }, executor));
+    }
+
+    private String getLookupUrl(String projectKey) {
+        StringBuilder url = new StringBuilder(LOOKUP_URL).append("?project=").append(Utils.encodeForUrl(projectKey));
+        getRequestedBranches().forEach(name -> url.append("&branch=").append(Utils.encodeForUrl(name)));
+        configuration.get(SONAR_PR_KEY).ifPresent(key -> url.append("&pullRequest=").append(Utils.encodeForUrl(key)));
+        return url.toString();
+    }
+
+    private <T> List<T> await(CompletableFuture<List<T>> future, @Nullable String projectKey, String url, String name, ResponseParser<List<T>> parser) {
+        Optional<ProjectDataCache.Entry> stale = cache.getStale(getLookupUrl(nullToEmpty(projectKey)));
+        if (!stale.isPresent()) {
+            stale = cache.getStale(url);
+        }
+        if (!stale.isPresent()) {
+            return Utils.join(future);
+        }
+
+        try {
+            return future.get(staleTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            LOG.warn("Server is slow to return {}, using cached copy from {}", name, new Date(stale.get().getValidatedAt()));
+        } catch (ExecutionException e) {
+            LOG.warn("Could not load {} from server, using cached copy from {}", name, new Date(stale.get().getValidatedAt()), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading " + name, e);
+        }
+        return parse(stale.get(), name, parser);
+    }
+
+    private <T> List<T> fetchList(String url, String name, ResponseParser<List<T>> parser) {
+        return fetch(url, name, parser).orElse(Collections.emptyList());
+    }
+
+    /**
+     * Requests url, conditionally when the response is cached, and parses the response. The result is empty
+     * when the server answers with 404.
+     * <p>
+     * A new response is streamed into the cache and parsed from there, or parsed as it is received when
+     * the cache is disabled, so large lists are never held in memory as text.
+     */
+    private <T> Optional<T> fetch(String url, String name, ResponseParser<T> parser) {
+        long start = System.currentTimeMillis();
+        Optional<ProjectDataCache.Entry> cached = cache.get(url);
+        GetRequest request = new GetRequest(url);
+        cached.ifPresent(entry -> entry.addValidators(request));
+
+        try (WsResponse response = Utils.call(wsClient, request)) {
+            if (HttpURLConnection.HTTP_NOT_MODIFIED == response.code() && cached.isPresent()) {
+                return Optional.of(revalidated(cached.get(), name, parser));
+            }
+            Optional<ProjectDataCache.Entry> entry = cache.put(url, response.header("ETag").orElse(null),
+                    response.header("Last-Modified").orElse(null), response.contentStream());
+            if (entry.isPresent()) {
+                return Optional.of(parse(entry.get(), name, parser));
+            }
+            try (Reader reader = new InputStreamReader(response.contentStream(), StandardCharsets.UTF_8)) {
+                return Optional.of(parser.parse(reader));
+            }
+        } catch (IOException e) {
+            throw MessageException.of("Could not load " + name + " from server", e);
+        } catch (HttpException e) {
+            if (HttpURLConnection.HTTP_NOT_MODIFIED == e.code() && cached.isPresent()) {
+                return Optional.of(revalidated(cached.get(), name, parser));
+            } else if (HttpURLConnection.HTTP_NOT_FOUND == e.code()) {
+                return Optional.empty();
+            } else {
+                throw MessageException.of("Could not load " + name + " from server", e);
+            }
+        } finally {
+            LOG.debug("Load {} (done) | time={}ms", name, System.currentTimeMillis() - start);
+        }
+    }
+
+    private <T> T revalidated(ProjectDataCache.Entry entry, String name, ResponseParser<T> parser) {
+        LOG.debug("Cached copy of {} is up to date", name);
+        cache.touch(entry);
+        return parse(entry, name, parser);
+    }
+
+    private List<String> getRequestedBranches() {
+        List<String> result = new ArrayList<>();
+        configuration.get(SONAR_BRANCH_NAME).ifPresent(result::add);
+        configuration.get(SONAR_PR_BASE).ifPresent(result::add);
+        return result;
+    }
+
+    private static <T> T parse(String content, String name, ResponseParser<T> parser) {
+        try (Reader reader = new StringReader(content)) {
+            return parser.parse(reader);
+        } catch (IOException e) {
+            throw MessageException.of("Could not parse " + name, e);
+        }
+    }
+
+    private static <T> T parse(ProjectDataCache.Entry entry, String name, ResponseParser<T> parser) {
+        try (Reader reader = entry.openReader()) {
+            return parser.parse(reader);
+        } catch (IOException e) {
+            throw MessageException.of("Could not read cached " + name, e);
+        }
+    }
+
+    private static String readAll(Reader reader) throws IOException {
+        StringBuilder result = new StringBuilder();
+        char[] buffer = new char[8192];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            result.append(buffer, 0, read);
+        }
+        return result.toString();
+    }
+
+    private static String nullToEmpty(@Nullable String value) {
+        return value == null ? "" : value;
+    }
+
+    @FunctionalInterface
+    interface ResponseParser<T> {
+        T parse(Reader reader) throws IOException;
+    }
+}
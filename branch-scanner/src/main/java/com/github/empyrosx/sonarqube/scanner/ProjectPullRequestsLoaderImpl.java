@@ -1,16 +1,12 @@
 package com.github.empyrosx.sonarqube.scanner;
 
-import org.sonar.api.utils.MessageException;
-import org.sonar.api.utils.log.Logger;
-import org.sonar.api.utils.log.Loggers;
-import org.sonar.scanner.bootstrap.ScannerWsClient;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import org.sonar.scanner.protocol.GsonHelper;
 import org.sonar.scanner.scan.branch.ProjectPullRequests;
 import org.sonar.scanner.scan.branch.ProjectPullRequestsLoader;
 import org.sonar.scanner.scan.branch.PullRequestInfo;
-import org.sonarqube.ws.client.GetRequest;
-import org.sonarqube.ws.client.HttpException;
-import org.sonarqube.ws.client.WsResponse;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
@@ -19,59 +15,82 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
-import java.util.stream.Collectors;
 
 public class ProjectPullRequestsLoaderImpl implements ProjectPullRequestsLoader {
-    private static final Logger LOG = Loggers.get(ProjectPullRequestsLoaderImpl.class);
     private static final String PROJECT_PULL_REQUESTS_URL = "/api/project_pull_requests/list";
-    private final ScannerWsClient wsClient;
+    // the date format of web services is configured by GsonHelper, the adapter is thread-safe
+    private static final TypeAdapter<Date> DATE_ADAPTER = GsonHelper.create().getAdapter(Date.class);
+    private final ProjectDataFetcher fetcher;
 
-    public ProjectPullRequestsLoaderImpl(ScannerWsClient wsClient) {
-        this.wsClient = wsClient;
+    public ProjectPullRequestsLoaderImpl(ProjectDataFetcher fetcher) {
+        this.fetcher = fetcher;
     }
 
     public ProjectPullRequests load(@Nullable String projectKey) {
-        return new ProjectPullRequests(this.loadPullRequests(projectKey));
-    }
-
-    private List<PullRequestInfo> loadPullRequests(String projectKey) {
-        GetRequest request = new GetRequest(getUrl(projectKey));
-
-        try (WsResponse response = Utils.call(this.wsClient, request)) {
-            return parseResponse(response);
-        } catch (IOException e) {
-            throw MessageException.of("Could not load pull requests from server", e);
-        } catch (HttpException e) {
-            if (404 == e.code()) {
-                return Collections.emptyList();
-            } else {
-                throw MessageException.of("Could not load pull requests from server", e);
-            }
+        if (!fetcher.isPullRequestAnalysis()) {
+            // pull requests are used only to configure pull request analysis
+            return new ProjectPullRequests(Collections.emptyList());
         }
+        return new LazyProjectPullRequests(fetcher, projectKey);
     }
 
-    private static String getUrl(String projectKey) {
+    static String getUrl(String projectKey) {
         return PROJECT_PULL_REQUESTS_URL + "?project=" + Utils.encodeForUrl(projectKey);
     }
 
-    private static List<PullRequestInfo> parseResponse(WsResponse response) throws IOException {
-        try (Reader reader = response.contentReader()) {
-            WsProjectPullRequestsResponse pullRequestsResponse = GsonHelper.create().fromJson(reader, WsProjectPullRequestsResponse.class);
-            return pullRequestsResponse.pullRequests.stream()
-                    .map((data) -> new PullRequestInfo(data.key, data.branch, data.base, data.analysisDate.getTime()))
-                    .collect(Collectors.toList());
+    /**
+     * Reads pull requests straight from the stream, the response is never bound as a whole.
+     */
+    static List<PullRequestInfo> parseResponse(Reader reader) throws IOException {
+        List<PullRequestInfo> result = new ArrayList<>();
+        JsonReader json = new JsonReader(reader);
+        json.beginObject();
+        while (json.hasNext()) {
+            if ("pullRequests".equals(json.nextName())) {
+                json.beginArray();
+                while (json.hasNext()) {
+                    result.add(readPullRequest(json));
+                }
+                json.endArray();
+            } else {
+                json.skipValue();
+            }
         }
+        json.endObject();
+        return result;
     }
 
-    private static class WsProjectPullRequestsResponse {
-        private List<WsProjectPullRequest> pullRequests = new ArrayList<>();
-    }
+    private static PullRequestInfo readPullRequest(JsonReader json) throws IOException {
+        String key = null;
+        String branch = null;
+        String base = null;
+        long analysisDate = 0;
 
-    private static class WsProjectPullRequest {
-        private String key;
-        private String branch;
-        private String base;
-        private Date analysisDate;
+        json.beginObject();
+        while (json.hasNext()) {
+            String field = json.nextName();
+            if (json.peek() == JsonToken.NULL) {
+                json.nextNull();
+                continue;
+            }
+            switch (field) {
+                case "key":
+                    key = json.nextString();
+                    break;
+                case "branch":
+                    branch = json.nextString();
+                    break;
+                case "base":
+                    base = json.nextString();
+                    break;
+                case "analysisDate":
+                    analysisDate = DATE_ADAPTER.read(json).getTime();
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+        return new PullRequestInfo(key, branch, base, analysisDate);
     }
 }
-
@@ -15,7 +15,9 @@ public class ScannerCoreExtension implements CoreExtension {
     public void load(Context context) {
         if (context.getRuntime().getSonarQubeSide() == SonarQubeSide.SCANNER) {
             context.addExtensions(BranchParamsValidatorImpl.class, BranchConfigurationLoaderImpl.class,
-                    ProjectBranchesLoaderImpl.class, ProjectPullRequestsLoaderImpl.class);
+                    ProjectDataCache.class, ProjectDataFetcher.class,
+                    ProjectBranchesLoaderImpl.class, ProjectPullRequestsLoaderImpl.class,
+                    AnalysisCache.class, ChangedFilesFilter.class, AnalysisCacheUploader.class);
         }
     }
 }
\ No newline at end of file
@@ -10,4 +10,13 @@ public class ScannerSettings {
     public static final String SONAR_PR_KEY = "sonar.pullrequest.key";
     public static final String SONAR_PR_BRANCH = "sonar.pullrequest.branch";
     public static final String SONAR_PR_BASE = "sonar.pullrequest.base";
+    public static final String SONAR_PR_CHANGED_FILES_ONLY = "sonar.pullrequest.changedFilesOnly";
+
+    // cache of branches and pull requests
+    public static final String SONAR_BRANCH_CACHE_ENABLED = "sonar.branch.cache.enabled";
+    public static final String SONAR_BRANCH_CACHE_MAX_STALE = "sonar.branch.cache.maxStaleSeconds";
+    public static final String SONAR_BRANCH_CACHE_STALE_TIMEOUT = "sonar.branch.cache.staleTimeoutMs";
+
+    // analysis cache of branches
+    public static final String SONAR_ANALYSIS_CACHE_ENABLED = "sonar.branch.analysisCache.enabled";
 }
@@ -5,12 +5,35 @@ import org.sonarqube.ws.client.WsResponse;
 
 import javax.annotation.Nullable;
 import java.io.UnsupportedEncodingException;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class Utils {
 
+    private static final MethodType CALL_TYPE = MethodType.methodType(WsResponse.class, Object.class, WsRequest.class);
+
+    private static final ClassValue<MethodHandle> CALL_METHODS = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            try {
+                Method method = type.getMethod("call", WsRequest.class);
+                if (!Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+                    method.setAccessible(true);
+                }
+                return MethodHandles.lookup().unreflect(method).asType(CALL_TYPE);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Could not find method call(WsRequest) in " + type.getName(), e);
+            }
+        }
+    };
+
     private Utils() {
     }
 
@@ -23,27 +46,34 @@ public class Utils {
         }
     }
 
+    /**
+     * Calls {@code ScannerWsClient.call(WsRequest)} of any SonarQube version.
+     * <p>
+     * ScannerWsClient became an interface in newer versions, so the method is resolved at runtime,
+     * once per client class. Exceptions thrown by the client are propagated as is.
+     */
     public static WsResponse call(Object wsClient, WsRequest request) {
+        MethodHandle method = CALL_METHODS.get(wsClient.getClass());
         try {
-            return (WsResponse) wsClient.getClass().getMethod("call", WsRequest.class).invoke(wsClient, request);
-        } catch (ReflectiveOperationException ex) {
-//            ex.printStackTrace();
-//            handleIfInvocationException(ex);
-            throw (RuntimeException) ex.getCause();
-//            throw new IllegalStateException("Could not execute ScannerWsClient", ex);
+            return (WsResponse) method.invokeExact(wsClient, request);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not execute ScannerWsClient", e);
         }
     }
 
-    private static void handleIfInvocationException(ReflectiveOperationException ex) {
-        if (!(ex instanceof InvocationTargetException)) {
-            return;
-        }
-        Throwable cause = ex.getCause();
-        if (cause instanceof Error) {
-            throw (Error) cause;
-        } else if (cause instanceof RuntimeException) {
-            throw (RuntimeException) cause;
+    /**
+     * Waits for the result of background task and rethrows its failure as is.
+     */
+    public static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
         }
     }
-
 }
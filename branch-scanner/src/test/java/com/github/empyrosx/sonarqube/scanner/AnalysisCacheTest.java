@@ -0,0 +1,38 @@
+package com.github.empyrosx.sonarqube.scanner;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+public class AnalysisCacheTest {
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        Map<String, String> hashes = new HashMap<>();
+        hashes.put("module/src/Main.java", "0cc175b9c0f1b6a831c399e269772661");
+        hashes.put("module/src/New File.java", "92eb5ffee6ae2fec3ad71c777531578f");
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        AnalysisCache.write(hashes, output);
+
+        Assert.assertEquals(hashes, AnalysisCache.read(new ByteArrayInputStream(output.toByteArray())));
+    }
+
+    @Test
+    public void testMalformedLinesAreSkipped() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+            gzip.write("hash\tsrc/A.java\nno tab\n\tsrc/B.java\nhash\t\n".getBytes(StandardCharsets.UTF_8));
+        }
+
+        Assert.assertEquals(Collections.singletonMap("src/A.java", "hash"),
+                AnalysisCache.read(new ByteArrayInputStream(output.toByteArray())));
+    }
+}
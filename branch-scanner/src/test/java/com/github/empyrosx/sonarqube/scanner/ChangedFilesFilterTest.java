@@ -0,0 +1,96 @@
+package com.github.empyrosx.sonarqube.scanner;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Stream;
+
+public class ChangedFilesFilterTest {
+
+    private Path repository;
+
+    @Before
+    public void setUp() throws Exception {
+        repository = Files.createTempDirectory("changed-files").toRealPath();
+        git("init", "-q");
+        git("config", "user.email", "test@example.com");
+        git("config", "user.name", "test");
+        write("module/src/Main.java", "class Main {}");
+        write("module/src/Other.java", "class Other {}");
+        write("README.md", "readme");
+        git("add", "-A");
+        git("commit", "-q", "-m", "initial");
+        git("branch", "-M", "master");
+
+        git("checkout", "-q", "-b", "feature");
+        write("module/src/Main.java", "class Main { int field; }");
+        write("module/src/New File.java", "class NewFile {}");
+        Files.delete(repository.resolve("README.md"));
+        git("add", "-A");
+        git("commit", "-q", "-m", "feature");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(repository)) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testFindChangedFiles() throws Exception {
+        Set<Path> files = ChangedFilesFilter.findChangedFiles(repository.resolve("module"), "master");
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList(repository.resolve("module/src/Main.java"),
+                repository.resolve("module/src/New File.java"))), files);
+    }
+
+    @Test
+    public void testChangesOfBaseAfterMergeBaseAreIgnored() throws Exception {
+        git("checkout", "-q", "master");
+        write("module/src/Other.java", "class Other { int field; }");
+        git("commit", "-q", "-am", "master change");
+        git("checkout", "-q", "feature");
+
+        Set<Path> files = ChangedFilesFilter.findChangedFiles(repository, "master");
+
+        Assert.assertFalse(files.contains(repository.resolve("module/src/Other.java")));
+        Assert.assertEquals(2, files.size());
+    }
+
+    @Test
+    public void testUnknownBase() throws Exception {
+        Assert.assertNull(ChangedFilesFilter.findChangedFiles(repository, "develop"));
+    }
+
+    @Test
+    public void testParseNames() {
+        Assert.assertEquals(Arrays.asList("a.java", "dir/b c.java"),
+                ChangedFilesFilter.parseNames("a.java\0dir/b c.java\0".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals(Collections.emptyList(), ChangedFilesFilter.parseNames(new byte[0]));
+    }
+
+    private void write(String path, String content) throws IOException {
+        Path file = repository.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void git(String... arguments) throws Exception {
+        String[] command = new String[arguments.length + 1];
+        command[0] = "git";
+        System.arraycopy(arguments, 0, command, 1, arguments.length);
+        Process process = new ProcessBuilder(command).directory(repository.toFile()).inheritIO().start();
+        Assert.assertEquals(0, process.waitFor());
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.empyrosx.sonarqube.scanner;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class ProjectDataCacheTest {
+
+    private Path directory;
+    private ProjectDataCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("project-data-cache");
+        cache = new ProjectDataCache(true, directory, "http://localhost:9000", TimeUnit.HOURS.toMillis(1));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static void put(ProjectDataCache cache, String path, String etag, String lastModified, String content) throws IOException {
+        cache.put(path, etag, lastModified, new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String read(ProjectDataCache.Entry entry) throws IOException {
+        try (BufferedReader reader = new BufferedReader(entry.openReader())) {
+            return reader.lines().collect(Collectors.joining("\n"));
+        }
+    }
+
+    @Test
+    public void testPutAndGet() throws IOException {
+        ProjectDataCache.Entry put = cache.put("/api/test?project=p", "\"v1\"", null,
+                new ByteArrayInputStream("{\"branches\":[]}".getBytes(StandardCharsets.UTF_8))).get();
+        Assert.assertEquals("{\"branches\":[]}", read(put));
+
+        ProjectDataCache.Entry entry = cache.get("/api/test?project=p").get();
+        Assert.assertEquals("{\"branches\":[]}", read(entry));
+        Assert.assertEquals("\"v1\"", entry.getEtag());
+        Assert.assertFalse(cache.get("/api/test?project=other").isPresent());
+    }
+
+    @Test
+    public void testEntriesAreKeyedByServer() throws IOException {
+        put(cache, "/api/test", "\"v1\"", null, "{}");
+
+        ProjectDataCache other = new ProjectDataCache(true, directory, "https://sonar.example.com", TimeUnit.HOURS.toMillis(1));
+        Assert.assertFalse(other.get("/api/test").isPresent());
+    }
+
+    @Test
+    public void testStaleEntryExpires() throws IOException {
+        put(cache, "/api/test", null, null, "{}");
+        Assert.assertTrue(cache.getStale("/api/test").isPresent());
+
+        ProjectDataCache expired = new ProjectDataCache(true, directory, "http://localhost:9000", -1);
+        Assert.assertTrue(expired.get("/api/test").isPresent());
+        Assert.assertFalse(expired.getStale("/api/test").isPresent());
+    }
+
+    @Test
+    public void testTouchKeepsContent() throws IOException {
+        put(cache, "/api/test", "\"v1\"", null, "{}");
+        ProjectDataCache.Entry entry = cache.get("/api/test").get();
+
+        cache.touch(entry);
+
+        ProjectDataCache.Entry touched = cache.get("/api/test").get();
+        Assert.assertEquals("{}", read(touched));
+        Assert.assertEquals("\"v1\"", touched.getEtag());
+        Assert.assertTrue(touched.getValidatedAt() >= entry.getValidatedAt());
+    }
+
+    @Test
+    public void testValidatorsStayWithTheirContent() throws IOException {
+        put(cache, "/api/test", "\"v1\"", "Wed, 21 Oct 2015 07:28:00 GMT", "{\"v\":1}");
+        ProjectDataCache.Entry first = cache.get("/api/test").get();
+        put(cache, "/api/test", "\"v2\"", null, "{\"v\":2}");
+
+        cache.touch(first);
+
+        ProjectDataCache.Entry entry = cache.get("/api/test").get();
+        Assert.assertEquals("\"v2\"", entry.getEtag());
+        Assert.assertEquals("{\"v\":2}", read(entry));
+        try (Stream<Path> paths = Files.list(directory)) {
+            Assert.assertEquals(2, paths.count());
+        }
+    }
+
+    @Test
+    public void testDisabled() throws IOException {
+        ProjectDataCache disabled = new ProjectDataCache(false, directory, "http://localhost:9000", TimeUnit.HOURS.toMillis(1));
+        ByteArrayInputStream content = new ByteArrayInputStream("{}".getBytes(StandardCharsets.UTF_8));
+
+        Assert.assertFalse(disabled.put("/api/test", "\"v1\"", null, content).isPresent());
+        Assert.assertEquals("content is left to the caller", 2, content.available());
+
+        Assert.assertFalse(disabled.get("/api/test").isPresent());
+        Assert.assertFalse(cache.get("/api/test").isPresent());
+    }
+}
@@ -0,0 +1,165 @@
+package com.github.empyrosx.sonarqube.scanner;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.scanner.scan.branch.BranchInfo;
+import org.sonarqube.ws.client.HttpException;
+import org.sonarqube.ws.client.MockWsResponse;
+import org.sonarqube.ws.client.WsRequest;
+import org.sonarqube.ws.client.WsResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class ProjectDataFetcherTest {
+
+    private static final String LOOKUP_URL = "/api/branch_plugin/lookup?project=project&branch=feature";
+    private static final String BRANCHES = "{\"branches\":[" +
+            "{\"name\":\"master\",\"isMain\":true,\"type\":\"BRANCH\"}," +
+            "{\"name\":\"feature\",\"isMain\":false,\"type\":\"BRANCH\",\"mergeBranch\":\"master\"}]}";
+
+    private final MapSettings settings = new MapSettings()
+            .setProperty("sonar.projectKey", "project")
+            .setProperty(ScannerSettings.SONAR_BRANCH_NAME, "feature");
+    private final ScriptedClient client = new ScriptedClient();
+    private final List<ProjectDataFetcher> fetchers = new ArrayList<>();
+    private Path directory;
+    private ProjectDataCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("project-data-fetcher");
+        cache = new ProjectDataCache(true, directory, "http://localhost:9000", TimeUnit.HOURS.toMillis(1));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fetchers.forEach(ProjectDataFetcher::stop);
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private ProjectDataFetcher newFetcher() {
+        ProjectDataFetcher fetcher = new ProjectDataFetcher(client, settings.asConfig(), cache);
+        fetchers.add(fetcher);
+        return fetcher;
+    }
+
+    private static List<String> names(List<BranchInfo> branches) {
+        return branches.stream().map(BranchInfo::name).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testLookupIsCachedAndRevalidated() {
+        client.respond(request -> new MockWsResponse().setCode(200).setHeader("ETag", "\"v1\"").setContent(BRANCHES));
+        Assert.assertEquals(2, newFetcher().getBranches("project").size());
+        Assert.assertEquals("\"v1\"", cache.get(LOOKUP_URL).get().getEtag());
+
+        client.respond(request -> new MockWsResponse().setCode(304));
+        List<BranchInfo> branches = newFetcher().getBranches("project");
+
+        Assert.assertEquals(2, branches.size());
+        Assert.assertEquals("master", branches.get(1).branchTargetName());
+        Assert.assertEquals(2, client.urls.size());
+        Assert.assertEquals(LOOKUP_URL, client.urls.get(1));
+    }
+
+    @Test
+    public void testNotFoundLookupFallsBackToList() {
+        client.respond(request -> {
+            throw new HttpException(request.getPath(), 404, "");
+        });
+        client.respond(request -> new MockWsResponse().setCode(200).setContent(BRANCHES));
+
+        ProjectDataFetcher fetcher = newFetcher();
+        Assert.assertEquals(2, fetcher.getBranches("project").size());
+        Assert.assertFalse(fetcher.isLookupAvailable("project"));
+        Assert.assertEquals("/api/project_branches/list?project=project", client.urls.get(1));
+    }
+
+    @Test
+    public void testListIsParsedFromResponseWhenCacheIsDisabled() {
+        cache = new ProjectDataCache(false, directory, "http://localhost:9000", TimeUnit.HOURS.toMillis(1));
+        client.respond(request -> {
+            throw new HttpException(request.getPath(), 404, "");
+        });
+        client.respond(request -> new MockWsResponse().setCode(200).setContent(BRANCHES));
+
+        Assert.assertEquals(Arrays.asList("master", "feature"), names(newFetcher().getBranches("project")));
+        Assert.assertFalse(cache.get("/api/project_branches/list?project=project").isPresent());
+    }
+
+    @Test
+    public void testPullRequestsAreFetchedOnFirstAccess() {
+        settings.setProperty(ScannerSettings.SONAR_PR_KEY, "5")
+                .setProperty(ScannerSettings.SONAR_PR_BRANCH, "feature-5")
+                .setProperty(ScannerSettings.SONAR_PR_BASE, "feature");
+        client.respond(request -> {
+            throw new HttpException(request.getPath(), 404, "");
+        });
+        client.respond(request -> new MockWsResponse().setCode(200).setContent(BRANCHES));
+        client.respond(request -> new MockWsResponse().setCode(200).setContent("{\"pullRequests\":[]}"));
+
+        ProjectDataFetcher fetcher = newFetcher();
+        fetcher.start();
+        Assert.assertEquals(2, fetcher.getBranches("project").size());
+        Assert.assertEquals(2, client.urls.size());
+
+        Assert.assertTrue(fetcher.getPullRequests("project").isEmpty());
+        Assert.assertEquals(ProjectPullRequestsLoaderImpl.getUrl("project"), client.urls.get(2));
+    }
+
+    @Test
+    public void testStaleCopyIsUsedWhenServerFails() throws IOException {
+        cache.put(LOOKUP_URL, "\"v1\"", null, new ByteArrayInputStream(BRANCHES.getBytes(StandardCharsets.UTF_8)));
+        client.respond(request -> {
+            throw new IllegalStateException("Server is down");
+        });
+
+        Assert.assertEquals(2, newFetcher().getBranches("project").size());
+    }
+
+    @Test
+    public void testFailureWithoutCachedCopy() {
+        client.respond(request -> {
+            throw new IllegalStateException("Server is down");
+        });
+
+        try {
+            newFetcher().getBranches("project");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Server is down", e.getMessage());
+        }
+    }
+
+    public static class ScriptedClient {
+        private final Queue<Function<WsRequest, WsResponse>> responses = new LinkedList<>();
+        private final List<String> urls = new ArrayList<>();
+
+        void respond(Function<WsRequest, WsResponse> response) {
+            responses.add(response);
+        }
+
+        public synchronized WsResponse call(WsRequest request) {
+            urls.add(request.getPath());
+            return responses.remove().apply(request);
+        }
+    }
+}
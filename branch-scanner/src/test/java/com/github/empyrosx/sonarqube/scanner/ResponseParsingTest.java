@@ -0,0 +1,51 @@
+package com.github.empyrosx.sonarqube.scanner;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sonar.scanner.scan.branch.BranchInfo;
+import org.sonar.scanner.scan.branch.BranchType;
+import org.sonar.scanner.scan.branch.PullRequestInfo;
+
+import java.io.StringReader;
+import java.text.SimpleDateFormat;
+import java.util.List;
+
+import static org.junit.Assert.assertNull;
+
+public class ResponseParsingTest {
+
+    @Test
+    public void testParseBranches() throws Exception {
+        String json = "{\"branches\":[" +
+                "{\"name\":\"master\",\"isMain\":true,\"type\":\"BRANCH\",\"status\":{\"qualityGateStatus\":\"OK\"}}," +
+                "{\"name\":\"release-1.0\",\"isMain\":false,\"type\":\"BRANCH\",\"mergeBranch\":\"master\"}," +
+                "{\"name\":\"feature\",\"isMain\":false,\"type\":\"BRANCH\",\"mergeBranch\":null}" +
+                "]}";
+
+        List<BranchInfo> branches = ProjectBranchesLoaderImpl.parseResponse(new StringReader(json));
+        Assert.assertEquals(3, branches.size());
+        Assert.assertEquals("master", branches.get(0).name());
+        Assert.assertTrue(branches.get(0).isMain());
+        Assert.assertEquals(BranchType.BRANCH, branches.get(0).type());
+        Assert.assertEquals("master", branches.get(1).branchTargetName());
+        assertNull(branches.get(2).branchTargetName());
+    }
+
+    @Test
+    public void testParsePullRequests() throws Exception {
+        String json = "{\"pullRequests\":[" +
+                "{\"key\":\"2\",\"title\":\"PR 2\",\"branch\":\"release-1.0/pr-2\",\"base\":\"release-1.0\"," +
+                "\"status\":{\"qualityGateStatus\":\"OK\"},\"analysisDate\":\"2019-12-02T22:59:37+0300\"}," +
+                "{\"key\":\"3\",\"branch\":\"release-1.0/pr-3\"}" +
+                "]}";
+
+        List<PullRequestInfo> pullRequests = ProjectPullRequestsLoaderImpl.parseResponse(new StringReader(json));
+        Assert.assertEquals(2, pullRequests.size());
+        Assert.assertEquals("2", pullRequests.get(0).getKey());
+        Assert.assertEquals("release-1.0/pr-2", pullRequests.get(0).getBranch());
+        Assert.assertEquals("release-1.0", pullRequests.get(0).getBase());
+        long expected = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").parse("2019-12-02T22:59:37+0300").getTime();
+        Assert.assertEquals(expected, pullRequests.get(0).getAnalysisDate());
+        assertNull(pullRequests.get(1).getBase());
+    }
+}
@@ -0,0 +1,58 @@
+package com.github.empyrosx.sonarqube.scanner;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sonar.api.SonarEdition;
+import org.sonar.api.SonarQubeSide;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.internal.SonarRuntimeImpl;
+import org.sonar.api.scanner.ScannerSide;
+import org.sonar.api.utils.AnnotationUtils;
+import org.sonar.api.utils.Version;
+import org.sonar.core.extension.CoreExtension;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+public class ScannerCoreExtensionTest {
+
+    @Test
+    public void testComponentsAreScannerSide() {
+        List<Object> extensions = new ArrayList<>();
+        new ScannerCoreExtension().load(context(extensions));
+
+        Assert.assertFalse(extensions.isEmpty());
+        for (Object extension : extensions) {
+            Assert.assertNotNull(extension + " is not annotated with ScannerSide",
+                    AnnotationUtils.getAnnotation(extension, ScannerSide.class));
+        }
+    }
+
+    private static CoreExtension.Context context(List<Object> extensions) {
+        return (CoreExtension.Context) Proxy.newProxyInstance(ScannerCoreExtensionTest.class.getClassLoader(),
+                new Class[]{CoreExtension.Context.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getRuntime":
+                            return SonarRuntimeImpl.forSonarQube(Version.create(8, 7), SonarQubeSide.SCANNER, SonarEdition.COMMUNITY);
+                        case "getBootConfiguration":
+                            return new MapSettings().asConfig();
+                        case "addExtension":
+                            extensions.add(args[0]);
+                            return proxy;
+                        case "addExtensions":
+                            if (args[0] instanceof Collection) {
+                                extensions.addAll((Collection<?>) args[0]);
+                            } else {
+                                extensions.add(args[0]);
+                                extensions.addAll(Arrays.asList((Object[]) args[1]));
+                            }
+                            return proxy;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
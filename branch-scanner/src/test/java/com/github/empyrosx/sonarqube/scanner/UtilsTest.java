@@ -0,0 +1,70 @@
+package com.github.empyrosx.sonarqube.scanner;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sonarqube.ws.client.GetRequest;
+import org.sonarqube.ws.client.WsRequest;
+import org.sonarqube.ws.client.WsResponse;
+
+import java.io.IOException;
+
+public class UtilsTest {
+
+    private final GetRequest request = new GetRequest("api/test");
+
+    @Test
+    public void testCallPassesRequest() {
+        RecordingClient client = new RecordingClient();
+
+        Assert.assertNull(Utils.call(client, request));
+        Assert.assertNull(Utils.call(client, request));
+        Assert.assertEquals(2, client.calls);
+    }
+
+    @Test
+    public void testCallPropagatesRuntimeException() {
+        try {
+            Utils.call(new FailingClient(new IllegalArgumentException("bad request")), request);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("bad request", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testCallWrapsCheckedException() {
+        IOException cause = new IOException("connection reset");
+        try {
+            Utils.call(new FailingClient(cause), request);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertSame(cause, e.getCause());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCallWithoutMethod() {
+        Utils.call(new Object(), request);
+    }
+
+    public static class RecordingClient {
+        private int calls;
+
+        public WsResponse call(WsRequest request) {
+            calls++;
+            return null;
+        }
+    }
+
+    public static class FailingClient {
+        private final Exception exception;
+
+        FailingClient(Exception exception) {
+            this.exception = exception;
+        }
+
+        public WsResponse call(WsRequest request) throws Exception {
+            throw exception;
+        }
+    }
+}